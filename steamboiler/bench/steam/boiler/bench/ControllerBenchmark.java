@@ -0,0 +1,323 @@
+package steam.boiler.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.LevelSensorModels;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpControllerModels;
+import steam.boiler.model.PumpModels;
+import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Measures the throughput and latency of a single controller cycle in each mode, and for a range
+ * of pump counts. Run with JMH, for example:
+ *
+ * <pre>
+ * java -jar benchmarks.jar ControllerBenchmark -p scenario=NORMAL,DEGRADED -p pumps=4,256
+ * </pre>
+ *
+ * <p>Each scenario drives a boiler into the mode under test with the physical units, recording
+ * the messages the controller receives on the way. A controller is brought up to the same point
+ * once by replaying those messages, and a snapshot of it is taken. Timing a single cycle costs
+ * about as much as the cycle itself, so each invocation clocks a batch of {@link #BATCH}
+ * controllers, cloned from it before each iteration. Each is restored from the snapshot just
+ * before it is clocked, so every measured cycle starts from exactly the same state. The replay
+ * and the physical units are not measured, but restoring is, and the
+ * {@link #restore(Blackhole)} benchmark measures it on its own so it can be taken off.
+ *
+ * @author Caitlin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControllerBenchmark {
+
+  /**
+   * The number of controllers clocked in each invocation.
+   */
+  public static final int BATCH = 64;
+
+  /**
+   * The situations which the controller can be measured in.
+   */
+  public enum Scenario {
+    /**
+     * Waiting for the water level to reach the normal range before starting.
+     */
+    WAITING,
+    /**
+     * Waiting for the physical units to be ready.
+     */
+    READY,
+    /**
+     * Running normally with no failures.
+     */
+    NORMAL,
+    /**
+     * Running with a broken steam sensor.
+     */
+    DEGRADED,
+    /**
+     * Running with a broken water level sensor.
+     */
+    RESCUE,
+    /**
+     * Stopped after a transmission failure.
+     */
+    EMERGENCY_STOP,
+    /**
+     * Running with a broken pump and pump controller, receiving a failure acknowledgement and
+     * repair message for every pump and pump controller in the same cycle.
+     */
+    REPAIRS
+  }
+
+  /**
+   * The scenario being measured.
+   */
+  @Param({"WAITING", "READY", "NORMAL", "DEGRADED", "RESCUE", "EMERGENCY_STOP", "REPAIRS"})
+  public Scenario scenario;
+
+  /**
+   * The number of pumps in the boiler.
+   */
+  @Param({"4", "16", "64", "256"})
+  public int pumps;
+
+  /**
+   * The configuration of the boiler.
+   */
+  private SteamBoilerCharacteristics config;
+
+  /**
+   * The controller brought up to the measured cycle.
+   */
+  private MySteamBoilerController prepared;
+
+  /**
+   * The state of the controller just before the measured cycle.
+   */
+  private MySteamBoilerController.Snapshot start;
+
+  /**
+   * The messages received by the controller in the measured cycle.
+   */
+  private Mailbox input;
+
+  /**
+   * The controllers clocked in each invocation.
+   */
+  private MySteamBoilerController[] controllers;
+
+  /**
+   * The messages sent by each controller in the measured cycle.
+   */
+  private ArrayMailbox[] outputs;
+
+  /**
+   * Drive a boiler into the scenario, recording what the controller receives along the way.
+   */
+  @Setup(Level.Trial)
+  public void setupTrial() {
+    SteamBoilerCharacteristics defaults = SteamBoilerCharacteristics.DEFAULT;
+    this.config = defaults.setNumberOfPumps(this.pumps, defaults.getPumpCapacity(0));
+    Recorder recorder = new Recorder(this.config);
+    switch (this.scenario) {
+      case WAITING:
+        recorder.model.setMode(PhysicalUnits.Mode.WAITING);
+        break;
+      case READY:
+        recorder.model.getBoiler().pumpInWater(average(this.config.getMinimalNormalLevel(),
+            this.config.getMaximalNormalLevel()));
+        recorder.model.setMode(PhysicalUnits.Mode.WAITING);
+        recorder.clock(1);
+        break;
+      case NORMAL:
+        recorder.start();
+        break;
+      case DEGRADED:
+        recorder.start();
+        recorder.model.setSteamSensor(new SteamSensorModels.StuckNegativeOne(recorder.model));
+        recorder.clock(1);
+        break;
+      case RESCUE:
+        recorder.start();
+        recorder.model.setLevelSensor(new LevelSensorModels.StuckNegativeOne(recorder.model));
+        recorder.clock(1);
+        break;
+      case EMERGENCY_STOP:
+        recorder.start();
+        recorder.model.setLevelSensor(new LevelSensorModels.TxFailure(recorder.model));
+        recorder.clock(1);
+        break;
+      case REPAIRS:
+        recorder.start();
+        recorder.model.setPump(0, new PumpModels.StuckClosed(0, 0.0, recorder.model));
+        recorder.model.setPumpController(1, new PumpControllerModels.StuckOff(1, recorder.model));
+        recorder.clockUntil("DEGRADED", 60);
+        recorder.clock(1);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown scenario " + this.scenario);
+    }
+    this.prepared = new MySteamBoilerController(this.config);
+    for (Mailbox in : recorder.inputs) {
+      this.prepared.clock(in, new UnboundedMailbox(100));
+    }
+    this.start = this.prepared.snapshot();
+    this.input = recorder.next();
+    if (this.scenario == Scenario.REPAIRS) {
+      for (int i = 0; i != this.pumps; ++i) {
+        this.input.send(new Message(MessageKind.PUMP_FAILURE_ACKNOWLEDGEMENT_n, i));
+        this.input.send(new Message(MessageKind.PUMP_CONTROL_FAILURE_ACKNOWLEDGEMENT_n, i));
+        this.input.send(new Message(MessageKind.PUMP_REPAIRED_n, i));
+        this.input.send(new Message(MessageKind.PUMP_CONTROL_REPAIRED_n, i));
+      }
+    }
+  }
+
+  /**
+   * Clone a batch of controllers from the one brought up to the measured cycle.
+   */
+  @Setup(Level.Iteration)
+  public void setupIteration() {
+    this.controllers = new MySteamBoilerController[BATCH];
+    this.outputs = new ArrayMailbox[BATCH];
+    for (int i = 0; i != BATCH; ++i) {
+      this.controllers[i] = new MySteamBoilerController(this.prepared);
+      this.outputs[i] = new ArrayMailbox(4 * this.pumps + 100);
+    }
+  }
+
+  /**
+   * Restore each controller in the batch to just before the measured cycle, and clock it for
+   * the measured cycle.
+   *
+   * @param blackhole
+   *          Consumes the messages sent by each controller.
+   */
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void clock(Blackhole blackhole) {
+    for (int i = 0; i != BATCH; ++i) {
+      MySteamBoilerController controller = this.controllers[i];
+      ArrayMailbox output = this.outputs[i];
+      controller.restore(this.start);
+      output.clear();
+      controller.clock(this.input, output);
+      blackhole.consume(output);
+    }
+  }
+
+  /**
+   * Restore each controller in the batch to just before the measured cycle, without clocking
+   * it, which is the part of {@link #clock(Blackhole)} which is not the cycle.
+   *
+   * @param blackhole
+   *          Consumes each controller.
+   */
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void restore(Blackhole blackhole) {
+    for (int i = 0; i != BATCH; ++i) {
+      MySteamBoilerController controller = this.controllers[i];
+      controller.restore(this.start);
+      blackhole.consume(controller);
+    }
+  }
+
+  private static double average(double a, double b) {
+    return (a + b) / 2.0;
+  }
+
+  /**
+   * Clocks a controller with the physical units, recording the messages the controller receives
+   * in each cycle.
+   *
+   * @author Caitlin
+   *
+   */
+  private static class Recorder {
+    final MySteamBoilerController controller;
+    final PhysicalUnits model;
+    final ArrayList<Mailbox> inputs = new ArrayList<>();
+
+    Recorder(SteamBoilerCharacteristics config) {
+      this.controller = new MySteamBoilerController(config);
+      this.model = new PhysicalUnits.Template(config).construct();
+    }
+
+    /**
+     * Run the boiler for four minutes under ideal conditions, which brings it into normal mode.
+     */
+    void start() {
+      this.model.setMode(PhysicalUnits.Mode.WAITING);
+      clock(48);
+    }
+
+    /**
+     * Clock the boiler for a given number of cycles.
+     */
+    void clock(int cycles) {
+      for (int c = 0; c != cycles; ++c) {
+        Mailbox in = next();
+        Mailbox out = new UnboundedMailbox(100);
+        this.controller.clock(in, out);
+        this.model.receive(out);
+        this.inputs.add(in);
+        for (int t = 0; t != 5000; t += 100) {
+          this.model.clock(100);
+        }
+      }
+    }
+
+    /**
+     * Clock the boiler until the controller is in a given mode.
+     */
+    void clockUntil(String mode, int maxCycles) {
+      for (int c = 0; c != maxCycles; ++c) {
+        if (mode.equals(this.controller.getStatusMessage())) {
+          return;
+        }
+        clock(1);
+      }
+      throw new IllegalStateException("controller did not reach " + mode);
+    }
+
+    /**
+     * Get the messages the physical units would send in the next cycle.
+     */
+    Mailbox next() {
+      Mailbox in = new UnboundedMailbox(100);
+      this.model.transmit(in);
+      return in;
+    }
+  }
+}
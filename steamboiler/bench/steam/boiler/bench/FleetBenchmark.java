@@ -0,0 +1,82 @@
+package steam.boiler.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import steam.boiler.core.Fleet;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Measures a cycle of a {@link Fleet} of default boilers on the common pool, including the
+ * physical units. Each operation is one cycle of every boiler, so the number of boiler cycles a
+ * second is the number of operations a second times the number of boilers. Run with JMH, for
+ * example:
+ *
+ * <pre>
+ * java -jar benchmarks.jar FleetBenchmark -p boilers=1000
+ * </pre>
+ *
+ * <p>Every boiler is brought into normal mode before measuring, and keeps running normally.
+ *
+ * @author Caitlin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FleetBenchmark {
+
+  /**
+   * The number of boilers in the fleet.
+   */
+  @Param({"100", "1000"})
+  public int boilers;
+
+  /**
+   * The fleet being clocked.
+   */
+  private Fleet fleet;
+
+  /**
+   * Build the fleet, and run it for four minutes, which brings every boiler into normal mode.
+   */
+  @Setup(Level.Trial)
+  public void setupTrial() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    this.fleet = new Fleet();
+    for (int i = 0; i != this.boilers; ++i) {
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      this.fleet.add(new MySteamBoilerController(config), model);
+    }
+    this.fleet.clock(48);
+  }
+
+  /**
+   * Clock every boiler for one cycle.
+   *
+   * @return The number of cycles the fleet has been clocked for.
+   */
+  @Benchmark
+  public long clock() {
+    this.fleet.clock();
+    return this.fleet.getCycles();
+  }
+}
@@ -0,0 +1,170 @@
+package steam.boiler.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.Fleet;
+import steam.boiler.core.FleetController;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Compares a cycle of default boilers with a controller each against a cycle of the same
+ * boilers with one {@link FleetController}, on the same messages. Only the controllers are
+ * measured, not the physical units. Each operation is one cycle of every boiler, so the number
+ * of boiler cycles a second is the number of operations a second times the number of boilers.
+ * Run with JMH, for example:
+ *
+ * <pre>
+ * java -jar benchmarks.jar FleetControllerBenchmark -p boilers=10000
+ * </pre>
+ *
+ * <p>Every boiler is brought into normal mode before measuring. A boiler in normal mode opens a
+ * pump one cycle and closes it the next, so the readings of two cycles are recorded, and sent
+ * in turn. Every boiler keeps running normally, and the fleet controller takes its fast path.
+ *
+ * @author Caitlin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FleetControllerBenchmark {
+
+  /**
+   * The number of boilers.
+   */
+  @Param({"100", "10000"})
+  public int boilers;
+
+  /**
+   * The controller for each boiler.
+   */
+  private MySteamBoilerController[] controllers;
+
+  /**
+   * The controller for every boiler at once.
+   */
+  private FleetController fleet;
+
+  /**
+   * The readings sent to each boiler in even and odd measured cycles, indexed by the parity of
+   * the cycle and then by boiler.
+   */
+  private Mailbox[][] inputs;
+
+  /**
+   * The number of cycles the controller for each boiler has been clocked for.
+   */
+  private int controllerCycles;
+
+  /**
+   * The number of cycles the fleet controller has been clocked for.
+   */
+  private int fleetCycles;
+
+  /**
+   * The mailbox for the messages from each boiler's controller.
+   */
+  private ArrayMailbox[] outputs;
+
+  /**
+   * Build the controllers, and run them for four minutes, which brings every boiler into
+   * normal mode.
+   */
+  @Setup(Level.Trial)
+  public void setupTrial() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    this.controllers = new MySteamBoilerController[this.boilers];
+    this.fleet = new FleetController();
+    this.inputs = new Mailbox[2][this.boilers];
+    this.outputs = new ArrayMailbox[this.boilers];
+    PhysicalUnits[] models = new PhysicalUnits[this.boilers];
+    ArrayMailbox[] in = new ArrayMailbox[this.boilers];
+    ArrayMailbox scratch = new ArrayMailbox(100);
+    for (int b = 0; b != this.boilers; ++b) {
+      this.fleet.add(config);
+      this.controllers[b] = new MySteamBoilerController(config);
+      models[b] = new PhysicalUnits.Template(config).construct();
+      models[b].setMode(PhysicalUnits.Mode.WAITING);
+      in[b] = new ArrayMailbox(100);
+      this.outputs[b] = new ArrayMailbox(100);
+    }
+    for (int c = 0; c != 50; ++c) {
+      for (int b = 0; b != this.boilers; ++b) {
+        if (c >= 48) {
+          // Record the readings of the last two cycles
+          in[b] = new ArrayMailbox(100);
+          this.inputs[c & 1][b] = in[b];
+        }
+        in[b].clear();
+        this.outputs[b].clear();
+        models[b].transmit(in[b]);
+        scratch.clear();
+        this.controllers[b].clock(in[b], scratch);
+      }
+      this.fleet.clock(in, this.outputs);
+      for (int b = 0; b != this.boilers; ++b) {
+        models[b].receive(this.outputs[b]);
+        for (int t = 0; t != Fleet.CYCLE; t += Fleet.GRANULARITY) {
+          models[b].clock(Fleet.GRANULARITY);
+        }
+      }
+    }
+    for (int b = 0; b != this.boilers; ++b) {
+      if (!"NORMAL".equals(this.controllers[b].getStatusMessage())
+          || !"NORMAL".equals(this.fleet.getStatusMessage(b))) {
+        throw new IllegalStateException("boiler " + b + " did not reach normal mode");
+      }
+    }
+  }
+
+  /**
+   * Clock the controller of every boiler for one cycle.
+   *
+   * @return The number of messages the last controller sent.
+   */
+  @Benchmark
+  public int controllers() {
+    Mailbox[] in = this.inputs[this.controllerCycles++ & 1];
+    ArrayMailbox output = this.outputs[0];
+    for (int b = 0; b != this.boilers; ++b) {
+      output = this.outputs[b];
+      output.clear();
+      this.controllers[b].clock(in[b], output);
+    }
+    return output.size();
+  }
+
+  /**
+   * Clock every boiler with the fleet controller for one cycle.
+   *
+   * @return The number of cycles which have been escalated.
+   */
+  @Benchmark
+  public long fleet() {
+    for (int b = 0; b != this.boilers; ++b) {
+      this.outputs[b].clear();
+    }
+    this.fleet.clock(this.inputs[this.fleetCycles++ & 1], this.outputs);
+    return this.fleet.getEscalations();
+  }
+}
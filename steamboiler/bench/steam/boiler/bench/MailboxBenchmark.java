@@ -0,0 +1,128 @@
+package steam.boiler.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Measures a cycle of the test harness, where the physical units and the controller exchange
+ * messages, with new mailboxes every cycle against the same pair of mailboxes cleared every
+ * cycle. The difference is mostly in how much garbage is made, so run with the GC profiler to
+ * see the allocation rate and time spent collecting, for example:
+ *
+ * <pre>
+ * java -jar benchmarks.jar MailboxBenchmark -prof gc -p pumps=4,64
+ * </pre>
+ *
+ * <p>The boiler is brought into normal mode before measuring, and keeps running normally
+ * throughout. The physical units are not clocked between exchanges, since that is the same in
+ * both cases.
+ *
+ * @author Caitlin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MailboxBenchmark {
+
+  /**
+   * The number of pumps in the boiler.
+   */
+  @Param({"4", "16", "64"})
+  public int pumps;
+
+  /**
+   * The controller being clocked.
+   */
+  private MySteamBoilerController controller;
+
+  /**
+   * The physical units being controlled.
+   */
+  private PhysicalUnits model;
+
+  /**
+   * The reused mailbox for the messages to the controller.
+   */
+  private ArrayMailbox input;
+
+  /**
+   * The reused mailbox for the messages from the controller.
+   */
+  private ArrayMailbox output;
+
+  /**
+   * Run the boiler for four minutes under ideal conditions, which brings it into normal mode.
+   */
+  @Setup
+  public void setup() {
+    SteamBoilerCharacteristics defaults = SteamBoilerCharacteristics.DEFAULT;
+    SteamBoilerCharacteristics config = defaults.setNumberOfPumps(this.pumps,
+        defaults.getPumpCapacity(0));
+    this.controller = new MySteamBoilerController(config);
+    this.model = new PhysicalUnits.Template(config).construct();
+    this.model.setMode(PhysicalUnits.Mode.WAITING);
+    this.input = new ArrayMailbox(100);
+    this.output = new ArrayMailbox(100);
+    for (int c = 0; c != 48; ++c) {
+      pooled();
+      for (int t = 0; t != 5000; t += 100) {
+        this.model.clock(100);
+      }
+    }
+    if (!"NORMAL".equals(this.controller.getStatusMessage())) {
+      throw new IllegalStateException("controller did not reach NORMAL");
+    }
+  }
+
+  /**
+   * Exchange messages through new mailboxes, as the test harness used to.
+   *
+   * @return The messages sent by the controller.
+   */
+  @Benchmark
+  public Mailbox unbounded() {
+    Mailbox in = new UnboundedMailbox(100);
+    Mailbox out = new UnboundedMailbox(100);
+    this.model.transmit(in);
+    this.controller.clock(in, out);
+    this.model.receive(out);
+    return out;
+  }
+
+  /**
+   * Exchange messages through the same pair of mailboxes, cleared first.
+   *
+   * @return The messages sent by the controller.
+   */
+  @Benchmark
+  public Mailbox pooled() {
+    this.input.clear();
+    this.output.clear();
+    this.model.transmit(this.input);
+    this.controller.clock(this.input, this.output);
+    this.model.receive(this.output);
+    return this.output;
+  }
+}
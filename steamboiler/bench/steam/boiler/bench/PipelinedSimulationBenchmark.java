@@ -0,0 +1,143 @@
+package steam.boiler.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.PipelinedSimulation;
+import steam.boiler.core.SimulationClock;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Compares simulating default boilers on one thread, with a {@link SimulationClock} each,
+ * against a {@link PipelinedSimulation} of the same boilers on two threads. Each operation is
+ * one cycle of every boiler, so the number of boiler cycles a second is the number of
+ * operations a second times the number of boilers. Run with JMH, for example:
+ *
+ * <pre>
+ * java -jar benchmarks.jar PipelinedSimulationBenchmark -p boilers=16
+ * </pre>
+ *
+ * <p>The pipelined simulation starts a thread for the controllers each run, so each invocation
+ * runs {@link #CYCLES} cycles to spread that over. Every boiler is brought into normal mode
+ * before measuring, and keeps running normally.
+ *
+ * @author Caitlin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelinedSimulationBenchmark {
+
+  /**
+   * The number of cycles run in each invocation.
+   */
+  public static final int CYCLES = 100;
+
+  /**
+   * The number of boilers.
+   */
+  @Param({"1", "2", "16"})
+  public int boilers;
+
+  /**
+   * The clock of each boiler run on one thread.
+   */
+  private SimulationClock[] clocks;
+
+  /**
+   * The time the clocks have been run to, in milliseconds.
+   */
+  private long time;
+
+  /**
+   * The boilers run on two threads.
+   */
+  private PipelinedSimulation pipelined;
+
+  /**
+   * Build the boilers, and run them for four minutes, which brings them into normal mode.
+   *
+   * @throws InterruptedException
+   *           If interrupted.
+   */
+  @Setup(Level.Trial)
+  public void setupTrial() throws InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    this.clocks = new SimulationClock[this.boilers];
+    this.pipelined = new PipelinedSimulation();
+    for (int b = 0; b != this.boilers; ++b) {
+      this.clocks[b] = new SimulationClock(new MySteamBoilerController(config), model(config));
+      this.pipelined.add(new MySteamBoilerController(config), model(config));
+    }
+    this.time = 48 * SimulationClock.CYCLE;
+    for (SimulationClock clock : this.clocks) {
+      clock.run(this.time);
+    }
+    this.pipelined.run(48, (commands, boiler) -> {
+      // Only the speed is of interest
+    });
+  }
+
+  /**
+   * Run every boiler for a number of cycles, one after the other, on this thread.
+   *
+   * @return The number of cycles the last clock has run.
+   */
+  @Benchmark
+  @OperationsPerInvocation(CYCLES)
+  public long oneThread() {
+    this.time += CYCLES * SimulationClock.CYCLE;
+    for (SimulationClock clock : this.clocks) {
+      clock.run(this.time);
+    }
+    return this.clocks[this.boilers - 1].getCycles();
+  }
+
+  /**
+   * Run every boiler for a number of cycles, pipelined on two threads.
+   *
+   * @return The number of cycles run.
+   * @throws InterruptedException
+   *           If interrupted.
+   */
+  @Benchmark
+  @OperationsPerInvocation(CYCLES)
+  public long pipelined() throws InterruptedException {
+    this.pipelined.run(CYCLES, (commands, boiler) -> {
+      // Only the speed is of interest
+    });
+    return this.pipelined.getCycles();
+  }
+
+  /**
+   * Make the physical units of a boiler, waiting to start.
+   *
+   * @param config
+   *          The boiler characteristics.
+   * @return The physical units.
+   */
+  private static PhysicalUnits model(SteamBoilerCharacteristics config) {
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    return model;
+  }
+}
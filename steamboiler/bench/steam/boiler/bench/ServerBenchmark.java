@@ -0,0 +1,176 @@
+package steam.boiler.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.ControllerClient;
+import steam.boiler.core.ControllerServer;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Measures cycles of boilers hosted by a {@link ControllerServer} on the loopback interface,
+ * with every boiler on one connection. Each operation sends a number of cycles of every boiler
+ * before reading any of the replies, and then reads them all, so the number of cycles a second
+ * is the number of operations a second times the window times the number of boilers. The
+ * sample time is the time for the whole batch to come back, so its percentiles are the
+ * latency of a single cycle when the window and the number of boilers are both one. Run with
+ * JMH, for example:
+ *
+ * <pre>
+ * java -jar benchmarks.jar ServerBenchmark -p boilers=1 -p window=1
+ * </pre>
+ *
+ * <p>The server runs on a thread of its own in the same process, which is the same as a server
+ * in another process apart from sharing the heap. Every boiler is brought into normal mode
+ * before measuring. A boiler in normal mode opens a pump one cycle and closes it the next, so
+ * the readings of two cycles are recorded, and sent in turn, which keeps it running normally.
+ *
+ * @author Caitlin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerBenchmark {
+
+  /**
+   * The number of boilers on the connection.
+   */
+  @Param({"1", "16", "256"})
+  public int boilers;
+
+  /**
+   * The number of cycles of each boiler sent before reading the replies.
+   */
+  @Param({"1", "8"})
+  public int window;
+
+  /**
+   * The server.
+   */
+  private ControllerServer server;
+
+  /**
+   * The connection to the server.
+   */
+  private ControllerClient client;
+
+  /**
+   * The readings sent to every boiler in even and odd measured cycles.
+   */
+  private Mailbox[] inputs;
+
+  /**
+   * The number of cycles of each boiler sent.
+   */
+  private int sent;
+
+  /**
+   * The mailbox the replies are read into.
+   */
+  private ArrayMailbox output;
+
+  /**
+   * Start the server, and bring every boiler into normal mode.
+   *
+   * @throws IOException
+   *           If the server cannot be started or connected to.
+   */
+  @Setup(Level.Trial)
+  public void setupTrial() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    this.server = new ControllerServer(config,
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    this.server.start();
+    this.client = new ControllerClient(this.server.getAddress());
+    this.output = new ArrayMailbox(100);
+    // Run a boiler for four minutes, which brings it into normal mode, and send every boiler
+    // the same readings. The readings of the last two cycles are kept.
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    this.inputs = new Mailbox[2];
+    ArrayMailbox in = new ArrayMailbox(100);
+    for (int c = 0; c != 50; ++c) {
+      if (c >= 48) {
+        in = new ArrayMailbox(100);
+        this.inputs[c & 1] = in;
+      }
+      in.clear();
+      model.transmit(in);
+      for (int b = 0; b != this.boilers; ++b) {
+        this.client.send(b, in);
+      }
+      for (int b = 0; b != this.boilers; ++b) {
+        this.output.clear();
+        this.client.receive(this.output);
+      }
+      this.output.clear();
+      controller.clock(in, this.output);
+      model.receive(this.output);
+      for (int t = 0; t != 5000; t += 100) {
+        model.clock(100);
+      }
+    }
+    if (!"NORMAL".equals(controller.getStatusMessage())) {
+      throw new IllegalStateException("controller did not reach normal mode");
+    }
+  }
+
+  /**
+   * Stop the server.
+   *
+   * @throws IOException
+   *           If the server failed.
+   */
+  @TearDown(Level.Trial)
+  public void tearDownTrial() throws IOException {
+    this.client.close();
+    this.server.close();
+  }
+
+  /**
+   * Send a window of cycles of every boiler, and read all the replies.
+   *
+   * @return The number of messages in the last reply.
+   * @throws IOException
+   *           If the connection fails.
+   */
+  @Benchmark
+  public int cycles() throws IOException {
+    for (int w = 0; w != this.window; ++w) {
+      Mailbox in = this.inputs[this.sent++ & 1];
+      for (int b = 0; b != this.boilers; ++b) {
+        this.client.send(b, in);
+      }
+    }
+    for (int r = this.window * this.boilers; r != 0; --r) {
+      this.output.clear();
+      this.client.receive(this.output);
+    }
+    return this.output.size();
+  }
+}
@@ -0,0 +1,106 @@
+package steam.boiler.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.SimulationClock;
+import steam.boiler.core.TelemetryStream;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Measures taking a frame from a direct buffer with a {@link TelemetryStream}, clocking its
+ * controller and writing the reply. Each operation is one frame. Run with JMH, for example:
+ *
+ * <pre>
+ * java -jar benchmarks.jar TelemetryStreamBenchmark -prof gc
+ * </pre>
+ *
+ * <p>A default boiler is brought into normal mode before measuring. A boiler in normal mode
+ * opens a pump one cycle and closes it the next, so the frames of two cycles are recorded, and
+ * taken in turn. The stream's controller keeps running normally.
+ *
+ * @author Caitlin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryStreamBenchmark {
+
+  /**
+   * The stream being measured.
+   */
+  private TelemetryStream stream;
+
+  /**
+   * The frames of two cycles, taken in turn.
+   */
+  private ByteBuffer frames;
+
+  /**
+   * Run a boiler for four minutes, which brings it into normal mode, give the stream a copy of
+   * its controller, and record the frames of the next two cycles.
+   */
+  @Setup(Level.Trial)
+  public void setupTrial() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    MySteamBoilerController recorder = new MySteamBoilerController(config);
+    ArrayMailbox in = new ArrayMailbox(16);
+    ArrayMailbox out = new ArrayMailbox(16);
+    this.frames = ByteBuffer.allocateDirect(1024);
+    for (int c = 0; c != 50; ++c) {
+      if (c == 48) {
+        this.stream = new TelemetryStream(new MySteamBoilerController(recorder),
+            config.getNumberOfPumps());
+      }
+      in.clear();
+      out.clear();
+      model.transmit(in);
+      if (c >= 48) {
+        TelemetryStream.frame(in, this.frames);
+      }
+      recorder.clock(in, out);
+      model.receive(out);
+      for (int t = 0; t != SimulationClock.CYCLE; t += SimulationClock.DEFAULT_STEP) {
+        model.clock(SimulationClock.DEFAULT_STEP);
+      }
+    }
+    if (!"NORMAL".equals(recorder.getStatusMessage())) {
+      throw new IllegalStateException("controller did not reach normal mode");
+    }
+    this.frames.flip();
+  }
+
+  /**
+   * Take the next frame, going back to the first after the last.
+   *
+   * @return The reply.
+   */
+  @Benchmark
+  public ByteBuffer cycle() {
+    if (!this.frames.hasRemaining()) {
+      this.frames.rewind();
+    }
+    return this.stream.cycle(this.frames);
+  }
+}
@@ -0,0 +1,150 @@
+package steam.boiler.core;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.MemoryAnnotations.Initialisation;
+
+/**
+ * A mailbox which can be cleared and used again. Messages sent to it are copied into messages
+ * it allocated up front, so once it is big enough neither sending nor clearing allocates. This
+ * means the messages read from it are only valid until it is cleared.
+ * @author Caitlin
+ *
+ */
+public final class ArrayMailbox implements Mailbox {
+
+  /**
+   * The messages, of which the first size are in the mailbox.
+   */
+  private Message[] messages;
+
+  /**
+   * The number of messages in the mailbox.
+   */
+  private int size;
+
+  /**
+   * Construct an empty mailbox with room for a given number of messages before it has to grow.
+   * @param capacity = the number of messages.
+   */
+  @Initialisation
+  public ArrayMailbox(int capacity) {
+    this.messages = new Message[Math.max(capacity, 1)];
+    fill(0);
+  }
+
+  /**
+   * Empty the mailbox, so it can be used again.
+   */
+  public void clear() {
+    this.size = 0;
+  }
+
+  @Override
+  public void send(Message message) {
+    if (this.size == this.messages.length) {
+      grow();
+    }
+    copy(message, this.messages[this.size++]);
+  }
+
+  @Override
+  public int size() {
+    return this.size;
+  }
+
+  @Override
+  public Message read(int index) {
+    if (index < 0 || index >= this.size) {
+      throw new IndexOutOfBoundsException("index " + index + " in mailbox of " //$NON-NLS-1$ //$NON-NLS-2$
+          + this.size + " messages"); //$NON-NLS-1$
+    }
+    return this.messages[index];
+  }
+
+  @Override
+  public String toString() {
+    return describe(this);
+  }
+
+  /**
+   * Describe the messages in any mailbox, giving only the parameters each kind of message has.
+   * This means two mailboxes with the same messages are described the same, whichever kind of
+   * mailbox they are.
+   * @param mailbox = the mailbox.
+   * @return = the description.
+   */
+  public static String describe(Mailbox mailbox) {
+    StringBuilder description = new StringBuilder("["); //$NON-NLS-1$
+    for (int i = 0; i < mailbox.size(); i++) {
+      Message message = mailbox.read(i);
+      if (i != 0) {
+        description.append(", "); //$NON-NLS-1$
+      }
+      description.append(message.getKind());
+      switch (MessageCodec.layout(message.getKind())) {
+        case MessageCodec.INTEGER:
+          description.append('(').append(message.getIntegerParameter()).append(')');
+          break;
+        case MessageCodec.DOUBLE:
+          description.append('(').append(message.getDoubleParameter()).append(')');
+          break;
+        case MessageCodec.MODE:
+          description.append('(').append(message.getModeParameter()).append(')');
+          break;
+        case MessageCodec.INTEGER_BOOLEAN:
+          description.append('(').append(message.getIntegerParameter()).append(',')
+              .append(message.getBooleanParameter()).append(')');
+          break;
+        default:
+      }
+    }
+    return description.append(']').toString();
+  }
+
+  /**
+   * Copy a message into one of the messages of this mailbox.
+   * @param from = the message to copy.
+   * @param to = the message to copy it into.
+   */
+  private static void copy(Message from, Message to) {
+    MessageKind kind = from.getKind();
+    switch (MessageCodec.layout(kind)) {
+      case MessageCodec.INTEGER:
+        to.set(kind, from.getIntegerParameter());
+        break;
+      case MessageCodec.DOUBLE:
+        to.set(kind, from.getDoubleParameter());
+        break;
+      case MessageCodec.MODE:
+        to.set(kind, from.getModeParameter());
+        break;
+      case MessageCodec.INTEGER_BOOLEAN:
+        to.set(kind, from.getIntegerParameter(), from.getBooleanParameter());
+        break;
+      default:
+        to.set(kind);
+    }
+  }
+
+  /**
+   * Double the number of messages the mailbox has room for.
+   */
+  private void grow() {
+    int old = this.messages.length;
+    Message[] bigger = new Message[old * 2];
+    System.arraycopy(this.messages, 0, bigger, 0, old);
+    this.messages = bigger;
+    fill(old);
+  }
+
+  /**
+   * Allocate the messages from a given index to the end.
+   * @param from = the first index to allocate.
+   */
+  @Initialisation
+  private void fill(int from) {
+    for (int i = from; i < this.messages.length; i++) {
+      this.messages[i] = new Message(MessageKind.VALVE);
+    }
+  }
+}
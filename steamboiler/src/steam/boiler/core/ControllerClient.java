@@ -0,0 +1,161 @@
+package steam.boiler.core;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.MemoryAnnotations.Initialisation;
+
+/**
+ * Sends the messages to the controllers of many boilers to a {@link ControllerServer} over one
+ * connection, and receives the messages they send back. Frames are gathered up and sent
+ * together when the replies are asked for, or when there are enough of them, so a client can
+ * send a cycle of every boiler, or several cycles, before reading any replies. The replies to
+ * each boiler come back in the order its frames were sent.
+ *
+ * <p>The server stops taking frames once enough replies are waiting, so a client which sends
+ * without ever reading will stop too. Reading the replies as it goes avoids this.
+ * @author Caitlin
+ *
+ */
+public final class ControllerClient implements Closeable {
+
+  /**
+   * The number of bytes of frames gathered at which they are sent.
+   */
+  private static final int FLUSH_AT = 32 * 1024;
+
+  /**
+   * The socket.
+   */
+  private final SocketChannel channel;
+
+  /**
+   * The frames not yet sent.
+   */
+  private ByteBuffer output = ByteBuffer.allocateDirect(2 * FLUSH_AT);
+
+  /**
+   * The bytes received and not yet taken as replies.
+   */
+  private ByteBuffer input = ByteBuffer.allocateDirect(64 * 1024);
+
+  /**
+   * The message each message is read into.
+   */
+  private final Message scratch = new Message(MessageKind.VALVE);
+
+  /**
+   * Connect to a server.
+   * @param address = the address of the server.
+   * @throws IOException = if it cannot be connected to.
+   */
+  @Initialisation
+  public ControllerClient(InetSocketAddress address) throws IOException {
+    this.channel = SocketChannel.open(address);
+    this.channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+    this.input.flip();
+  }
+
+  /**
+   * Send the messages to the controller of a boiler for one cycle. They may not be sent until
+   * the replies are asked for.
+   * @param boiler = the number of the boiler.
+   * @param messages = the messages.
+   * @throws IOException = if the socket fails.
+   */
+  public void send(int boiler, Mailbox messages) throws IOException {
+    int size = 8 + MessageCodec.encodedSize(messages);
+    if (this.output.remaining() < size) {
+      flush();
+      if (this.output.remaining() < size) {
+        this.output = ByteBuffer.allocateDirect(Math.max(size, 2 * this.output.capacity()));
+      }
+    }
+    this.output.putInt(boiler);
+    TelemetryStream.frame(messages, this.output);
+    if (this.output.position() >= FLUSH_AT) {
+      flush();
+    }
+  }
+
+  /**
+   * Send any frames gathered so far.
+   * @throws IOException = if the socket fails.
+   */
+  public void flush() throws IOException {
+    this.output.flip();
+    while (this.output.hasRemaining()) {
+      this.channel.write(this.output);
+    }
+    this.output.clear();
+  }
+
+  /**
+   * Receive the next reply, sending any frames gathered first, and waiting for it if need be.
+   * @param into = the mailbox to send the controller's messages to.
+   * @return = the number of the boiler the reply is for.
+   * @throws IOException = if the socket fails or is closed, or the reply is not well formed.
+   */
+  public int receive(Mailbox into) throws IOException {
+    flush();
+    fill(8);
+    int boiler = this.input.getInt(this.input.position());
+    int length = this.input.getInt(this.input.position() + 4);
+    if (length < 4 || length > TelemetryStream.MAX_FRAME) {
+      throw new IOException("bad reply length " + length); //$NON-NLS-1$
+    }
+    fill(8 + length);
+    int end = this.input.position() + 8 + length;
+    this.input.position(this.input.position() + 8);
+    try {
+      MessageCodec.decode(this.input, into, this.scratch);
+    } catch (RuntimeException e) {
+      throw new IOException("bad reply for boiler " + boiler, e); //$NON-NLS-1$
+    }
+    if (this.input.position() != end) {
+      throw new IOException("bad reply for boiler " + boiler); //$NON-NLS-1$
+    }
+    return boiler;
+  }
+
+  /**
+   * Read until there are at least a given number of bytes received and not yet taken.
+   * @param count = the number of bytes.
+   * @throws IOException = if the socket fails or is closed first.
+   */
+  private void fill(int count) throws IOException {
+    if (this.input.remaining() >= count) {
+      return;
+    }
+    this.input.compact();
+    if (this.input.capacity() < count) {
+      ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(count, 2 * this.input.capacity()));
+      this.input.flip();
+      bigger.put(this.input);
+      this.input = bigger;
+    }
+    while (this.input.position() < count) {
+      if (this.channel.read(this.input) < 0) {
+        throw new EOFException("the server closed the connection"); //$NON-NLS-1$
+      }
+    }
+    this.input.flip();
+  }
+
+  /**
+   * Close the connection.
+   * @throws IOException = if it cannot be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    this.channel.close();
+  }
+}
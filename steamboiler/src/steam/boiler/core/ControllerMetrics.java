@@ -0,0 +1,463 @@
+package steam.boiler.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import steam.boiler.util.MemoryAnnotations.Initialisation;
+
+/**
+ * Counts what a controller does every cycle: how long the cycle took, which mode it was in,
+ * when it changed mode, and the failures it detected and the acknowledgements and repairs it
+ * processed. Cycle times go into a histogram with buckets a thirty second of a power of two
+ * wide, like HdrHistogram, so the percentiles are within about 3%.
+ *
+ * <p>Only the controller records, and recording does not allocate or lock. Any other thread
+ * can export the counts at any time. Each cycle is recorded between two increments of a
+ * sequence number, and an export is copied again if the sequence number changed while it was
+ * being copied, so an export always sees whole cycles.
+ * @author Caitlin
+ *
+ */
+public final class ControllerMetrics {
+
+  /**
+   * The units whose failures, acknowledgements and repairs are counted.
+   * @author Caitlin
+   *
+   */
+  public enum Unit {
+    /**
+     * The water level device.
+     */
+    LEVEL,
+    /**
+     * The steam level device.
+     */
+    STEAM,
+    /**
+     * A pump.
+     */
+    PUMP,
+    /**
+     * A pump controller.
+     */
+    PUMP_CONTROLLER
+  }
+
+  /**
+   * The ordinal of {@link Unit#LEVEL}. The controller records with these constants rather than
+   * the units themselves, so it does not load the unit class part way through a cycle.
+   */
+  static final int LEVEL = 0;
+
+  /**
+   * The ordinal of {@link Unit#STEAM}.
+   */
+  static final int STEAM = 1;
+
+  /**
+   * The ordinal of {@link Unit#PUMP}.
+   */
+  static final int PUMP = 2;
+
+  /**
+   * The ordinal of {@link Unit#PUMP_CONTROLLER}.
+   */
+  static final int PUMP_CONTROLLER = 3;
+
+  /**
+   * The number of histogram buckets for each power of two, as a power of two.
+   */
+  private static final int SUB_BUCKET_BITS = 5;
+
+  /**
+   * The number of histogram buckets for each power of two.
+   */
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /**
+   * The largest power of two a cycle time is recorded up to, which is about 18 minutes in
+   * nanoseconds. Longer cycles go in the last bucket.
+   */
+  private static final int MAX_MAGNITUDE = 40;
+
+  /**
+   * The number of histogram buckets.
+   */
+  static final int BUCKETS = bucket((1L << (MAX_MAGNITUDE + 1)) - 1) + 1;
+
+  /**
+   * The number of units.
+   */
+  private static final int UNITS = Unit.values().length;
+
+  /**
+   * The names of the modes, indexed by mode ordinal.
+   */
+  private final String[] modes;
+
+  /**
+   * Where the transitions start in the counters. Before them are the cycles in each mode.
+   */
+  private final int transitions;
+
+  /**
+   * Where the failures detected start in the counters.
+   */
+  private final int failures;
+
+  /**
+   * Where the acknowledgements processed start in the counters.
+   */
+  private final int acknowledgements;
+
+  /**
+   * Where the repairs processed start in the counters.
+   */
+  private final int repairs;
+
+  /**
+   * Where the total and largest cycle times are in the counters.
+   */
+  private final int latency;
+
+  /**
+   * The counters, laid out as above. Only the controller writes these, so an increment does
+   * not need to be atomic, only visible to other threads in order.
+   */
+  private final AtomicLongArray counters;
+
+  /**
+   * The number of cycles with each cycle time, by bucket.
+   */
+  private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+  /**
+   * The sequence number, which is odd whilst a cycle is being recorded.
+   */
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * Construct empty metrics for a controller with given modes.
+   * @param modes = the names of the modes, indexed by mode ordinal.
+   */
+  @Initialisation
+  ControllerMetrics(String[] modes) {
+    this.modes = modes.clone();
+    this.transitions = modes.length;
+    this.failures = this.transitions + modes.length * modes.length;
+    this.acknowledgements = this.failures + UNITS;
+    this.repairs = this.acknowledgements + UNITS;
+    this.latency = this.repairs + UNITS;
+    this.counters = new AtomicLongArray(this.latency + 2);
+  }
+
+  /**
+   * Start recording a cycle.
+   * @return = the time the cycle started in nanoseconds.
+   */
+  long beginCycle() {
+    this.sequence.lazySet(this.sequence.get() + 1);
+    return System.nanoTime();
+  }
+
+  /**
+   * Finish recording a cycle.
+   * @param from = the ordinal of the mode at the start of the cycle.
+   * @param to = the ordinal of the mode at the end of the cycle.
+   * @param start = the time the cycle started in nanoseconds.
+   */
+  void endCycle(int from, int to, long start) {
+    long nanos = Math.max(System.nanoTime() - start, 0);
+    increment(this.counters, to, 1);
+    if (from != to) {
+      increment(this.counters, this.transitions + from * this.modes.length + to, 1);
+    }
+    increment(this.counters, this.latency, nanos);
+    if (nanos > this.counters.get(this.latency + 1)) {
+      this.counters.lazySet(this.latency + 1, nanos);
+    }
+    increment(this.histogram, bucket(nanos), 1);
+    this.sequence.lazySet(this.sequence.get() + 1);
+  }
+
+  /**
+   * Count a failure detected.
+   * @param unit = the ordinal of the unit which failed.
+   */
+  void failure(int unit) {
+    increment(this.counters, this.failures + unit, 1);
+  }
+
+  /**
+   * Count acknowledgements processed.
+   * @param unit = the ordinal of the kind of unit acknowledged.
+   * @param count = the number of acknowledgements.
+   */
+  void acknowledgements(int unit, int count) {
+    increment(this.counters, this.acknowledgements + unit, count);
+  }
+
+  /**
+   * Count repairs processed.
+   * @param unit = the ordinal of the kind of unit repaired.
+   * @param count = the number of repairs.
+   */
+  void repairs(int unit, int count) {
+    increment(this.counters, this.repairs + unit, count);
+  }
+
+  /**
+   * Add to a counter which only one thread writes.
+   * @param array = the counters.
+   * @param index = the counter.
+   * @param amount = how much to add.
+   */
+  private static void increment(AtomicLongArray array, int index, long amount) {
+    array.lazySet(index, array.get(index) + amount);
+  }
+
+  /**
+   * Get the histogram bucket for a cycle time.
+   * @param nanos = the cycle time in nanoseconds.
+   * @return = the bucket.
+   */
+  static int bucket(long nanos) {
+    if (nanos < 2 * SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    int magnitude = Math.min(63 - Long.numberOfLeadingZeros(nanos), MAX_MAGNITUDE);
+    int shift = magnitude - SUB_BUCKET_BITS;
+    long top = Math.min(nanos >>> shift, 2 * SUB_BUCKETS - 1);
+    return (int) (shift * SUB_BUCKETS + top);
+  }
+
+  /**
+   * Get the largest cycle time in a histogram bucket.
+   * @param bucket = the bucket.
+   * @return = the largest time in nanoseconds.
+   */
+  static long highestInBucket(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long top = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ((top + 1) << shift) - 1;
+  }
+
+  /**
+   * Copy all the counts, as of the end of a cycle. This can be called from any thread, and
+   * waits for the controller to finish recording a cycle if it is part way through one.
+   * @return = the counts.
+   */
+  public Report export() {
+    long[] counts = new long[this.counters.length()];
+    long[] buckets = new long[BUCKETS];
+    while (true) {
+      long before = this.sequence.get();
+      if ((before & 1) == 0) {
+        for (int i = 0; i < counts.length; i++) {
+          counts[i] = this.counters.get(i);
+        }
+        for (int i = 0; i < buckets.length; i++) {
+          buckets[i] = this.histogram.get(i);
+        }
+        if (this.sequence.get() == before) {
+          return new Report(this, counts, buckets);
+        }
+      }
+      Thread.yield();
+    }
+  }
+
+  /**
+   * The counts of a controller at one point in time.
+   * @author Caitlin
+   *
+   */
+  public static final class Report {
+    /**
+     * The metrics this was copied from, which say where each count is.
+     */
+    private final ControllerMetrics metrics;
+
+    /**
+     * The counters.
+     */
+    private final long[] counts;
+
+    /**
+     * The histogram of cycle times.
+     */
+    private final long[] buckets;
+
+    /**
+     * The number of cycles recorded.
+     */
+    private final long cycles;
+
+    /**
+     * Construct a report.
+     * @param metrics = the metrics copied from.
+     * @param counts = the counters.
+     * @param buckets = the histogram of cycle times.
+     */
+    Report(ControllerMetrics metrics, long[] counts, long[] buckets) {
+      this.metrics = metrics;
+      this.counts = counts;
+      this.buckets = buckets;
+      long total = 0;
+      for (long count : buckets) {
+        total += count;
+      }
+      this.cycles = total;
+    }
+
+    /**
+     * Get the number of cycles recorded.
+     * @return = the number of cycles.
+     */
+    public long getCycles() {
+      return this.cycles;
+    }
+
+    /**
+     * Get the number of cycles which ended in a given mode.
+     * @param mode = the name of the mode, as given by the status message.
+     * @return = the number of cycles.
+     */
+    public long getCyclesIn(String mode) {
+      return this.counts[mode(mode)];
+    }
+
+    /**
+     * Get the number of times the controller went from one mode to another.
+     * @param from = the name of the mode it was in.
+     * @param to = the name of the mode it went to.
+     * @return = the number of transitions.
+     */
+    public long getTransitions(String from, String to) {
+      return this.counts[this.metrics.transitions + mode(from) * this.metrics.modes.length
+          + mode(to)];
+    }
+
+    /**
+     * Get the number of failures detected in a kind of unit.
+     * @param unit = the kind of unit.
+     * @return = the number of failures.
+     */
+    public long getFailures(Unit unit) {
+      return this.counts[this.metrics.failures + unit.ordinal()];
+    }
+
+    /**
+     * Get the number of failure acknowledgements processed for a kind of unit.
+     * @param unit = the kind of unit.
+     * @return = the number of acknowledgements.
+     */
+    public long getAcknowledgements(Unit unit) {
+      return this.counts[this.metrics.acknowledgements + unit.ordinal()];
+    }
+
+    /**
+     * Get the number of repairs processed for a kind of unit.
+     * @param unit = the kind of unit.
+     * @return = the number of repairs.
+     */
+    public long getRepairs(Unit unit) {
+      return this.counts[this.metrics.repairs + unit.ordinal()];
+    }
+
+    /**
+     * Get the mean cycle time.
+     * @return = the mean in nanoseconds, or zero if no cycles were recorded.
+     */
+    public double getMeanNanos() {
+      return this.cycles == 0 ? 0.0 : (double) this.counts[this.metrics.latency] / this.cycles;
+    }
+
+    /**
+     * Get the longest cycle time.
+     * @return = the longest time in nanoseconds.
+     */
+    public long getMaxNanos() {
+      return this.counts[this.metrics.latency + 1];
+    }
+
+    /**
+     * Get a percentile of the cycle times. This is the largest time in the histogram bucket
+     * holding the percentile, so is within about 3% above the actual time.
+     * @param percentile = the percentile, from 0 to 100.
+     * @return = the time in nanoseconds, or zero if no cycles were recorded.
+     */
+    public long getPercentileNanos(double percentile) {
+      if (this.cycles == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * this.cycles));
+      long seen = 0;
+      for (int i = 0; i < this.buckets.length; i++) {
+        seen += this.buckets[i];
+        if (seen >= rank) {
+          return Math.min(highestInBucket(i), getMaxNanos());
+        }
+      }
+      return getMaxNanos();
+    }
+
+    /**
+     * Get the ordinal of a mode.
+     * @param name = the name of the mode.
+     * @return = the ordinal.
+     */
+    private int mode(String name) {
+      String[] modes = this.metrics.modes;
+      for (int i = 0; i < modes.length; i++) {
+        if (modes[i].equals(name)) {
+          return i;
+        }
+      }
+      throw new IllegalArgumentException("unknown mode " + name); //$NON-NLS-1$
+    }
+
+    /**
+     * Give the counts one per line as a name and value, leaving out transitions which never
+     * happened.
+     */
+    @Override
+    public String toString() {
+      StringBuilder text = new StringBuilder();
+      text.append("cycles ").append(this.cycles).append('\n'); //$NON-NLS-1$
+      String[] modes = this.metrics.modes;
+      for (String mode : modes) {
+        text.append("cycles_in{mode=").append(mode).append("} ") //$NON-NLS-1$ //$NON-NLS-2$
+            .append(getCyclesIn(mode)).append('\n');
+      }
+      for (String from : modes) {
+        for (String to : modes) {
+          long count = getTransitions(from, to);
+          if (count != 0) {
+            text.append("transitions{from=").append(from).append(",to=") //$NON-NLS-1$ //$NON-NLS-2$
+                .append(to).append("} ").append(count).append('\n'); //$NON-NLS-1$
+          }
+        }
+      }
+      for (Unit unit : Unit.values()) {
+        text.append("failures{unit=").append(unit).append("} ") //$NON-NLS-1$ //$NON-NLS-2$
+            .append(getFailures(unit)).append('\n');
+        text.append("acknowledgements{unit=").append(unit).append("} ") //$NON-NLS-1$ //$NON-NLS-2$
+            .append(getAcknowledgements(unit)).append('\n');
+        text.append("repairs{unit=").append(unit).append("} ") //$NON-NLS-1$ //$NON-NLS-2$
+            .append(getRepairs(unit)).append('\n');
+      }
+      text.append("cycle_nanos{stat=mean} ").append(getMeanNanos()).append('\n'); //$NON-NLS-1$
+      for (double percentile : new double[] { 50, 90, 99, 99.9 }) {
+        text.append("cycle_nanos{stat=p").append(percentile).append("} ") //$NON-NLS-1$ //$NON-NLS-2$
+            .append(getPercentileNanos(percentile)).append('\n');
+      }
+      text.append("cycle_nanos{stat=max} ").append(getMaxNanos()).append('\n'); //$NON-NLS-1$
+      return text.toString();
+    }
+  }
+}
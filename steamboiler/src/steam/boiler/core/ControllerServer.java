@@ -0,0 +1,471 @@
+package steam.boiler.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.function.Function;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.util.MemoryAnnotations.Initialisation;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Hosts controllers for boilers simulated in other processes, over sockets. Every connection
+ * can carry many boilers: each frame sent to the server is the number of the boiler as an int,
+ * followed by a frame of the messages to its controller as {@link TelemetryStream} takes them,
+ * and each reply is the number of the boiler followed by the frame of messages its controller
+ * sent. Boilers are numbered separately on each connection, and each gets a controller of its
+ * own the first time a frame for it arrives.
+ *
+ * <p>One thread runs every connection with a {@link Selector}. A client does not have to wait
+ * for the replies to one cycle before sending the next, or the next cycle of another boiler:
+ * each time a connection can be read, every whole frame read is taken in turn, and the replies
+ * are written together. Frames go on being read whilst replies are written, until
+ * {@link #HIGH_WATER} bytes of replies are waiting. No more frames are read or taken from that
+ * connection until they have been written, so a client which sends without reading is held
+ * back rather than the replies piling up. A frame which is not well
+ * formed closes its connection, and the other connections carry on. So does a controller which
+ * fails, but as that is a fault in the server rather than the client, the first such failure is
+ * also kept and thrown by {@link #close()}.
+ *
+ * <p>Clients can use {@link ControllerClient}, or anything which writes the same frames.
+ * @author Caitlin
+ *
+ */
+public final class ControllerServer implements Closeable {
+
+  /**
+   * The number of bytes of replies waiting to be written at which frames stop being taken.
+   */
+  public static final int HIGH_WATER = 64 * 1024;
+
+  /**
+   * The number of boilers on a connection, which is one more than the highest number.
+   */
+  public static final int MAX_BOILERS = 1 << 16;
+
+  /**
+   * The configuration of each boiler.
+   */
+  private final SteamBoilerCharacteristics config;
+
+  /**
+   * Makes the controller for each boiler, given the configuration.
+   */
+  private final Function<SteamBoilerCharacteristics, MySteamBoilerController> controllers;
+
+  /**
+   * The socket connections are accepted from.
+   */
+  private final ServerSocketChannel server;
+
+  /**
+   * The selector the connections are run with.
+   */
+  private final Selector selector;
+
+  /**
+   * Whether the server has been told to close.
+   */
+  private volatile boolean closing;
+
+  /**
+   * The thread running the server, or null if it has not been started.
+   */
+  private @Nullable Thread thread;
+
+  /**
+   * The exception the thread running the server failed with, or else the first a controller
+   * failed with, if there is one.
+   */
+  private volatile @Nullable Throwable failure;
+
+  /**
+   * The number of frames taken, on every connection.
+   */
+  private volatile long cycles;
+
+  /**
+   * Construct a server for boilers of a given configuration, listening on a given address.
+   * @param config = the configuration of each boiler.
+   * @param address = the address to listen on, where port zero picks a free port.
+   * @throws IOException = if the socket cannot be opened.
+   */
+  public ControllerServer(SteamBoilerCharacteristics config, InetSocketAddress address)
+      throws IOException {
+    this(config, address, MySteamBoilerController::new);
+  }
+
+  /**
+   * Construct a server for boilers of a given configuration, listening on a given address, with
+   * controllers made by a given function.
+   * @param config = the configuration of each boiler.
+   * @param address = the address to listen on, where port zero picks a free port.
+   * @param controllers = makes the controller for each boiler, given the configuration.
+   * @throws IOException = if the socket cannot be opened.
+   */
+  @Initialisation
+  public ControllerServer(SteamBoilerCharacteristics config, InetSocketAddress address,
+      Function<SteamBoilerCharacteristics, MySteamBoilerController> controllers)
+      throws IOException {
+    this.config = config;
+    this.controllers = controllers;
+    this.selector = Selector.open();
+    this.server = ServerSocketChannel.open();
+    try {
+      this.server.bind(address);
+      this.server.configureBlocking(false);
+      this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      this.server.close();
+      this.selector.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Get the address the server is listening on.
+   * @return = the address.
+   * @throws IOException = if the socket has been closed.
+   */
+  public InetSocketAddress getAddress() throws IOException {
+    return (InetSocketAddress) this.server.getLocalAddress();
+  }
+
+  /**
+   * Run the server on this thread until it is closed.
+   * @throws IOException = if the selector or listening socket fails. A connection which fails,
+   *     or whose controller fails, is only closed.
+   */
+  public void run() throws IOException {
+    try {
+      while (!this.closing) {
+        this.selector.select();
+        Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else {
+            Connection connection = (Connection) key.attachment();
+            try {
+              connection.ready(key);
+            } catch (IOException | IllegalArgumentException e) {
+              key.cancel();
+              connection.channel.close();
+            } catch (RuntimeException e) {
+              // Not the client's fault, so keep it to report when the server is closed
+              key.cancel();
+              connection.channel.close();
+              failed(e);
+            }
+          }
+        }
+      }
+    } finally {
+      closeAll();
+    }
+  }
+
+  /**
+   * Start running the server on a thread of its own.
+   * @return = the thread.
+   */
+  public synchronized Thread start() {
+    if (this.thread != null) {
+      throw new IllegalStateException("the server has already been started"); //$NON-NLS-1$
+    }
+    Thread running = new Thread(() -> {
+      try {
+        run();
+      } catch (IOException | RuntimeException | Error e) {
+        failed(e);
+      }
+    }, "controller-server"); //$NON-NLS-1$
+    running.setDaemon(true);
+    this.thread = running;
+    running.start();
+    return running;
+  }
+
+  /**
+   * Stop the server and close every connection, waiting for the thread running it if it was
+   * started.
+   * @throws IOException = if the server or a controller failed whilst running, or the server
+   *     cannot be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    this.closing = true;
+    this.selector.wakeup();
+    Thread running;
+    synchronized (this) {
+      running = this.thread;
+    }
+    if (running == null) {
+      closeAll();
+    } else {
+      try {
+        running.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted closing the server", e); //$NON-NLS-1$
+      }
+    }
+    Throwable failed = this.failure;
+    if (failed instanceof IOException) {
+      throw (IOException) failed;
+    }
+    if (failed != null) {
+      throw new IOException("the server failed whilst running", failed); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Keep the first failure, adding any later ones to it as suppressed.
+   * @param e = the failure.
+   */
+  private synchronized void failed(Throwable e) {
+    Throwable first = this.failure;
+    if (first == null) {
+      this.failure = e;
+    } else if (first != e) {
+      first.addSuppressed(e);
+    }
+  }
+
+  /**
+   * Get the number of frames taken, on every connection.
+   * @return = the number of frames.
+   */
+  public long getCycles() {
+    return this.cycles;
+  }
+
+  /**
+   * Accept a waiting connection, if there is one.
+   * @throws IOException = if it cannot be accepted.
+   */
+  @Initialisation
+  private void accept() throws IOException {
+    SocketChannel channel = this.server.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+    channel.register(this.selector, SelectionKey.OP_READ, new Connection(channel));
+  }
+
+  /**
+   * Close every connection, the listening socket and the selector. This can be done more
+   * than once.
+   * @throws IOException = if the listening socket or the selector cannot be closed.
+   */
+  private void closeAll() throws IOException {
+    if (this.selector.isOpen()) {
+      for (SelectionKey key : this.selector.keys()) {
+        if (key.channel() != this.server) {
+          try {
+            key.channel().close();
+          } catch (IOException e) {
+            // The server is closing anyway
+          }
+        }
+      }
+    }
+    this.server.close();
+    this.selector.close();
+  }
+
+  /**
+   * A connection, and the controllers for the boilers on it.
+   * @author Caitlin
+   *
+   */
+  private final class Connection {
+
+    /**
+     * The socket.
+     */
+    final SocketChannel channel;
+
+    /**
+     * The bytes read and not yet taken as frames.
+     */
+    private ByteBuffer input = ByteBuffer.allocateDirect(64 * 1024);
+
+    /**
+     * The replies not yet written, which are written from the start of the buffer.
+     */
+    private ByteBuffer output = ByteBuffer.allocateDirect(2 * HIGH_WATER);
+
+    /**
+     * The controllers for the boilers, indexed by number, which are null until a frame for
+     * the boiler arrives.
+     */
+    private @Nullable TelemetryStream[] boilers = new TelemetryStream[16];
+
+    /**
+     * Construct a connection.
+     * @param channel = the socket.
+     */
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Read, take frames and write replies, as far as the socket allows.
+     * @param key = the key of the socket, which says what it is ready for.
+     * @throws IOException = if the socket fails.
+     * @throws IllegalArgumentException = if a frame is not well formed.
+     */
+    void ready(SelectionKey key) throws IOException {
+      if (key.isWritable()) {
+        write();
+      }
+      if (key.isReadable()) {
+        int read = this.channel.read(this.input);
+        if (read < 0) {
+          key.cancel();
+          this.channel.close();
+          return;
+        }
+      }
+      // Take frames until the replies back up, and write what there is, until either the
+      // frames run out or the socket takes no more
+      boolean held;
+      do {
+        this.input.flip();
+        held = take();
+        this.input.compact();
+        write();
+      } while (held && this.output.position() == 0);
+      if (!this.input.hasRemaining()) {
+        int size = 8 + this.input.getInt(4);
+        if (size > this.input.capacity()) {
+          // A single frame is bigger than the buffer, so make room for the rest of it
+          ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(size, 2 * this.input.capacity()));
+          this.input.flip();
+          bigger.put(this.input);
+          this.input = bigger;
+        }
+      }
+      // Keep reading whilst the replies are below the high water mark, so the client is only
+      // held back once they are above it
+      int pending = this.output.position();
+      if (pending == 0) {
+        key.interestOps(SelectionKey.OP_READ);
+      } else if (pending < HIGH_WATER) {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      } else {
+        key.interestOps(SelectionKey.OP_WRITE);
+      }
+    }
+
+    /**
+     * Take whole frames from the input, clock their controllers and add their replies to the
+     * output, until there are no more or the replies back up.
+     * @return = if frames were left because the replies backed up.
+     */
+    private boolean take() {
+      ByteBuffer in = this.input;
+      int taken = 0;
+      while (in.remaining() >= 8) {
+        if (this.output.position() >= HIGH_WATER) {
+          ControllerServer.this.cycles += taken;
+          return true;
+        }
+        int start = in.position();
+        int boiler = in.getInt(start);
+        if (boiler < 0 || boiler >= MAX_BOILERS) {
+          throw new IllegalArgumentException("bad boiler number " + boiler); //$NON-NLS-1$
+        }
+        in.position(start + 4);
+        ByteBuffer reply = boiler(boiler).cycle(in);
+        if (reply == null) {
+          in.position(start);
+          break;
+        }
+        if (this.output.remaining() < 4 + reply.remaining()) {
+          ByteBuffer bigger = ByteBuffer.allocateDirect(
+              2 * this.output.capacity() + reply.remaining());
+          this.output.flip();
+          bigger.put(this.output);
+          this.output = bigger;
+        }
+        this.output.putInt(boiler);
+        this.output.put(reply);
+        taken++;
+      }
+      ControllerServer.this.cycles += taken;
+      return false;
+    }
+
+    /**
+     * Write as much of the output as the socket takes.
+     * @throws IOException = if the socket fails.
+     */
+    private void write() throws IOException {
+      if (this.output.position() == 0) {
+        return;
+      }
+      this.output.flip();
+      this.channel.write(this.output);
+      this.output.compact();
+    }
+
+    /**
+     * Get the controller for a boiler, constructing it if this is its first frame.
+     * @param boiler = the number of the boiler.
+     * @return = the controller's stream.
+     */
+    private TelemetryStream boiler(int boiler) {
+      if (boiler >= this.boilers.length) {
+        int length = this.boilers.length;
+        while (length <= boiler) {
+          length *= 2;
+        }
+        @Nullable TelemetryStream[] bigger = new TelemetryStream[length];
+        System.arraycopy(this.boilers, 0, bigger, 0, this.boilers.length);
+        this.boilers = bigger;
+      }
+      TelemetryStream stream = this.boilers[boiler];
+      if (stream == null) {
+        SteamBoilerCharacteristics configuration = ControllerServer.this.config;
+        stream = new TelemetryStream(ControllerServer.this.controllers.apply(configuration),
+            configuration.getNumberOfPumps());
+        this.boilers[boiler] = stream;
+      }
+      return stream;
+    }
+  }
+
+  /**
+   * Run a server for boilers of the default configuration on the loopback address until the
+   * process is stopped.
+   * @param args = the port, which defaults to 7878.
+   * @throws IOException = if the server fails.
+   */
+  public static void main(String[] args) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 7878;
+    try (ControllerServer server = new ControllerServer(SteamBoilerCharacteristics.DEFAULT,
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+      System.out.println("listening on " + server.getAddress()); //$NON-NLS-1$
+      server.run();
+    }
+  }
+}
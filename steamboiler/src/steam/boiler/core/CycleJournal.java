@@ -0,0 +1,419 @@
+package steam.boiler.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.model.SteamBoilerController;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.MemoryAnnotations.Initialisation;
+
+/**
+ * Records every cycle of a controller in a binary journal, for working out afterwards what the
+ * controller saw and what it did. This wraps the controller, so it is clocked instead of the
+ * controller and passes everything on.
+ *
+ * <p>The journal is a series of segment files in a directory, each of which is mapped into
+ * memory, so appending a cycle is only writes to memory and does not allocate. When a cycle
+ * does not fit in what is left of a segment, the next segment is started. A segment starts
+ * with a magic number and version, followed by the cycles one after the other. Each cycle is
+ * the length of the rest of the record as an int, the cycle number as a long, then the
+ * messages to the controller and the messages from it, encoded by {@link MessageCodec}. The
+ * length is written last, and the rest of a segment is zero, so a length of zero marks the end
+ * of the cycles even if the writer stopped part way through one.
+ * @author Caitlin
+ *
+ */
+public final class CycleJournal implements SteamBoilerController, Closeable {
+
+  /**
+   * The number at the start of every segment.
+   */
+  static final int MAGIC = 0x53424A4C; // "SBJL"
+
+  /**
+   * The version of the format.
+   */
+  static final int VERSION = 1;
+
+  /**
+   * The size of the segment header in bytes.
+   */
+  static final int HEADER = 8;
+
+  /**
+   * The size of the length and cycle number at the start of a cycle in bytes.
+   */
+  static final int RECORD_HEADER = 4 + 8;
+
+  /**
+   * The default size of a segment, which is 64MB.
+   */
+  public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+  /**
+   * The prefix of the segment file names.
+   */
+  private static final String PREFIX = "cycles-"; //$NON-NLS-1$
+
+  /**
+   * The suffix of the segment file names.
+   */
+  private static final String SUFFIX = ".journal"; //$NON-NLS-1$
+
+  /**
+   * The controller being recorded.
+   */
+  private final SteamBoilerController controller;
+
+  /**
+   * The directory the segments are written to.
+   */
+  private final Path directory;
+
+  /**
+   * The size of each segment in bytes.
+   */
+  private final long segmentSize;
+
+  /**
+   * The number of the current segment.
+   */
+  private int segment;
+
+  /**
+   * The file of the current segment, or null once closed.
+   */
+  private @Nullable FileChannel channel;
+
+  /**
+   * The current segment, mapped into memory.
+   */
+  private MappedByteBuffer buffer;
+
+  /**
+   * The number of cycles recorded.
+   */
+  private long cycles;
+
+  /**
+   * Start a journal of a controller in a directory, with segments of the default size.
+   * @param controller = the controller to record.
+   * @param directory = the directory, which is created if need be and must not already hold a
+   *     journal.
+   * @throws IOException = if the first segment cannot be created.
+   */
+  public CycleJournal(SteamBoilerController controller, Path directory) throws IOException {
+    this(controller, directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Start a journal of a controller in a directory.
+   * @param controller = the controller to record.
+   * @param directory = the directory, which is created if need be and must not already hold a
+   *     journal.
+   * @param segmentSize = the size of each segment in bytes. A cycle bigger than this gets a
+   *     segment of its own, big enough for it.
+   * @throws IOException = if the first segment cannot be created.
+   */
+  @Initialisation
+  public CycleJournal(SteamBoilerController controller, Path directory, long segmentSize)
+      throws IOException {
+    if (segmentSize < HEADER + RECORD_HEADER + 4 || segmentSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("bad segment size " + segmentSize); //$NON-NLS-1$
+    }
+    this.controller = controller;
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    Files.createDirectories(directory);
+    if (!segments(directory).isEmpty()) {
+      throw new IllegalArgumentException("already a journal in " + directory); //$NON-NLS-1$
+    }
+    this.buffer = openSegment(segmentSize);
+  }
+
+  @Override
+  public String getStatusMessage() {
+    return this.controller.getStatusMessage();
+  }
+
+  /**
+   * Clock the controller, then record the messages to and from it.
+   * @param incoming = the messages to the controller.
+   * @param outgoing = the messages from the controller.
+   */
+  @Override
+  public void clock(Mailbox incoming, Mailbox outgoing) {
+    this.controller.clock(incoming, outgoing);
+    append(incoming, outgoing);
+  }
+
+  /**
+   * Record a cycle.
+   * @param incoming = the messages to the controller.
+   * @param outgoing = the messages from the controller.
+   */
+  private void append(Mailbox incoming, Mailbox outgoing) {
+    if (this.channel == null) {
+      throw new IllegalStateException("journal is closed"); //$NON-NLS-1$
+    }
+    int length = 8 + MessageCodec.encodedSize(incoming) + MessageCodec.encodedSize(outgoing);
+    // Leave room for the zero length which ends the segment
+    if (this.buffer.remaining() < 4 + length + 4) {
+      try {
+        roll(length);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    MappedByteBuffer out = this.buffer;
+    int start = out.position();
+    out.position(start + 4);
+    out.putLong(this.cycles);
+    MessageCodec.encode(incoming, out);
+    MessageCodec.encode(outgoing, out);
+    out.putInt(start, length);
+    this.cycles++;
+  }
+
+  /**
+   * Finish the current segment and start the next one.
+   * @param length = the length of the cycle which did not fit.
+   * @throws IOException = if the next segment cannot be created.
+   */
+  @Initialisation
+  private void roll(int length) throws IOException {
+    closeSegment();
+    this.segment++;
+    this.buffer = openSegment(Math.max(this.segmentSize, (long) HEADER + 4 + length + 4));
+  }
+
+  /**
+   * Create and map the current segment, and write its header.
+   * @param size = the size of the segment in bytes.
+   * @return = the segment.
+   * @throws IOException = if it cannot be created.
+   */
+  @Initialisation
+  private MappedByteBuffer openSegment(long size) throws IOException {
+    Path file = this.directory.resolve(String.format("%s%06d%s", PREFIX, //$NON-NLS-1$
+        Integer.valueOf(this.segment), SUFFIX));
+    FileChannel opened = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.channel = opened;
+    MappedByteBuffer mapped = opened.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    mapped.order(ByteOrder.BIG_ENDIAN);
+    mapped.putInt(MAGIC);
+    mapped.putInt(VERSION);
+    return mapped;
+  }
+
+  /**
+   * Flush the current segment to disk and close its file. The mapping stays valid until it is
+   * garbage collected.
+   * @throws IOException = if it cannot be flushed.
+   */
+  private void closeSegment() throws IOException {
+    FileChannel current = this.channel;
+    if (current != null) {
+      this.buffer.force();
+      current.close();
+      this.channel = null;
+    }
+  }
+
+  /**
+   * Flush the journal to disk. Cycles are visible to readers as soon as they are recorded, but
+   * are only certain to survive the machine stopping once flushed.
+   */
+  public void flush() {
+    this.buffer.force();
+  }
+
+  /**
+   * Get the number of cycles recorded.
+   * @return = the number of cycles.
+   */
+  public long getCycles() {
+    return this.cycles;
+  }
+
+  /**
+   * Flush the journal and stop recording.
+   * @throws IOException = if it cannot be flushed.
+   */
+  @Override
+  public void close() throws IOException {
+    closeSegment();
+  }
+
+  /**
+   * Get the segment files of a journal, in order.
+   * @param directory = the directory of the journal.
+   * @return = the segment files.
+   * @throws IOException = if the directory cannot be read.
+   */
+  public static List<Path> segments(Path directory) throws IOException {
+    List<Path> segments = new ArrayList<>();
+    if (!Files.isDirectory(directory)) {
+      return segments;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+        PREFIX + "*" + SUFFIX)) { //$NON-NLS-1$
+      for (Path file : files) {
+        segments.add(file);
+      }
+    }
+    // The segment numbers are padded, so the names sort in order
+    Collections.sort(segments);
+    return segments;
+  }
+
+  /**
+   * Map a segment file and check its header.
+   * @param file = the segment file.
+   * @return = the segment, positioned at its first cycle.
+   * @throws IOException = if it cannot be read, or is not a journal segment.
+   */
+  static ByteBuffer mapSegment(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (in.remaining() < HEADER || in.getInt() != MAGIC) {
+        throw new IOException(file + " is not a journal segment"); //$NON-NLS-1$
+      }
+      int version = in.getInt();
+      if (version != VERSION) {
+        throw new IOException(file + " has unknown version " + version); //$NON-NLS-1$
+      }
+      return in;
+    }
+  }
+
+  /**
+   * Reads the cycles of a journal back, one at a time. The mailboxes are reused for every
+   * cycle, so are only valid until the next one is read.
+   * @author Caitlin
+   *
+   */
+  public static final class Reader implements Closeable {
+
+    /**
+     * The segment files still to be read.
+     */
+    private final List<Path> segments;
+
+    /**
+     * The number of the next segment file to read.
+     */
+    private int next;
+
+    /**
+     * The segment being read, or null before the first and after the last.
+     */
+    private @Nullable ByteBuffer buffer;
+
+    /**
+     * The messages to the controller in the current cycle.
+     */
+    private final ArrayMailbox incoming = new ArrayMailbox(100);
+
+    /**
+     * The messages from the controller in the current cycle.
+     */
+    private final ArrayMailbox outgoing = new ArrayMailbox(100);
+
+    /**
+     * The message each message is decoded into.
+     */
+    private final Message scratch = new Message(MessageKind.VALVE);
+
+    /**
+     * The number of the current cycle.
+     */
+    private long cycle = -1;
+
+    /**
+     * Open a journal for reading.
+     * @param directory = the directory of the journal.
+     * @throws IOException = if the directory cannot be read.
+     */
+    public Reader(Path directory) throws IOException {
+      this.segments = segments(directory);
+    }
+
+    /**
+     * Read the next cycle.
+     * @return = false if there are no more cycles.
+     * @throws IOException = if a segment cannot be read, or is not a journal segment.
+     */
+    public boolean next() throws IOException {
+      while (true) {
+        ByteBuffer in = this.buffer;
+        if (in != null && in.remaining() >= 4) {
+          int length = in.getInt();
+          if (length > 0) {
+            if (length < 8 || length > in.remaining()) {
+              throw new IOException("bad cycle length " + length); //$NON-NLS-1$
+            }
+            this.cycle = in.getLong();
+            this.incoming.clear();
+            this.outgoing.clear();
+            MessageCodec.decode(in, this.incoming, this.scratch);
+            MessageCodec.decode(in, this.outgoing, this.scratch);
+            return true;
+          }
+        }
+        if (this.next == this.segments.size()) {
+          this.buffer = null;
+          return false;
+        }
+        this.buffer = mapSegment(this.segments.get(this.next++));
+      }
+    }
+
+    /**
+     * Get the number of the current cycle.
+     * @return = the cycle number, counting from zero.
+     */
+    public long getCycle() {
+      return this.cycle;
+    }
+
+    /**
+     * Get the messages to the controller in the current cycle.
+     * @return = the messages.
+     */
+    public Mailbox getIncoming() {
+      return this.incoming;
+    }
+
+    /**
+     * Get the messages from the controller in the current cycle.
+     * @return = the messages.
+     */
+    public Mailbox getOutgoing() {
+      return this.outgoing;
+    }
+
+    @Override
+    public void close() {
+      this.buffer = null;
+      this.next = this.segments.size();
+    }
+  }
+}
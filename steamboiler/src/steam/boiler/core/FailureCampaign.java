@@ -0,0 +1,665 @@
+package steam.boiler.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import steam.boiler.core.HeadlessSimulation.Event;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Runs many trials of the controller against the physical units, each with failures at random
+ * times, and collects how the controller coped. Each trial samples a number of failures, and
+ * for each one the unit and how it fails, when it happens, and whether and when it is
+ * repaired. The failures are the same as those of a {@link HeadlessSimulation} script, so any
+ * trial can be run again on its own from its schedule.
+ *
+ * <p>The schedule of a trial only depends on the seed and the number of the trial, so a
+ * campaign gives the same report however many threads it is run on. Trials are split up across
+ * a work-stealing pool, and each one is added to a report as soon as it is finished rather than
+ * kept, so a campaign of any size runs in the same memory.
+ *
+ * <p>Every cycle two safety invariants are checked. The water in the boiler must be within the
+ * limits whenever the controller is running the boiler, which is in normal, degraded or rescue
+ * mode. The controller must also send exactly one mode message every cycle.
+ * @author Caitlin
+ *
+ */
+public class FailureCampaign {
+
+  /**
+   * The invariant that the water is within the limits while the boiler is running.
+   */
+  public static final String WATER_OUTSIDE_LIMITS = "water-outside-limits"; //$NON-NLS-1$
+
+  /**
+   * The invariant that exactly one mode message is sent every cycle.
+   */
+  public static final String MODE_MESSAGES = "mode-messages"; //$NON-NLS-1$
+
+  /**
+   * The failures which can be sampled, as a unit and what happens to it.
+   */
+  private static final String[][] FAILURES = {
+      { "level", "stuck-negative" }, //$NON-NLS-1$ //$NON-NLS-2$
+      { "level", "stuck" }, //$NON-NLS-1$ //$NON-NLS-2$
+      { "level", "tx-failure" }, //$NON-NLS-1$ //$NON-NLS-2$
+      { "steam", "stuck-negative" }, //$NON-NLS-1$ //$NON-NLS-2$
+      { "steam", "stuck" }, //$NON-NLS-1$ //$NON-NLS-2$
+      { "steam", "tx-failure" }, //$NON-NLS-1$ //$NON-NLS-2$
+      { "pump", "stuck-closed" }, //$NON-NLS-1$ //$NON-NLS-2$
+      { "pump", "sticks-open" }, //$NON-NLS-1$ //$NON-NLS-2$
+      { "pump", "tx-failure" }, //$NON-NLS-1$ //$NON-NLS-2$
+      { "pump-controller", "stuck-off" }, //$NON-NLS-1$ //$NON-NLS-2$
+      { "pump-controller", "tx-failure" } }; //$NON-NLS-1$ //$NON-NLS-2$
+
+  /**
+   * The number of trials below which a task runs its trials itself rather than splitting.
+   */
+  private static final int THRESHOLD = 4;
+
+  /**
+   * The boiler characteristics being simulated.
+   */
+  private final SteamBoilerCharacteristics config;
+
+  /**
+   * The seed the schedules are sampled from.
+   */
+  private final long seed;
+
+  /**
+   * The length of each trial in seconds.
+   */
+  private long duration = 1800;
+
+  /**
+   * The most failures in a trial.
+   */
+  private int maxFailures = 3;
+
+  /**
+   * The chance of a failure being repaired.
+   */
+  private double repairProbability = 0.5;
+
+  /**
+   * The mean time a failure takes to be repaired, in seconds.
+   */
+  private double meanRepairTime = 120.0;
+
+  /**
+   * The step the physical units are clocked in, in milliseconds.
+   */
+  private int step = SimulationClock.DEFAULT_STEP;
+
+  /**
+   * The pool the trials are run on.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * Construct a campaign for a given boiler, run on the common pool.
+   * @param config = the boiler characteristics.
+   * @param seed = the seed the schedules are sampled from.
+   */
+  public FailureCampaign(SteamBoilerCharacteristics config, long seed) {
+    this(config, seed, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Construct a campaign for a given boiler.
+   * @param config = the boiler characteristics.
+   * @param seed = the seed the schedules are sampled from.
+   * @param pool = the pool to run the trials on.
+   */
+  public FailureCampaign(SteamBoilerCharacteristics config, long seed, ForkJoinPool pool) {
+    this.config = config;
+    this.seed = seed;
+    this.pool = pool;
+  }
+
+  /**
+   * Set the length of each trial.
+   * @param seconds = the length in seconds.
+   * @return = this campaign.
+   */
+  public FailureCampaign setDuration(long seconds) {
+    if (seconds <= 0) {
+      throw new IllegalArgumentException("bad duration " + seconds); //$NON-NLS-1$
+    }
+    this.duration = seconds;
+    return this;
+  }
+
+  /**
+   * Set the number of failures in each trial, which is sampled evenly from one to the most.
+   * @param most = the most failures in a trial.
+   * @return = this campaign.
+   */
+  public FailureCampaign setMaxFailures(int most) {
+    if (most < 1) {
+      throw new IllegalArgumentException("bad number of failures " + most); //$NON-NLS-1$
+    }
+    this.maxFailures = most;
+    return this;
+  }
+
+  /**
+   * Set how failures are repaired. The time to repair is sampled from an exponential
+   * distribution, and a repair after the end of the trial does not happen.
+   * @param probability = the chance of a failure being repaired.
+   * @param meanSeconds = the mean time a failure takes to be repaired, in seconds.
+   * @return = this campaign.
+   */
+  public FailureCampaign setRepair(double probability, double meanSeconds) {
+    if (probability < 0 || probability > 1 || meanSeconds <= 0) {
+      throw new IllegalArgumentException("bad repair " + probability + ", " + meanSeconds); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    this.repairProbability = probability;
+    this.meanRepairTime = meanSeconds;
+    return this;
+  }
+
+  /**
+   * Clock the physical units in a larger step, which makes trials faster but less like the
+   * test harness.
+   * @param fixedStep = the step in milliseconds, which must divide the cycle.
+   * @return = this campaign.
+   */
+  public FailureCampaign setStep(int fixedStep) {
+    if (fixedStep <= 0 || SimulationClock.CYCLE % fixedStep != 0) {
+      throw new IllegalArgumentException("bad step " + fixedStep); //$NON-NLS-1$
+    }
+    this.step = fixedStep;
+    return this;
+  }
+
+  /**
+   * Sample the schedule of failures and repairs of a trial.
+   * @param trial = the number of the trial.
+   * @return = the failures and repairs, in order of time.
+   */
+  public List<Event> schedule(int trial) {
+    // Mix the trial number into the seed, so neighbouring trials are not related
+    SplittableRandom random = new SplittableRandom(this.seed + trial * 0x9E3779B97F4A7C15L);
+    int count = 1 + random.nextInt(this.maxFailures);
+    long end = this.duration * 1000;
+    ArrayList<Event> events = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      String[] failure = FAILURES[random.nextInt(FAILURES.length)];
+      String unit = failure[0];
+      boolean numbered = unit.startsWith("pump"); //$NON-NLS-1$
+      int pump = numbered ? random.nextInt(this.config.getNumberOfPumps()) : -1;
+      double value = 0.0;
+      if (unit.equals("level")) { //$NON-NLS-1$
+        value = random.nextDouble() * this.config.getCapacity();
+      } else if (unit.equals("steam")) { //$NON-NLS-1$
+        value = random.nextDouble() * this.config.getMaximualSteamRate();
+      }
+      long onset = random.nextLong(end);
+      events.add(new Event(onset, unit, pump, failure[1], value));
+      if (random.nextDouble() < this.repairProbability) {
+        double delay = -Math.log(1.0 - random.nextDouble()) * this.meanRepairTime;
+        long repair = onset + Math.max(1, Math.round(delay * 1000));
+        if (repair < end) {
+          events.add(new Event(repair, unit, pump, "repair", 0.0)); //$NON-NLS-1$
+        }
+      }
+    }
+    // This sort is stable, so a failure comes before its repair at the same time
+    Collections.sort(events, (a, b) -> Long.compare(a.time, b.time));
+    return events;
+  }
+
+  /**
+   * Run a trial on its own.
+   * @param trial = the number of the trial.
+   * @return = what happened.
+   */
+  public Outcome trial(int trial) {
+    MySteamBoilerController controller = new MySteamBoilerController(this.config);
+    PhysicalUnits model = new PhysicalUnits.Template(this.config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    SimulationClock clock = new SimulationClock(controller, model);
+    clock.setStep(this.step);
+    for (Event event : schedule(trial)) {
+      if (event.failure.equals("repair")) { //$NON-NLS-1$
+        clock.repair(event.time, units -> event.apply(units, this.config));
+      } else {
+        clock.inject(event.time, units -> event.apply(units, this.config));
+      }
+    }
+    double minLimit = this.config.getMinimalLimitLevel();
+    double maxLimit = this.config.getMaximalLimitLevel();
+    Outcome outcome = new Outcome(trial);
+    Mailbox stopped = clock.runUntil(this.duration * 1000, output -> {
+      String mode = controller.getStatusMessage();
+      outcome.modes.merge(mode, Long.valueOf(1), Long::sum);
+      int modeMessages = 0;
+      for (int i = 0; i < output.size(); i++) {
+        if (output.read(i).getKind() == MessageKind.MODE_m) {
+          modeMessages++;
+        }
+      }
+      if (modeMessages != 1) {
+        outcome.violate(MODE_MESSAGES, clock.getTime());
+      }
+      boolean running = "NORMAL".equals(mode) || "DEGRADED".equals(mode) //$NON-NLS-1$ //$NON-NLS-2$
+          || "RESCUE".equals(mode); //$NON-NLS-1$
+      double water = model.getBoiler().getWaterLevel();
+      if (running && (water < minLimit || water > maxLimit)) {
+        outcome.violate(WATER_OUTSIDE_LIMITS, clock.getTime());
+      }
+      // Nothing can happen after an emergency stop, so the trial is over
+      return "EMERGENCY_STOP".equals(mode); //$NON-NLS-1$
+    });
+    if (stopped != null) {
+      outcome.emergencyStop = clock.getTime();
+    }
+    return outcome;
+  }
+
+  /**
+   * Run a number of trials, numbered from zero, and report on them all.
+   * @param trials = the number of trials.
+   * @return = the report.
+   */
+  public Report run(int trials) {
+    long start = System.nanoTime();
+    Report report = this.pool.invoke(new Trials(0, trials));
+    report.wallNanos = System.nanoTime() - start;
+    return report;
+  }
+
+  /**
+   * Runs a range of trials, splitting the range until it is small enough.
+   * @author Caitlin
+   *
+   */
+  private final class Trials extends RecursiveTask<Report> {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of the first trial in the range.
+     */
+    private final int from;
+
+    /**
+     * The number one past the last trial in the range.
+     */
+    private final int to;
+
+    /**
+     * Construct a task for a range of trials.
+     * @param from = the number of the first trial.
+     * @param to = the number one past the last trial.
+     */
+    Trials(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Report compute() {
+      if (this.to - this.from <= THRESHOLD) {
+        Report report = new Report(FailureCampaign.this.duration);
+        for (int i = this.from; i < this.to; i++) {
+          report.add(trial(i), FailureCampaign.this);
+        }
+        return report;
+      }
+      int mid = (this.from + this.to) >>> 1;
+      Trials right = new Trials(mid, this.to);
+      right.fork();
+      Report report = new Trials(this.from, mid).compute();
+      report.merge(right.join());
+      return report;
+    }
+  }
+
+  /**
+   * What happened in a single trial.
+   * @author Caitlin
+   *
+   */
+  public static final class Outcome {
+    /**
+     * The number of the trial.
+     */
+    final int trial;
+
+    /**
+     * The number of cycles the controller ended in each mode.
+     */
+    final Map<String, Long> modes = new TreeMap<>();
+
+    /**
+     * The time of the first violation of each invariant, in milliseconds.
+     */
+    final Map<String, Long> violations = new TreeMap<>();
+
+    /**
+     * The time of the emergency stop in milliseconds, or -1 if there was none.
+     */
+    long emergencyStop = -1;
+
+    /**
+     * Construct the outcome of a trial before it is run.
+     * @param trial = the number of the trial.
+     */
+    Outcome(int trial) {
+      this.trial = trial;
+    }
+
+    /**
+     * Record an invariant being violated, if it has not been already.
+     * @param invariant = the invariant.
+     * @param time = the time in milliseconds.
+     */
+    void violate(String invariant, long time) {
+      this.violations.putIfAbsent(invariant, Long.valueOf(time));
+    }
+
+    /**
+     * Get the number of cycles the controller ended in each mode.
+     * @return = the number of cycles for each mode which was reached.
+     */
+    public Map<String, Long> getModes() {
+      return Collections.unmodifiableMap(this.modes);
+    }
+
+    /**
+     * Get the time each invariant was first violated.
+     * @return = the time in milliseconds of each invariant which was violated.
+     */
+    public Map<String, Long> getViolations() {
+      return Collections.unmodifiableMap(this.violations);
+    }
+
+    /**
+     * Get the time of the emergency stop.
+     * @return = the time in seconds, or -1 if there was no emergency stop.
+     */
+    public double getEmergencyStop() {
+      return this.emergencyStop < 0 ? -1 : this.emergencyStop / 1000.0;
+    }
+  }
+
+  /**
+   * A summary of many trials. Trials are added one at a time, and reports of different trials
+   * can be merged, so a report never holds more than the counts.
+   * @author Caitlin
+   *
+   */
+  public static final class Report {
+    /**
+     * The number of trials.
+     */
+    long trials;
+
+    /**
+     * The number of trials which reached each mode.
+     */
+    final Map<String, Long> reached = new TreeMap<>();
+
+    /**
+     * The number of cycles the controller ended in each mode, over all trials.
+     */
+    final Map<String, Long> cycles = new TreeMap<>();
+
+    /**
+     * The number of trials which violated each invariant.
+     */
+    final Map<String, Long> violations = new TreeMap<>();
+
+    /**
+     * The lowest numbered trial which violated an invariant, or -1 if none did.
+     */
+    int firstViolation = -1;
+
+    /**
+     * The schedule of the lowest numbered trial which violated an invariant.
+     */
+    String firstViolationSchedule = ""; //$NON-NLS-1$
+
+    /**
+     * The number of trials which ended in an emergency stop, by the cycle it happened in.
+     */
+    final long[] stops;
+
+    /**
+     * The number of trials which ended in an emergency stop.
+     */
+    long emergencyStops;
+
+    /**
+     * The total time to emergency stop of those trials, in milliseconds.
+     */
+    long totalTimeToStop;
+
+    /**
+     * The wall-clock time the campaign took in nanoseconds.
+     */
+    long wallNanos;
+
+    /**
+     * Construct an empty report.
+     * @param duration = the length of each trial in seconds.
+     */
+    Report(long duration) {
+      this.stops = new long[(int) (duration * 1000 / SimulationClock.CYCLE) + 1];
+    }
+
+    /**
+     * Add a trial to the report.
+     * @param outcome = what happened in the trial.
+     * @param campaign = the campaign, for the schedule of a trial which violated an invariant.
+     */
+    void add(Outcome outcome, FailureCampaign campaign) {
+      this.trials++;
+      for (Map.Entry<String, Long> entry : outcome.modes.entrySet()) {
+        this.reached.merge(entry.getKey(), Long.valueOf(1), Long::sum);
+        this.cycles.merge(entry.getKey(), entry.getValue(), Long::sum);
+      }
+      for (String invariant : outcome.violations.keySet()) {
+        this.violations.merge(invariant, Long.valueOf(1), Long::sum);
+      }
+      if (!outcome.violations.isEmpty()
+          && (this.firstViolation < 0 || outcome.trial < this.firstViolation)) {
+        this.firstViolation = outcome.trial;
+        this.firstViolationSchedule = campaign.schedule(outcome.trial).toString();
+      }
+      if (outcome.emergencyStop >= 0) {
+        this.emergencyStops++;
+        this.totalTimeToStop += outcome.emergencyStop;
+        int cycle = (int) Math.min(outcome.emergencyStop / SimulationClock.CYCLE,
+            this.stops.length - 1);
+        this.stops[cycle]++;
+      }
+    }
+
+    /**
+     * Add the trials of another report to this one.
+     * @param other = the other report, which must be for trials of the same length.
+     */
+    void merge(Report other) {
+      this.trials += other.trials;
+      for (Map.Entry<String, Long> entry : other.reached.entrySet()) {
+        this.reached.merge(entry.getKey(), entry.getValue(), Long::sum);
+      }
+      for (Map.Entry<String, Long> entry : other.cycles.entrySet()) {
+        this.cycles.merge(entry.getKey(), entry.getValue(), Long::sum);
+      }
+      for (Map.Entry<String, Long> entry : other.violations.entrySet()) {
+        this.violations.merge(entry.getKey(), entry.getValue(), Long::sum);
+      }
+      if (other.firstViolation >= 0
+          && (this.firstViolation < 0 || other.firstViolation < this.firstViolation)) {
+        this.firstViolation = other.firstViolation;
+        this.firstViolationSchedule = other.firstViolationSchedule;
+      }
+      for (int i = 0; i < this.stops.length; i++) {
+        this.stops[i] += other.stops[i];
+      }
+      this.emergencyStops += other.emergencyStops;
+      this.totalTimeToStop += other.totalTimeToStop;
+    }
+
+    /**
+     * Get the number of trials.
+     * @return = the number of trials.
+     */
+    public long getTrials() {
+      return this.trials;
+    }
+
+    /**
+     * Get the number of trials in which the controller reached a mode.
+     * @param mode = the name of the mode.
+     * @return = the number of trials.
+     */
+    public long getTrialsReaching(String mode) {
+      Long count = this.reached.get(mode);
+      return count == null ? 0 : count.longValue();
+    }
+
+    /**
+     * Get the number of cycles the controller ended in a mode, over all trials.
+     * @param mode = the name of the mode.
+     * @return = the number of cycles.
+     */
+    public long getCyclesIn(String mode) {
+      Long count = this.cycles.get(mode);
+      return count == null ? 0 : count.longValue();
+    }
+
+    /**
+     * Get the number of trials which violated an invariant.
+     * @param invariant = the invariant.
+     * @return = the number of trials.
+     */
+    public long getViolations(String invariant) {
+      Long count = this.violations.get(invariant);
+      return count == null ? 0 : count.longValue();
+    }
+
+    /**
+     * Get the lowest numbered trial which violated an invariant, which can be run again on its
+     * own with {@link FailureCampaign#trial}.
+     * @return = the number of the trial, or -1 if none did.
+     */
+    public int getFirstViolation() {
+      return this.firstViolation;
+    }
+
+    /**
+     * Get the number of trials which ended in an emergency stop.
+     * @return = the number of trials.
+     */
+    public long getEmergencyStops() {
+      return this.emergencyStops;
+    }
+
+    /**
+     * Get the mean time to an emergency stop, of the trials which had one.
+     * @return = the time in seconds, or 0 if none did.
+     */
+    public double getMeanTimeToStop() {
+      if (this.emergencyStops == 0) {
+        return 0.0;
+      }
+      return this.totalTimeToStop / 1000.0 / this.emergencyStops;
+    }
+
+    /**
+     * Get a percentile of the time to an emergency stop, of the trials which had one. This is
+     * to the cycle.
+     * @param percentile = the percentile, from 0 to 100.
+     * @return = the end of the cycle the percentile falls in, in seconds, or 0 if no trial had
+     *     an emergency stop.
+     */
+    public double getPercentileTimeToStop(double percentile) {
+      if (this.emergencyStops == 0) {
+        return 0.0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * this.emergencyStops));
+      long seen = 0;
+      for (int i = 0; i < this.stops.length; i++) {
+        seen += this.stops[i];
+        if (seen >= rank) {
+          return (i + 1) * (SimulationClock.CYCLE / 1000.0);
+        }
+      }
+      return this.stops.length * (SimulationClock.CYCLE / 1000.0);
+    }
+
+    /**
+     * Give a summary, one line per figure. The wall-clock time is left out, so campaigns with
+     * the same seed give the same summary.
+     */
+    @Override
+    public String toString() {
+      StringBuilder summary = new StringBuilder();
+      summary.append("trials: ").append(this.trials).append('\n'); //$NON-NLS-1$
+      for (Map.Entry<String, Long> entry : this.reached.entrySet()) {
+        summary.append("trials reaching ").append(entry.getKey()).append(": ") //$NON-NLS-1$ //$NON-NLS-2$
+            .append(entry.getValue()).append('\n');
+      }
+      for (Map.Entry<String, Long> entry : this.cycles.entrySet()) {
+        summary.append("cycles in ").append(entry.getKey()).append(": ") //$NON-NLS-1$ //$NON-NLS-2$
+            .append(entry.getValue()).append('\n');
+      }
+      summary.append("emergency stops: ").append(this.emergencyStops).append('\n'); //$NON-NLS-1$
+      if (this.emergencyStops > 0) {
+        summary.append("time to stop mean: ").append(getMeanTimeToStop()).append(" s\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        summary.append("time to stop p50: ").append(getPercentileTimeToStop(50)) //$NON-NLS-1$
+            .append(" s\n"); //$NON-NLS-1$
+        summary.append("time to stop p99: ").append(getPercentileTimeToStop(99)) //$NON-NLS-1$
+            .append(" s\n"); //$NON-NLS-1$
+      }
+      for (Map.Entry<String, Long> entry : this.violations.entrySet()) {
+        summary.append("trials violating ").append(entry.getKey()).append(": ") //$NON-NLS-1$ //$NON-NLS-2$
+            .append(entry.getValue()).append('\n');
+      }
+      if (this.firstViolation >= 0) {
+        summary.append("first violating trial: ").append(this.firstViolation).append(' ') //$NON-NLS-1$
+            .append(this.firstViolationSchedule).append('\n');
+      }
+      return summary.toString();
+    }
+  }
+
+  /**
+   * Run a campaign against a default boiler and print a report.
+   * @param args = the number of trials, then optionally the length of each trial in seconds,
+   *     the seed and the number of pumps.
+   */
+  public static void main(String[] args) {
+    if (args.length < 1) {
+      System.err.println("usage: FailureCampaign trials [seconds [seed [pumps]]]"); //$NON-NLS-1$
+      System.exit(1);
+    }
+    int trials = Integer.parseInt(args[0]);
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    if (args.length > 3) {
+      config = config.setNumberOfPumps(Integer.parseInt(args[3]), config.getPumpCapacity(0));
+    }
+    long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+    FailureCampaign campaign = new FailureCampaign(config, seed);
+    if (args.length > 1) {
+      campaign.setDuration(Long.parseLong(args[1]));
+    }
+    Report report = campaign.run(trials);
+    System.out.print(report);
+    System.out.println("wall-clock: " + report.wallNanos / 1e9 + " s"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+}
@@ -0,0 +1,259 @@
+package steam.boiler.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.MemoryAnnotations.Initialisation;
+
+/**
+ * Clocks many boilers together, each one a controller and the physical units it controls.
+ * Every cycle the boilers are split up across a work-stealing pool and the cycle only ends
+ * once all of them have finished, so the boilers always stay in step. Each boiler is clocked
+ * in exactly the same way as a boiler on its own, so its results do not depend on the number
+ * of threads or on the other boilers. Each boiler has a pair of mailboxes of its own, which are
+ * allocated when it is added and cleared every cycle, so clocking the fleet makes no garbage
+ * however many boilers there are.
+ * @author Caitlin
+ *
+ */
+public class Fleet {
+
+  /**
+   * The length of a cycle in milliseconds, which is five seconds.
+   */
+  public static final int CYCLE = 5000;
+
+  /**
+   * The amount of time that the physical units are clocked for at once, in milliseconds.
+   */
+  public static final int GRANULARITY = 100;
+
+  /**
+   * The number of boilers below which a task clocks its boilers itself rather than splitting.
+   */
+  private static final int THRESHOLD = 16;
+
+  /**
+   * The pool that the boilers are clocked on.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * The controller of each boiler.
+   */
+  private final ArrayList<MySteamBoilerController> controllers = new ArrayList<>();
+
+  /**
+   * The physical units of each boiler.
+   */
+  private final ArrayList<PhysicalUnits> units = new ArrayList<>();
+
+  /**
+   * The messages sent to each controller each cycle.
+   */
+  private final ArrayList<ArrayMailbox> inputs = new ArrayList<>();
+
+  /**
+   * The messages each controller sent in the last cycle.
+   */
+  private final ArrayList<ArrayMailbox> outputs = new ArrayList<>();
+
+  /**
+   * The exception or failed assertion each boiler stopped with, or null if it is still running.
+   */
+  private @Nullable Throwable[] failures = new @Nullable Throwable[0];
+
+  /**
+   * The number of cycles that every boiler has been clocked for.
+   */
+  private long cycles;
+
+  /**
+   * The total time spent clocking the fleet in nanoseconds.
+   */
+  private long elapsedNanos;
+
+  /**
+   * Construct a fleet which clocks its boilers on the common pool.
+   */
+  public Fleet() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Construct a fleet which clocks its boilers on a given pool.
+   * @param pool = the pool to clock the boilers on.
+   */
+  public Fleet(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Add a boiler to the fleet. Boilers can only be added before the first cycle.
+   * @param controller = the controller for the boiler.
+   * @param physicalUnits = the physical units that the controller is controlling.
+   * @return = the index of the boiler in the fleet.
+   */
+  @Initialisation
+  public int add(MySteamBoilerController controller, PhysicalUnits physicalUnits) {
+    if (this.cycles != 0) {
+      throw new IllegalStateException("boilers must be added before the fleet is clocked");
+    }
+    this.controllers.add(controller);
+    this.units.add(physicalUnits);
+    this.inputs.add(new ArrayMailbox(100));
+    this.outputs.add(new ArrayMailbox(100));
+    return this.controllers.size() - 1;
+  }
+
+  /**
+   * Get the number of boilers in the fleet.
+   * @return = number of boilers.
+   */
+  public int size() {
+    return this.controllers.size();
+  }
+
+  /**
+   * Clock every boiler in the fleet for one cycle. This only returns once every boiler has
+   * finished the cycle.
+   */
+  public void clock() {
+    int n = this.controllers.size();
+    if (this.failures.length != n) {
+      this.failures = new @Nullable Throwable[n];
+    }
+    long start = System.nanoTime();
+    this.pool.invoke(new Cycle(0, n));
+    this.elapsedNanos += System.nanoTime() - start;
+    this.cycles++;
+  }
+
+  /**
+   * Clock every boiler in the fleet for a given number of cycles.
+   * @param count = the number of cycles.
+   */
+  public void clock(int count) {
+    for (int i = 0; i < count; i++) {
+      clock();
+    }
+  }
+
+  /**
+   * Get the messages that a boiler's controller sent in the last cycle. The mailbox is used
+   * again in the next cycle, so it must be read before the fleet is clocked again.
+   * @param boiler = index of the boiler.
+   * @return = the messages, or null if the boiler has not been clocked or has failed.
+   */
+  public @Nullable Mailbox getOutput(int boiler) {
+    if (this.cycles == 0 || this.failures[boiler] != null) {
+      return null;
+    }
+    return this.outputs.get(boiler);
+  }
+
+  /**
+   * Get the exception or failed assertion that stopped a boiler. A boiler which throws either
+   * is not clocked again, but the rest of the fleet carries on. Any other error is thrown from
+   * clock, and leaves the boilers part way through the cycle.
+   * @param boiler = index of the boiler.
+   * @return = the exception or failed assertion, or null if the boiler is still running.
+   */
+  public @Nullable Throwable getFailure(int boiler) {
+    return this.failures[boiler];
+  }
+
+  /**
+   * Get the number of cycles the fleet has been clocked for.
+   * @return = number of cycles.
+   */
+  public long getCycles() {
+    return this.cycles;
+  }
+
+  /**
+   * Get the number of boiler cycles completed per second of wall-clock time.
+   * @return = boiler cycles per second.
+   */
+  public double getCyclesPerSecond() {
+    if (this.elapsedNanos == 0) {
+      return 0.0;
+    }
+    return (this.cycles * this.controllers.size()) / (this.elapsedNanos / 1e9);
+  }
+
+  /**
+   * Clock a single boiler for one cycle. This is the same sequence that the test harness uses:
+   * messages are exchanged on the first tick of the cycle and the physical units are then
+   * clocked for the rest of it.
+   * @param boiler = index of the boiler.
+   */
+  private void clockBoiler(int boiler) {
+    if (this.failures[boiler] != null) {
+      return;
+    }
+    MySteamBoilerController controller = this.controllers.get(boiler);
+    PhysicalUnits physicalUnits = this.units.get(boiler);
+    try {
+      physicalUnits.clock(GRANULARITY);
+      ArrayMailbox input = this.inputs.get(boiler);
+      ArrayMailbox output = this.outputs.get(boiler);
+      input.clear();
+      output.clear();
+      physicalUnits.transmit(input);
+      controller.clock(input, output);
+      physicalUnits.receive(output);
+      for (int t = GRANULARITY; t < CYCLE; t += GRANULARITY) {
+        physicalUnits.clock(GRANULARITY);
+      }
+    } catch (RuntimeException | AssertionError e) {
+      this.failures[boiler] = e;
+    }
+  }
+
+  /**
+   * Clocks a range of boilers for one cycle, splitting the range until it is small enough.
+   * @author Caitlin
+   *
+   */
+  private final class Cycle extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Index of the first boiler in the range.
+     */
+    private final int from;
+
+    /**
+     * Index one past the last boiler in the range.
+     */
+    private final int to;
+
+    /**
+     * Construct a task for a range of boilers.
+     * @param from = index of the first boiler.
+     * @param to = index one past the last boiler.
+     */
+    Cycle(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.to - this.from <= THRESHOLD) {
+        for (int i = this.from; i < this.to; i++) {
+          clockBoiler(i);
+        }
+      } else {
+        int mid = (this.from + this.to) >>> 1;
+        invokeAll(new Cycle(this.from, mid), new Cycle(mid, this.to));
+      }
+    }
+  }
+}
@@ -0,0 +1,594 @@
+package steam.boiler.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import steam.boiler.core.MySteamBoilerController.Snapshot;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.MemoryAnnotations.Initialisation;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Controls many boilers at once, keeping the state of every boiler in columns of primitives
+ * rather than in a controller object each. The water level of every boiler is in one array,
+ * the steam level of every boiler in another, and so on, so going through the boilers reads
+ * each array in order instead of jumping between objects all over the heap.
+ *
+ * <p>Most cycles of most boilers are the same: the boiler is in normal mode, nothing has failed
+ * and the pumps report what they were told. These cycles are done for every boiler at once, in
+ * loops over the columns with no branches the JIT cannot turn into selects, so it can vectorise
+ * them. These check the water and steam levels against the limits and predict the number of
+ * pumps to open, in the same way and with the same arithmetic as MySteamBoilerController. Any
+ * other cycle is escalated: a controller for the boiler's configuration is restored from the
+ * boiler's columns with a snapshot, clocked, and the snapshot copied back into the columns.
+ * Either way a boiler sends exactly the messages MySteamBoilerController would.
+ *
+ * <p>The fast path only handles boilers whose pumps all have the same capacity, with at most 64
+ * pumps. Other boilers are escalated every cycle. This is not thread safe, as the escalation
+ * controllers are shared between boilers with the same configuration.
+ * @author Caitlin
+ *
+ */
+public final class FleetController {
+
+  /**
+   * The length of a cycle in seconds, which is the same as MySteamBoilerController uses.
+   */
+  static final int CYCLE = 5;
+
+  /**
+   * The most pumps a boiler can have for its cycles not to be escalated.
+   */
+  private static final int FAST_PUMPS = 64;
+
+  /**
+   * The number of boilers there is room for before the columns have to grow.
+   */
+  private int capacity = 16;
+
+  /**
+   * The number of boilers.
+   */
+  private int size;
+
+  /**
+   * The index of the escalation controller for each boiler.
+   */
+  private int[] template = new int[this.capacity];
+
+  /**
+   * The number of pumps of each boiler.
+   */
+  private int[] numberOfPumps = new int[this.capacity];
+
+  /**
+   * Whether all the pumps of each boiler have the same capacity, and it has few enough of them
+   * for the fast path.
+   */
+  private boolean[] uniform = new boolean[this.capacity];
+
+  /**
+   * The water one pump puts in each boiler over a cycle.
+   */
+  private double[] perPump = new double[this.capacity];
+
+  /**
+   * The water capacity of each boiler.
+   */
+  private double[] waterCapacity = new double[this.capacity];
+
+  /**
+   * The maximum steam rate of each boiler.
+   */
+  private double[] maxSteamLevel = new double[this.capacity];
+
+  /**
+   * The minimum limit water level of each boiler.
+   */
+  private double[] minLimitWaterLevel = new double[this.capacity];
+
+  /**
+   * The maximum limit water level of each boiler.
+   */
+  private double[] maxLimitWaterLevel = new double[this.capacity];
+
+  /**
+   * The middle of the normal water levels of each boiler.
+   */
+  private double[] midLimitWaterLevel = new double[this.capacity];
+
+  /**
+   * Where the pump bitsets of each boiler start in pumps.
+   */
+  private int[] offset = new int[this.capacity];
+
+  /**
+   * The ordinal of the mode of each boiler's controller.
+   */
+  private int[] mode = new int[this.capacity];
+
+  /**
+   * The last water level read from each boiler.
+   */
+  private double[] waterLevel = new double[this.capacity];
+
+  /**
+   * The last steam level read from each boiler.
+   */
+  private double[] steamLevel = new double[this.capacity];
+
+  /**
+   * The snapshot flags of each boiler's controller.
+   */
+  private int[] flags = new int[this.capacity];
+
+  /**
+   * The pump bitsets of every boiler, end to end, each laid out as in a snapshot.
+   */
+  private long[] pumps = new long[7 * this.capacity];
+
+  /**
+   * The number of words of pumps used.
+   */
+  private int pumpsUsed;
+
+  /**
+   * The water level read from each boiler this cycle.
+   */
+  private double[] level = new double[this.capacity];
+
+  /**
+   * The steam level read from each boiler this cycle.
+   */
+  private double[] steam = new double[this.capacity];
+
+  /**
+   * Whether each boiler is on the fast path this cycle.
+   */
+  private boolean[] fast = new boolean[this.capacity];
+
+  /**
+   * The number of pumps each boiler on the fast path should have open this cycle.
+   */
+  private int[] target = new int[this.capacity];
+
+  /**
+   * The controllers cycles are escalated to, one for each configuration.
+   */
+  private final ArrayList<Template> templates = new ArrayList<>();
+
+  /**
+   * The index of the escalation controller for each configuration.
+   */
+  private final IdentityHashMap<SteamBoilerCharacteristics, Integer> configurations =
+      new IdentityHashMap<>();
+
+  /**
+   * The messages to open each pump.
+   */
+  private final Message[] openMessages = new Message[FAST_PUMPS];
+
+  /**
+   * The messages to close each pump.
+   */
+  private final Message[] closeMessages = new Message[FAST_PUMPS];
+
+  /**
+   * The message that the boiler is in normal mode.
+   */
+  private final Message normalMessage = new Message(MessageKind.MODE_m, Mailbox.Mode.NORMAL);
+
+  /**
+   * The number of cycles the fleet has been clocked for.
+   */
+  private long cycles;
+
+  /**
+   * The number of boiler cycles which were escalated.
+   */
+  private long escalations;
+
+  /**
+   * Construct a fleet controller with no boilers.
+   */
+  @Initialisation
+  public FleetController() {
+    for (int i = 0; i < FAST_PUMPS; i++) {
+      this.openMessages[i] = new Message(MessageKind.OPEN_PUMP_n, i);
+      this.closeMessages[i] = new Message(MessageKind.CLOSE_PUMP_n, i);
+    }
+  }
+
+  /**
+   * Add a boiler, in the same state as a new MySteamBoilerController. Boilers added with the
+   * same configuration object share an escalation controller.
+   * @param configuration = the configuration of the boiler.
+   * @return = the index of the boiler.
+   */
+  @Initialisation
+  public int add(SteamBoilerCharacteristics configuration) {
+    Integer index = this.configurations.get(configuration);
+    if (index == null) {
+      index = Integer.valueOf(this.templates.size());
+      this.templates.add(new Template(configuration));
+      this.configurations.put(configuration, index);
+    }
+    Template added = this.templates.get(index.intValue());
+    Snapshot initial = added.initial;
+    if (this.size == this.capacity) {
+      grow(2 * this.capacity);
+    }
+    int stride = initial.pumps.length;
+    if (this.pumpsUsed + stride > this.pumps.length) {
+      this.pumps = Arrays.copyOf(this.pumps, Math.max(2 * this.pumps.length,
+          this.pumpsUsed + stride));
+    }
+    int b = this.size++;
+    int n = configuration.getNumberOfPumps();
+    boolean same = n > 0 && n <= FAST_PUMPS;
+    for (int i = 1; i < n; i++) {
+      same &= configuration.getPumpCapacity(i) == configuration.getPumpCapacity(0);
+    }
+    this.template[b] = index.intValue();
+    this.numberOfPumps[b] = n;
+    this.uniform[b] = same;
+    this.perPump[b] = n > 0 ? CYCLE * configuration.getPumpCapacity(0) : 0.0;
+    this.waterCapacity[b] = configuration.getCapacity();
+    this.maxSteamLevel[b] = configuration.getMaximualSteamRate();
+    this.minLimitWaterLevel[b] = configuration.getMinimalLimitLevel();
+    this.maxLimitWaterLevel[b] = configuration.getMaximalLimitLevel();
+    double minNormal = configuration.getMinimalNormalLevel();
+    double maxNormal = configuration.getMaximalNormalLevel();
+    this.midLimitWaterLevel[b] = minNormal + ((maxNormal - minNormal) / 2.0);
+    this.offset[b] = this.pumpsUsed;
+    this.pumpsUsed += stride;
+    load(b, initial);
+    return b;
+  }
+
+  /**
+   * Get the number of boilers.
+   * @return = the number of boilers.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Clock every boiler for one cycle.
+   * @param incoming = the messages from each boiler's physical units, indexed by boiler.
+   * @param outgoing = the mailbox to write the messages to each boiler to, indexed by boiler.
+   */
+  public void clock(Mailbox[] incoming, Mailbox[] outgoing) {
+    int n = this.size;
+    if (incoming.length < n || outgoing.length < n) {
+      throw new IllegalArgumentException("need a mailbox for each of " + n + " boilers"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    for (int b = 0; b < n; b++) {
+      this.fast[b] = decode(b, incoming[b]);
+    }
+    checkLimits(n);
+    predictNumberOfPumpsToOpen(n);
+    for (int b = 0; b < n; b++) {
+      if (this.fast[b]) {
+        changeNumberOpenPumps(b, outgoing[b]);
+      } else {
+        escalate(b, incoming[b], outgoing[b]);
+      }
+    }
+    this.cycles++;
+  }
+
+  /**
+   * Read the levels from a boiler's messages, if the boiler can take the fast path. It can if
+   * it is in normal mode with nothing failed or waiting to be acknowledged or repaired, and the
+   * messages are exactly one level, one steam level and a state for every pump and pump
+   * controller which agrees with the pumps open.
+   * @param b = the index of the boiler.
+   * @param incoming = the messages from the boiler.
+   * @return = if the boiler can take the fast path.
+   */
+  private boolean decode(int b, Mailbox incoming) {
+    if (!this.uniform[b] || this.mode[b] != Snapshot.NORMAL
+        || (this.flags[b] & ~Snapshot.OPEN_VALVE) != 0) {
+      return false;
+    }
+    int n = this.numberOfPumps[b];
+    long all = n == FAST_PUMPS ? -1L : (1L << n) - 1;
+    long[] bits = this.pumps;
+    int o = this.offset[b];
+    // Every pump and pump controller working, and none to repair or acknowledge
+    if (bits[o] != all || bits[o + 1] != all
+        || (bits[o + 3] | bits[o + 4] | bits[o + 5] | bits[o + 6]) != 0) {
+      return false;
+    }
+    int levels = 0;
+    int steams = 0;
+    long states = 0;
+    long statesOpen = 0;
+    long controls = 0;
+    long controlsOpen = 0;
+    for (int i = 0; i < incoming.size(); i++) {
+      Message message = incoming.read(i);
+      MessageKind kind = message.getKind();
+      if (kind == MessageKind.LEVEL_v) {
+        levels++;
+        this.level[b] = message.getDoubleParameter();
+      } else if (kind == MessageKind.STEAM_v) {
+        steams++;
+        this.steam[b] = message.getDoubleParameter();
+      } else if (kind == MessageKind.PUMP_STATE_n_b || kind == MessageKind.PUMP_CONTROL_STATE_n_b) {
+        int pump = message.getIntegerParameter();
+        if (pump < 0 || pump >= n) {
+          return false;
+        }
+        long bit = 1L << pump;
+        long open = message.getBooleanParameter() ? bit : 0L;
+        if (kind == MessageKind.PUMP_STATE_n_b) {
+          if ((states & bit) != 0) {
+            return false;
+          }
+          states |= bit;
+          statesOpen |= open;
+        } else {
+          if ((controls & bit) != 0) {
+            return false;
+          }
+          controls |= bit;
+          controlsOpen |= open;
+        }
+      } else {
+        return false;
+      }
+    }
+    long open = bits[o + 2];
+    return levels == 1 && steams == 1 && states == all && controls == all
+        && statesOpen == open && controlsOpen == open;
+  }
+
+  /**
+   * Take boilers off the fast path if either level device has failed or the water level is
+   * outside the limits. These are the WATER_FAILURE, STEAM_FAILURE and OUTSIDE_LIMITS
+   * conditions of the {@link TransitionTable}, for every boiler at once.
+   * @param n = the number of boilers.
+   */
+  private void checkLimits(int n) {
+    boolean[] onFastPath = this.fast;
+    double[] levels = this.level;
+    double[] steams = this.steam;
+    double[] capacities = this.waterCapacity;
+    double[] maxSteam = this.maxSteamLevel;
+    double[] minLimit = this.minLimitWaterLevel;
+    double[] maxLimit = this.maxLimitWaterLevel;
+    for (int b = 0; b < n; b++) {
+      double l = levels[b];
+      double s = steams[b];
+      onFastPath[b] = onFastPath[b] & l >= 0 & l < capacities[b] & s >= 0 & s <= maxSteam[b]
+          & l > minLimit[b] & l < maxLimit[b];
+    }
+  }
+
+  /**
+   * Predict the number of pumps to open, for every boiler at once. This is
+   * predictNumberOfPumpsToOpen of MySteamBoilerController for pumps of the same capacity, with
+   * the three numbers either side of the estimate checked without a loop. It is worked out for
+   * boilers which are not on the fast path too, and then not used.
+   * @param n = the number of boilers.
+   */
+  private void predictNumberOfPumpsToOpen(int n) {
+    double[] levels = this.level;
+    double[] steams = this.steam;
+    double[] maxSteam = this.maxSteamLevel;
+    double[] mids = this.midLimitWaterLevel;
+    double[] perPumps = this.perPump;
+    int[] pumpCounts = this.numberOfPumps;
+    int[] targets = this.target;
+    for (int b = 0; b < n; b++) {
+      double l = levels[b];
+      double s = steams[b];
+      double max = maxSteam[b];
+      double mid = mids[b];
+      double per = perPumps[b];
+      int count = pumpCounts[b];
+      double needed = mid - predictWaterLevel(l, s, max, 0.0);
+      double exact = per > 0 ? Math.floor(needed / per) : 0.0;
+      int below = (int) Math.max(0.0, Math.min(exact - 1.0, count));
+      int last = Math.min(below + 2, count);
+      double diff = Math.abs(mid - predictWaterLevel(l, s, max, per * below));
+      boolean closer = diff < Double.MAX_VALUE;
+      int numberToOpen = closer ? below : 0;
+      double closest = closer ? diff : Double.MAX_VALUE;
+      int next = below + 1;
+      diff = Math.abs(mid - predictWaterLevel(l, s, max, per * next));
+      closer = next <= last & diff < closest;
+      numberToOpen = closer ? next : numberToOpen;
+      closest = closer ? diff : closest;
+      next = below + 2;
+      diff = Math.abs(mid - predictWaterLevel(l, s, max, per * next));
+      closer = next <= last & diff < closest;
+      numberToOpen = closer ? next : numberToOpen;
+      targets[b] = numberToOpen;
+    }
+  }
+
+  /**
+   * Predict the water level at the end of the cycle, as predictWaterLevel of
+   * MySteamBoilerController does.
+   * @param level = the water level now.
+   * @param steam = the steam level now.
+   * @param maxSteam = the maximum steam rate.
+   * @param waterIn = the water pumped in over the cycle.
+   * @return = the predicted water level.
+   */
+  private static double predictWaterLevel(double level, double steam, double maxSteam,
+      double waterIn) {
+    double maxWaterLevel = level + waterIn - (CYCLE * steam);
+    double minWaterLevel = level + waterIn - (CYCLE * maxSteam);
+    return minWaterLevel + (Math.abs(maxWaterLevel - minWaterLevel) / 2.0);
+  }
+
+  /**
+   * Finish the cycle of a boiler on the fast path, by opening the number of pumps predicted
+   * and closing the rest. The pumps all have the same capacity, so they are opened in order of
+   * pump number, as MySteamBoilerController does.
+   * @param b = the index of the boiler.
+   * @param outgoing = the messages to the boiler.
+   */
+  private void changeNumberOpenPumps(int b, Mailbox outgoing) {
+    this.waterLevel[b] = this.level[b];
+    this.steamLevel[b] = this.steam[b];
+    int o = this.offset[b] + 2;
+    long open = this.pumps[o];
+    int numberToOpen = this.target[b];
+    long keep = 0;
+    for (int i = 0; i < numberToOpen; i++) {
+      long bit = 1L << i;
+      if ((open & bit) == 0) {
+        outgoing.send(this.openMessages[i]);
+        open |= bit;
+      }
+      keep |= bit;
+    }
+    long close = open & ~keep;
+    while (close != 0) {
+      outgoing.send(this.closeMessages[Long.numberOfTrailingZeros(close)]);
+      close &= close - 1;
+    }
+    this.pumps[o] = open & keep;
+    outgoing.send(this.normalMessage);
+  }
+
+  /**
+   * Clock a boiler with a full controller, restored from its columns.
+   * @param b = the index of the boiler.
+   * @param incoming = the messages from the boiler.
+   * @param outgoing = the messages to the boiler.
+   */
+  private void escalate(int b, Mailbox incoming, Mailbox outgoing) {
+    Template escalated = this.templates.get(this.template[b]);
+    store(b, escalated.snapshot);
+    escalated.controller.restore(escalated.snapshot);
+    escalated.controller.clock(incoming, outgoing);
+    escalated.controller.snapshot(escalated.snapshot);
+    load(b, escalated.snapshot);
+    this.escalations++;
+  }
+
+  /**
+   * Copy a snapshot into the columns of a boiler.
+   * @param b = the index of the boiler.
+   * @param from = the snapshot.
+   */
+  private void load(int b, Snapshot from) {
+    this.mode[b] = from.mode;
+    this.waterLevel[b] = from.waterLevel;
+    this.steamLevel[b] = from.steamLevel;
+    this.flags[b] = from.flags;
+    System.arraycopy(from.pumps, 0, this.pumps, this.offset[b], from.pumps.length);
+  }
+
+  /**
+   * Copy the columns of a boiler into a snapshot.
+   * @param b = the index of the boiler.
+   * @param into = the snapshot, which must be for the boiler's configuration.
+   */
+  private void store(int b, Snapshot into) {
+    into.mode = this.mode[b];
+    into.waterLevel = this.waterLevel[b];
+    into.steamLevel = this.steamLevel[b];
+    into.flags = this.flags[b];
+    System.arraycopy(this.pumps, this.offset[b], into.pumps, 0, into.pumps.length);
+  }
+
+  /**
+   * Make the columns bigger.
+   * @param newCapacity = the number of boilers to make room for.
+   */
+  @Initialisation
+  private void grow(int newCapacity) {
+    this.capacity = newCapacity;
+    this.template = Arrays.copyOf(this.template, newCapacity);
+    this.numberOfPumps = Arrays.copyOf(this.numberOfPumps, newCapacity);
+    this.uniform = Arrays.copyOf(this.uniform, newCapacity);
+    this.perPump = Arrays.copyOf(this.perPump, newCapacity);
+    this.waterCapacity = Arrays.copyOf(this.waterCapacity, newCapacity);
+    this.maxSteamLevel = Arrays.copyOf(this.maxSteamLevel, newCapacity);
+    this.minLimitWaterLevel = Arrays.copyOf(this.minLimitWaterLevel, newCapacity);
+    this.maxLimitWaterLevel = Arrays.copyOf(this.maxLimitWaterLevel, newCapacity);
+    this.midLimitWaterLevel = Arrays.copyOf(this.midLimitWaterLevel, newCapacity);
+    this.offset = Arrays.copyOf(this.offset, newCapacity);
+    this.mode = Arrays.copyOf(this.mode, newCapacity);
+    this.waterLevel = Arrays.copyOf(this.waterLevel, newCapacity);
+    this.steamLevel = Arrays.copyOf(this.steamLevel, newCapacity);
+    this.flags = Arrays.copyOf(this.flags, newCapacity);
+    this.level = new double[newCapacity];
+    this.steam = new double[newCapacity];
+    this.fast = new boolean[newCapacity];
+    this.target = new int[newCapacity];
+  }
+
+  /**
+   * Get the status message of a boiler's controller, which is the name of its mode.
+   * @param boiler = the index of the boiler.
+   * @return = the status message.
+   */
+  public String getStatusMessage(int boiler) {
+    Template escalated = this.templates.get(this.template[boiler]);
+    store(boiler, escalated.snapshot);
+    escalated.controller.restore(escalated.snapshot);
+    return escalated.controller.getStatusMessage();
+  }
+
+  /**
+   * Get the number of cycles the fleet has been clocked for.
+   * @return = the number of cycles.
+   */
+  public long getCycles() {
+    return this.cycles;
+  }
+
+  /**
+   * Get the number of boiler cycles which were escalated to a full controller.
+   * @return = the number of boiler cycles.
+   */
+  public long getEscalations() {
+    return this.escalations;
+  }
+
+  /**
+   * The controller that cycles of boilers with a configuration are escalated to.
+   * @author Caitlin
+   *
+   */
+  private static final class Template {
+
+    /**
+     * The controller, which is restored from a boiler's columns before each escalated cycle.
+     */
+    final MySteamBoilerController controller;
+
+    /**
+     * The snapshot used to move state between the columns and the controller.
+     */
+    final Snapshot snapshot;
+
+    /**
+     * The state of a new controller.
+     */
+    final Snapshot initial;
+
+    /**
+     * Construct the escalation controller for a configuration.
+     * @param configuration = the configuration.
+     */
+    @Initialisation
+    Template(SteamBoilerCharacteristics configuration) {
+      this.controller = new MySteamBoilerController(configuration);
+      this.initial = this.controller.snapshot();
+      this.snapshot = this.controller.snapshot();
+    }
+  }
+}
@@ -0,0 +1,591 @@
+package steam.boiler.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.model.LevelSensorModels;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpControllerModels;
+import steam.boiler.model.PumpModels;
+import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Runs the controller against the physical units without the simulation window, and as fast
+ * as possible rather than in real time. Failures are injected from a script, where each line
+ * gives a time in seconds, a unit and what happens to it:
+ *
+ * <pre>
+ * # time  unit              what happens
+ * 60      pump 1            stuck-closed
+ * 120     pump 1            repair
+ * 300     pump-controller 0 stuck-off
+ * 600     steam             stuck-negative
+ * 900     level             stuck 250.0
+ * 1200    level             tx-failure
+ * </pre>
+ *
+ * <p>The level and steam sensors can be stuck-negative, stuck at a value, tx-failure or
+ * repair. Pumps can be stuck-closed, sticks-open, tx-failure or repair, and pump controllers
+ * can be stuck-off, tx-failure or repair. Blank lines and anything after a # are ignored.
+ *
+ * <p>The boiler is clocked by a {@link SimulationClock}. By default this is in exactly the same
+ * way as by the test harness, so a run gives the same results as the same failures injected by
+ * hand in a test. A larger or adaptive step makes long runs faster.
+ * @author Caitlin
+ *
+ */
+public class HeadlessSimulation {
+
+  /**
+   * The boiler characteristics being simulated.
+   */
+  private final SteamBoilerCharacteristics config;
+
+  /**
+   * The failures to inject, in order of time.
+   */
+  private final List<Event> script;
+
+  /**
+   * The smallest step the physical units are clocked in, in milliseconds.
+   */
+  private int minStep = SimulationClock.DEFAULT_STEP;
+
+  /**
+   * The largest step the physical units are clocked in, in milliseconds.
+   */
+  private int maxStep = SimulationClock.DEFAULT_STEP;
+
+  /**
+   * How much the rate of change of the water level can change by for an adaptive step to grow.
+   */
+  private double tolerance;
+
+  /**
+   * Construct a simulation of a given boiler with a given failure script.
+   * @param config = the boiler characteristics.
+   * @param script = the failures to inject, which need not be in order of time.
+   */
+  public HeadlessSimulation(SteamBoilerCharacteristics config, List<Event> script) {
+    this.config = config;
+    ArrayList<Event> sorted = new ArrayList<>(script);
+    for (Event event : sorted) {
+      if (event.pump >= config.getNumberOfPumps()) {
+        throw new IllegalArgumentException("no pump " + event.pump + " in a boiler with " //$NON-NLS-1$ //$NON-NLS-2$
+            + config.getNumberOfPumps() + " pumps"); //$NON-NLS-1$
+      }
+    }
+    // This sort is stable, so failures at the same time happen in the order given
+    Collections.sort(sorted, (a, b) -> Long.compare(a.time, b.time));
+    this.script = sorted;
+  }
+
+  /**
+   * Clock the physical units in a fixed step.
+   * @param step = the step in milliseconds, which must divide the cycle.
+   * @return = this simulation.
+   */
+  public HeadlessSimulation setStep(int step) {
+    this.minStep = step;
+    this.maxStep = step;
+    return this;
+  }
+
+  /**
+   * Clock the physical units in an adaptive step.
+   * @param smallest = the smallest step in milliseconds, which must divide the cycle.
+   * @param largest = the largest step in milliseconds.
+   * @param change = how much the rate of change of the water level can change by between
+   *     steps, in litres per second, for the step to keep growing.
+   * @return = this simulation.
+   */
+  public HeadlessSimulation setAdaptiveStep(int smallest, int largest, double change) {
+    this.minStep = smallest;
+    this.maxStep = largest;
+    this.tolerance = change;
+    return this;
+  }
+
+  /**
+   * Run the simulation for a given amount of simulated time, or until an emergency stop.
+   * The boiler starts empty and waiting, as it does in the simulation window.
+   * @param duration = the amount of time to simulate in seconds.
+   * @return = a summary of the run.
+   */
+  public Result run(long duration) {
+    MySteamBoilerController controller = new MySteamBoilerController(this.config);
+    PhysicalUnits model = new PhysicalUnits.Template(this.config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    SimulationClock clock = new SimulationClock(controller, model);
+    if (this.minStep == this.maxStep) {
+      clock.setStep(this.minStep);
+    } else {
+      clock.setAdaptiveStep(this.minStep, this.maxStep, this.tolerance);
+    }
+    Result result = new Result();
+    for (Event event : this.script) {
+      Consumer<PhysicalUnits> action = units -> {
+        event.apply(units, this.config);
+        result.injected++;
+      };
+      if (event.failure.equals("repair")) { //$NON-NLS-1$
+        clock.repair(event.time, action);
+      } else {
+        clock.inject(event.time, action);
+      }
+    }
+    long start = System.nanoTime();
+    Mailbox stopped = clock.runUntil(duration * 1000, output -> {
+      String mode = controller.getStatusMessage();
+      result.modes.merge(mode, Long.valueOf(1), Long::sum);
+      // Nothing can happen after an emergency stop, so the run is over
+      return "EMERGENCY_STOP".equals(mode); //$NON-NLS-1$
+    });
+    result.wallNanos = System.nanoTime() - start;
+    if (stopped != null) {
+      result.emergencyStop = clock.getTime() / 1000.0;
+    }
+    result.simulated = clock.getTime() / 1000.0;
+    result.cycles = clock.getCycles();
+    result.steps = clock.getSteps();
+    result.mode = controller.getStatusMessage();
+    result.waterLevel = model.getBoiler().getWaterLevel();
+    return result;
+  }
+
+  /**
+   * Parse a failure script.
+   * @param lines = the lines of the script.
+   * @return = the failures, in the order they appear.
+   */
+  public static List<Event> parse(List<String> lines) {
+    ArrayList<Event> events = new ArrayList<>();
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i);
+      int comment = line.indexOf('#');
+      if (comment >= 0) {
+        line = line.substring(0, comment);
+      }
+      String[] words = line.trim().split("\\s+"); //$NON-NLS-1$
+      if (words.length == 1 && words[0].isEmpty()) {
+        continue;
+      }
+      try {
+        events.add(parseEvent(words));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("line " + (i + 1) + ": " + e.getMessage(), e); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+    }
+    return events;
+  }
+
+  /**
+   * Parse a single line of a failure script.
+   * @param words = the words on the line.
+   * @return = the failure.
+   */
+  private static Event parseEvent(String[] words) {
+    if (words.length < 3) {
+      throw new IllegalArgumentException("expected a time, a unit and a failure"); //$NON-NLS-1$
+    }
+    long time = Math.round(Double.parseDouble(words[0]) * 1000);
+    if (time < 0) {
+      throw new IllegalArgumentException("negative time " + words[0]); //$NON-NLS-1$
+    }
+    String unit = words[1];
+    int at = 2;
+    int pump = -1;
+    if (unit.equals("pump") || unit.equals("pump-controller")) { //$NON-NLS-1$ //$NON-NLS-2$
+      pump = Integer.parseInt(words[at++]);
+    } else if (!unit.equals("level") && !unit.equals("steam")) { //$NON-NLS-1$ //$NON-NLS-2$
+      throw new IllegalArgumentException("unknown unit " + unit); //$NON-NLS-1$
+    }
+    if (at >= words.length) {
+      throw new IllegalArgumentException("expected a failure for " + unit); //$NON-NLS-1$
+    }
+    String failure = words[at++];
+    double value = 0.0;
+    if (failure.equals("stuck") && pump < 0) { //$NON-NLS-1$
+      if (at >= words.length) {
+        throw new IllegalArgumentException("expected the value the sensor is stuck at"); //$NON-NLS-1$
+      }
+      value = Double.parseDouble(words[at++]);
+    }
+    if (at != words.length) {
+      throw new IllegalArgumentException("unexpected " + words[at]); //$NON-NLS-1$
+    }
+    Event event = new Event(time, unit, pump, failure, value);
+    event.check();
+    return event;
+  }
+
+  /**
+   * A failure or repair injected into the physical units at a given time.
+   * @author Caitlin
+   *
+   */
+  public static final class Event {
+    /**
+     * The time the failure happens, in milliseconds.
+     */
+    final long time;
+
+    /**
+     * The unit which fails: level, steam, pump or pump-controller.
+     */
+    final String unit;
+
+    /**
+     * The pump number, for a pump or pump controller.
+     */
+    final int pump;
+
+    /**
+     * What happens to the unit.
+     */
+    final String failure;
+
+    /**
+     * The value a sensor is stuck at.
+     */
+    final double value;
+
+    /**
+     * Construct a failure.
+     * @param time = the time the failure happens, in milliseconds.
+     * @param unit = the unit which fails: level, steam, pump or pump-controller.
+     * @param pump = the pump number, for a pump or pump controller.
+     * @param failure = what happens to the unit.
+     * @param value = the value a sensor is stuck at.
+     */
+    public Event(long time, String unit, int pump, String failure, double value) {
+      this.time = time;
+      this.unit = unit;
+      this.pump = pump;
+      this.failure = failure;
+      this.value = value;
+    }
+
+    /**
+     * Check this failure makes sense for its unit, without applying it.
+     */
+    void check() {
+      boolean known;
+      switch (this.unit) {
+        case "level": //$NON-NLS-1$
+        case "steam": //$NON-NLS-1$
+          known = this.failure.equals("stuck-negative") || this.failure.equals("stuck"); //$NON-NLS-1$ //$NON-NLS-2$
+          break;
+        case "pump": //$NON-NLS-1$
+          known = this.failure.equals("stuck-closed") || this.failure.equals("sticks-open"); //$NON-NLS-1$ //$NON-NLS-2$
+          break;
+        default:
+          known = this.failure.equals("stuck-off"); //$NON-NLS-1$
+      }
+      if (!known && !this.failure.equals("tx-failure") && !this.failure.equals("repair")) { //$NON-NLS-1$ //$NON-NLS-2$
+        throw unknown();
+      }
+      if (this.pump < 0 && this.unit.startsWith("pump")) { //$NON-NLS-1$
+        throw new IllegalArgumentException("negative pump " + this.pump); //$NON-NLS-1$
+      }
+    }
+
+    /**
+     * Apply this failure to the physical units.
+     * @param model = the physical units.
+     * @param config = the boiler characteristics, for the capacity of a repaired pump.
+     */
+    void apply(PhysicalUnits model, SteamBoilerCharacteristics config) {
+      switch (this.unit) {
+        case "level": //$NON-NLS-1$
+          applyLevel(model);
+          break;
+        case "steam": //$NON-NLS-1$
+          applySteam(model);
+          break;
+        case "pump": //$NON-NLS-1$
+          applyPump(model, config);
+          break;
+        default:
+          applyPumpController(model);
+      }
+    }
+
+    /**
+     * Apply this failure to the level sensor.
+     * @param model = the physical units.
+     */
+    private void applyLevel(PhysicalUnits model) {
+      switch (this.failure) {
+        case "stuck-negative": //$NON-NLS-1$
+          model.setLevelSensor(new LevelSensorModels.StuckNegativeOne(model));
+          break;
+        case "stuck": //$NON-NLS-1$
+          model.setLevelSensor(new LevelSensorModels.Stuck(model, this.value));
+          break;
+        case "tx-failure": //$NON-NLS-1$
+          model.setLevelSensor(new LevelSensorModels.TxFailure(model));
+          break;
+        case "repair": //$NON-NLS-1$
+          model.setLevelSensor(new LevelSensorModels.Ideal(model));
+          model.setLevelSensorStatus(PhysicalUnits.ComponentStatus.REPAIRED);
+          break;
+        default:
+          throw unknown();
+      }
+    }
+
+    /**
+     * Apply this failure to the steam sensor.
+     * @param model = the physical units.
+     */
+    private void applySteam(PhysicalUnits model) {
+      switch (this.failure) {
+        case "stuck-negative": //$NON-NLS-1$
+          model.setSteamSensor(new SteamSensorModels.StuckNegativeOne(model));
+          break;
+        case "stuck": //$NON-NLS-1$
+          model.setSteamSensor(new SteamSensorModels.Stuck(model, this.value));
+          break;
+        case "tx-failure": //$NON-NLS-1$
+          model.setSteamSensor(new SteamSensorModels.TxFailure(model));
+          break;
+        case "repair": //$NON-NLS-1$
+          model.setSteamSensor(new SteamSensorModels.Ideal(model));
+          model.setSteamSensorStatus(PhysicalUnits.ComponentStatus.REPAIRED);
+          break;
+        default:
+          throw unknown();
+      }
+    }
+
+    /**
+     * Apply this failure to a pump.
+     * @param model = the physical units.
+     * @param config = the boiler characteristics, for the capacity of the pump.
+     */
+    private void applyPump(PhysicalUnits model, SteamBoilerCharacteristics config) {
+      double capacity = config.getPumpCapacity(this.pump);
+      switch (this.failure) {
+        case "stuck-closed": //$NON-NLS-1$
+          model.setPump(this.pump, new PumpModels.StuckClosed(this.pump, 0.0, model));
+          break;
+        case "sticks-open": //$NON-NLS-1$
+          model.setPump(this.pump, new PumpModels.SticksOpen(this.pump, capacity, model));
+          break;
+        case "tx-failure": //$NON-NLS-1$
+          model.setPump(this.pump, new PumpModels.TxFailureAll(this.pump, capacity, model));
+          break;
+        case "repair": //$NON-NLS-1$
+          model.setPump(this.pump, new PumpModels.Ideal(this.pump, capacity, model));
+          model.setPumpStatus(this.pump, PhysicalUnits.ComponentStatus.REPAIRED);
+          break;
+        default:
+          throw unknown();
+      }
+    }
+
+    /**
+     * Apply this failure to a pump controller.
+     * @param model = the physical units.
+     */
+    private void applyPumpController(PhysicalUnits model) {
+      switch (this.failure) {
+        case "stuck-off": //$NON-NLS-1$
+          model.setPumpController(this.pump, new PumpControllerModels.StuckOff(this.pump, model));
+          break;
+        case "tx-failure": //$NON-NLS-1$
+          model.setPumpController(this.pump,
+              new PumpControllerModels.TxFailure(this.pump, model));
+          break;
+        case "repair": //$NON-NLS-1$
+          model.setPumpController(this.pump, new PumpControllerModels.Ideal(this.pump, model));
+          model.setPumpControllerStatus(this.pump, PhysicalUnits.ComponentStatus.REPAIRED);
+          break;
+        default:
+          throw unknown();
+      }
+    }
+
+    /**
+     * Create the exception for a failure which does not apply to the unit.
+     * @return = the exception.
+     */
+    private IllegalArgumentException unknown() {
+      return new IllegalArgumentException("unknown failure " + this.failure //$NON-NLS-1$
+          + " for " + this.unit); //$NON-NLS-1$
+    }
+
+    @Override
+    public String toString() {
+      return (this.time / 1000.0) + "s " + this.unit //$NON-NLS-1$
+          + (this.pump >= 0 ? " " + this.pump : "") + " " + this.failure; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+  }
+
+  /**
+   * A summary of a simulation run.
+   * @author Caitlin
+   *
+   */
+  public static final class Result {
+    /**
+     * The amount of time simulated in seconds.
+     */
+    double simulated;
+
+    /**
+     * The wall-clock time the run took in nanoseconds.
+     */
+    long wallNanos;
+
+    /**
+     * The number of controller cycles.
+     */
+    long cycles;
+
+    /**
+     * The number of steps the physical units were clocked in.
+     */
+    long steps;
+
+    /**
+     * The number of failures and repairs injected.
+     */
+    int injected;
+
+    /**
+     * The number of cycles the controller ended in each mode.
+     */
+    final Map<String, Long> modes = new TreeMap<>();
+
+    /**
+     * The time of the emergency stop in seconds, or -1 if there was none.
+     */
+    double emergencyStop = -1;
+
+    /**
+     * The mode of the controller at the end of the run.
+     */
+    String mode = ""; //$NON-NLS-1$
+
+    /**
+     * The water level at the end of the run.
+     */
+    double waterLevel;
+
+    /**
+     * Get the amount of time simulated.
+     * @return = the time in seconds.
+     */
+    public double getSimulatedSeconds() {
+      return this.simulated;
+    }
+
+    /**
+     * Get the number of seconds simulated per second of wall-clock time.
+     * @return = the speed up over real time.
+     */
+    public double getSimulatedSecondsPerSecond() {
+      if (this.wallNanos == 0) {
+        return 0.0;
+      }
+      return this.simulated / (this.wallNanos / 1e9);
+    }
+
+    /**
+     * Get the number of cycles the controller ended in each mode.
+     * @return = the number of cycles for each mode which was reached.
+     */
+    public Map<String, Long> getModes() {
+      return Collections.unmodifiableMap(this.modes);
+    }
+
+    /**
+     * Get the time of the emergency stop.
+     * @return = the time in seconds, or -1 if there was no emergency stop.
+     */
+    public double getEmergencyStop() {
+      return this.emergencyStop;
+    }
+
+    /**
+     * Get the mode of the controller at the end of the run.
+     * @return = the mode.
+     */
+    public String getMode() {
+      return this.mode;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder summary = new StringBuilder();
+      summary.append("simulated: ").append(this.simulated).append(" s\n"); //$NON-NLS-1$ //$NON-NLS-2$
+      summary.append("wall-clock: ").append(this.wallNanos / 1e9).append(" s\n"); //$NON-NLS-1$ //$NON-NLS-2$
+      summary.append("speed: ").append(Math.round(getSimulatedSecondsPerSecond())) //$NON-NLS-1$
+          .append(" simulated s per s\n"); //$NON-NLS-1$
+      summary.append("cycles: ").append(this.cycles).append('\n'); //$NON-NLS-1$
+      summary.append("physics steps: ").append(this.steps).append('\n'); //$NON-NLS-1$
+      summary.append("failures injected: ").append(this.injected).append('\n'); //$NON-NLS-1$
+      for (Map.Entry<String, Long> entry : this.modes.entrySet()) {
+        summary.append("cycles in ").append(entry.getKey()).append(": ") //$NON-NLS-1$ //$NON-NLS-2$
+            .append(entry.getValue()).append('\n');
+      }
+      summary.append("emergency stop: ") //$NON-NLS-1$
+          .append(this.emergencyStop < 0 ? "none" : this.emergencyStop + " s").append('\n'); //$NON-NLS-1$ //$NON-NLS-2$
+      summary.append("final mode: ").append(this.mode).append('\n'); //$NON-NLS-1$
+      summary.append("final water level: ").append(this.waterLevel).append('\n'); //$NON-NLS-1$
+      return summary.toString();
+    }
+  }
+
+  /**
+   * Run a default boiler headless and print a summary, which is also written to a file if one
+   * is given.
+   * @param args = the time to simulate in seconds, then optionally the failure script, the
+   *     summary file, the number of pumps and the step in milliseconds or "adaptive". A script
+   *     or summary file of - is left out.
+   * @throws IOException = if the script cannot be read or the summary cannot be written.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: HeadlessSimulation seconds [script [summary [pumps [step]]]]"); //$NON-NLS-1$
+      System.exit(1);
+    }
+    long duration = Long.parseLong(args[0]);
+    List<Event> script = new ArrayList<>();
+    if (args.length > 1 && !args[1].equals("-")) { //$NON-NLS-1$
+      script = parse(Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8));
+    }
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    if (args.length > 3) {
+      config = config.setNumberOfPumps(Integer.parseInt(args[3]), config.getPumpCapacity(0));
+    }
+    HeadlessSimulation simulation = new HeadlessSimulation(config, script);
+    if (args.length > 4) {
+      if (args[4].equals("adaptive")) { //$NON-NLS-1$
+        simulation.setAdaptiveStep(SimulationClock.DEFAULT_STEP, SimulationClock.CYCLE, 0.01);
+      } else {
+        simulation.setStep(Integer.parseInt(args[4]));
+      }
+    }
+    String summary = simulation.run(duration).toString();
+    System.out.print(summary);
+    @Nullable String output = args.length > 2 && !args[2].equals("-") ? args[2] : null; //$NON-NLS-1$
+    if (output != null) {
+      Files.write(Paths.get(output), summary.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+}
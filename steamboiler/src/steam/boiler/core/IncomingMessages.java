@@ -0,0 +1,193 @@
+package steam.boiler.core;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.MemoryAnnotations.Initialisation;
+
+/**
+ * Decoded view of the incoming mailbox for a single cycle. The mailbox is scanned once and
+ * the messages are indexed by their kind and, for messages which carry a pump number, by
+ * that number as well. All the storage is allocated up front so decoding a cycle does not
+ * allocate.
+ * @author Caitlin
+ *
+ */
+final class IncomingMessages {
+
+  /**
+   * All the message kinds, cached so the enum array is only copied once.
+   */
+  private static final MessageKind[] KINDS = MessageKind.values();
+
+  /**
+   * Number of pumps in the steam boiler.
+   */
+  private final int numberOfPumps;
+
+  /**
+   * The messages of each kind in the order they arrived, indexed by kind ordinal.
+   */
+  private Message[][] byKind;
+
+  /**
+   * The number of messages of each kind this cycle, indexed by kind ordinal.
+   */
+  private final int[] counts;
+
+  /**
+   * The first message of each kind for each pump, indexed by kind ordinal and then pump number.
+   */
+  private final Message[][] byPump;
+
+  /**
+   * The cycle in which each entry of byPump was written. Entries from older cycles are stale,
+   * which saves clearing the table every cycle.
+   */
+  private final int[][] stamps;
+
+  /**
+   * The number of the cycle currently decoded. Starts at one so the zeroed stamps are stale.
+   */
+  private int cycle;
+
+  /**
+   * Create an empty view for a boiler with a given number of pumps.
+   * @param numberOfPumps = number of pumps in the boiler.
+   */
+  @Initialisation
+  IncomingMessages(int numberOfPumps) {
+    this.numberOfPumps = numberOfPumps;
+    this.byKind = new Message[KINDS.length][];
+    this.counts = new int[KINDS.length];
+    this.byPump = new Message[KINDS.length][];
+    this.stamps = new int[KINDS.length][];
+    for (int k = 0; k < KINDS.length; k++) {
+      this.byKind[k] = new Message[Math.max(numberOfPumps, 1)];
+      if (hasPumpParameter(KINDS[k])) {
+        this.byPump[k] = new Message[numberOfPumps];
+        this.stamps[k] = new int[numberOfPumps];
+      }
+    }
+    this.cycle = 0;
+  }
+
+  /**
+   * Decode the messages for a new cycle, replacing those of the previous cycle.
+   * @param incoming = incoming messages.
+   */
+  void decode(Mailbox incoming) {
+    assert incoming != null;
+    this.cycle++;
+    for (int k = 0; k < this.counts.length; k++) {
+      this.counts[k] = 0;
+    }
+    for (int i = 0; i != incoming.size(); ++i) {
+      Message ith = incoming.read(i);
+      int k = ith.getKind().ordinal();
+      Message[] list = this.byKind[k];
+      if (this.counts[k] == list.length) {
+        list = grow(k);
+      }
+      list[this.counts[k]++] = ith;
+      int[] stamp = this.stamps[k];
+      if (stamp != null) {
+        int pump = ith.getIntegerParameter();
+        if (pump >= 0 && pump < this.numberOfPumps && stamp[pump] != this.cycle) {
+          stamp[pump] = this.cycle;
+          this.byPump[k][pump] = ith;
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the number of messages of a given kind.
+   * @param kind = kind of message to count.
+   * @return = number of messages of that kind.
+   */
+  int count(MessageKind kind) {
+    return this.counts[kind.ordinal()];
+  }
+
+  /**
+   * Get a message of a given kind by its position amongst messages of that kind.
+   * @param kind = kind of message.
+   * @param index = position of the message, less than count(kind).
+   * @return = the message.
+   */
+  Message get(MessageKind kind, int index) {
+    assert index >= 0 && index < count(kind);
+    return this.byKind[kind.ordinal()][index];
+  }
+
+  /**
+   * Get the only message of a given kind.
+   * @param kind = kind of message to look for.
+   * @return = the message, or <code>null</code> if there was not exactly one match.
+   */
+  @Nullable Message only(MessageKind kind) {
+    int k = kind.ordinal();
+    if (this.counts[k] != 1) {
+      return null;
+    }
+    return this.byKind[k][0];
+  }
+
+  /**
+   * Get the message of a given kind for a given pump.
+   * @param kind = kind of message, which must have a pump parameter.
+   * @param pump = the pump number.
+   * @return = the first message for that pump, or <code>null</code> if there was none.
+   */
+  @Nullable Message forPump(MessageKind kind, int pump) {
+    int k = kind.ordinal();
+    assert this.stamps[k] != null;
+    if (this.stamps[k][pump] != this.cycle) {
+      return null;
+    }
+    return this.byPump[k][pump];
+  }
+
+  /**
+   * Check whether there is a message of a given kind for every pump.
+   * @param kind = kind of message, which must have a pump parameter.
+   * @return = if every pump has a message.
+   */
+  boolean hasEveryPump(MessageKind kind) {
+    int[] stamp = this.stamps[kind.ordinal()];
+    assert stamp != null;
+    for (int i = 0; i < this.numberOfPumps; i++) {
+      if (stamp[i] != this.cycle) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Double the space for a given kind of message. This only happens when a cycle has more
+   * messages of one kind than any before it.
+   * @param k = the kind ordinal.
+   * @return = the new array.
+   */
+  private Message[] grow(int k) {
+    Message[] list = new Message[this.byKind[k].length * 2];
+    System.arraycopy(this.byKind[k], 0, list, 0, this.byKind[k].length);
+    this.byKind[k] = list;
+    return list;
+  }
+
+  /**
+   * Check if a message kind has a pump number as its integer parameter.
+   * @param kind = kind of message.
+   * @return = if the kind has a pump parameter.
+   */
+  static boolean hasPumpParameter(MessageKind kind) {
+    // The kinds with an integer parameter are exactly those with a pump number
+    byte layout = MessageCodec.layout(kind);
+    return layout == MessageCodec.INTEGER || layout == MessageCodec.INTEGER_BOOLEAN;
+  }
+}
@@ -0,0 +1,365 @@
+package steam.boiler.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.MemoryAnnotations.Initialisation;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Replays a journal recorded by {@link CycleJournal} into a fresh controller, without any
+ * physical units, and checks the controller sends the same messages as it did when recorded.
+ * The controller only depends on the messages it is sent, so a controller which has not
+ * changed gives exactly the same messages every cycle. This is for checking a change to the
+ * controller against recorded runs before using it.
+ *
+ * <p>The segments are mapped into memory and read in place. The messages to the controller
+ * are decoded into reused mailboxes a batch at a time, and the controller is clocked for the
+ * whole batch in one call. The recorded messages from it are not decoded at all.
+ * Instead what the controller sends is encoded and compared with the recording byte for byte,
+ * and it is only decoded to report the first cycle which is different.
+ * @author Caitlin
+ *
+ */
+public final class JournalReplay {
+
+  /**
+   * The number of cycles the controller is clocked for at a time.
+   */
+  private static final int BATCH = 256;
+
+  /**
+   * The configuration of the boiler the journal was recorded from.
+   */
+  private final SteamBoilerCharacteristics config;
+
+  /**
+   * Construct a replay for journals recorded from a boiler with a given configuration.
+   * @param config = the configuration.
+   */
+  public JournalReplay(SteamBoilerCharacteristics config) {
+    this.config = config;
+  }
+
+  /**
+   * Replay a journal until the first cycle where the controller sends different messages.
+   * @param directory = the directory of the journal.
+   * @return = what happened.
+   * @throws IOException = if the journal cannot be read, or has a cycle missing.
+   */
+  public Result replay(Path directory) throws IOException {
+    long start = System.nanoTime();
+    List<Path> segments = CycleJournal.segments(directory);
+    Batch batch = new Batch(new MySteamBoilerController(this.config));
+    long cycles = 0;
+    for (Path file : segments) {
+      ByteBuffer in = CycleJournal.mapSegment(file);
+      while (in.remaining() >= 4) {
+        int length = in.getInt();
+        if (length == 0) {
+          break;
+        }
+        if (length < 8 || length > in.remaining()) {
+          throw new IOException("bad cycle length " + length + " in " + file); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        int end = in.position() + length;
+        long cycle = in.getLong();
+        if (cycle != cycles + batch.size) {
+          throw new IOException("expected cycle " + (cycles + batch.size) //$NON-NLS-1$
+              + " but found " + cycle + " in " + file); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        batch.add(in, end);
+        in.position(end);
+        if (batch.size == BATCH) {
+          Result result = batch.run(in, cycles, start);
+          if (result != null) {
+            return result;
+          }
+          cycles += BATCH;
+        }
+      }
+      // The recorded messages of a batch are read from its segment, so a batch ends with it
+      int size = batch.size;
+      Result result = batch.run(in, cycles, start);
+      if (result != null) {
+        return result;
+      }
+      cycles += size;
+    }
+    return new Result(cycles, -1, null, null, System.nanoTime() - start);
+  }
+
+  /**
+   * The cycles read from a segment which have not been replayed yet.
+   * @author Caitlin
+   *
+   */
+  private static final class Batch {
+
+    /**
+     * The controller being replayed.
+     */
+    final MySteamBoilerController controller;
+
+    /**
+     * The messages to the controller in each cycle.
+     */
+    final ArrayMailbox[] incoming = new ArrayMailbox[BATCH];
+
+    /**
+     * The messages from the controller in each cycle.
+     */
+    final ArrayMailbox[] outgoing = new ArrayMailbox[BATCH];
+
+    /**
+     * Where the recorded messages from the controller start in the segment, for each cycle.
+     */
+    final int[] from = new int[BATCH];
+
+    /**
+     * Where the recorded messages from the controller end in the segment, for each cycle.
+     */
+    final int[] to = new int[BATCH];
+
+    /**
+     * The message each message is decoded into.
+     */
+    final Message scratch = new Message(MessageKind.VALVE);
+
+    /**
+     * The messages from the controller in a cycle, encoded.
+     */
+    ByteBuffer encoded = ByteBuffer.allocate(1024);
+
+    /**
+     * The number of cycles in the batch.
+     */
+    int size;
+
+    /**
+     * Construct an empty batch.
+     * @param controller = the controller being replayed.
+     */
+    @Initialisation
+    Batch(MySteamBoilerController controller) {
+      this.controller = controller;
+      for (int i = 0; i < BATCH; i++) {
+        this.incoming[i] = new ArrayMailbox(100);
+        this.outgoing[i] = new ArrayMailbox(100);
+      }
+    }
+
+    /**
+     * Add a cycle to the batch.
+     * @param in = the segment, positioned at the messages to the controller.
+     * @param end = where the cycle ends in the segment.
+     */
+    void add(ByteBuffer in, int end) {
+      ArrayMailbox messages = this.incoming[this.size];
+      messages.clear();
+      MessageCodec.decode(in, messages, this.scratch);
+      this.from[this.size] = in.position();
+      this.to[this.size] = end;
+      this.size++;
+    }
+
+    /**
+     * Clock the controller for every cycle in the batch, and empty it.
+     * @param in = the segment the cycles were read from.
+     * @param first = the number of the first cycle in the batch.
+     * @param start = when the replay started.
+     * @return = the result, if a cycle was different, otherwise null.
+     */
+    @Nullable Result run(ByteBuffer in, long first, long start) {
+      int count = this.size;
+      this.size = 0;
+      for (int i = 0; i < count; i++) {
+        this.outgoing[i].clear();
+      }
+      this.controller.clock(this.incoming, this.outgoing, count);
+      for (int i = 0; i < count; i++) {
+        ArrayMailbox sent = this.outgoing[i];
+        int length = MessageCodec.encodedSize(sent);
+        if (length > this.encoded.capacity()) {
+          this.encoded = ByteBuffer.allocate(Math.max(length, 2 * this.encoded.capacity()));
+        }
+        ByteBuffer out = this.encoded;
+        out.clear();
+        MessageCodec.encode(sent, out);
+        if (!same(out, length, in, this.from[i], this.to[i] - this.from[i])) {
+          in.position(this.from[i]);
+          ArrayMailbox expected = new ArrayMailbox(sent.size());
+          MessageCodec.decode(in, expected, this.scratch);
+          return new Result(first + i + 1, first + i, ArrayMailbox.describe(expected),
+              ArrayMailbox.describe(sent), System.nanoTime() - start);
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Check two encodings are the same.
+   * @param encoded = the first encoding, from its start.
+   * @param size = the size of the first encoding.
+   * @param recorded = the buffer holding the second encoding.
+   * @param from = where the second encoding starts.
+   * @param length = the size of the second encoding.
+   * @return = if they are the same.
+   */
+  private static boolean same(ByteBuffer encoded, int size, ByteBuffer recorded, int from,
+      int length) {
+    if (size != length) {
+      return false;
+    }
+    int i = 0;
+    for (; i + 8 <= size; i += 8) {
+      if (encoded.getLong(i) != recorded.getLong(from + i)) {
+        return false;
+      }
+    }
+    for (; i < size; i++) {
+      if (encoded.get(i) != recorded.get(from + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The outcome of replaying a journal.
+   * @author Caitlin
+   *
+   */
+  public static final class Result {
+    /**
+     * The number of cycles replayed, including the one which was different.
+     */
+    private final long cycles;
+
+    /**
+     * The first cycle which was different, or -1 if none were.
+     */
+    private final long firstDifference;
+
+    /**
+     * The messages recorded in the first cycle which was different, or null if none were.
+     */
+    private final @Nullable String expected;
+
+    /**
+     * The messages sent in the first cycle which was different, or null if none were.
+     */
+    private final @Nullable String actual;
+
+    /**
+     * How long the replay took in nanoseconds.
+     */
+    private final long nanos;
+
+    /**
+     * Construct a result.
+     * @param cycles = the number of cycles replayed.
+     * @param firstDifference = the first cycle which was different, or -1.
+     * @param expected = the messages recorded in that cycle.
+     * @param actual = the messages sent in that cycle.
+     * @param nanos = how long the replay took in nanoseconds.
+     */
+    Result(long cycles, long firstDifference, @Nullable String expected, @Nullable String actual,
+        long nanos) {
+      this.cycles = cycles;
+      this.firstDifference = firstDifference;
+      this.expected = expected;
+      this.actual = actual;
+      this.nanos = nanos;
+    }
+
+    /**
+     * Get the number of cycles replayed, including the one which was different.
+     * @return = the number of cycles.
+     */
+    public long getCycles() {
+      return this.cycles;
+    }
+
+    /**
+     * Get the first cycle where the controller sent different messages.
+     * @return = the cycle number, counting from zero, or -1 if every cycle was the same.
+     */
+    public long getFirstDifference() {
+      return this.firstDifference;
+    }
+
+    /**
+     * Get the messages recorded in the first cycle which was different.
+     * @return = the messages, or null if every cycle was the same.
+     */
+    public @Nullable String getExpected() {
+      return this.expected;
+    }
+
+    /**
+     * Get the messages the controller sent in the first cycle which was different.
+     * @return = the messages, or null if every cycle was the same.
+     */
+    public @Nullable String getActual() {
+      return this.actual;
+    }
+
+    /**
+     * Get the number of cycles replayed every second.
+     * @return = the rate.
+     */
+    public double getCyclesPerSecond() {
+      return this.nanos == 0 ? 0.0 : this.cycles * 1e9 / this.nanos;
+    }
+
+    /**
+     * Give a summary, one line per figure.
+     */
+    @Override
+    public String toString() {
+      StringBuilder summary = new StringBuilder();
+      summary.append("cycles: ").append(this.cycles).append('\n'); //$NON-NLS-1$
+      summary.append("speed: ").append(Math.round(getCyclesPerSecond())) //$NON-NLS-1$
+          .append(" cycles per s\n"); //$NON-NLS-1$
+      if (this.firstDifference < 0) {
+        summary.append("first difference: none\n"); //$NON-NLS-1$
+      } else {
+        summary.append("first difference: cycle ").append(this.firstDifference).append('\n'); //$NON-NLS-1$
+        summary.append("recorded: ").append(this.expected).append('\n'); //$NON-NLS-1$
+        summary.append("replayed: ").append(this.actual).append('\n'); //$NON-NLS-1$
+      }
+      return summary.toString();
+    }
+  }
+
+  /**
+   * Replay a journal of a default boiler and print a summary. This exits with status 2 if the
+   * controller sent different messages.
+   * @param args = the directory of the journal, then optionally the number of pumps.
+   * @throws IOException = if the journal cannot be read.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: JournalReplay directory [pumps]"); //$NON-NLS-1$
+      System.exit(1);
+    }
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    if (args.length > 1) {
+      config = config.setNumberOfPumps(Integer.parseInt(args[1]), config.getPumpCapacity(0));
+    }
+    Result result = new JournalReplay(config).replay(Paths.get(args[0]));
+    System.out.print(result);
+    if (result.getFirstDifference() >= 0) {
+      System.exit(2);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package steam.boiler.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.util.MemoryAnnotations.Initialisation;
+
+/**
+ * Passes mailboxes from one thread to another without locks, for a controller and physical
+ * units clocked on threads of their own. A mailbox is a cycle's worth of messages, so the ring
+ * holds whole mailboxes rather than single messages: the producer claims a slot, sends the
+ * messages of a cycle to it and publishes it, then the consumer reads the messages and releases
+ * the slot to be used again.
+ *
+ * <p>Exactly one thread can produce and exactly one thread can consume. The producer only
+ * writes the tail and the consumer only writes the head, so each is written by one thread and
+ * published with an ordered store, which is enough for the other thread to see the messages in
+ * a slot once it sees the slot published. Each side keeps its last view of the other side's
+ * counter, so it only reads the other's counter when the ring looks full or empty. The slots
+ * are allocated up front, so once the ring is made nothing is allocated.
+ * @author Caitlin
+ *
+ */
+public final class MailboxRing {
+
+  /**
+   * The slots, which is a power of two long.
+   */
+  private final ArrayMailbox[] slots;
+
+  /**
+   * One less than the number of slots, for taking a counter modulo the number of slots.
+   */
+  private final int mask;
+
+  /**
+   * The number of slots released, which only the consumer writes.
+   */
+  private final AtomicLong head = new AtomicLong();
+
+  /**
+   * The number of slots published, which only the producer writes.
+   */
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * The producer's last view of the head.
+   */
+  private long producerHead;
+
+  /**
+   * The consumer's last view of the tail.
+   */
+  private long consumerTail;
+
+  /**
+   * Construct a ring.
+   * @param capacity = the number of mailboxes which can be published and not yet released,
+   *     which is rounded up to a power of two.
+   * @param messages = the number of messages each mailbox has room for before it has to grow.
+   */
+  @Initialisation
+  public MailboxRing(int capacity, int messages) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("bad capacity " + capacity); //$NON-NLS-1$
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.slots = new ArrayMailbox[size];
+    for (int i = 0; i < size; i++) {
+      this.slots[i] = new ArrayMailbox(messages);
+    }
+    this.mask = size - 1;
+  }
+
+  /**
+   * Claim the next slot to send messages to. Only the producer can call this, and it must
+   * publish the slot before claiming another.
+   * @return = the slot, emptied, or null if every slot is waiting to be released.
+   */
+  public @Nullable ArrayMailbox claim() {
+    long next = this.tail.get();
+    if (next - this.producerHead == this.slots.length) {
+      this.producerHead = this.head.get();
+      if (next - this.producerHead == this.slots.length) {
+        return null;
+      }
+    }
+    ArrayMailbox slot = this.slots[(int) next & this.mask];
+    slot.clear();
+    return slot;
+  }
+
+  /**
+   * Publish the slot last claimed, so the consumer can read it. Only the producer can call
+   * this.
+   */
+  public void publish() {
+    this.tail.lazySet(this.tail.get() + 1);
+  }
+
+  /**
+   * Get the next slot to read messages from. Only the consumer can call this, and the slot
+   * stays the next one until it is released.
+   * @return = the slot, or null if none has been published.
+   */
+  public @Nullable ArrayMailbox peek() {
+    long next = this.head.get();
+    if (next == this.consumerTail) {
+      this.consumerTail = this.tail.get();
+      if (next == this.consumerTail) {
+        return null;
+      }
+    }
+    return this.slots[(int) next & this.mask];
+  }
+
+  /**
+   * Release the slot last peeked at, so the producer can use it again. Only the consumer can
+   * call this, and the messages read from the slot are not valid afterwards.
+   */
+  public void release() {
+    this.head.lazySet(this.head.get() + 1);
+  }
+
+  /**
+   * Get the number of slots.
+   * @return = the number of slots.
+   */
+  public int capacity() {
+    return this.slots.length;
+  }
+}
@@ -0,0 +1,311 @@
+package steam.boiler.core;
+
+import java.nio.ByteBuffer;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.Mailbox.Mode;
+import steam.boiler.util.MemoryAnnotations.Initialisation;
+
+/**
+ * Writes messages to and reads them from a compact binary form. Each message is the ordinal of
+ * its kind in a byte, followed by only the parameters that kind has: a pump number as an int,
+ * a reading as a double, a mode as the byte of its ordinal, or a pump number and state as an
+ * int and a byte. So every message of a given kind is the same size, and the size is known from
+ * the kind byte alone. A batch of messages, whether from a mailbox or an array, is the number
+ * of messages as an int followed by the messages, so one can be read back as the other. The
+ * byte order is whatever the buffer's is, which is big endian unless it has been changed.
+ * @author Caitlin
+ *
+ */
+public final class MessageCodec {
+
+  /**
+   * The most bytes a single message takes.
+   */
+  public static final int MAX_MESSAGE_SIZE = 1 + 8;
+
+  /**
+   * Parameter layout for messages with no parameter.
+   */
+  static final byte NONE = 0;
+
+  /**
+   * Parameter layout for messages with a pump number.
+   */
+  static final byte INTEGER = 1;
+
+  /**
+   * Parameter layout for messages with a reading.
+   */
+  static final byte DOUBLE = 2;
+
+  /**
+   * Parameter layout for messages with a mode.
+   */
+  static final byte MODE = 3;
+
+  /**
+   * Parameter layout for messages with a pump number and a state.
+   */
+  static final byte INTEGER_BOOLEAN = 4;
+
+  /**
+   * The message kinds, indexed by ordinal.
+   */
+  private static final MessageKind[] KINDS = MessageKind.values();
+
+  /**
+   * The modes, indexed by ordinal.
+   */
+  private static final Mode[] MODES = Mode.values();
+
+  /**
+   * The parameter layout of each message kind, indexed by kind ordinal. This is worked out
+   * once here so encoding does not need a switch on the kind.
+   */
+  private static final byte[] LAYOUTS = layouts();
+
+  /**
+   * The encoded size of each parameter layout in bytes, including the kind.
+   */
+  private static final int[] SIZES = { 1, 1 + 4, 1 + 8, 1 + 1, 1 + 4 + 1 };
+
+  /**
+   * This only has static methods.
+   */
+  private MessageCodec() {
+  }
+
+  /**
+   * Get the parameter layout of a message kind.
+   * @param kind = the message kind.
+   * @return = the layout.
+   */
+  static byte layout(MessageKind kind) {
+    return LAYOUTS[kind.ordinal()];
+  }
+
+  /**
+   * Get the encoded size of a message of a given kind.
+   * @param kind = the message kind.
+   * @return = the size in bytes.
+   */
+  public static int encodedSize(MessageKind kind) {
+    return SIZES[LAYOUTS[kind.ordinal()]];
+  }
+
+  /**
+   * Get the encoded size of a message.
+   * @param message = the message.
+   * @return = the size in bytes.
+   */
+  public static int encodedSize(Message message) {
+    return encodedSize(message.getKind());
+  }
+
+  /**
+   * Get the encoded size of the messages in a mailbox.
+   * @param mailbox = the mailbox.
+   * @return = the size in bytes.
+   */
+  public static int encodedSize(Mailbox mailbox) {
+    int size = 4;
+    for (int i = 0; i < mailbox.size(); i++) {
+      size += encodedSize(mailbox.read(i));
+    }
+    return size;
+  }
+
+  /**
+   * Get the encoded size of the first messages in an array.
+   * @param messages = the messages.
+   * @param count = the number of messages.
+   * @return = the size in bytes.
+   */
+  public static int encodedSize(Message[] messages, int count) {
+    int size = 4;
+    for (int i = 0; i < count; i++) {
+      size += encodedSize(messages[i]);
+    }
+    return size;
+  }
+
+  /**
+   * Write a message.
+   * @param message = the message.
+   * @param buffer = the buffer to write it to, which must have room for it.
+   */
+  public static void encode(Message message, ByteBuffer buffer) {
+    MessageKind kind = message.getKind();
+    buffer.put((byte) kind.ordinal());
+    switch (LAYOUTS[kind.ordinal()]) {
+      case INTEGER:
+        buffer.putInt(message.getIntegerParameter());
+        break;
+      case DOUBLE:
+        buffer.putDouble(message.getDoubleParameter());
+        break;
+      case MODE:
+        buffer.put((byte) message.getModeParameter().ordinal());
+        break;
+      case INTEGER_BOOLEAN:
+        buffer.putInt(message.getIntegerParameter());
+        buffer.put(message.getBooleanParameter() ? (byte) 1 : (byte) 0);
+        break;
+      default:
+    }
+  }
+
+  /**
+   * Write the messages in a mailbox.
+   * @param mailbox = the mailbox.
+   * @param buffer = the buffer to write them to, which must have room for them.
+   */
+  public static void encode(Mailbox mailbox, ByteBuffer buffer) {
+    int size = mailbox.size();
+    buffer.putInt(size);
+    for (int i = 0; i < size; i++) {
+      encode(mailbox.read(i), buffer);
+    }
+  }
+
+  /**
+   * Write the first messages in an array, in the same form as the messages in a mailbox.
+   * @param messages = the messages.
+   * @param count = the number of messages.
+   * @param buffer = the buffer to write them to, which must have room for them.
+   */
+  public static void encode(Message[] messages, int count, ByteBuffer buffer) {
+    buffer.putInt(count);
+    for (int i = 0; i < count; i++) {
+      encode(messages[i], buffer);
+    }
+  }
+
+  /**
+   * Read a message into an existing message, which saves allocating one.
+   * @param buffer = the buffer to read it from.
+   * @param into = the message to overwrite.
+   * @return = the message read, which is into.
+   */
+  public static Message decode(ByteBuffer buffer, Message into) {
+    MessageKind kind = kind(buffer.get());
+    switch (LAYOUTS[kind.ordinal()]) {
+      case INTEGER:
+        return into.set(kind, buffer.getInt());
+      case DOUBLE:
+        return into.set(kind, buffer.getDouble());
+      case MODE:
+        return into.set(kind, mode(buffer.get()));
+      case INTEGER_BOOLEAN:
+        int pump = buffer.getInt();
+        return into.set(kind, pump, buffer.get() != 0);
+      default:
+        return into.set(kind);
+    }
+  }
+
+  /**
+   * Read the messages of a mailbox and send them to a mailbox. When this is an ArrayMailbox
+   * which is big enough, nothing is allocated.
+   * @param buffer = the buffer to read them from.
+   * @param into = the mailbox to send them to.
+   * @param scratch = a message to read each message into before it is sent.
+   */
+  public static void decode(ByteBuffer buffer, Mailbox into, Message scratch) {
+    int size = buffer.getInt();
+    if (size < 0) {
+      throw new IllegalArgumentException("negative number of messages " + size); //$NON-NLS-1$
+    }
+    for (int i = 0; i < size; i++) {
+      into.send(decode(buffer, scratch));
+    }
+  }
+
+  /**
+   * Read the messages of a mailbox into existing messages, which saves allocating any.
+   * @param buffer = the buffer to read them from.
+   * @param into = the messages to overwrite, from the first.
+   * @return = the number of messages read.
+   */
+  public static int decode(ByteBuffer buffer, Message[] into) {
+    int size = buffer.getInt();
+    if (size < 0 || size > into.length) {
+      throw new IllegalArgumentException("cannot read " + size + " messages into " //$NON-NLS-1$ //$NON-NLS-2$
+          + into.length);
+    }
+    for (int i = 0; i < size; i++) {
+      decode(buffer, into[i]);
+    }
+    return size;
+  }
+
+  /**
+   * Get the message kind with a given ordinal.
+   * @param ordinal = the ordinal, as read.
+   * @return = the message kind.
+   */
+  private static MessageKind kind(byte ordinal) {
+    int index = ordinal & 0xFF;
+    if (index >= KINDS.length) {
+      throw new IllegalArgumentException("unknown message kind " + index); //$NON-NLS-1$
+    }
+    return KINDS[index];
+  }
+
+  /**
+   * Get the mode with a given ordinal.
+   * @param ordinal = the ordinal, as read.
+   * @return = the mode.
+   */
+  private static Mode mode(byte ordinal) {
+    int index = ordinal & 0xFF;
+    if (index >= MODES.length) {
+      throw new IllegalArgumentException("unknown mode " + index); //$NON-NLS-1$
+    }
+    return MODES[index];
+  }
+
+  /**
+   * Work out the parameter layout of each message kind.
+   * @return = the layouts, indexed by kind ordinal.
+   */
+  @Initialisation
+  private static byte[] layouts() {
+    byte[] layouts = new byte[KINDS.length];
+    for (MessageKind kind : KINDS) {
+      byte layout;
+      switch (kind) {
+        case MODE_m:
+          layout = MODE;
+          break;
+        case LEVEL_v:
+        case STEAM_v:
+          layout = DOUBLE;
+          break;
+        case PUMP_STATE_n_b:
+        case PUMP_CONTROL_STATE_n_b:
+          layout = INTEGER_BOOLEAN;
+          break;
+        case OPEN_PUMP_n:
+        case CLOSE_PUMP_n:
+        case PUMP_FAILURE_DETECTION_n:
+        case PUMP_CONTROL_FAILURE_DETECTION_n:
+        case PUMP_REPAIRED_ACKNOWLEDGEMENT_n:
+        case PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT_n:
+        case PUMP_REPAIRED_n:
+        case PUMP_CONTROL_REPAIRED_n:
+        case PUMP_FAILURE_ACKNOWLEDGEMENT_n:
+        case PUMP_CONTROL_FAILURE_ACKNOWLEDGEMENT_n:
+          layout = INTEGER;
+          break;
+        default:
+          layout = NONE;
+      }
+      layouts[kind.ordinal()] = layout;
+    }
+    return layouts;
+  }
+}
@@ -1,5 +1,7 @@
 package steam.boiler.core;
 
+import java.util.Arrays;
+
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
 
@@ -35,10 +37,39 @@ public class MySteamBoilerController implements SteamBoilerController {
   private int numberOfPumps;
   
   /**
-   * The capacity of the pumps in the steam boiler.
+   * The capacity of the first pump in the steam boiler, which is the capacity of every pump
+   * when they are all the same.
    */
   private double pumpCapacity;
   
+  /**
+   * Boolean for if all the pumps have the same capacity.
+   */
+  private boolean uniformCapacity;
+  
+  /**
+   * The capacity of each pump.
+   */
+  private double[] pumpCapacities = new double[4];
+  
+  /**
+   * The pumps in the order they are opened, which is largest capacity first.
+   * Pumps with the same capacity are opened in order of pump number.
+   */
+  private int[] pumpOrder = new int[4];
+  
+  /**
+   * The total capacity of the first k working pumps in pumpOrder, for k from 0 to the number of
+   * pumps. Once k is past the working pumps, this stays at the capacity of all of them.
+   */
+  private double[] openingCapacity = new double[5];
+  
+  /**
+   * Bitset of the pumps kept open when changing the number of open pumps.
+   * This is only used within changeNumberOpenPumps, and is kept to avoid allocating.
+   */
+  private long[] keepOpen = new long[1];
+  
   /**
    * The current water level in the boiler. 
    */
@@ -90,22 +121,22 @@ public class MySteamBoilerController implements SteamBoilerController {
   private boolean openValve;
   
   /**
-   * Boolean array of the working pumps. 
-   * True for a pump that works and false for a pump that doen't. 
+   * Bitset of the working pumps, with bit i of the set in word i / 64.
+   * Set for a pump that works and clear for a pump that doesn't.
    */
-  public boolean[] workingPumps = new boolean[4];
+  private long[] workingPumps = new long[1];
   
   /**
-   * Boolean array of the working pump controllers. 
-   * True for a pump controller that works and false for a pump controller that doen't. 
+   * Bitset of the working pump controllers. 
+   * Set for a pump controller that works and clear for a pump controller that doesn't.
    */
-  public boolean[] workingPumpControllers = new boolean[4];
+  private long[] workingPumpControllers = new long[1];
   
   /**
-   * Boolean array for the open pumps.
-   * True for pump that is open and false for a pump that isn't.
+   * Bitset of the open pumps.
+   * Set for pump that is open and clear for a pump that isn't.
    */
-  public boolean[] openPumps = new boolean[4];
+  private long[] openPumps = new long[1];
   
   /**
    * Boolean for if the water level device has failed.
@@ -129,14 +160,14 @@ public class MySteamBoilerController implements SteamBoilerController {
   private boolean steamLevelNeedingRepair;
   
   /**
-   * Boolean array for if any of the pumps need a repair.
+   * Bitset of the pumps that need a repair.
    */
-  public boolean[] pumpsToRepair = new boolean[4];
+  private long[] pumpsToRepair = new long[1];
   
   /**
-   * Boolean array for if any of the pump contr0llers need a repair.
+   * Bitset of the pump controllers that need a repair.
    */
-  public boolean[] pumpControllersToRepair = new boolean[4];
+  private long[] pumpControllersToRepair = new long[1];
   
   /**
    * Boolean for if the water level device needs to be acknowledged that it has failed.
@@ -149,17 +180,18 @@ public class MySteamBoilerController implements SteamBoilerController {
   private boolean steamLevelDeviceToAcknowedge;
   
   /**
-   * Boolean array for if any of the pumps need acknowledgement that they have failed.
+   * Bitset of the pumps that need acknowledgement that they have failed.
    */
-  public boolean[] pumpsToAcknowledge = new boolean[4];
+  private long[] pumpsToAcknowledge = new long[1];
   
   /**
-   * Boolean array for if any of the pump controllers need acknowledgement that they have failed. 
+   * Bitset of the pump controllers that need acknowledgement that they have failed. 
    */
-  public boolean[] pumpControllersToAcknowledge = new boolean[4];
+  private long[] pumpControllersToAcknowledge = new long[1];
   
   /**
    * List of the states that the controller can be in. 
+   * These are in the same order as the states of the {@link TransitionTable}.
    * @author Caitlin
    *
    */
@@ -204,6 +236,11 @@ public class MySteamBoilerController implements SteamBoilerController {
     EMERGENCY_STOP
   }
 
+  /**
+   * The states indexed by ordinal, cached so restoring a snapshot does not copy the enum array.
+   */
+  private static final State[] STATES = State.values();
+
   /**
    * Records the configuration characteristics for the given boiler problem.
    */
@@ -244,6 +281,22 @@ public class MySteamBoilerController implements SteamBoilerController {
    * Used to send to outgoing mailbox. 
    */
   public @NonNull Message[] closeMessages = new @NonNull Message[4];
+  
+  /**
+   * Decoded view of the incoming messages for the current cycle.
+   */
+  private IncomingMessages messages = new IncomingMessages(4);
+  
+  /**
+   * Boolean for if the pump bitsets are shared with a fork of this controller.
+   * They are copied before the next cycle, so neither sees the other's changes.
+   */
+  private boolean pumpStateShared;
+  
+  /**
+   * The metrics recorded every cycle, or null if they have not been enabled.
+   */
+  private @Nullable ControllerMetrics metrics;
 
   /**
  * Construct a steam boiler controller for a given set of characteristics.
@@ -256,6 +309,287 @@ public class MySteamBoilerController implements SteamBoilerController {
     
   }
 
+  /**
+   * Construct a copy of another controller, in the same mode and with the same readings and
+   * flags. The copy is independent of the original, so the two can be clocked separately.
+   *
+   * @param other The controller to copy.
+   */
+  public MySteamBoilerController(MySteamBoilerController other) {
+    this(other, false);
+  }
+
+  /**
+   * Construct a copy of another controller.
+   *
+   * @param other The controller to copy.
+   * @param share Whether to share the pump bitsets with the other controller, rather than
+   *              copying them. The caller must then mark both controllers as sharing.
+   */
+  @Initialisation
+  private MySteamBoilerController(MySteamBoilerController other, boolean share) {
+    this.cycle = other.cycle;
+    this.numberOfPumps = other.numberOfPumps;
+    this.pumpCapacity = other.pumpCapacity;
+    // The pump capacities are never changed, so they can be shared
+    this.uniformCapacity = other.uniformCapacity;
+    this.pumpCapacities = other.pumpCapacities;
+    this.pumpOrder = other.pumpOrder;
+    // The opening capacities follow the working pumps, so each copy has its own
+    this.openingCapacity = other.openingCapacity.clone();
+    this.keepOpen = new long[other.keepOpen.length];
+    this.waterLevel = other.waterLevel;
+    this.waterCapacity = other.waterCapacity;
+    this.steamLevel = other.steamLevel;
+    this.maxSteamLevel = other.maxSteamLevel;
+    this.maxNormalWaterLevel = other.maxNormalWaterLevel;
+    this.minNormalWaterLevel = other.minNormalWaterLevel;
+    this.maxLimitWaterLevel = other.maxLimitWaterLevel;
+    this.minLimitWaterLevel = other.minLimitWaterLevel;
+    this.midLimitWaterLevel = other.midLimitWaterLevel;
+    this.openValve = other.openValve;
+    this.waterLevelFailure = other.waterLevelFailure;
+    this.steamLevelFailure = other.steamLevelFailure;
+    this.waterLevelNeedingRepair = other.waterLevelNeedingRepair;
+    this.steamLevelNeedingRepair = other.steamLevelNeedingRepair;
+    this.waterLevelDeviceToAcknowledge = other.waterLevelDeviceToAcknowledge;
+    this.steamLevelDeviceToAcknowedge = other.steamLevelDeviceToAcknowedge;
+    this.pumpsToRepair = other.pumpsToRepair;
+    this.pumpControllersToRepair = other.pumpControllersToRepair;
+    this.pumpsToAcknowledge = other.pumpsToAcknowledge;
+    this.pumpControllersToAcknowledge = other.pumpControllersToAcknowledge;
+    this.openPumps = other.openPumps;
+    this.workingPumps = other.workingPumps;
+    this.workingPumpControllers = other.workingPumpControllers;
+    this.pumpStateShared = true;
+    if (!share) {
+      unsharePumpState();
+    }
+    this.mode = other.mode;
+    // The pump messages are never changed, so they can be shared
+    this.openMessages = other.openMessages;
+    this.closeMessages = other.closeMessages;
+    this.messages = new IncomingMessages(this.numberOfPumps);
+  }
+
+  /**
+   * Fork this controller. The fork starts in the same state as this controller, but the two
+   * are independent from then on. The pump bitsets are shared until either one is clocked or
+   * restored, so a fork which is never clocked costs very little.
+   *
+   * @return The fork.
+   */
+  public MySteamBoilerController fork() {
+    MySteamBoilerController fork = new MySteamBoilerController(this, true);
+    this.pumpStateShared = true;
+    return fork;
+  }
+
+  /**
+   * Take a snapshot of the state of this controller.
+   *
+   * @return The snapshot.
+   */
+  public Snapshot snapshot() {
+    Snapshot snapshot = new Snapshot(this.numberOfPumps);
+    snapshot(snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Take a snapshot of the state of this controller, overwriting an existing snapshot.
+   *
+   * @param into The snapshot to overwrite, which must be for the same number of pumps.
+   */
+  public void snapshot(Snapshot into) {
+    checkPumps(into);
+    into.mode = this.mode.ordinal();
+    into.waterLevel = this.waterLevel;
+    into.steamLevel = this.steamLevel;
+    int flags = 0;
+    flags |= this.openValve ? Snapshot.OPEN_VALVE : 0;
+    flags |= this.waterLevelFailure ? Snapshot.WATER_LEVEL_FAILURE : 0;
+    flags |= this.steamLevelFailure ? Snapshot.STEAM_LEVEL_FAILURE : 0;
+    flags |= this.waterLevelNeedingRepair ? Snapshot.WATER_LEVEL_NEEDING_REPAIR : 0;
+    flags |= this.steamLevelNeedingRepair ? Snapshot.STEAM_LEVEL_NEEDING_REPAIR : 0;
+    flags |= this.waterLevelDeviceToAcknowledge ? Snapshot.WATER_LEVEL_TO_ACKNOWLEDGE : 0;
+    flags |= this.steamLevelDeviceToAcknowedge ? Snapshot.STEAM_LEVEL_TO_ACKNOWLEDGE : 0;
+    into.flags = flags;
+    long[] pumps = into.pumps;
+    int n = this.workingPumps.length;
+    System.arraycopy(this.workingPumps, 0, pumps, 0, n);
+    System.arraycopy(this.workingPumpControllers, 0, pumps, n, n);
+    System.arraycopy(this.openPumps, 0, pumps, 2 * n, n);
+    System.arraycopy(this.pumpsToRepair, 0, pumps, 3 * n, n);
+    System.arraycopy(this.pumpControllersToRepair, 0, pumps, 4 * n, n);
+    System.arraycopy(this.pumpsToAcknowledge, 0, pumps, 5 * n, n);
+    System.arraycopy(this.pumpControllersToAcknowledge, 0, pumps, 6 * n, n);
+  }
+
+  /**
+   * Restore this controller to the state in a snapshot. The snapshot is not changed, so it can
+   * be restored again later.
+   *
+   * @param from The snapshot, which must be for the same number of pumps.
+   */
+  public void restore(Snapshot from) {
+    checkPumps(from);
+    if (this.pumpStateShared) {
+      unsharePumpState();
+    }
+    this.mode = STATES[from.mode];
+    this.waterLevel = from.waterLevel;
+    this.steamLevel = from.steamLevel;
+    int flags = from.flags;
+    this.openValve = (flags & Snapshot.OPEN_VALVE) != 0;
+    this.waterLevelFailure = (flags & Snapshot.WATER_LEVEL_FAILURE) != 0;
+    this.steamLevelFailure = (flags & Snapshot.STEAM_LEVEL_FAILURE) != 0;
+    this.waterLevelNeedingRepair = (flags & Snapshot.WATER_LEVEL_NEEDING_REPAIR) != 0;
+    this.steamLevelNeedingRepair = (flags & Snapshot.STEAM_LEVEL_NEEDING_REPAIR) != 0;
+    this.waterLevelDeviceToAcknowledge = (flags & Snapshot.WATER_LEVEL_TO_ACKNOWLEDGE) != 0;
+    this.steamLevelDeviceToAcknowedge = (flags & Snapshot.STEAM_LEVEL_TO_ACKNOWLEDGE) != 0;
+    long[] pumps = from.pumps;
+    int n = this.workingPumps.length;
+    System.arraycopy(pumps, 0, this.workingPumps, 0, n);
+    System.arraycopy(pumps, n, this.workingPumpControllers, 0, n);
+    System.arraycopy(pumps, 2 * n, this.openPumps, 0, n);
+    System.arraycopy(pumps, 3 * n, this.pumpsToRepair, 0, n);
+    System.arraycopy(pumps, 4 * n, this.pumpControllersToRepair, 0, n);
+    System.arraycopy(pumps, 5 * n, this.pumpsToAcknowledge, 0, n);
+    System.arraycopy(pumps, 6 * n, this.pumpControllersToAcknowledge, 0, n);
+    updateOpeningCapacity();
+  }
+
+  /**
+   * Check a snapshot is for the same number of pumps as this controller.
+   *
+   * @param snapshot The snapshot to check.
+   */
+  private void checkPumps(Snapshot snapshot) {
+    if (snapshot.numberOfPumps != this.numberOfPumps) {
+      throw new IllegalArgumentException("snapshot is for " + snapshot.numberOfPumps //$NON-NLS-1$
+          + " pumps, not " + this.numberOfPumps); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Stop sharing the pump bitsets with a fork, by taking a copy of them.
+   */
+  private void unsharePumpState() {
+    this.pumpsToRepair = this.pumpsToRepair.clone();
+    this.pumpControllersToRepair = this.pumpControllersToRepair.clone();
+    this.pumpsToAcknowledge = this.pumpsToAcknowledge.clone();
+    this.pumpControllersToAcknowledge = this.pumpControllersToAcknowledge.clone();
+    this.openPumps = this.openPumps.clone();
+    this.workingPumps = this.workingPumps.clone();
+    this.workingPumpControllers = this.workingPumpControllers.clone();
+    this.pumpStateShared = false;
+  }
+
+  /**
+   * A compact copy of the state of a controller, which can be restored later. The state is
+   * held in primitives only: the mode, the water and steam levels, a word of flags for the
+   * water and steam level devices, and one array holding all the pump bitsets end to end.
+   *
+   * @author Caitlin
+   *
+   */
+  public static final class Snapshot {
+    /** Flag for if the valve is open. */
+    static final int OPEN_VALVE = 1;
+    /** Flag for if the water level device has failed. */
+    static final int WATER_LEVEL_FAILURE = 1 << 1;
+    /** Flag for if the steam level device has failed. */
+    static final int STEAM_LEVEL_FAILURE = 1 << 2;
+    /** Flag for if the water level device needs to be repaired. */
+    static final int WATER_LEVEL_NEEDING_REPAIR = 1 << 3;
+    /** Flag for if the steam level device needs to be repaired. */
+    static final int STEAM_LEVEL_NEEDING_REPAIR = 1 << 4;
+    /** Flag for if the water level device failure needs to be acknowledged. */
+    static final int WATER_LEVEL_TO_ACKNOWLEDGE = 1 << 5;
+    /** Flag for if the steam level device failure needs to be acknowledged. */
+    static final int STEAM_LEVEL_TO_ACKNOWLEDGE = 1 << 6;
+    /** The mode ordinal of the normal mode. */
+    static final int NORMAL = State.NORMAL.ordinal();
+
+    /**
+     * The number of pumps in the boiler.
+     */
+    final int numberOfPumps;
+
+    /**
+     * The ordinal of the mode of the controller.
+     */
+    int mode;
+
+    /**
+     * The current water level.
+     */
+    double waterLevel;
+
+    /**
+     * The current steam level.
+     */
+    double steamLevel;
+
+    /**
+     * The flags for the valve and the water and steam level devices.
+     */
+    int flags;
+
+    /**
+     * The words of the working pumps, working pump controllers, open pumps, pumps and pump
+     * controllers to repair and pumps and pump controllers to acknowledge, one after the other.
+     */
+    final long[] pumps;
+
+    /**
+     * Construct an empty snapshot for a given number of pumps.
+     *
+     * @param numberOfPumps The number of pumps.
+     */
+    public Snapshot(int numberOfPumps) {
+      this.numberOfPumps = numberOfPumps;
+      this.pumps = new long[7 * words(numberOfPumps)];
+    }
+
+    /**
+     * Get the number of pumps this snapshot is for.
+     *
+     * @return The number of pumps.
+     */
+    public int getNumberOfPumps() {
+      return this.numberOfPumps;
+    }
+  }
+
+  /**
+   * Record the capacity of each pump, and sort the pumps into the order they are opened.
+   * @param configuration = configuration settings of boiler.
+   */
+  @Initialisation
+  private void initialisePumpCapacities(SteamBoilerCharacteristics configuration) {
+    int n = this.numberOfPumps;
+    this.pumpCapacities = new double[n];
+    this.uniformCapacity = true;
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      this.pumpCapacities[i] = configuration.getPumpCapacity(i);
+      this.uniformCapacity &= this.pumpCapacities[i] == this.pumpCapacity;
+      order[i] = Integer.valueOf(i);
+    }
+    // This sort is stable, so pumps of the same capacity stay in order of pump number
+    final double[] capacities = this.pumpCapacities;
+    Arrays.sort(order, (a, b) -> Double.compare(capacities[b.intValue()],
+        capacities[a.intValue()]));
+    this.pumpOrder = new int[n];
+    this.openingCapacity = new double[n + 1];
+    for (int k = 0; k < n; k++) {
+      this.pumpOrder[k] = order[k].intValue();
+      this.openingCapacity[k + 1] = this.openingCapacity[k] + capacities[this.pumpOrder[k]];
+    }
+  }
+
   /**
    * Complete all the initialization.
    * Used to assign dynamic memory
@@ -265,6 +599,7 @@ public class MySteamBoilerController implements SteamBoilerController {
   private void doInitialisation(SteamBoilerCharacteristics configuration) {
     this.numberOfPumps = configuration.getNumberOfPumps();
     this.pumpCapacity = configuration.getPumpCapacity(0);
+    initialisePumpCapacities(configuration);
     this.waterLevel = 0.0;
     this.waterCapacity = configuration.getCapacity();
     this.steamLevel = 0.0;
@@ -280,26 +615,29 @@ public class MySteamBoilerController implements SteamBoilerController {
     this.steamLevelFailure = false;
     this.waterLevelNeedingRepair = false;
     this.steamLevelNeedingRepair = false;
-    this.pumpsToRepair = new boolean[this.numberOfPumps];
-    this.pumpControllersToRepair = new boolean[this.numberOfPumps];
+    int words = words(this.numberOfPumps);
+    this.pumpsToRepair = new long[words];
+    this.pumpControllersToRepair = new long[words];
     this.waterLevelDeviceToAcknowledge = false;
     this.steamLevelDeviceToAcknowedge = false;
-    this.pumpsToAcknowledge = new boolean[this.numberOfPumps];
-    this.pumpControllersToAcknowledge = new boolean[this.numberOfPumps];
-    this.openPumps = new boolean[this.numberOfPumps];
-    this.workingPumps = new boolean[this.numberOfPumps];
-    this.workingPumpControllers = new boolean[this.numberOfPumps];
+    this.pumpsToAcknowledge = new long[words];
+    this.pumpControllersToAcknowledge = new long[words];
+    this.openPumps = new long[words];
+    this.workingPumps = new long[words];
+    this.workingPumpControllers = new long[words];
+    this.keepOpen = new long[words];
     this.openMessages = new @NonNull Message[this.numberOfPumps];
     this.closeMessages = new @NonNull Message[this.numberOfPumps];
     for (int i = 0; i < this.numberOfPumps;i++) {
-      this.workingPumps[i] = true;
-      this.workingPumpControllers[i] = true;
+      setBit(this.workingPumps, i);
+      setBit(this.workingPumpControllers, i);
       this.openMessages[i] = new Message(MessageKind.OPEN_PUMP_n,i);
       this.closeMessages[i] = new Message(MessageKind.CLOSE_PUMP_n,i);
     }
     this.messNoPara = new Message(MessageKind.VALVE);
     this.messIntPara = new Message(MessageKind.PUMP_CONTROL_FAILURE_ACKNOWLEDGEMENT_n,0);
     this.messModePara = new Message(MessageKind.MODE_m, Mailbox.Mode.INITIALISATION);
+    this.messages = new IncomingMessages(this.numberOfPumps);
   }
 
   /**
@@ -322,7 +660,9 @@ public class MySteamBoilerController implements SteamBoilerController {
   /**
  * Process a clock signal which occurs every 5 seconds. This requires reading
  * the set of incoming messages from the physical units and producing a set of
- * output messages which are sent back to them.
+ * output messages which are sent back to them. Once the controller has been
+ * initialised this does not allocate, which is checked by AllocationTests.
+ * If metrics are enabled, the time taken and the mode it ends in are recorded.
  *
  * @param incoming The set of incoming messages from the physical units.
  * @param outgoing Messages generated during the execution of this method should
@@ -330,14 +670,147 @@ public class MySteamBoilerController implements SteamBoilerController {
  */
   @Override
   public void clock(Mailbox incoming, Mailbox outgoing) {
+    ControllerMetrics metrics = this.metrics;
+    if (metrics == null) {
+      processCycle(incoming, outgoing);
+      return;
+    }
+    State from = this.mode;
+    long start = metrics.beginCycle();
+    try {
+      processCycle(incoming, outgoing);
+    } finally {
+      metrics.endCycle(from.ordinal(), this.mode.ordinal(), start);
+    }
+  }
+
+  /**
+   * Process many cycles in one call, for running the controller over recorded messages rather
+   * than against the physical units. This gives the same messages as clocking each cycle in
+   * turn, but the checks which only need doing once are taken out of the loop, so the loop is
+   * small enough for the JIT to inline the mode handlers into it.
+   *
+   * @param incoming The incoming messages of each cycle.
+   * @param outgoing The mailbox to write the messages of each cycle to, which must be at least
+   *                 as many as the incoming mailboxes.
+   * @param count    The number of cycles to process, from the start of the arrays.
+   */
+  public void clock(Mailbox[] incoming, Mailbox[] outgoing, int count) {
+    if (count < 0 || count > incoming.length || count > outgoing.length) {
+      throw new IllegalArgumentException("cannot clock " + count + " cycles"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    // Nothing in a cycle forks this controller, so the pump state only needs unsharing once
+    if (this.pumpStateShared) {
+      unsharePumpState();
+    }
+    IncomingMessages messages = this.messages;
+    ControllerMetrics metrics = this.metrics;
+    if (metrics == null) {
+      for (int i = 0; i < count; i++) {
+        processCycle(messages, incoming[i], outgoing[i]);
+      }
+      return;
+    }
+    for (int i = 0; i < count; i++) {
+      State from = this.mode;
+      long start = metrics.beginCycle();
+      try {
+        processCycle(messages, incoming[i], outgoing[i]);
+      } finally {
+        metrics.endCycle(from.ordinal(), this.mode.ordinal(), start);
+      }
+    }
+  }
+
+  /**
+   * Start recording metrics every cycle, if they are not already being recorded. Copies and
+   * forks of this controller do not record into the same metrics, and are not recording unless
+   * they are enabled for them too.
+   * @return = the metrics, which can be exported from any thread.
+   */
+  @Initialisation
+  public ControllerMetrics enableMetrics() {
+    ControllerMetrics enabled = this.metrics;
+    if (enabled == null) {
+      State[] states = State.values();
+      String[] modes = new String[states.length];
+      for (int i = 0; i < states.length; i++) {
+        modes[i] = states[i].toString();
+      }
+      enabled = new ControllerMetrics(modes);
+      this.metrics = enabled;
+    }
+    return enabled;
+  }
+
+  /**
+   * Get the metrics recorded every cycle.
+   * @return = the metrics, or null if they have not been enabled.
+   */
+  public @Nullable ControllerMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Count a failure detected, if metrics are enabled.
+   * @param unit = the ordinal of the unit which failed.
+   */
+  private void countFailure(int unit) {
+    ControllerMetrics enabled = this.metrics;
+    if (enabled != null) {
+      enabled.failure(unit);
+    }
+  }
+
+  /**
+   * Count acknowledgements processed, if metrics are enabled.
+   * @param unit = the ordinal of the kind of unit acknowledged.
+   * @param count = the number of acknowledgements.
+   */
+  private void countAcknowledgements(int unit, int count) {
+    ControllerMetrics enabled = this.metrics;
+    if (enabled != null) {
+      enabled.acknowledgements(unit, count);
+    }
+  }
+
+  /**
+   * Count repairs processed, if metrics are enabled.
+   * @param unit = the ordinal of the kind of unit repaired.
+   * @param count = the number of repairs.
+   */
+  private void countRepairs(int unit, int count) {
+    ControllerMetrics enabled = this.metrics;
+    if (enabled != null) {
+      enabled.repairs(unit, count);
+    }
+  }
+
+  /**
+   * Process the messages of one cycle.
+   * @param incoming = the set of incoming messages from the physical units.
+   * @param outgoing = messages generated during the cycle.
+   */
+  private void processCycle(Mailbox incoming, Mailbox outgoing) {
+    if (this.pumpStateShared) {
+      unsharePumpState();
+    }
+    processCycle(this.messages, incoming, outgoing);
+  }
+
+  /**
+   * Process the messages of one cycle, once the pump state is not shared with a fork.
+   * @param messages = the view to decode the incoming messages into.
+   * @param incoming = the set of incoming messages from the physical units.
+   * @param outgoing = messages generated during the cycle.
+   */
+  private void processCycle(IncomingMessages messages, Mailbox incoming, Mailbox outgoing) {
+    // Decode the incoming messages once, everything after reads from this view
+    messages.decode(incoming);
     // Extract expected messages
-    Message levelMessage = extractOnlyMatch(MessageKind.LEVEL_v, incoming);
-    Message steamMessage = extractOnlyMatch(MessageKind.STEAM_v, incoming);
-    Message[] pumpStateMessages = extractAllMatches(MessageKind.PUMP_STATE_n_b, incoming);
-    Message[] pumpControlStateMessages = 
-        extractAllMatches(MessageKind.PUMP_CONTROL_STATE_n_b, incoming);
-    if (transmissionFailure(levelMessage, steamMessage, 
-        pumpStateMessages, pumpControlStateMessages)) {
+    Message levelMessage = messages.only(MessageKind.LEVEL_v);
+    Message steamMessage = messages.only(MessageKind.STEAM_v);
+    if (transmissionFailure(levelMessage, steamMessage, messages)) {
       // Level and steam messages required, so emergency stop.
       this.mode = State.EMERGENCY_STOP;
     } else {
@@ -348,126 +821,139 @@ public class MySteamBoilerController implements SteamBoilerController {
 
     }
 
-    if (this.mode == State.RESCUE) {
-      boilerRescueMode(incoming,outgoing);
-    } else if (this.mode == State.DEGRADED) {
-      boilerDegradedMode(incoming, outgoing);
-    } else if (this.mode == State.EMERGENCY_STOP) {
-      boilerEmergencyStopMode(incoming,outgoing);
-    } else if (this.mode == State.NORMAL) {
-      boilerNormalMode(incoming,outgoing);
-    } else if (this.mode == State.READY) {
-      boilerReadyMode(incoming,outgoing);
-    } else if (this.mode == State.WAITING) {
-      boilerWaitingMode(incoming,outgoing);
+    int state = this.mode.ordinal();
+    if (TransitionTable.repairs(state)) {
+      processIncomingMessages(messages, outgoing);
+      doRepairs(messages, outgoing);
     }
-    
-    if (this.mode == State.RESCUE) {
-      outgoing.send(this.messModePara.set(MessageKind.MODE_m,Mailbox.Mode.RESCUE));
-    } else if (this.mode == State.DEGRADED) {
-      outgoing.send(this.messModePara.set(MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
-    } else if (this.mode == State.EMERGENCY_STOP) {
-      outgoing.send(this.messModePara.set(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
-    } else if (this.mode == State.NORMAL) {
-      outgoing.send(this.messModePara.set(MessageKind.MODE_m, Mailbox.Mode.NORMAL));
-    } else if (this.mode == State.READY) {
-      outgoing.send(this.messModePara.set(MessageKind.MODE_m, Mailbox.Mode.INITIALISATION));
-    }  else if (this.mode == State.WAITING) {
-      outgoing.send(this.messModePara.set(MessageKind.MODE_m, Mailbox.Mode.INITIALISATION));
+    int conditions = conditions(state, messages);
+    int entry = TransitionTable.lookup(state, conditions);
+    int reports = TransitionTable.reports(entry);
+    if ((reports & TransitionTable.REPORT_WATER) != 0) {
+      reportWaterLevelFailure(outgoing);
+    }
+    if ((reports & TransitionTable.REPORT_STEAM) != 0) {
+      reportSteamLevelFailure(outgoing);
     }
+    if (TransitionTable.checksUnits(entry) && checkUnits(state, messages, outgoing)) {
+      entry = TransitionTable.lookup(state, conditions | TransitionTable.UNIT_FAILURE);
+    }
+    act(TransitionTable.action(entry), outgoing);
+    int next = TransitionTable.next(entry);
+    this.mode = STATES[next];
+    outgoing.send(this.messModePara.set(MessageKind.MODE_m, TransitionTable.mode(next)));
   }
-  
+
   /**
-   * Rescue operation.
-   * Boiler tries to keep functioning with water failure
-   * @param incoming = incoming messages.
-   * @param outgoing = outgoing messages. 
+   * Work out the conditions on the readings, each once.
+   * @param state = the ordinal of the current state.
+   * @param incoming = decoded incoming messages.
+   * @return = the conditions which hold, as in {@link TransitionTable}.
    */
-  private void boilerRescueMode(Mailbox incoming, Mailbox outgoing) {
-    assert incoming != null && outgoing != null;
-    assert this.mode == State.RESCUE;
-    
-    processIncomingMessages(incoming,outgoing);
-    doRepairs(incoming,outgoing);
-
-    //If there is a water level error and either a steam or pump failure then emergency stop
-    if (checkWaterLevelFailure(outgoing) 
-        && (checkSteamLevelDFailure(outgoing) || checkPumpFailure(incoming,outgoing))) {
-      this.mode = State.EMERGENCY_STOP;
-      return;
+  private int conditions(int state, IncomingMessages incoming) {
+    int conditions = 0;
+    MessageKind signal = TransitionTable.signal(state);
+    if (signal != null && incoming.only(signal) != null) {
+      conditions |= TransitionTable.SIGNAL;
+    }
+    if (this.waterLevel < 0 || this.waterLevel >= this.waterCapacity) {
+      conditions |= TransitionTable.WATER_FAILURE;
+    }
+    if (this.steamLevel > this.maxSteamLevel || this.steamLevel < 0) {
+      conditions |= TransitionTable.STEAM_FAILURE;
     }
-    
-    //If the water isn't in the boiler limits then emergency stop
     if (!waterLevelInLimits()) {
-      this.mode = State.EMERGENCY_STOP;
-      return;
-      
+      conditions |= TransitionTable.OUTSIDE_LIMITS;
     }
-    
-    //Once the water level has been fixed move to degrade if other issues or normal
-    if (!checkWaterLevelFailure(outgoing)) {
-      if (checkSteamLevelDFailure(outgoing) 
-          || checkPumpFailure(incoming,outgoing)) {
-        this.mode = State.DEGRADED;
-      } else {
-        this.mode = State.NORMAL;
-      }
-      return;
+    if (this.waterLevel < 0 || this.waterLevel > this.waterCapacity || this.steamLevel != 0) {
+      conditions |= TransitionTable.CANNOT_START;
     }
-    double waterIn = (this.cycle * this.pumpCapacity * getNumberOfOpenPumps());
-    double maxWaterLevel = this.waterLevel + waterIn - (this.cycle * this.steamLevel);
-    double minWaterLevel = this.waterLevel + waterIn - (this.cycle * this.maxSteamLevel);
-    double prediction = minWaterLevel + (Math.abs(maxWaterLevel - minWaterLevel) / 2.0);
-    
-    this.waterLevel = prediction;
-    
-    if (this.waterLevel < this.midLimitWaterLevel) {
-      changeNumberOpenPumps(getNumberOfOpenPumps() + 1,outgoing);
-    } else {
-      int toOpen = getNumberOfOpenPumps() - 1;
-      if (toOpen < 0) {
-        toOpen = 0;
-      }
-      changeNumberOpenPumps(toOpen,outgoing);
+    if (this.waterLevel > this.maxNormalWaterLevel) {
+      conditions |= TransitionTable.WATER_HIGH;
     }
+    if (this.waterLevel < this.minNormalWaterLevel) {
+      conditions |= TransitionTable.WATER_LOW;
+    }
+    return conditions;
   }
 
   /**
-   * Degrading Operation. 
-   * Boiler tries continue with a physical unit failure
-   * @param incoming = incoming messages. 
-   * @param outgoing = outgoing messages. 
+   * Check the pumps and pump controllers the current state depends on, in the order it
+   * checks them, stopping at the first failure found.
+   * @param state = the ordinal of the current state.
+   * @param incoming = decoded incoming messages.
+   * @param outgoing = outgoing messages.
+   * @return = if a pump or pump controller has failed, or is yet to be acknowledged or
+   *     repaired.
    */
-  public void boilerDegradedMode(Mailbox incoming, Mailbox outgoing) {
-    assert incoming != null && outgoing != null;
-    assert this.mode == State.DEGRADED;
-    
-    processIncomingMessages(incoming,outgoing);
-    doRepairs(incoming,outgoing);
-    
-    //If there is a water and steam level failure emergency stop 
-    //but if only water failure then move to rescue
-    if (checkWaterLevelFailure(outgoing)) {
-      if (checkSteamLevelDFailure(outgoing)) {
-        this.mode = State.EMERGENCY_STOP;
-        return;
-      }
-      this.mode = State.RESCUE;
-      return;
+  private boolean checkUnits(int state, IncomingMessages incoming, Mailbox outgoing) {
+    int units = TransitionTable.units(state);
+    if ((units & TransitionTable.CONTROLLERS_FIRST) != 0
+        && detectedControllerFailure(incoming, outgoing)) {
+      return true;
     }
-    
-    if (!waterLevelInLimits()) {
-      this.mode = State.EMERGENCY_STOP;
-      return;
+    if ((units & TransitionTable.PUMPS) != 0 && checkPumpFailure(incoming, outgoing)) {
+      return true;
     }
-    
-    //If everything has been fixed then move to normal
-    if (!checkSteamLevelDFailure(outgoing) && !checkPumpFailure(incoming,outgoing) 
-        && !detectedControllerFailure(incoming,outgoing)) {
-      this.mode = State.NORMAL;
-      return;
+    return (units & TransitionTable.CONTROLLERS) != 0
+        && (units & TransitionTable.CONTROLLERS_FIRST) == 0
+        && detectedControllerFailure(incoming, outgoing);
+  }
+
+  /**
+   * Do what the transition table says to with the pumps and valve.
+   * @param action = the action, as in {@link TransitionTable}.
+   * @param outgoing = outgoing messages.
+   */
+  private void act(int action, Mailbox outgoing) {
+    switch (action) {
+      case TransitionTable.PREDICT:
+        changeNumberOpenPumps(predictNumberOfPumpsToOpen(), outgoing);
+        break;
+      case TransitionTable.PREDICT_AND_STEP:
+        this.waterLevel = predictWaterLevel(waterPumpedInByOpenPumps());
+        stepNumberOpenPumps(outgoing);
+        break;
+      case TransitionTable.STEP:
+        stepNumberOpenPumps(outgoing);
+        break;
+      case TransitionTable.STOP:
+        changeNumberOpenPumps(0, outgoing);
+        if (!this.openValve) {
+          outgoing.send(this.messNoPara.set(MessageKind.VALVE));
+          this.openValve = true;
+        }
+        break;
+      case TransitionTable.PROGRAM_READY:
+        outgoing.send(this.messNoPara.set(MessageKind.PROGRAM_READY));
+        break;
+      case TransitionTable.DRAIN:
+        if (!this.openValve) {
+          outgoing.send(this.messNoPara.set(MessageKind.VALVE));
+          this.openValve = true;
+        }
+        break;
+      case TransitionTable.FILL:
+        changeNumberOpenPumps(predictNumberOfPumpsToOpen(), outgoing);
+        if (this.openValve) {
+          outgoing.send(this.messNoPara.set(MessageKind.VALVE));
+          this.openValve = false;
+        }
+        break;
+      case TransitionTable.FINISH_WAITING:
+        changeNumberOpenPumps(0, outgoing);
+        outgoing.send(this.messNoPara.set(MessageKind.PROGRAM_READY));
+        break;
+      default:
+        break;
     }
-    
+  }
+
+  /**
+   * Open one more pump if the water is below the middle of the limits, otherwise close one.
+   * @param outgoing = outgoing messages.
+   */
+  private void stepNumberOpenPumps(Mailbox outgoing) {
     if (this.waterLevel < this.midLimitWaterLevel) {
       changeNumberOpenPumps(getNumberOfOpenPumps() + 1,outgoing);
     } else {
@@ -478,19 +964,13 @@ public class MySteamBoilerController implements SteamBoilerController {
       changeNumberOpenPumps(toOpen,outgoing);
     }
   }
-  
+
   /**
    * Get the number of pumps that are open.
    * @return = number of open pumps
    */
   private int getNumberOfOpenPumps() {
-    int count = 0;
-    
-    for (int i = 0; i < this.numberOfPumps; i++) {
-      if (this.openPumps[i]) {
-        count++;
-      }
-    }
+    int count = countBits(this.openPumps);
     assert count >= 0;
     return count;
   }
@@ -498,57 +978,63 @@ public class MySteamBoilerController implements SteamBoilerController {
   /**
    * Do repairs for the physical units. 
    * Repairs the units that are broken
-   * @param incoming = incoming.
+   * @param incoming = decoded incoming messages.
    * @param outgoing = outgoing. 
    */
-  private void doRepairs(Mailbox incoming, Mailbox outgoing) {
+  private void doRepairs(IncomingMessages incoming, Mailbox outgoing) {
     assert incoming != null && outgoing != null;
     
     //Check if the water level has to be repaired
     if (this.waterLevelFailure && this.waterLevelNeedingRepair) {
-      if (extractOnlyMatch(MessageKind.LEVEL_REPAIRED, incoming) != null) {
+      if (incoming.only(MessageKind.LEVEL_REPAIRED) != null) {
         this.waterLevelNeedingRepair = false;
         this.waterLevelFailure = false;
+        countRepairs(ControllerMetrics.LEVEL, 1);
         outgoing.send(this.messNoPara.set(MessageKind.LEVEL_REPAIRED_ACKNOWLEDGEMENT));
       }
     }
     
     //Check if the steam level has to be repaired
     if (this.steamLevelFailure && this.steamLevelNeedingRepair) {
-      if (extractOnlyMatch(MessageKind.STEAM_REPAIRED, incoming) != null) {
+      if (incoming.only(MessageKind.STEAM_REPAIRED) != null) {
         this.steamLevelNeedingRepair = false;
         this.steamLevelFailure = false;
+        countRepairs(ControllerMetrics.STEAM, 1);
         outgoing.send(this.messNoPara.set(MessageKind.STEAM_REPAIRED_ACKNOWLEDGEMENT));
       }
     }
     
     //Check if any of the pumps have to be repaired
-    if (countTrueValues(this.workingPumps) < this.numberOfPumps 
-        && countTrueValues(this.pumpsToRepair) > 0) {
-      Message[] pumpMessages = extractAllMatches(MessageKind.PUMP_REPAIRED_n,incoming);
-      
-      for (int i = 0; i < pumpMessages.length; i++) {
-        this.pumpsToRepair[pumpMessages[i].getIntegerParameter()] = false;
-        this.workingPumps[pumpMessages[i].getIntegerParameter()] = true;
-        outgoing.send(this.messIntPara.set(
-            MessageKind.PUMP_REPAIRED_ACKNOWLEDGEMENT_n,pumpMessages[i].getIntegerParameter()));
+    if (!allBits(this.workingPumps, this.numberOfPumps) && anyBits(this.pumpsToRepair)) {
+      int count = incoming.count(MessageKind.PUMP_REPAIRED_n);
+      countRepairs(ControllerMetrics.PUMP, count);
+      for (int i = 0; i < count; i++) {
+        int pump = incoming.get(MessageKind.PUMP_REPAIRED_n, i).getIntegerParameter();
+        if (!isPump(pump)) {
+          continue;
+        }
+        clearBit(this.pumpsToRepair, pump);
+        setBit(this.workingPumps, pump);
+        updateOpeningCapacity();
+        outgoing.send(this.messIntPara.set(MessageKind.PUMP_REPAIRED_ACKNOWLEDGEMENT_n,pump));
         
       }
     }
     
     //Check if any of the controllers have to be repaired
-    if (countTrueValues(this.workingPumpControllers) < this.numberOfPumps 
-        && countTrueValues(this.pumpControllersToRepair) > 0) {
-      Message[] pumpControllersMessages = 
-          extractAllMatches(MessageKind.PUMP_CONTROL_REPAIRED_n,incoming);
-      
-      for (int i = 0; i < pumpControllersMessages.length; i++) {
-        this.pumpControllersToRepair
-        [pumpControllersMessages[i].getIntegerParameter()] = false;
-        this.workingPumpControllers
-        [pumpControllersMessages[i].getIntegerParameter()] = true;
-        outgoing.send(this.messIntPara.set(MessageKind.PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT_n,
-            pumpControllersMessages[i].getIntegerParameter()));
+    if (!allBits(this.workingPumpControllers, this.numberOfPumps) 
+        && anyBits(this.pumpControllersToRepair)) {
+      int count = incoming.count(MessageKind.PUMP_CONTROL_REPAIRED_n);
+      countRepairs(ControllerMetrics.PUMP_CONTROLLER, count);
+      for (int i = 0; i < count; i++) {
+        int pump = incoming.get(MessageKind.PUMP_CONTROL_REPAIRED_n, i).getIntegerParameter();
+        if (!isPump(pump)) {
+          continue;
+        }
+        clearBit(this.pumpControllersToRepair, pump);
+        setBit(this.workingPumpControllers, pump);
+        outgoing.send(this.messIntPara.set(
+            MessageKind.PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT_n,pump));
         
       }
     }
@@ -557,183 +1043,216 @@ public class MySteamBoilerController implements SteamBoilerController {
   /**
    * Process the messages that have come from the parts.
    * Checks which devices have failures
-   * @param incoming = incoming messages;
+   * @param incoming = decoded incoming messages;
    * @param outgoing = outgoing messages;
    */
-  private void processIncomingMessages(Mailbox incoming, Mailbox outgoing) {
+  private void processIncomingMessages(IncomingMessages incoming, Mailbox outgoing) {
     assert incoming != null && outgoing != null;
     //Check if the water level has failed
     if (this.waterLevelFailure && this.waterLevelDeviceToAcknowledge) {
-      if (extractOnlyMatch(MessageKind.LEVEL_FAILURE_ACKNOWLEDGEMENT,incoming) != null) {
+      if (incoming.only(MessageKind.LEVEL_FAILURE_ACKNOWLEDGEMENT) != null) {
         this.waterLevelDeviceToAcknowledge = false;
         this.waterLevelNeedingRepair = true;
+        countAcknowledgements(ControllerMetrics.LEVEL, 1);
       } else {
         outgoing.send(this.messNoPara.set(MessageKind.LEVEL_FAILURE_DETECTION));
       }
     }
     //Check if the steam level has failed
     if (this.steamLevelFailure && this.steamLevelDeviceToAcknowedge) {
-      if (extractOnlyMatch(MessageKind.STEAM_OUTCOME_FAILURE_ACKNOWLEDGEMENT,incoming) != null) {
+      if (incoming.only(MessageKind.STEAM_OUTCOME_FAILURE_ACKNOWLEDGEMENT) != null) {
         this.steamLevelDeviceToAcknowedge = false;
         this.steamLevelNeedingRepair = true;
+        countAcknowledgements(ControllerMetrics.STEAM, 1);
       } else {
         outgoing.send(this.messNoPara.set(MessageKind.STEAM_FAILURE_DETECTION));
       }
     }
     //Check if there is at least one pump that has failed
-    if (countTrueValues(this.workingPumps) < this.numberOfPumps) {
-      Message[] pumpMessages = 
-          extractAllMatches(MessageKind.PUMP_FAILURE_ACKNOWLEDGEMENT_n,incoming);
-      if (pumpMessages.length > 0) {
-        for (int i = 0; i < pumpMessages.length; i++) {
-          this.pumpsToAcknowledge[pumpMessages[i].getIntegerParameter()] = false;
-          this.pumpsToRepair[pumpMessages[i].getIntegerParameter()] = true;
-        }
-      } else {
-        for (int i = 0; i < this.numberOfPumps; i++) {
-          if (!this.workingPumps[i] 
-              && this.pumpsToAcknowledge[i]) {
-            outgoing.send(this.messIntPara.set(MessageKind.PUMP_FAILURE_DETECTION_n,i));
+    if (!allBits(this.workingPumps, this.numberOfPumps)) {
+      int count = incoming.count(MessageKind.PUMP_FAILURE_ACKNOWLEDGEMENT_n);
+      if (count > 0) {
+        countAcknowledgements(ControllerMetrics.PUMP, count);
+        for (int i = 0; i < count; i++) {
+          int pump = incoming.get(MessageKind.PUMP_FAILURE_ACKNOWLEDGEMENT_n, i)
+              .getIntegerParameter();
+          if (!isPump(pump)) {
+            continue;
           }
+          clearBit(this.pumpsToAcknowledge, pump);
+          setBit(this.pumpsToRepair, pump);
         }
+      } else {
+        sendFailedAndUnacknowledged(this.workingPumps, this.pumpsToAcknowledge,
+            MessageKind.PUMP_FAILURE_DETECTION_n, outgoing);
       }
     }
     //Check if there is at least one controller that has failed. 
-    if (countTrueValues(this.workingPumpControllers) < this.numberOfPumps) {
-      Message[] pumpControllerMessages = 
-          extractAllMatches(MessageKind.PUMP_CONTROL_FAILURE_ACKNOWLEDGEMENT_n,incoming);
-      if (pumpControllerMessages.length > 0) {
-        for (int i = 0; i < pumpControllerMessages.length; i++) {
-          this.pumpControllersToAcknowledge
-          [pumpControllerMessages[i].getIntegerParameter()] = false;
-          this.pumpControllersToRepair
-          [pumpControllerMessages[i].getIntegerParameter()] = true;
-        }
-      } else {
-        for (int i = 0; i < this.numberOfPumps; i++) {
-          if (!this.workingPumpControllers[i] 
-              && this.pumpControllersToAcknowledge[i]) {
-            outgoing.send(this.messIntPara.set(MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n,i));
+    if (!allBits(this.workingPumpControllers, this.numberOfPumps)) {
+      int count = incoming.count(MessageKind.PUMP_CONTROL_FAILURE_ACKNOWLEDGEMENT_n);
+      if (count > 0) {
+        countAcknowledgements(ControllerMetrics.PUMP_CONTROLLER, count);
+        for (int i = 0; i < count; i++) {
+          int pump = incoming.get(MessageKind.PUMP_CONTROL_FAILURE_ACKNOWLEDGEMENT_n, i)
+              .getIntegerParameter();
+          if (!isPump(pump)) {
+            continue;
           }
+          clearBit(this.pumpControllersToAcknowledge, pump);
+          setBit(this.pumpControllersToRepair, pump);
         }
+      } else {
+        sendFailedAndUnacknowledged(this.workingPumpControllers, this.pumpControllersToAcknowledge,
+            MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n, outgoing);
       }
     }
   }
-  
+
   /**
-   * Count the number of true values in an array list. 
-   * @param list = list of count true values from. 
-   * @return = number of true values. 
+   * Send a failure detection message for every unit that has failed and not yet been
+   * acknowledged, in order of pump number. This goes a word of pumps at a time, and only
+   * visits the pumps which need a message.
+   * @param working = bitset of the working units.
+   * @param toAcknowledge = bitset of the units needing acknowledgement.
+   * @param kind = the kind of failure detection message.
+   * @param outgoing = outgoing messages.
    */
-  private static int countTrueValues(boolean[] list) {
-    assert list != null;
-    int count = 0;
-    for (int i = 0; i < list.length; i++) {
-      if (list[i]) {
-        count++;
+  private void sendFailedAndUnacknowledged(long[] working, long[] toAcknowledge,
+      MessageKind kind, Mailbox outgoing) {
+    for (int w = 0; w < working.length; w++) {
+      long word = ~working[w] & toAcknowledge[w];
+      while (word != 0) {
+        int i = (w << 6) + Long.numberOfTrailingZeros(word);
+        outgoing.send(this.messIntPara.set(kind,i));
+        word &= word - 1;
       }
     }
-    assert count >= 0;
-    return count;
+  }
+  
+  /**
+   * Get the number of words needed for a bitset of a given size.
+   * @param size = the number of bits.
+   * @return = the number of words.
+   */
+  private static int words(int size) {
+    return (size + 63) >>> 6;
   }
 
   /**
-   * Do Emergency Stop operation. 
-   * Stops the boiler as something has gone wrong
-   * @param incoming = incoming messages.
-   * @param outgoing = outgoing messages. 
+   * Check if a number from a message is one of the pumps. The bitsets are whole words long, so
+   * a number past the last pump would otherwise set or clear a bit no pump has.
+   * @param pump = the number.
+   * @return = if there is a pump with that number.
    */
-  public void boilerEmergencyStopMode(Mailbox incoming, Mailbox outgoing) {
-    assert incoming != null && outgoing != null;
-    assert this.mode == State.EMERGENCY_STOP;
-    
-    changeNumberOpenPumps(0,outgoing);
-    
-    if (!this.openValve) {
-      outgoing.send(this.messNoPara.set(MessageKind.VALVE));
-      this.openValve = true;
+  private boolean isPump(int pump) {
+    return pump >= 0 && pump < this.numberOfPumps;
+  }
+
+  /**
+   * Check if a bit is set in a bitset.
+   * @param bits = the bitset.
+   * @param i = the bit to check.
+   * @return = if the bit is set.
+   */
+  private static boolean getBit(long[] bits, int i) {
+    return (bits[i >>> 6] & (1L << i)) != 0;
+  }
+
+  /**
+   * Set a bit in a bitset.
+   * @param bits = the bitset.
+   * @param i = the bit to set.
+   */
+  private static void setBit(long[] bits, int i) {
+    bits[i >>> 6] |= 1L << i;
+  }
+
+  /**
+   * Clear a bit in a bitset.
+   * @param bits = the bitset.
+   * @param i = the bit to clear.
+   */
+  private static void clearBit(long[] bits, int i) {
+    bits[i >>> 6] &= ~(1L << i);
+  }
+
+  /**
+   * Count the number of set bits in a bitset. 
+   * @param bits = the bitset. 
+   * @return = number of set bits. 
+   */
+  private static int countBits(long[] bits) {
+    int count = 0;
+    for (int w = 0; w < bits.length; w++) {
+      count += Long.bitCount(bits[w]);
     }
+    return count;
   }
-  
+
   /**
-   * Do ready operation.
-   * Wait for the physical units to be ready
-   * @param incoming = incoming messages.
-   * @param outgoing = incoming messages. 
+   * Check if any bit is set in a bitset.
+   * @param bits = the bitset.
+   * @return = if any bit is set.
    */
-  public void boilerReadyMode(Mailbox incoming, Mailbox outgoing) {
-    assert incoming != null && outgoing != null;
-    assert this.mode == State.READY;
-    if (extractOnlyMatch(MessageKind.PHYSICAL_UNITS_READY,incoming) != null) {
-      this.mode = State.NORMAL;
-    } else {
-      outgoing.send(this.messNoPara.set(MessageKind.PROGRAM_READY));
+  private static boolean anyBits(long[] bits) {
+    for (int w = 0; w < bits.length; w++) {
+      if (bits[w] != 0) {
+        return true;
+      }
     }
+    return false;
   }
-  
+
   /**
-   * Does the normal operation. 
-   * Boiler runs normally until it founds a device failure
-   * @param incoming = incoming messages.
-   * @param outgoing = outgoing messages. 
+   * Check if the first size bits of a bitset are all set.
+   * @param bits = the bitset.
+   * @param size = the number of bits to check.
+   * @return = if every one of the bits is set.
    */
-  public void boilerNormalMode(Mailbox incoming, Mailbox outgoing) {
-    assert incoming != null && outgoing != null;
-    assert this.mode == State.NORMAL;
-    
-    //If the water is outside the limits but there is no level failure then emergency stop
-    if (!checkWaterLevelFailure(outgoing) && !waterLevelInLimits()) {
-      this.mode = State.EMERGENCY_STOP;
-      return;
-    } 
-    
-    //If the water and stem levels have failed then emergency stop
-    if (checkWaterLevelFailure(outgoing) && checkSteamLevelDFailure(outgoing)) {
-      this.mode = State.EMERGENCY_STOP;
-      return;
+  private static boolean allBits(long[] bits, int size) {
+    int full = size >>> 6;
+    for (int w = 0; w < full; w++) {
+      if (bits[w] != -1L) {
+        return false;
+      }
     }
-    
-    //If the water has failed then move to rescue. For any other failures move to degraded.
-    if (checkWaterLevelFailure(outgoing)) {
-      this.mode = State.RESCUE;
-    } else if (checkSteamLevelDFailure(outgoing) || detectedControllerFailure(incoming,outgoing) 
-        || checkPumpFailure(incoming, outgoing)) {
-      this.mode = State.DEGRADED;
-      return;
+    int rest = size & 63;
+    if (rest == 0) {
+      return true;
     }
-    
-    changeNumberOpenPumps(predictNumberOfPumpsToOpen(),outgoing);
+    long mask = (1L << rest) - 1;
+    return (bits[full] & mask) == mask;
   }
-  
+
   /**
    * Detect if there is a pump failure.
-   * @param incoming = incoming messages.
+   * @param incoming = decoded incoming messages.
    * @param outgoing = outgoing messages.
    * @return = if there if a pump failure. 
    */
-  private boolean checkPumpFailure(Mailbox incoming, Mailbox outgoing) {
+  private boolean checkPumpFailure(IncomingMessages incoming, Mailbox outgoing) {
     assert incoming != null && outgoing != null;
-    Message[] pumpMessages = extractAllMatches(MessageKind.PUMP_STATE_n_b, incoming);
-
     //For each of the pumps, check that the pumps that are open should be open
     for (int i = 0; i < this.numberOfPumps; i++) {
-      if (this.workingPumps[i]) {
-        if (this.openPumps[i] != pumpMessages[i].getBooleanParameter()) {
-          if (this.openPumps[i]) {
-            this.openPumps[i] = false;
+      if (getBit(this.workingPumps, i)) {
+        if (getBit(this.openPumps, i) != pumpState(incoming, MessageKind.PUMP_STATE_n_b, i)) {
+          if (getBit(this.openPumps, i)) {
+            clearBit(this.openPumps, i);
           } else {
-            this.openPumps[i] = true;
+            setBit(this.openPumps, i);
           }
-          this.workingPumps[i] = false;
-          this.pumpsToAcknowledge[i] = true;
+          clearBit(this.workingPumps, i);
+          updateOpeningCapacity();
+          setBit(this.pumpsToAcknowledge, i);
+          countFailure(ControllerMetrics.PUMP);
           outgoing.send(this.messIntPara.set(MessageKind.PUMP_FAILURE_DETECTION_n,i));
           return true;
         }
       }
       
-      if (countTrueValues(this.pumpsToAcknowledge) > 0) {
+      if (anyBits(this.pumpsToAcknowledge)) {
         return true;
-      } else if (countTrueValues(this.pumpsToRepair) > 0) {
+      } else if (anyBits(this.pumpsToRepair)) {
         return true;
       }
     }
@@ -742,31 +1261,28 @@ public class MySteamBoilerController implements SteamBoilerController {
 
   /**
    * Detect if there is a controller failure.
-   * @param incoming = incoming messages.
+   * @param incoming = decoded incoming messages.
    * @param outgoing = outgoing messages. 
    * @return = if there is a controller failure. 
    */
-  private boolean detectedControllerFailure(Mailbox incoming, Mailbox outgoing) {
+  private boolean detectedControllerFailure(IncomingMessages incoming, Mailbox outgoing) {
     assert incoming != null && outgoing != null;
-    Message[] pumpMessages = extractAllMatches(MessageKind.PUMP_STATE_n_b, incoming);
-    Message[] pumpControllerMessages = 
-        extractAllMatches(MessageKind.PUMP_CONTROL_STATE_n_b, incoming);
-    
     //Check that the controllers and the pumps are in agreement
     for (int i = 0; i < this.numberOfPumps; i++) {
-      if (this.openPumps[i] == pumpMessages[i].getBooleanParameter()) {
-        if (this.openPumps[i] 
-            != pumpControllerMessages[i].getBooleanParameter()) {
-          this.workingPumpControllers[i] = false;
-          this.pumpControllersToAcknowledge[i] = true;
+      boolean open = getBit(this.openPumps, i);
+      if (open == pumpState(incoming, MessageKind.PUMP_STATE_n_b, i)) {
+        if (open != pumpState(incoming, MessageKind.PUMP_CONTROL_STATE_n_b, i)) {
+          clearBit(this.workingPumpControllers, i);
+          setBit(this.pumpControllersToAcknowledge, i);
+          countFailure(ControllerMetrics.PUMP_CONTROLLER);
           outgoing.send(this.messIntPara.set(MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n,i));
           return true;
         }
       }
       
-      if (countTrueValues(this.pumpControllersToAcknowledge) > 0) {
+      if (anyBits(this.pumpControllersToAcknowledge)) {
         return true;
-      } else if (countTrueValues(this.pumpControllersToRepair) > 0) {
+      } else if (anyBits(this.pumpControllersToRepair)) {
         return true;
       }
     }
@@ -774,19 +1290,17 @@ public class MySteamBoilerController implements SteamBoilerController {
   }
 
   /**
-   * Check that if the stream device has failed.
+   * Report the steam level device has failed.
    * @param outgoing = outgoing messages. 
-   * @return = if there if a steam level failure
    */
-  private boolean checkSteamLevelDFailure(Mailbox outgoing) {
+  private void reportSteamLevelFailure(Mailbox outgoing) {
     assert outgoing != null;
-    if (this.steamLevel > this.maxSteamLevel || this.steamLevel < 0) {
-      outgoing.send(this.messNoPara.set(MessageKind.STEAM_FAILURE_DETECTION));
-      this.steamLevelFailure = true;
-      this.steamLevelDeviceToAcknowedge = true;
-      return true;
+    outgoing.send(this.messNoPara.set(MessageKind.STEAM_FAILURE_DETECTION));
+    if (!this.steamLevelFailure) {
+      countFailure(ControllerMetrics.STEAM);
     }
-    return false;
+    this.steamLevelFailure = true;
+    this.steamLevelDeviceToAcknowedge = true;
   }
 
   /**
@@ -801,109 +1315,187 @@ public class MySteamBoilerController implements SteamBoilerController {
   }
 
   /**
-   * Check if the water level device has found a failure.
+   * Report the water level device has failed.
    * @param outgoing = outgoing messages.
-   * @return = if there is a water level failure. 
    */
-  private boolean checkWaterLevelFailure(Mailbox outgoing) {
+  private void reportWaterLevelFailure(Mailbox outgoing) {
     assert outgoing != null;
-    if (this.waterLevel < 0 || this.waterLevel >= this.waterCapacity) {
-      outgoing.send(this.messNoPara.set(MessageKind.LEVEL_FAILURE_DETECTION));
-      this.waterLevelFailure = true;
-      this.waterLevelDeviceToAcknowledge = true;
-      return true;
+    outgoing.send(this.messNoPara.set(MessageKind.LEVEL_FAILURE_DETECTION));
+    if (!this.waterLevelFailure) {
+      countFailure(ControllerMetrics.LEVEL);
     }
-    return false;
+    this.waterLevelFailure = true;
+    this.waterLevelDeviceToAcknowledge = true;
   }
 
   /**
-   * Does the waiting operation. 
-   * Make sure that everything is working and get the water to the right level
-   * @param incoming = incoming messages. 
-   * @param outgoing = outgoing messages. 
-   */
-  public void boilerWaitingMode(Mailbox incoming, Mailbox outgoing) {
-    assert incoming != null && outgoing != null;
-    assert this.mode == State.WAITING;
-    if (extractOnlyMatch(MessageKind.STEAM_BOILER_WAITING,incoming) == null) {
-      return;
-    }
-    //If the water or steam isn't at the right level then emergency stop
-    if (this.waterLevel < 0 || this.waterLevel > this.waterCapacity 
-        || this.steamLevel != 0 || checkWaterLevelFailure(outgoing)) {
-      this.mode = State.EMERGENCY_STOP;
-      return;
-    }
-    
-    
-    if (this.waterLevel > this.maxNormalWaterLevel) {
-      if (!this.openValve) {
-        outgoing.send(this.messNoPara.set(MessageKind.VALVE));
-        this.openValve = true;
-      }
-    } else if (this.waterLevel < this.minNormalWaterLevel) {
-      changeNumberOpenPumps(predictNumberOfPumpsToOpen(),outgoing);
-      
-      if (this.openValve) {
-        outgoing.send(this.messNoPara.set(MessageKind.VALVE));
-        this.openValve = false;
-      }
-    } else {
-      changeNumberOpenPumps(0,outgoing);
-      outgoing.send(this.messNoPara.set(MessageKind.PROGRAM_READY));
-      this.mode = State.READY;
-    } 
-  }
-  
-  /**
-   * Predict how many pumps should be open to keep the water within the limits
-   * Calculate where the water would be for each option (0,1...) 
-   * @return = the number of open pumps that keep it closest to the middle
+   * Predict how many pumps should be open to keep the water within the limits.
+   * The predicted water level goes up in a straight line with the capacity pumped in,
+   * so the best number is found directly rather than by trying each option (0,1...).
+   * When the pumps all have the same capacity this takes constant time. Otherwise it
+   * considers opening the largest working pumps first, and takes logarithmic time.
+   * @return = the number of open pumps that keep it closest to the middle, 
+   *     taking the smaller number if two are as close
    */
   private int predictNumberOfPumpsToOpen() {
+    // How much water needs pumping in to reach the middle
+    double needed = this.midLimitWaterLevel - predictWaterLevel(0.0);
+    int below;
+    if (this.uniformCapacity) {
+      double perPump = this.cycle * this.pumpCapacity;
+      double exact = perPump > 0 ? Math.floor(needed / perPump) : 0.0;
+      // Check either side as well, as the rounding can be out by one
+      below = (int) Math.max(0.0, Math.min(exact - 1.0, this.numberOfPumps));
+    } else {
+      below = lastOpeningBelow(needed / this.cycle);
+    }
     int numberToOpen = 0;
     double closestToNormal = Double.MAX_VALUE;
-    for (int i = 0;i <= this.numberOfPumps;i++) {
-      double waterIn = (this.cycle * this.pumpCapacity * i);
-      double maxWaterLevel = this.waterLevel + waterIn - (this.cycle * this.steamLevel);
-      double minWaterLevel = this.waterLevel + waterIn - (this.cycle * this.maxSteamLevel);
-      double prediction = minWaterLevel + (Math.abs(maxWaterLevel - minWaterLevel) / 2.0);
+    int last = Math.min(below + 2, this.numberOfPumps);
+    for (int i = below; i <= last; i++) {
+      double prediction = predictWaterLevel(waterPumpedIn(i));
       double diff = Math.abs(this.midLimitWaterLevel - prediction);
       
       if (diff < closestToNormal) {
         closestToNormal = diff;
         numberToOpen = i;
       }
-      
     }
     assert numberToOpen >= 0 && numberToOpen <= this.numberOfPumps;
     return numberToOpen;
   }
+
+  /**
+   * Find the first number of pumps with the largest opening capacity under a given capacity,
+   * with a binary search. Pumps with no capacity add nothing, so the first number is taken
+   * to avoid opening them for no reason.
+   * @param capacity = the capacity needed.
+   * @return = the number of pumps.
+   */
+  private int lastOpeningBelow(double capacity) {
+    int below = firstOpeningAtLeast(capacity) - 1;
+    if (below <= 0) {
+      return 0;
+    }
+    return firstOpeningAtLeast(this.openingCapacity[below]);
+  }
+
+  /**
+   * Find the smallest number of pumps whose opening capacity is at least a given capacity.
+   * @param capacity = the capacity needed.
+   * @return = the number of pumps, or one more than the number of pumps if there are none.
+   */
+  private int firstOpeningAtLeast(double capacity) {
+    int low = 0;
+    int high = this.numberOfPumps + 1;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (this.openingCapacity[middle] < capacity) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Work out the opening capacities again after a pump stops or starts working.
+   * The pumps which are not working are left out, as changeNumberOpenPumps passes over them.
+   */
+  private void updateOpeningCapacity() {
+    if (this.uniformCapacity) {
+      return;
+    }
+    double[] capacity = this.openingCapacity;
+    int k = 0;
+    for (int j = 0; j < this.numberOfPumps; j++) {
+      int i = this.pumpOrder[j];
+      if (getBit(this.workingPumps, i)) {
+        capacity[k + 1] = capacity[k] + this.pumpCapacities[i];
+        k++;
+      }
+    }
+    Arrays.fill(capacity, k + 1, capacity.length, capacity[k]);
+  }
+
+  /**
+   * Get the water pumped in over a cycle by opening a number of working pumps in pumpOrder.
+   * @param numberOpen = the number of pumps open.
+   * @return = the water pumped in. 
+   */
+  private double waterPumpedIn(int numberOpen) {
+    if (this.uniformCapacity) {
+      return this.cycle * this.pumpCapacity * numberOpen;
+    }
+    return this.cycle * this.openingCapacity[numberOpen];
+  }
+
+  /**
+   * Get the water pumped in over a cycle by the pumps which are open.
+   * @return = the water pumped in. 
+   */
+  private double waterPumpedInByOpenPumps() {
+    if (this.uniformCapacity) {
+      return this.cycle * this.pumpCapacity * getNumberOfOpenPumps();
+    }
+    double capacity = 0.0;
+    long[] open = this.openPumps;
+    for (int w = 0; w < open.length; w++) {
+      long word = open[w];
+      while (word != 0) {
+        capacity += this.pumpCapacities[(w << 6) + Long.numberOfTrailingZeros(word)];
+        word &= word - 1;
+      }
+    }
+    return this.cycle * capacity;
+  }
+
+  /**
+   * Predict the water level at the end of the cycle.
+   * This is midway between the levels for the current steam output and the maximum.
+   * @param waterIn = the water pumped in over the cycle.
+   * @return = the predicted water level.
+   */
+  private double predictWaterLevel(double waterIn) {
+    double maxWaterLevel = this.waterLevel + waterIn - (this.cycle * this.steamLevel);
+    double minWaterLevel = this.waterLevel + waterIn - (this.cycle * this.maxSteamLevel);
+    return minWaterLevel + (Math.abs(maxWaterLevel - minWaterLevel) / 2.0);
+  }
   
   /**
    * Open a given number of pumps. 
-   * Open how many should be open and then close the rest.
+   * Open how many should be open, going through the pumps in pumpOrder,
+   * and then close the rest.
    * @param numberPumpsToOpen = the number of pumps that should be open.
    * @param outgoing = outgoing messages. 
    */
   private void changeNumberOpenPumps(int numberPumpsToOpen, Mailbox outgoing) {
     assert outgoing != null;
     assert numberPumpsToOpen >= 0;
+    long[] keep = this.keepOpen;
+    Arrays.fill(keep, 0L);
     int counter = 0;
-    for (int i = 0; i < this.numberOfPumps; i++) {
-      if (counter < numberPumpsToOpen) {
-        if (this.openPumps[i]) {
-          counter++;
-        } else if (this.workingPumps[i]) {
-          outgoing.send(this.openMessages[i]);
-          this.openPumps[i] = true;
-          counter++;
-        }
-      } else {
-        if (this.openPumps[i]) {
-          outgoing.send(this.closeMessages[i]);
-          this.openPumps[i] = false;
-        }
+    for (int k = 0; k < this.numberOfPumps && counter < numberPumpsToOpen; k++) {
+      int i = this.pumpOrder[k];
+      if (getBit(this.openPumps, i)) {
+        setBit(keep, i);
+        counter++;
+      } else if (getBit(this.workingPumps, i)) {
+        outgoing.send(this.openMessages[i]);
+        setBit(this.openPumps, i);
+        setBit(keep, i);
+        counter++;
+      }
+    }
+    //Close the rest, going a word at a time and only visiting the open pumps
+    long[] open = this.openPumps;
+    for (int w = 0; w < open.length; w++) {
+      long word = open[w] & ~keep[w];
+      open[w] &= keep[w];
+      while (word != 0) {
+        outgoing.send(this.closeMessages[(w << 6) + Long.numberOfTrailingZeros(word)]);
+        word &= word - 1;
       }
     }
   }
@@ -915,13 +1507,12 @@ public class MySteamBoilerController implements SteamBoilerController {
    *
    * @param levelMessage      Extracted LEVEL_v message.
    * @param steamMessage      Extracted STEAM_v message.
-   * @param pumpStates        Extracted PUMP_STATE_n_b messages.
-   * @param pumpControlStates Extracted PUMP_CONTROL_STATE_n_b messages.
+   * @param incoming          Decoded incoming messages, for the PUMP_STATE_n_b and
+   *                          PUMP_CONTROL_STATE_n_b messages.
    * @return = if there is a transmission failure. 
    */
   private boolean transmissionFailure(@Nullable Message levelMessage, 
-      @Nullable Message steamMessage, Message[] pumpStates,
-      Message[] pumpControlStates) {
+      @Nullable Message steamMessage, IncomingMessages incoming) {
     // Check level readings
     if (levelMessage == null) {
       // Nonsense or missing level reading
@@ -929,10 +1520,12 @@ public class MySteamBoilerController implements SteamBoilerController {
     } else if (steamMessage == null) {
       // Nonsense or missing steam reading
       return true;
-    } else if (pumpStates.length != this.numberOfPumps) {
+    } else if (incoming.count(MessageKind.PUMP_STATE_n_b) != this.numberOfPumps
+        || !incoming.hasEveryPump(MessageKind.PUMP_STATE_n_b)) {
       // Nonsense pump state readings
       return true;
-    } else if (pumpControlStates.length != this.numberOfPumps) {
+    } else if (incoming.count(MessageKind.PUMP_CONTROL_STATE_n_b) != this.numberOfPumps
+        || !incoming.hasEveryPump(MessageKind.PUMP_CONTROL_STATE_n_b)) {
       // Nonsense pump control state readings
       return true;
     }
@@ -941,55 +1534,17 @@ public class MySteamBoilerController implements SteamBoilerController {
   }
   
   /**
-   * Find and extract a message of a given kind in a mailbox. This must the only
-   * match in the mailbox, else <code>null</code> is returned.
+   * Read the reported state of a pump or pump controller. A state message for every pump
+   * is guaranteed once the transmission failure check has passed.
    *
-   * @param kind     The kind of message to look for.
-   * @param incoming The mailbox to search through.
-   * @return The matching message, or <code>null</code> if there was not exactly
-   *         one match.
-   */
-  private static @Nullable Message extractOnlyMatch(MessageKind kind, Mailbox incoming) {
-    Message match = null;
-    for (int i = 0; i != incoming.size(); ++i) {
-      Message ith = incoming.read(i);
-      if (ith.getKind() == kind) {
-        if (match == null) {
-          match = ith;
-        } else {
-          // This indicates that we matched more than one message of the given kind.
-          return null;
-        }
-      }
-    }
-    return match;
-  }
-  
-  /**
-   * Find and extract all messages of a given kind.
-   *
-   * @param kind     The kind of message to look for.
-   * @param incoming The mailbox to search through.
-   * @return The array of matches, which can empty if there were none.
+   * @param incoming The decoded incoming messages.
+   * @param kind     Either PUMP_STATE_n_b or PUMP_CONTROL_STATE_n_b.
+   * @param pump     The pump number.
+   * @return The reported state, true for open.
    */
-  private static Message[] extractAllMatches(MessageKind kind, Mailbox incoming) {
-    int count = 0;
-    // Count the number of matches
-    for (int i = 0; i != incoming.size(); ++i) {
-      Message ith = incoming.read(i);
-      if (ith.getKind() == kind) {
-        count = count + 1;
-      }
-    }
-    // Now, construct resulting array
-    Message[] matches = new Message[count];
-    int index = 0;
-    for (int i = 0; i != incoming.size(); ++i) {
-      Message ith = incoming.read(i);
-      if (ith.getKind() == kind) {
-        matches[index++] = ith;
-      }
-    }
-    return matches;
+  private static boolean pumpState(IncomingMessages incoming, MessageKind kind, int pump) {
+    Message state = incoming.forPump(kind, pump);
+    assert state != null;
+    return state.getBooleanParameter();
   }
 }
@@ -0,0 +1,226 @@
+package steam.boiler.core;
+
+import java.util.ArrayList;
+import java.util.function.ObjIntConsumer;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.SteamBoilerController;
+import steam.boiler.util.Mailbox;
+
+/**
+ * Runs many boilers on two threads, one clocking the physical units and one clocking the
+ * controllers, so the physical units of one boiler can be clocked whilst the controller of
+ * another works out what to do. The readings and the commands are passed between the threads
+ * through {@link MailboxRing}s.
+ *
+ * <p>Each boiler is clocked exactly as {@link SimulationClock} clocks it with the default step:
+ * one step, then the exchange of messages, then the rest of the cycle. Its exchange is not
+ * split up: the physical units wait for the commands answering their readings, and take them
+ * before being clocked any further. The pipelining is across boilers instead. Once a boiler's
+ * readings are sent, the physical units of the boiler before it are given its commands and
+ * clocked through the rest of their cycle, whilst the controller works on the readings just
+ * sent. So every boiler sends and receives exactly the same messages as with a
+ * {@link SimulationClock} of its own. With one boiler there is nothing to overlap, and the two
+ * threads take turns.
+ * @author Caitlin
+ *
+ */
+public class PipelinedSimulation {
+
+  /**
+   * The number of boilers whose readings are sent before the commands of a boiler are taken.
+   */
+  private static final int AHEAD = 1;
+
+  /**
+   * The controllers being clocked, indexed by boiler.
+   */
+  private final ArrayList<SteamBoilerController> controllers = new ArrayList<>();
+
+  /**
+   * The physical units being controlled, indexed by boiler.
+   */
+  private final ArrayList<PhysicalUnits> models = new ArrayList<>();
+
+  /**
+   * The readings from the physical units to the controllers.
+   */
+  private final MailboxRing readings = new MailboxRing(AHEAD + 1, 100);
+
+  /**
+   * The commands from the controllers to the physical units.
+   */
+  private final MailboxRing commands = new MailboxRing(AHEAD + 1, 100);
+
+  /**
+   * The exception either thread failed with, which stops the other.
+   */
+  private volatile @Nullable Throwable failure;
+
+  /**
+   * The number of cycles run.
+   */
+  private long cycles;
+
+  /**
+   * The wall-clock time taken in nanoseconds.
+   */
+  private long elapsedNanos;
+
+  /**
+   * Add a boiler. Boilers can only be added before the first run.
+   * @param controller = the controller.
+   * @param model = the physical units it controls.
+   * @return = the number of the boiler, which is given to the listener with its commands.
+   */
+  public int add(SteamBoilerController controller, PhysicalUnits model) {
+    if (this.cycles != 0) {
+      throw new IllegalStateException("boilers must be added before the first run"); //$NON-NLS-1$
+    }
+    this.controllers.add(controller);
+    this.models.add(model);
+    return this.models.size() - 1;
+  }
+
+  /**
+   * Run every boiler for a number of cycles, on this thread and a thread for the controllers.
+   * @param count = the number of cycles.
+   * @param listener = given the commands from a boiler's controller and the number of the
+   *     boiler, on this thread, straight after its physical units receive them and before they
+   *     are clocked through the rest of the cycle. This is when a failure scheduled with
+   *     {@link SimulationClock} for the time of the exchange happens.
+   * @throws InterruptedException = if interrupted waiting for the controllers' thread to end.
+   */
+  public void run(int count, ObjIntConsumer<Mailbox> listener) throws InterruptedException {
+    int n = this.models.size();
+    long total = (long) count * n;
+    // The next boiler must be a different one, so its readings can be sent first
+    int ahead = n > 1 ? AHEAD : 0;
+    Thread thread = new Thread(() -> control(total, n), "controller"); //$NON-NLS-1$
+    long start = System.nanoTime();
+    thread.start();
+    try {
+      for (long i = 0; i < total + ahead; i++) {
+        if (i < total) {
+          PhysicalUnits model = this.models.get((int) (i % n));
+          model.clock(SimulationClock.DEFAULT_STEP);
+          model.transmit(claim(this.readings));
+          this.readings.publish();
+        }
+        if (i >= ahead) {
+          int boiler = (int) ((i - ahead) % n);
+          PhysicalUnits model = this.models.get(boiler);
+          ArrayMailbox received = peek(this.commands);
+          model.receive(received);
+          listener.accept(received, boiler);
+          this.commands.release();
+          for (int t = SimulationClock.DEFAULT_STEP; t < SimulationClock.CYCLE;
+              t += SimulationClock.DEFAULT_STEP) {
+            model.clock(SimulationClock.DEFAULT_STEP);
+          }
+        }
+      }
+    } catch (RuntimeException | Error e) {
+      if (this.failure == null) {
+        this.failure = e;
+      }
+      throw e;
+    } finally {
+      thread.join();
+      this.elapsedNanos += System.nanoTime() - start;
+    }
+    this.cycles += count;
+  }
+
+  /**
+   * Clock the controllers, on the controllers' thread.
+   * @param total = the number of cycles of every boiler together.
+   * @param n = the number of boilers.
+   */
+  private void control(long total, int n) {
+    try {
+      for (long i = 0; i < total; i++) {
+        ArrayMailbox received = peek(this.readings);
+        ArrayMailbox sent = claim(this.commands);
+        this.controllers.get((int) (i % n)).clock(received, sent);
+        this.readings.release();
+        this.commands.publish();
+      }
+    } catch (RuntimeException | Error e) {
+      if (this.failure == null) {
+        this.failure = e;
+      }
+    }
+  }
+
+  /**
+   * Claim a slot to send to, waiting for one to be released if need be.
+   * @param ring = the ring.
+   * @return = the slot.
+   */
+  private ArrayMailbox claim(MailboxRing ring) {
+    while (true) {
+      ArrayMailbox slot = ring.claim();
+      if (slot != null) {
+        return slot;
+      }
+      waiting();
+    }
+  }
+
+  /**
+   * Get the next slot to read, waiting for one to be published if need be.
+   * @param ring = the ring.
+   * @return = the slot.
+   */
+  private ArrayMailbox peek(MailboxRing ring) {
+    while (true) {
+      ArrayMailbox slot = ring.peek();
+      if (slot != null) {
+        return slot;
+      }
+      waiting();
+    }
+  }
+
+  /**
+   * Give up the processor whilst waiting for the other thread, unless it has failed.
+   */
+  private void waiting() {
+    Throwable failed = this.failure;
+    if (failed != null) {
+      throw new IllegalStateException("the other thread failed", failed); //$NON-NLS-1$
+    }
+    Thread.yield();
+  }
+
+  /**
+   * Get the number of boilers.
+   * @return = the number of boilers.
+   */
+  public int size() {
+    return this.models.size();
+  }
+
+  /**
+   * Get the number of cycles run, each of which clocks every boiler.
+   * @return = the number of cycles.
+   */
+  public long getCycles() {
+    return this.cycles;
+  }
+
+  /**
+   * Get the number of cycles of a boiler run per second of wall-clock time, for every boiler
+   * together.
+   * @return = boiler cycles per second.
+   */
+  public double getCyclesPerSecond() {
+    if (this.elapsedNanos == 0) {
+      return 0.0;
+    }
+    return this.cycles * this.models.size() / (this.elapsedNanos / 1e9);
+  }
+}
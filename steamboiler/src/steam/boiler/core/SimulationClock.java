@@ -0,0 +1,411 @@
+package steam.boiler.core;
+
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.SteamBoilerController;
+import steam.boiler.util.Mailbox;
+
+/**
+ * Clocks a controller and the physical units it controls from a queue of events, rather than
+ * by checking for something to do after every tick. The events are the exchanges of messages
+ * between the controller and the physical units every cycle, and failures and repairs
+ * scheduled for given times. Between events the physical units are clocked in steps, which are
+ * never allowed to cross an event.
+ *
+ * <p>By default the step is fixed at 100ms and the first exchange is after the first step,
+ * which clocks the system in exactly the same way as the test harness. The step can be made
+ * larger, or adaptive, for long runs where the physical units do not need to be looked at
+ * closely. An adaptive step doubles while the rate the water level is changing stays the same
+ * and halves when it does not, so it takes big steps whilst nothing is happening.
+ * @author Caitlin
+ *
+ */
+public final class SimulationClock {
+
+  /**
+   * The length of a cycle in milliseconds, which is five seconds.
+   */
+  public static final int CYCLE = 5000;
+
+  /**
+   * The default step in milliseconds, which is what the test harness uses.
+   */
+  public static final int DEFAULT_STEP = 100;
+
+  /**
+   * The kinds of event. An exchange of messages happens before any failures and repairs at the
+   * same time, which happen in the order they were scheduled.
+   * @author Caitlin
+   *
+   */
+  public enum Kind {
+    /**
+     * The controller and the physical units exchange messages.
+     */
+    SYNC,
+    /**
+     * A failure is injected into the physical units.
+     */
+    INJECTION,
+    /**
+     * A unit of the physical units is repaired.
+     */
+    REPAIR
+  }
+
+  /**
+   * The controller being clocked.
+   */
+  private final SteamBoilerController controller;
+
+  /**
+   * The physical units being clocked.
+   */
+  private final PhysicalUnits model;
+
+  /**
+   * The mailbox for the messages to the controller, which is reused every cycle.
+   */
+  private final ArrayMailbox input;
+
+  /**
+   * The mailbox for the messages from the controller, which is reused every cycle.
+   */
+  private final ArrayMailbox output;
+
+  /**
+   * The events still to happen, earliest first.
+   */
+  private final PriorityQueue<Event> events = new PriorityQueue<>();
+
+  /**
+   * The event for the next exchange of messages, which is reused every cycle.
+   */
+  private final Event sync;
+
+  /**
+   * The number of events scheduled so far, which orders failures and repairs at the same time.
+   */
+  private long scheduled;
+
+  /**
+   * The amount of time the physical units have been clocked for, in milliseconds.
+   */
+  private long time;
+
+  /**
+   * The number of exchanges of messages so far.
+   */
+  private long cycles;
+
+  /**
+   * The smallest step in milliseconds, which is the step when it is not adaptive.
+   */
+  private int minStep = DEFAULT_STEP;
+
+  /**
+   * The largest step in milliseconds.
+   */
+  private int maxStep = DEFAULT_STEP;
+
+  /**
+   * How much the rate of change of the water level can change by, in litres per second, for
+   * the step to keep growing.
+   */
+  private double tolerance;
+
+  /**
+   * The current step, when it is adaptive.
+   */
+  private int step = DEFAULT_STEP;
+
+  /**
+   * The number of steps the physical units have been clocked in.
+   */
+  private long steps;
+
+  /**
+   * Construct a clock for a controller and the physical units it controls, at time zero.
+   * @param controller = the controller.
+   * @param model = the physical units.
+   */
+  public SimulationClock(SteamBoilerController controller, PhysicalUnits model) {
+    this(controller, model, new ArrayMailbox(100), new ArrayMailbox(100));
+  }
+
+  /**
+   * Construct a clock for a controller and the physical units it controls, at time zero, which
+   * exchanges messages through given mailboxes. These are cleared every cycle.
+   * @param controller = the controller.
+   * @param model = the physical units.
+   * @param input = the mailbox for the messages to the controller.
+   * @param output = the mailbox for the messages from the controller.
+   */
+  public SimulationClock(SteamBoilerController controller, PhysicalUnits model,
+      ArrayMailbox input, ArrayMailbox output) {
+    this.controller = controller;
+    this.model = model;
+    this.input = input;
+    this.output = output;
+    this.sync = new Event(DEFAULT_STEP, Kind.SYNC, 0, null);
+    this.events.add(this.sync);
+  }
+
+  /**
+   * Use a fixed step. The first exchange of messages happens after the first step, and then
+   * every cycle. This can only be set before the clock is run.
+   * @param fixedStep = the step in milliseconds, which must divide the cycle.
+   * @return = this clock.
+   */
+  public SimulationClock setStep(int fixedStep) {
+    checkNotStarted();
+    if (fixedStep <= 0 || CYCLE % fixedStep != 0) {
+      throw new IllegalArgumentException("step must divide the cycle: " + fixedStep); //$NON-NLS-1$
+    }
+    this.minStep = fixedStep;
+    this.maxStep = fixedStep;
+    this.step = fixedStep;
+    moveFirstSync(fixedStep);
+    return this;
+  }
+
+  /**
+   * Use an adaptive step. The first exchange of messages happens after the smallest step, and
+   * then every cycle. This can only be set before the clock is run.
+   * @param smallest = the smallest step in milliseconds, which must divide the cycle.
+   * @param largest = the largest step in milliseconds.
+   * @param change = how much the rate of change of the water level can change by between
+   *     steps, in litres per second, for the step to keep growing.
+   * @return = this clock.
+   */
+  public SimulationClock setAdaptiveStep(int smallest, int largest, double change) {
+    setStep(smallest);
+    if (largest < smallest) {
+      throw new IllegalArgumentException("largest step is below the smallest"); //$NON-NLS-1$
+    }
+    this.maxStep = largest;
+    this.tolerance = change;
+    return this;
+  }
+
+  /**
+   * Schedule a failure to be injected into the physical units.
+   * @param at = the time in milliseconds, which must not be in the past.
+   * @param failure = the failure, which is given the physical units.
+   */
+  public void inject(long at, Consumer<PhysicalUnits> failure) {
+    schedule(at, Kind.INJECTION, failure);
+  }
+
+  /**
+   * Schedule a repair of the physical units.
+   * @param at = the time in milliseconds, which must not be in the past.
+   * @param repair = the repair, which is given the physical units.
+   */
+  public void repair(long at, Consumer<PhysicalUnits> repair) {
+    schedule(at, Kind.REPAIR, repair);
+  }
+
+  /**
+   * Schedule an event.
+   * @param at = the time in milliseconds.
+   * @param kind = the kind of event, which is not a sync.
+   * @param action = what happens to the physical units.
+   */
+  private void schedule(long at, Kind kind, Consumer<PhysicalUnits> action) {
+    if (at < this.time) {
+      throw new IllegalArgumentException("cannot schedule at " + at //$NON-NLS-1$
+          + "ms, which is before " + this.time + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    this.events.add(new Event(at, kind, ++this.scheduled, action));
+  }
+
+  /**
+   * Clock the system up to a given time, or until the messages from the controller satisfy a
+   * condition. Failures and repairs scheduled for the time it stops at have not happened yet.
+   * @param until = the time to clock up to, in milliseconds.
+   * @param stop = checked with the messages from the controller after every exchange.
+   * @return = the messages which satisfied the condition, or null if the time was reached.
+   *     These are only valid until the clock is next run.
+   */
+  public @Nullable Mailbox runUntil(long until, Predicate<Mailbox> stop) {
+    while (true) {
+      Event next = this.events.peek();
+      assert next != null; // there is always a sync to come
+      long target = Math.min(next.time, until);
+      advanceTo(target);
+      if (next.time > until || (next.time == until && next.kind != Kind.SYNC)) {
+        return null;
+      }
+      this.events.poll();
+      if (next.kind == Kind.SYNC) {
+        Mailbox output = exchange();
+        next.time += CYCLE;
+        this.events.add(next);
+        if (stop.test(output)) {
+          return output;
+        }
+      } else {
+        Consumer<PhysicalUnits> action = next.action;
+        assert action != null;
+        action.accept(this.model);
+      }
+    }
+  }
+
+  /**
+   * Clock the system up to a given time.
+   * @param until = the time to clock up to, in milliseconds.
+   */
+  public void run(long until) {
+    runUntil(until, output -> false);
+  }
+
+  /**
+   * Exchange messages between the controller and the physical units.
+   * @return = the messages from the controller.
+   */
+  private Mailbox exchange() {
+    this.input.clear();
+    this.output.clear();
+    this.model.transmit(this.input);
+    this.controller.clock(this.input, this.output);
+    this.model.receive(this.output);
+    this.cycles++;
+    return this.output;
+  }
+
+  /**
+   * Clock the physical units up to a given time in steps.
+   * @param target = the time in milliseconds.
+   */
+  private void advanceTo(long target) {
+    if (this.minStep == this.maxStep) {
+      while (this.time < target) {
+        int next = (int) Math.min(this.minStep, target - this.time);
+        this.model.clock(next);
+        this.time += next;
+        this.steps++;
+      }
+      return;
+    }
+    double level = this.model.getBoiler().getWaterLevel();
+    double rate = Double.NaN;
+    while (this.time < target) {
+      int next = (int) Math.min(this.step, target - this.time);
+      this.model.clock(next);
+      this.time += next;
+      this.steps++;
+      double after = this.model.getBoiler().getWaterLevel();
+      double newRate = (after - level) * 1000.0 / next;
+      // Grow the step whilst the level changes steadily, and shrink it as soon as it doesn't
+      if (Math.abs(newRate - rate) <= this.tolerance) {
+        this.step = Math.min(this.step * 2, this.maxStep);
+      } else if (!Double.isNaN(rate)) {
+        this.step = Math.max(this.step / 2, this.minStep);
+      }
+      level = after;
+      rate = newRate;
+    }
+  }
+
+  /**
+   * Move the first exchange of messages, before the clock has been run.
+   * @param at = the time of the first exchange in milliseconds.
+   */
+  private void moveFirstSync(long at) {
+    this.events.remove(this.sync);
+    this.sync.time = at;
+    this.events.add(this.sync);
+  }
+
+  /**
+   * Check the clock has not been run yet.
+   */
+  private void checkNotStarted() {
+    if (this.time != 0 || this.cycles != 0) {
+      throw new IllegalStateException("the clock has already been run"); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Get the amount of time the physical units have been clocked for.
+   * @return = the time in milliseconds.
+   */
+  public long getTime() {
+    return this.time;
+  }
+
+  /**
+   * Get the number of times the controller and physical units have exchanged messages.
+   * @return = the number of cycles.
+   */
+  public long getCycles() {
+    return this.cycles;
+  }
+
+  /**
+   * Get the number of steps the physical units have been clocked in.
+   * @return = the number of steps.
+   */
+  public long getSteps() {
+    return this.steps;
+  }
+
+  /**
+   * Something which happens at a given time.
+   * @author Caitlin
+   *
+   */
+  private static final class Event implements Comparable<Event> {
+    /**
+     * The time it happens in milliseconds.
+     */
+    long time;
+
+    /**
+     * What kind of event it is.
+     */
+    final Kind kind;
+
+    /**
+     * The order it was scheduled in.
+     */
+    final long sequence;
+
+    /**
+     * What happens to the physical units, or null for a sync.
+     */
+    final @Nullable Consumer<PhysicalUnits> action;
+
+    /**
+     * Construct an event.
+     * @param time = the time it happens in milliseconds.
+     * @param kind = what kind of event it is.
+     * @param sequence = the order it was scheduled in.
+     * @param action = what happens to the physical units, or null for a sync.
+     */
+    Event(long time, Kind kind, long sequence, @Nullable Consumer<PhysicalUnits> action) {
+      this.time = time;
+      this.kind = kind;
+      this.sequence = sequence;
+      this.action = action;
+    }
+
+    @Override
+    public int compareTo(Event other) {
+      if (this.time != other.time) {
+        return Long.compare(this.time, other.time);
+      }
+      if ((this.kind == Kind.SYNC) != (other.kind == Kind.SYNC)) {
+        return this.kind == Kind.SYNC ? -1 : 1;
+      }
+      return Long.compare(this.sequence, other.sequence);
+    }
+  }
+}
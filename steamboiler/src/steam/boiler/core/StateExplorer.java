@@ -0,0 +1,1067 @@
+package steam.boiler.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.core.MySteamBoilerController.Snapshot;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Explores every state the controller can get into, breadth first, and checks invariants on
+ * every transition between them. A state is the controller's mode, its flags and pump bitsets,
+ * and the bands the last water and steam readings were in. Every cycle it can be sent:
+ *
+ * <ul>
+ * <li>a water reading from each band, which are below zero, below the minimum limit, below
+ * the minimum normal level, below the middle, below the maximum normal level, below the maximum
+ * limit, below the capacity and at the capacity;</li>
+ * <li>a steam reading of zero, half the maximum, below zero or above the maximum;</li>
+ * <li>the pump and pump controller states it expects, or one of them the wrong way round;</li>
+ * <li>no other message, or one of the signals, acknowledgements or repairs;</li>
+ * <li>or, instead of all that, the readings with the level, steam or first pump state message
+ * missing.</li>
+ * </ul>
+ *
+ * <p>The controller only keeps the readings until the next cycle, so which reading in a band
+ * it was sent only changes how many pumps it opens. The exploration covers one reading per
+ * band, so an invariant which holds has been proved for those readings rather than for every
+ * reading. An invariant which does not hold comes with the shortest run which breaks it.
+ *
+ * <p>Each state is packed into a long, so boilers with up to six pumps can be explored. The
+ * states visited are kept in a fixed size hash set of longs, along with how each was first
+ * reached. Each level of the search is split up across a work-stealing pool, and the states
+ * are added to the set without locking, so a search on more cores finds the same states in
+ * the same number of levels.
+ * @author Caitlin
+ *
+ */
+public class StateExplorer {
+
+  /**
+   * The invariant that a transmission failure always leads to an emergency stop.
+   */
+  public static final String TRANSMISSION_FAILURE_STOPS = "transmission-failure-stops"; //$NON-NLS-1$
+
+  /**
+   * The invariant that exactly one mode message is sent every cycle, for the mode the
+   * controller is in.
+   */
+  public static final String MODE_MESSAGES = "mode-messages"; //$NON-NLS-1$
+
+  /**
+   * The invariant that nothing leaves an emergency stop.
+   */
+  public static final String STOP_IS_FINAL = "stop-is-final"; //$NON-NLS-1$
+
+  /**
+   * The most pumps a state can be packed into a long for.
+   */
+  public static final int MAX_PUMPS = 6;
+
+  /**
+   * The number of bands of water readings.
+   */
+  private static final int WATER_BANDS = 8;
+
+  /**
+   * The number of bands of steam readings.
+   */
+  private static final int STEAM_BANDS = 4;
+
+  /**
+   * The number of inputs which are a transmission failure.
+   */
+  private static final int TRANSMISSION_FAILURES = 3;
+
+  /**
+   * The number of messages which can be sent along with the readings, apart from those for
+   * a single pump.
+   */
+  private static final int SIGNALS = 7;
+
+  /**
+   * The number of messages for a single pump which can be sent along with the readings.
+   */
+  private static final int PUMP_SIGNALS = 4;
+
+  /**
+   * The number of states below which a task expands its states itself rather than splitting.
+   */
+  private static final int THRESHOLD = 16;
+
+  /**
+   * The boiler characteristics being explored.
+   */
+  private final SteamBoilerCharacteristics config;
+
+  /**
+   * The number of pumps.
+   */
+  private final int numberOfPumps;
+
+  /**
+   * The water reading sent for each band.
+   */
+  private final double[] waterReadings = new double[WATER_BANDS];
+
+  /**
+   * Where each band of water readings above zero ends, which is where the next starts.
+   */
+  private final double[] waterBounds;
+
+  /**
+   * The steam reading sent for each band.
+   */
+  private final double[] steamReadings = new double[STEAM_BANDS];
+
+  /**
+   * The number of inputs from each state.
+   */
+  private final int inputs;
+
+  /**
+   * The invariants checked, by name.
+   */
+  private final Map<String, Predicate<Transition>> invariants = new LinkedHashMap<>();
+
+  /**
+   * The most states to visit.
+   */
+  private int maxStates = 1 << 20;
+
+  /**
+   * The most levels to search.
+   */
+  private int maxDepth = Integer.MAX_VALUE;
+
+  /**
+   * The pool the search is run on.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * Construct an explorer for a given boiler, run on the common pool, checking the standard
+   * invariants.
+   * @param config = the boiler characteristics.
+   */
+  public StateExplorer(SteamBoilerCharacteristics config) {
+    this(config, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Construct an explorer for a given boiler, checking the standard invariants.
+   * @param config = the boiler characteristics.
+   * @param pool = the pool to run the search on.
+   */
+  public StateExplorer(SteamBoilerCharacteristics config, ForkJoinPool pool) {
+    this.numberOfPumps = config.getNumberOfPumps();
+    if (this.numberOfPumps < 1 || this.numberOfPumps > MAX_PUMPS) {
+      throw new IllegalArgumentException("cannot explore a boiler with " //$NON-NLS-1$
+          + this.numberOfPumps + " pumps"); //$NON-NLS-1$
+    }
+    this.config = config;
+    this.pool = pool;
+    double minLimit = config.getMinimalLimitLevel();
+    double minNormal = config.getMinimalNormalLevel();
+    double maxNormal = config.getMaximalNormalLevel();
+    double maxLimit = config.getMaximalLimitLevel();
+    double middle = minNormal + (maxNormal - minNormal) / 2.0;
+    double capacity = config.getCapacity();
+    this.waterBounds = new double[] { 0.0, minLimit, minNormal, middle, maxNormal, maxLimit,
+        capacity };
+    // Half way across each band, apart from the failed readings either end
+    double[] water = this.waterReadings;
+    water[0] = -1.0;
+    for (int band = 1; band < WATER_BANDS - 1; band++) {
+      water[band] = (this.waterBounds[band - 1] + this.waterBounds[band]) / 2.0;
+    }
+    water[WATER_BANDS - 1] = capacity;
+    double maxSteam = config.getMaximualSteamRate();
+    double[] steam = this.steamReadings;
+    steam[0] = 0.0;
+    steam[1] = maxSteam / 2.0;
+    steam[2] = -1.0;
+    steam[3] = maxSteam + 1.0;
+    this.inputs = TRANSMISSION_FAILURES + WATER_BANDS * STEAM_BANDS
+        * (1 + 2 * this.numberOfPumps) * (SIGNALS + PUMP_SIGNALS * this.numberOfPumps);
+    this.invariants.put(TRANSMISSION_FAILURE_STOPS,
+        t -> !t.isTransmissionFailure() || t.getTo() == TransitionTable.EMERGENCY_STOP);
+    this.invariants.put(MODE_MESSAGES, StateExplorer::oneModeMessage);
+    this.invariants.put(STOP_IS_FINAL, t -> t.getFrom() != TransitionTable.EMERGENCY_STOP
+        || t.getTo() == TransitionTable.EMERGENCY_STOP);
+  }
+
+  /**
+   * Check exactly one mode message is sent, for the mode the controller is in.
+   * @param transition = the transition.
+   * @return = if it is.
+   */
+  private static boolean oneModeMessage(Transition transition) {
+    Mailbox outgoing = transition.getOutgoing();
+    int count = 0;
+    for (int i = 0; i < outgoing.size(); i++) {
+      Message message = outgoing.read(i);
+      if (message.getKind() == MessageKind.MODE_m) {
+        if (message.getModeParameter() != TransitionTable.mode(transition.getTo())) {
+          return false;
+        }
+        count++;
+      }
+    }
+    return count == 1;
+  }
+
+  /**
+   * Check another invariant on every transition.
+   * @param name = the name of the invariant.
+   * @param holds = whether the invariant holds for a transition.
+   * @return = this explorer.
+   */
+  public StateExplorer addInvariant(String name, Predicate<Transition> holds) {
+    this.invariants.put(name, holds);
+    return this;
+  }
+
+  /**
+   * Set the most states to visit, which the memory for the visited states is allocated for.
+   * @param most = the number of states.
+   * @return = this explorer.
+   */
+  public StateExplorer setMaxStates(int most) {
+    if (most < 1 || most > 1 << 29) {
+      throw new IllegalArgumentException("bad number of states " + most); //$NON-NLS-1$
+    }
+    this.maxStates = most;
+    return this;
+  }
+
+  /**
+   * Set the most levels to search, for a search which only needs to go so many cycles from
+   * the start.
+   * @param most = the number of levels.
+   * @return = this explorer.
+   */
+  public StateExplorer setMaxDepth(int most) {
+    if (most < 0) {
+      throw new IllegalArgumentException("bad depth " + most); //$NON-NLS-1$
+    }
+    this.maxDepth = most;
+    return this;
+  }
+
+  /**
+   * Get the number of inputs tried from every state.
+   * @return = the number of inputs.
+   */
+  public int getInputs() {
+    return this.inputs;
+  }
+
+  /**
+   * Explore every state reachable from a controller which has just been constructed.
+   * @return = the report.
+   * @throws IllegalStateException = if there are more states than the most to visit.
+   */
+  public Report explore() {
+    long start = System.nanoTime();
+    Visited visited = new Visited(this.maxStates);
+    Report report = new Report(this.invariants.keySet());
+    MySteamBoilerController controller = new MySteamBoilerController(this.config);
+    long initial = encode(controller.snapshot(), waterBand(0.0), steamBand(0.0));
+    visited.add(initial, 0, -1);
+    long[] frontier = { initial };
+    while (frontier.length > 0 && report.depth < this.maxDepth) {
+      frontier = this.pool.invoke(new Level(frontier, 0, frontier.length, visited, report));
+      if (frontier.length > 0) {
+        report.depth++;
+      }
+    }
+    report.states = visited.size.get();
+    report.complete = frontier.length == 0;
+    for (Violation violation : report.first.values()) {
+      violation.run = run(visited, violation.from, violation.input);
+    }
+    report.wallNanos = System.nanoTime() - start;
+    return report;
+  }
+
+  /**
+   * Expands a range of the states at one level of the search, splitting the range until it is
+   * small enough.
+   * @author Caitlin
+   *
+   */
+  private final class Level extends RecursiveTask<long[]> {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The states at this level.
+     */
+    private final long[] frontier;
+
+    /**
+     * The index of the first state in the range.
+     */
+    private final int from;
+
+    /**
+     * The index one past the last state in the range.
+     */
+    private final int to;
+
+    /**
+     * The states visited so far.
+     */
+    private final Visited visited;
+
+    /**
+     * The report to add to.
+     */
+    private final Report report;
+
+    /**
+     * Construct a task for a range of states.
+     * @param frontier = the states at this level.
+     * @param from = the index of the first state.
+     * @param to = the index one past the last state.
+     * @param visited = the states visited so far.
+     * @param report = the report to add to.
+     */
+    Level(long[] frontier, int from, int to, Visited visited, Report report) {
+      this.frontier = frontier;
+      this.from = from;
+      this.to = to;
+      this.visited = visited;
+      this.report = report;
+    }
+
+    @Override
+    protected long[] compute() {
+      if (this.to - this.from <= THRESHOLD) {
+        return expand(this.frontier, this.from, this.to, this.visited, this.report);
+      }
+      int mid = (this.from + this.to) >>> 1;
+      Level right = new Level(this.frontier, mid, this.to, this.visited, this.report);
+      right.fork();
+      long[] left = new Level(this.frontier, this.from, mid, this.visited, this.report).compute();
+      long[] rest = right.join();
+      long[] both = new long[left.length + rest.length];
+      System.arraycopy(left, 0, both, 0, left.length);
+      System.arraycopy(rest, 0, both, left.length, rest.length);
+      return both;
+    }
+  }
+
+  /**
+   * Try every input from a range of states.
+   * @param frontier = the states at this level.
+   * @param from = the index of the first state.
+   * @param to = the index one past the last state.
+   * @param visited = the states visited so far.
+   * @param report = the report to add to.
+   * @return = the states reached which had not been visited before.
+   */
+  long[] expand(long[] frontier, int from, int to, Visited visited, Report report) {
+    MySteamBoilerController controller = new MySteamBoilerController(this.config);
+    Snapshot before = new Snapshot(this.numberOfPumps);
+    Snapshot after = new Snapshot(this.numberOfPumps);
+    ArrayMailbox incoming = new ArrayMailbox(4 + 2 * this.numberOfPumps);
+    ArrayMailbox outgoing = new ArrayMailbox(8 + 4 * this.numberOfPumps);
+    Message scratch = new Message(MessageKind.VALVE);
+    Transition transition = new Transition(outgoing);
+    long[] found = new long[16];
+    int size = 0;
+    for (int s = from; s < to; s++) {
+      long state = frontier[s];
+      decode(state, before);
+      for (int input = 0; input < this.inputs; input++) {
+        controller.restore(before);
+        incoming.clear();
+        outgoing.clear();
+        int water = send(state, input, before, incoming, scratch);
+        controller.clock(incoming, outgoing);
+        controller.snapshot(after);
+        transition.set(before.mode, after.mode, input < TRANSMISSION_FAILURES,
+            this.waterReadings[water >> 2], this.steamReadings[water & 3]);
+        for (Map.Entry<String, Predicate<Transition>> invariant : this.invariants.entrySet()) {
+          if (!invariant.getValue().test(transition)) {
+            report.violate(invariant.getKey(), state, input);
+          }
+        }
+        long next = encode(after, water >> 2, water & 3);
+        if (visited.add(next, state, input)) {
+          if (size == found.length) {
+            long[] grown = new long[2 * size];
+            System.arraycopy(found, 0, grown, 0, size);
+            found = grown;
+          }
+          found[size++] = next;
+        }
+      }
+    }
+    report.transitions.add((long) (to - from) * this.inputs);
+    long[] result = new long[size];
+    System.arraycopy(found, 0, result, 0, size);
+    return result;
+  }
+
+  /**
+   * Send the messages of an input.
+   * @param state = the state the input is sent in.
+   * @param input = the input.
+   * @param before = the state, unpacked.
+   * @param incoming = the mailbox to send to.
+   * @param scratch = the message to build each message in.
+   * @return = the water band of the readings shifted left two bits, and the steam band.
+   */
+  private int send(long state, int input, Snapshot before, Mailbox incoming, Message scratch) {
+    int n = this.numberOfPumps;
+    int failure = 0;
+    int water = (int) (state >>> 50) & 7;
+    int steam = (int) (state >>> 48) & 3;
+    int unit = 0;
+    int signal = 0;
+    if (input < TRANSMISSION_FAILURES) {
+      failure = input + 1;
+    } else {
+      int rest = input - TRANSMISSION_FAILURES;
+      int signals = SIGNALS + PUMP_SIGNALS * n;
+      signal = rest % signals;
+      rest /= signals;
+      unit = rest % (1 + 2 * n);
+      rest /= 1 + 2 * n;
+      steam = rest % STEAM_BANDS;
+      water = rest / STEAM_BANDS;
+    }
+    if (failure != 1) {
+      incoming.send(scratch.set(MessageKind.LEVEL_v, this.waterReadings[water]));
+    }
+    if (failure != 2) {
+      incoming.send(scratch.set(MessageKind.STEAM_v, this.steamReadings[steam]));
+    }
+    long open = before.pumps[2];
+    for (int p = failure == 3 ? 1 : 0; p < n; p++) {
+      boolean isOpen = ((open >>> p) & 1) != 0;
+      incoming.send(scratch.set(MessageKind.PUMP_STATE_n_b, p, isOpen != (unit == 1 + p)));
+    }
+    for (int p = 0; p < n; p++) {
+      boolean isOpen = ((open >>> p) & 1) != 0;
+      incoming.send(scratch.set(MessageKind.PUMP_CONTROL_STATE_n_b, p,
+          isOpen != (unit == 1 + n + p)));
+    }
+    if (signal > 0) {
+      incoming.send(signal(signal, scratch));
+    }
+    return water << 2 | steam;
+  }
+
+  /**
+   * Build one of the messages which can be sent along with the readings.
+   * @param signal = the number of the message, from one.
+   * @param scratch = the message to build it in.
+   * @return = the message.
+   */
+  private static Message signal(int signal, Message scratch) {
+    switch (signal) {
+      case 1:
+        return scratch.set(MessageKind.STEAM_BOILER_WAITING);
+      case 2:
+        return scratch.set(MessageKind.PHYSICAL_UNITS_READY);
+      case 3:
+        return scratch.set(MessageKind.LEVEL_FAILURE_ACKNOWLEDGEMENT);
+      case 4:
+        return scratch.set(MessageKind.STEAM_OUTCOME_FAILURE_ACKNOWLEDGEMENT);
+      case 5:
+        return scratch.set(MessageKind.LEVEL_REPAIRED);
+      case 6:
+        return scratch.set(MessageKind.STEAM_REPAIRED);
+      default:
+        int pump = (signal - SIGNALS) / PUMP_SIGNALS;
+        switch ((signal - SIGNALS) % PUMP_SIGNALS) {
+          case 0:
+            return scratch.set(MessageKind.PUMP_FAILURE_ACKNOWLEDGEMENT_n, pump);
+          case 1:
+            return scratch.set(MessageKind.PUMP_REPAIRED_n, pump);
+          case 2:
+            return scratch.set(MessageKind.PUMP_CONTROL_FAILURE_ACKNOWLEDGEMENT_n, pump);
+          default:
+            return scratch.set(MessageKind.PUMP_CONTROL_REPAIRED_n, pump);
+        }
+    }
+  }
+
+  /**
+   * Describe an input.
+   * @param state = the state the input is sent in.
+   * @param input = the input.
+   * @return = the description.
+   */
+  public String describe(long state, int input) {
+    Snapshot before = new Snapshot(this.numberOfPumps);
+    decode(state, before);
+    ArrayMailbox incoming = new ArrayMailbox(4 + 2 * this.numberOfPumps);
+    send(state, input, before, incoming, new Message(MessageKind.VALVE));
+    return incoming.toString();
+  }
+
+  /**
+   * Find the run of inputs which first reached a state, and then sent one more input.
+   * @param visited = the states visited.
+   * @param state = the state.
+   * @param input = the last input.
+   * @return = the inputs, described, from the start.
+   */
+  private List<String> run(Visited visited, long state, int input) {
+    List<String> run = new ArrayList<>();
+    run.add(describe(state, input));
+    long at = state;
+    while (true) {
+      int slot = visited.find(at);
+      int reachedBy = visited.inputs[slot];
+      if (reachedBy < 0) {
+        break;
+      }
+      long parent = visited.parents[slot];
+      run.add(describe(parent, reachedBy));
+      at = parent;
+    }
+    Collections.reverse(run);
+    return run;
+  }
+
+  /**
+   * Pack a state into a long. The top bit is always set, so no state is zero.
+   * @param snapshot = the controller's state.
+   * @param water = the band of the last water reading.
+   * @param steam = the band of the last steam reading.
+   * @return = the state.
+   */
+  private long encode(Snapshot snapshot, int water, int steam) {
+    int n = this.numberOfPumps;
+    long mask = (1L << n) - 1;
+    long state = 1L << 63 | (long) snapshot.mode << 60 | (long) snapshot.flags << 53
+        | (long) water << 50 | (long) steam << 48;
+    for (int a = 0; a < 7; a++) {
+      state |= (snapshot.pumps[a] & mask) << (a * n);
+    }
+    return state;
+  }
+
+  /**
+   * Unpack a state into a snapshot, with the readings of its bands.
+   * @param state = the state.
+   * @param into = the snapshot.
+   */
+  private void decode(long state, Snapshot into) {
+    int n = this.numberOfPumps;
+    long mask = (1L << n) - 1;
+    into.mode = (int) (state >>> 60) & 7;
+    into.flags = (int) (state >>> 53) & 127;
+    into.waterLevel = this.waterReadings[(int) (state >>> 50) & 7];
+    into.steamLevel = this.steamReadings[(int) (state >>> 48) & 3];
+    for (int a = 0; a < 7; a++) {
+      into.pumps[a] = (state >>> (a * n)) & mask;
+    }
+  }
+
+  /**
+   * Get the band a water reading is in.
+   * @param level = the reading.
+   * @return = the band.
+   */
+  private int waterBand(double level) {
+    if (level < 0) {
+      return 0;
+    }
+    int band = 1;
+    while (band < WATER_BANDS - 1 && level >= this.waterBounds[band]) {
+      band++;
+    }
+    return band;
+  }
+
+  /**
+   * Get the band a steam reading is in.
+   * @param level = the reading.
+   * @return = the band.
+   */
+  private int steamBand(double level) {
+    if (level < 0) {
+      return 2;
+    } else if (level > this.config.getMaximualSteamRate()) {
+      return 3;
+    }
+    return level == 0 ? 0 : 1;
+  }
+
+  /**
+   * One transition of the controller, for checking an invariant on.
+   * @author Caitlin
+   *
+   */
+  public static final class Transition {
+
+    /**
+     * The messages the controller sent.
+     */
+    private final Mailbox outgoing;
+
+    /**
+     * The state the controller was in, as in {@link TransitionTable}.
+     */
+    private int from;
+
+    /**
+     * The state the controller went into.
+     */
+    private int to;
+
+    /**
+     * Whether the input was a transmission failure.
+     */
+    private boolean transmissionFailure;
+
+    /**
+     * The water reading sent, or last sent if the input was a transmission failure.
+     */
+    private double water;
+
+    /**
+     * The steam reading sent, or last sent if the input was a transmission failure.
+     */
+    private double steam;
+
+    /**
+     * Construct a transition which the messages sent are read from a mailbox for.
+     * @param outgoing = the mailbox.
+     */
+    Transition(Mailbox outgoing) {
+      this.outgoing = outgoing;
+    }
+
+    /**
+     * Set what happened.
+     * @param from = the state the controller was in.
+     * @param to = the state it went into.
+     * @param transmissionFailure = whether the input was a transmission failure.
+     * @param water = the water reading.
+     * @param steam = the steam reading.
+     */
+    void set(int from, int to, boolean transmissionFailure, double water, double steam) {
+      this.from = from;
+      this.to = to;
+      this.transmissionFailure = transmissionFailure;
+      this.water = water;
+      this.steam = steam;
+    }
+
+    /**
+     * Get the state the controller was in.
+     * @return = the state, as in {@link TransitionTable}.
+     */
+    public int getFrom() {
+      return this.from;
+    }
+
+    /**
+     * Get the state the controller went into.
+     * @return = the state, as in {@link TransitionTable}.
+     */
+    public int getTo() {
+      return this.to;
+    }
+
+    /**
+     * Check whether a message the controller needed was missing.
+     * @return = if one was.
+     */
+    public boolean isTransmissionFailure() {
+      return this.transmissionFailure;
+    }
+
+    /**
+     * Get the water reading.
+     * @return = the reading.
+     */
+    public double getWaterReading() {
+      return this.water;
+    }
+
+    /**
+     * Get the steam reading.
+     * @return = the reading.
+     */
+    public double getSteamReading() {
+      return this.steam;
+    }
+
+    /**
+     * Get the messages the controller sent.
+     * @return = the messages, which are only valid until the next transition.
+     */
+    public Mailbox getOutgoing() {
+      return this.outgoing;
+    }
+  }
+
+  /**
+   * The states visited, in a hash set of longs which states are added to without locking.
+   * Along with each state is the state it was first reached from, and the input which reached
+   * it. These are only written by the thread which added the state, and only read once the
+   * search is over.
+   * @author Caitlin
+   *
+   */
+  static final class Visited {
+
+    /**
+     * The states, or zero for an empty slot.
+     */
+    final AtomicLongArray keys;
+
+    /**
+     * The state each state was first reached from.
+     */
+    final long[] parents;
+
+    /**
+     * The input each state was first reached by, or -1 for the first state.
+     */
+    final int[] inputs;
+
+    /**
+     * One less than the number of slots.
+     */
+    final int mask;
+
+    /**
+     * The most states which can be added.
+     */
+    final int most;
+
+    /**
+     * The number of states added.
+     */
+    final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Construct an empty set, with at least twice as many slots as states.
+     * @param most = the most states which can be added.
+     */
+    Visited(int most) {
+      int slots = Integer.highestOneBit(most) << 2;
+      this.keys = new AtomicLongArray(slots);
+      this.parents = new long[slots];
+      this.inputs = new int[slots];
+      this.mask = slots - 1;
+      this.most = most;
+    }
+
+    /**
+     * Add a state, if it has not been added already.
+     * @param state = the state, which must not be zero.
+     * @param parent = the state it was reached from.
+     * @param input = the input which reached it.
+     * @return = if it had not been added already.
+     * @throws IllegalStateException = if the set is full.
+     */
+    boolean add(long state, long parent, int input) {
+      int slot = slot(state);
+      while (true) {
+        long key = this.keys.get(slot);
+        if (key == state) {
+          return false;
+        }
+        if (key == 0) {
+          if (!this.keys.compareAndSet(slot, 0, state)) {
+            // Someone else took the slot, which could have been for the same state
+            continue;
+          }
+          this.parents[slot] = parent;
+          this.inputs[slot] = input;
+          if (this.size.incrementAndGet() > this.most) {
+            throw new IllegalStateException("more than " + this.most + " states"); //$NON-NLS-1$ //$NON-NLS-2$
+          }
+          return true;
+        }
+        slot = (slot + 1) & this.mask;
+      }
+    }
+
+    /**
+     * Find the slot of a state which has been added.
+     * @param state = the state.
+     * @return = the slot.
+     */
+    int find(long state) {
+      int slot = slot(state);
+      while (this.keys.get(slot) != state) {
+        slot = (slot + 1) & this.mask;
+      }
+      return slot;
+    }
+
+    /**
+     * Get the slot to start looking for a state in.
+     * @param state = the state.
+     * @return = the slot.
+     */
+    private int slot(long state) {
+      long hash = state * 0x9E3779B97F4A7C15L;
+      return (int) (hash ^ (hash >>> 32)) & this.mask;
+    }
+  }
+
+  /**
+   * The first run found which breaks an invariant.
+   * @author Caitlin
+   *
+   */
+  static final class Violation {
+
+    /**
+     * The level of the search it was found at.
+     */
+    final int depth;
+
+    /**
+     * The state the invariant was broken from.
+     */
+    final long from;
+
+    /**
+     * The input which broke it.
+     */
+    final int input;
+
+    /**
+     * The inputs from the start, described.
+     */
+    List<String> run = Collections.emptyList();
+
+    /**
+     * Construct a violation.
+     * @param depth = the level of the search.
+     * @param from = the state.
+     * @param input = the input.
+     */
+    Violation(int depth, long from, int input) {
+      this.depth = depth;
+      this.from = from;
+      this.input = input;
+    }
+  }
+
+  /**
+   * What was found by exploring the states.
+   * @author Caitlin
+   *
+   */
+  public static final class Report {
+
+    /**
+     * The number of transitions which broke each invariant, by name.
+     */
+    private final Map<String, LongAdder> violations = new LinkedHashMap<>();
+
+    /**
+     * The first transition found which broke each invariant, by name. Of the shortest runs,
+     * the one from the lowest state and input is kept, so it does not depend on the threads.
+     */
+    final Map<String, Violation> first = new LinkedHashMap<>();
+
+    /**
+     * The number of transitions tried.
+     */
+    final LongAdder transitions = new LongAdder();
+
+    /**
+     * The number of states visited.
+     */
+    int states;
+
+    /**
+     * The number of levels searched.
+     */
+    int depth;
+
+    /**
+     * Whether every reachable state was visited.
+     */
+    boolean complete;
+
+    /**
+     * The wall-clock time taken in nanoseconds.
+     */
+    long wallNanos;
+
+    /**
+     * Construct an empty report.
+     * @param invariants = the names of the invariants checked.
+     */
+    Report(Iterable<String> invariants) {
+      for (String name : invariants) {
+        this.violations.put(name, new LongAdder());
+      }
+    }
+
+    /**
+     * Record a transition which broke an invariant.
+     * @param invariant = the name of the invariant.
+     * @param from = the state.
+     * @param input = the input.
+     */
+    void violate(String invariant, long from, int input) {
+      LongAdder count = this.violations.get(invariant);
+      assert count != null;
+      count.increment();
+      synchronized (this.first) {
+        Violation was = this.first.get(invariant);
+        if (was == null || was.depth > this.depth
+            || (was.depth == this.depth && (was.from > from
+                || (was.from == from && was.input > input)))) {
+          this.first.put(invariant, new Violation(this.depth, from, input));
+        }
+      }
+    }
+
+    /**
+     * Get the number of states visited.
+     * @return = the number of states.
+     */
+    public int getStates() {
+      return this.states;
+    }
+
+    /**
+     * Get the number of transitions tried.
+     * @return = the number of transitions.
+     */
+    public long getTransitions() {
+      return this.transitions.sum();
+    }
+
+    /**
+     * Get the number of levels searched, which is the most cycles any state is from the
+     * start.
+     * @return = the number of levels.
+     */
+    public int getDepth() {
+      return this.depth;
+    }
+
+    /**
+     * Check whether every reachable state was visited, rather than the search stopping at the
+     * most levels.
+     * @return = if it was.
+     */
+    public boolean isComplete() {
+      return this.complete;
+    }
+
+    /**
+     * Check whether an invariant held on every transition tried.
+     * @param invariant = the name of the invariant.
+     * @return = if it did.
+     */
+    public boolean holds(String invariant) {
+      return getViolations(invariant) == 0;
+    }
+
+    /**
+     * Get the number of transitions which broke an invariant.
+     * @param invariant = the name of the invariant.
+     * @return = the number of transitions.
+     */
+    public long getViolations(String invariant) {
+      LongAdder count = this.violations.get(invariant);
+      return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Get the shortest run found which broke an invariant.
+     * @param invariant = the name of the invariant.
+     * @return = the messages sent to the controller each cycle from the start, or null if the
+     *     invariant held.
+     */
+    public @Nullable List<String> getCounterexample(String invariant) {
+      Violation violation = this.first.get(invariant);
+      return violation == null ? null : violation.run;
+    }
+
+    /**
+     * Get the number of states visited every second.
+     * @return = the rate.
+     */
+    public double getStatesPerSecond() {
+      return this.wallNanos == 0 ? 0.0 : this.states * 1e9 / this.wallNanos;
+    }
+
+    /**
+     * Give a summary, one line per figure and invariant.
+     */
+    @Override
+    public String toString() {
+      StringBuilder summary = new StringBuilder();
+      summary.append("states: ").append(this.states).append('\n'); //$NON-NLS-1$
+      summary.append("transitions: ").append(getTransitions()).append('\n'); //$NON-NLS-1$
+      summary.append("depth: ").append(this.depth) //$NON-NLS-1$
+          .append(this.complete ? "" : " (stopped)").append('\n'); //$NON-NLS-1$ //$NON-NLS-2$
+      summary.append("speed: ").append(Math.round(getStatesPerSecond())) //$NON-NLS-1$
+          .append(" states per s\n"); //$NON-NLS-1$
+      for (Map.Entry<String, LongAdder> invariant : this.violations.entrySet()) {
+        long count = invariant.getValue().sum();
+        summary.append(invariant.getKey()).append(": "); //$NON-NLS-1$
+        if (count == 0) {
+          summary.append(this.complete ? "holds\n" : "holds so far\n"); //$NON-NLS-1$ //$NON-NLS-2$
+          continue;
+        }
+        summary.append("broken by ").append(count).append(" transitions\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        Violation violation = this.first.get(invariant.getKey());
+        if (violation != null) {
+          for (String cycle : violation.run) {
+            summary.append("  ").append(cycle).append('\n'); //$NON-NLS-1$
+          }
+        }
+      }
+      return summary.toString();
+    }
+  }
+
+  /**
+   * Explore a default boiler and print a summary. This exits with status 2 if an invariant
+   * was broken.
+   * @param args = optionally the number of pumps, and then the most levels to search.
+   */
+  public static void main(String[] args) {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    if (args.length > 0) {
+      config = config.setNumberOfPumps(Integer.parseInt(args[0]), config.getPumpCapacity(0));
+    }
+    StateExplorer explorer = new StateExplorer(config);
+    if (args.length > 1) {
+      explorer.setMaxDepth(Integer.parseInt(args[1]));
+    }
+    Report report = explorer.explore();
+    System.out.print(report);
+    for (String invariant : explorer.invariants.keySet()) {
+      if (!report.holds(invariant)) {
+        System.exit(2);
+      }
+    }
+  }
+}
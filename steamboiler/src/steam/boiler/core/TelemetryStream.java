@@ -0,0 +1,203 @@
+package steam.boiler.core;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.MemoryAnnotations.Initialisation;
+
+/**
+ * Clocks a controller from a stream of frames, one per cycle, and replies with a frame of the
+ * messages it sent. A frame is the length of the rest of the frame as an int, and then the
+ * messages of the cycle as {@link MessageCodec} writes a mailbox.
+ *
+ * <p>Frames are read in place from the buffer they arrive in, which can be direct. The
+ * messages are read into a single scratch message and copied into a mailbox whose messages
+ * are allocated up front, and the reply is written into a buffer which is used again every
+ * cycle, so once the buffers are big enough nothing is allocated. Reading from a channel, the
+ * bytes are read into a direct buffer and frames are taken from it until only part of one is
+ * left, which is moved to the front before reading again.
+ * @author Caitlin
+ *
+ */
+public final class TelemetryStream {
+
+  /**
+   * The longest frame accepted, in bytes, so a corrupt length is not taken as a huge frame.
+   */
+  public static final int MAX_FRAME = 1 << 20;
+
+  /**
+   * The controller being clocked.
+   */
+  private final MySteamBoilerController controller;
+
+  /**
+   * The messages to the controller this cycle.
+   */
+  private final ArrayMailbox incoming;
+
+  /**
+   * The messages from the controller this cycle.
+   */
+  private final ArrayMailbox outgoing;
+
+  /**
+   * The message each message is read into.
+   */
+  private final Message scratch = new Message(MessageKind.VALVE);
+
+  /**
+   * The reply to the last frame.
+   */
+  private ByteBuffer reply;
+
+  /**
+   * The bytes read from a channel and not yet taken as frames, or null if it has not been
+   * read from a channel yet.
+   */
+  private @Nullable ByteBuffer input;
+
+  /**
+   * The number of frames taken.
+   */
+  private long cycles;
+
+  /**
+   * Construct a stream for a controller.
+   * @param controller = the controller.
+   * @param numberOfPumps = the number of pumps, which the mailboxes and buffers are sized for.
+   */
+  @Initialisation
+  public TelemetryStream(MySteamBoilerController controller, int numberOfPumps) {
+    this.controller = controller;
+    this.incoming = new ArrayMailbox(4 + 2 * numberOfPumps);
+    this.outgoing = new ArrayMailbox(8 + 4 * numberOfPumps);
+    this.reply = ByteBuffer.allocateDirect(256 + 32 * numberOfPumps);
+  }
+
+  /**
+   * Take the next frame from a buffer, if a whole one is there, and clock the controller for
+   * it.
+   * @param buffer = the buffer, from its position to its limit. Its position is moved past the
+   *     frame, or left where it is if only part of a frame is there.
+   * @return = the reply frame, from its position to its limit, which is only valid until the
+   *     next frame is taken, or null if there was not a whole frame.
+   * @throws IllegalArgumentException = if the frame is not well formed.
+   */
+  public @Nullable ByteBuffer cycle(ByteBuffer buffer) {
+    int start = buffer.position();
+    if (buffer.limit() - start < 4) {
+      return null;
+    }
+    int length = buffer.getInt(start);
+    if (length < 4 || length > MAX_FRAME) {
+      throw new IllegalArgumentException("bad frame length " + length); //$NON-NLS-1$
+    }
+    int end = start + 4 + length;
+    int limit = buffer.limit();
+    if (end > limit) {
+      return null;
+    }
+    ArrayMailbox messages = this.incoming;
+    messages.clear();
+    buffer.position(start + 4);
+    buffer.limit(end);
+    try {
+      MessageCodec.decode(buffer, messages, this.scratch);
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("frame ends part way through a message", e); //$NON-NLS-1$
+    } finally {
+      buffer.limit(limit);
+    }
+    if (buffer.position() != end) {
+      throw new IllegalArgumentException("frame has " + (end - buffer.position()) //$NON-NLS-1$
+          + " bytes after its messages"); //$NON-NLS-1$
+    }
+    ArrayMailbox sent = this.outgoing;
+    sent.clear();
+    this.controller.clock(messages, sent);
+    int size = 4 + MessageCodec.encodedSize(sent);
+    if (size > this.reply.capacity()) {
+      this.reply = ByteBuffer.allocateDirect(Math.max(size, 2 * this.reply.capacity()));
+    }
+    ByteBuffer out = this.reply;
+    out.clear();
+    frame(sent, out);
+    out.flip();
+    this.cycles++;
+    return out;
+  }
+
+  /**
+   * Clock the controller for every frame read from a channel, and write each reply to another
+   * channel, until the end of the stream. The channels should be blocking.
+   * @param from = the channel to read frames from.
+   * @param to = the channel to write replies to.
+   * @return = the number of frames.
+   * @throws IOException = if either channel fails, a frame is not well formed, or the stream
+   *     ends part way through a frame.
+   */
+  public long run(ReadableByteChannel from, WritableByteChannel to) throws IOException {
+    long first = this.cycles;
+    ByteBuffer buffer = this.input;
+    if (buffer == null) {
+      buffer = ByteBuffer.allocateDirect(64 * 1024);
+      this.input = buffer;
+    }
+    buffer.clear();
+    while (true) {
+      int read = from.read(buffer);
+      buffer.flip();
+      try {
+        for (ByteBuffer out = cycle(buffer); out != null; out = cycle(buffer)) {
+          while (out.hasRemaining()) {
+            to.write(out);
+          }
+        }
+      } catch (IllegalArgumentException e) {
+        throw new IOException("bad frame " + this.cycles + ": " + e.getMessage(), e); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      if (read < 0) {
+        if (buffer.hasRemaining()) {
+          throw new IOException("stream ends part way through frame " + this.cycles); //$NON-NLS-1$
+        }
+        return this.cycles - first;
+      }
+      buffer.compact();
+      if (!buffer.hasRemaining()) {
+        // Part of a frame fills the buffer, so make room for the rest of it
+        ByteBuffer bigger = ByteBuffer.allocateDirect(2 * buffer.capacity());
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+        this.input = bigger;
+      }
+    }
+  }
+
+  /**
+   * Get the number of frames taken.
+   * @return = the number of frames.
+   */
+  public long getCycles() {
+    return this.cycles;
+  }
+
+  /**
+   * Write the messages in a mailbox as a frame.
+   * @param messages = the messages.
+   * @param buffer = the buffer to write to, which must have room for the frame.
+   */
+  public static void frame(Mailbox messages, ByteBuffer buffer) {
+    buffer.putInt(MessageCodec.encodedSize(messages));
+    MessageCodec.encode(messages, buffer);
+  }
+}
@@ -0,0 +1,428 @@
+package steam.boiler.core;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * The controller's modes as a state machine. Each cycle the controller works out the
+ * conditions on the readings once, and puts them together as a set of bits. The next state,
+ * what to do with the pumps and valve, and which failures to report are then looked up in a
+ * table indexed by the state and the conditions. The table is worked out when the class is
+ * loaded, from {@link #decide(int, int)}, so it can also be checked entry by entry without a
+ * boiler.
+ *
+ * <p>Checking the pumps and pump controllers is not just a condition on the readings, as it
+ * detects and reports the first which has failed, so it is only done when the table says the
+ * next state depends on it. The controller then sets {@link #UNIT_FAILURE} if one has failed,
+ * or is yet to be acknowledged or repaired, and looks up the state again. A failure of the
+ * level or steam device is only reported when the next state depends on it too.
+ *
+ * <p>The states are numbered in the same order as the controller's own states, and each one
+ * sends a single mode message.
+ * @author Caitlin
+ *
+ */
+public final class TransitionTable {
+
+  /**
+   * Waiting for the boiler to be ready, and getting the water to the right level.
+   */
+  public static final int WAITING = 0;
+
+  /**
+   * Waiting for the physical units to be ready.
+   */
+  public static final int READY = 1;
+
+  /**
+   * Running with everything working.
+   */
+  public static final int NORMAL = 2;
+
+  /**
+   * Running with a physical unit other than the water level device failed.
+   */
+  public static final int DEGRADED = 3;
+
+  /**
+   * Running with the water level device failed.
+   */
+  public static final int RESCUE = 4;
+
+  /**
+   * Stopped.
+   */
+  public static final int EMERGENCY_STOP = 5;
+
+  /**
+   * The number of states.
+   */
+  public static final int STATES = 6;
+
+  /**
+   * The water level device reads below zero or at least the capacity of the boiler.
+   */
+  public static final int WATER_FAILURE = 1;
+
+  /**
+   * The steam level device reads below zero or above the maximum.
+   */
+  public static final int STEAM_FAILURE = 1 << 1;
+
+  /**
+   * The water level is outside the limits.
+   */
+  public static final int OUTSIDE_LIMITS = 1 << 2;
+
+  /**
+   * The message the state waits for has been received.
+   */
+  public static final int SIGNAL = 1 << 3;
+
+  /**
+   * The boiler cannot be started, as the water level is below zero or above the capacity, or
+   * the steam level is not zero.
+   */
+  public static final int CANNOT_START = 1 << 4;
+
+  /**
+   * The water level is above the normal range.
+   */
+  public static final int WATER_HIGH = 1 << 5;
+
+  /**
+   * The water level is below the normal range.
+   */
+  public static final int WATER_LOW = 1 << 6;
+
+  /**
+   * A pump or pump controller has failed, or is yet to be acknowledged or repaired. This is
+   * only known once the units have been checked.
+   */
+  public static final int UNIT_FAILURE = 1 << 7;
+
+  /**
+   * The number of conditions.
+   */
+  public static final int CONDITIONS = 8;
+
+  /**
+   * Do nothing with the pumps or valve.
+   */
+  public static final int NONE = 0;
+
+  /**
+   * Open the number of pumps predicted to keep the water nearest the middle.
+   */
+  public static final int PREDICT = 1;
+
+  /**
+   * Open one more pump if the water is below the middle, otherwise close one.
+   */
+  public static final int STEP = 2;
+
+  /**
+   * Predict the water level from the open pumps, as it cannot be read, and then step.
+   */
+  public static final int PREDICT_AND_STEP = 3;
+
+  /**
+   * Close every pump and open the valve.
+   */
+  public static final int STOP = 4;
+
+  /**
+   * Tell the physical units the program is ready.
+   */
+  public static final int PROGRAM_READY = 5;
+
+  /**
+   * Open the valve to let water out.
+   */
+  public static final int DRAIN = 6;
+
+  /**
+   * Open the pumps predicted to fill the boiler, and close the valve.
+   */
+  public static final int FILL = 7;
+
+  /**
+   * Close every pump and tell the physical units the program is ready.
+   */
+  public static final int FINISH_WAITING = 8;
+
+  /**
+   * Report the water level device has failed.
+   */
+  public static final int REPORT_WATER = 1;
+
+  /**
+   * Report the steam level device has failed.
+   */
+  public static final int REPORT_STEAM = 2;
+
+  /**
+   * Check the pumps.
+   */
+  public static final int PUMPS = 1;
+
+  /**
+   * Check the pump controllers.
+   */
+  public static final int CONTROLLERS = 2;
+
+  /**
+   * Check the pump controllers before the pumps, rather than after.
+   */
+  public static final int CONTROLLERS_FIRST = 4;
+
+  /**
+   * The entries, indexed by the state and then the conditions. The next state is in the
+   * lowest three bits, then the action in four bits, the failures to report in two bits, and
+   * then whether the units need checking.
+   */
+  private static final short[] TABLE = new short[STATES << CONDITIONS];
+
+  /**
+   * The message each state waits for, or null if it does not wait for one.
+   */
+  private static final @Nullable MessageKind[] SIGNALS = {
+      MessageKind.STEAM_BOILER_WAITING, MessageKind.PHYSICAL_UNITS_READY, null, null, null, null
+  };
+
+  /**
+   * The units checked in each state, and in which order.
+   */
+  private static final int[] UNITS = {
+      0, 0, CONTROLLERS_FIRST | CONTROLLERS | PUMPS, PUMPS | CONTROLLERS, PUMPS, 0
+  };
+
+  /**
+   * Whether the acknowledgements and repairs are processed in each state, before the
+   * conditions are worked out.
+   */
+  private static final boolean[] REPAIRS = {false, false, false, true, true, false};
+
+  /**
+   * The mode sent in each state.
+   */
+  private static final Mailbox.Mode[] MODES = {
+      Mailbox.Mode.INITIALISATION, Mailbox.Mode.INITIALISATION, Mailbox.Mode.NORMAL,
+      Mailbox.Mode.DEGRADED, Mailbox.Mode.RESCUE, Mailbox.Mode.EMERGENCY_STOP
+  };
+
+  static {
+    for (int state = 0; state < STATES; state++) {
+      for (int conditions = 0; conditions < 1 << CONDITIONS; conditions++) {
+        TABLE[(state << CONDITIONS) | conditions] = (short) decide(state, conditions);
+      }
+    }
+  }
+
+  /**
+   * This class is not for constructing.
+   */
+  private TransitionTable() {
+  }
+
+  /**
+   * Work out the next state, the action and the failures to report, the slow way. A failure
+   * is reported if the next state depends on it.
+   * @param state = the current state.
+   * @param conditions = the conditions which hold.
+   * @return = the entry.
+   */
+  private static int decide(int state, int conditions) {
+    boolean water = (conditions & WATER_FAILURE) != 0;
+    boolean steam = (conditions & STEAM_FAILURE) != 0;
+    boolean outside = (conditions & OUTSIDE_LIMITS) != 0;
+    boolean unit = (conditions & UNIT_FAILURE) != 0;
+    int reportWater = water ? REPORT_WATER : 0;
+    int reportSteam = steam ? REPORT_STEAM : 0;
+    switch (state) {
+      case WAITING:
+        if ((conditions & SIGNAL) == 0) {
+          return entry(WAITING, NONE, 0, false);
+        }
+        // The water or steam isn't at the right level to start
+        if ((conditions & CANNOT_START) != 0) {
+          return entry(EMERGENCY_STOP, NONE, 0, false);
+        }
+        if (water) {
+          return entry(EMERGENCY_STOP, NONE, reportWater, false);
+        }
+        if ((conditions & WATER_HIGH) != 0) {
+          return entry(WAITING, DRAIN, 0, false);
+        }
+        if ((conditions & WATER_LOW) != 0) {
+          return entry(WAITING, FILL, 0, false);
+        }
+        return entry(READY, FINISH_WAITING, 0, false);
+      case READY:
+        if ((conditions & SIGNAL) != 0) {
+          return entry(NORMAL, NONE, 0, false);
+        }
+        return entry(READY, PROGRAM_READY, 0, false);
+      case NORMAL:
+        // The water is outside the limits but the level device is working
+        if (!water && outside) {
+          return entry(EMERGENCY_STOP, NONE, 0, false);
+        }
+        if (water) {
+          if (steam) {
+            return entry(EMERGENCY_STOP, NONE, reportWater | reportSteam, false);
+          }
+          // The pumps are still set from the prediction on the way into rescue
+          return entry(RESCUE, PREDICT, reportWater, false);
+        }
+        if (steam) {
+          return entry(DEGRADED, NONE, reportSteam, false);
+        }
+        if (unit) {
+          return entry(DEGRADED, NONE, 0, true);
+        }
+        return entry(NORMAL, PREDICT, 0, true);
+      case DEGRADED:
+        if (water) {
+          if (steam) {
+            return entry(EMERGENCY_STOP, NONE, reportWater | reportSteam, false);
+          }
+          return entry(RESCUE, NONE, reportWater, false);
+        }
+        if (outside) {
+          return entry(EMERGENCY_STOP, NONE, 0, false);
+        }
+        if (steam) {
+          return entry(DEGRADED, STEP, reportSteam, false);
+        }
+        if (unit) {
+          return entry(DEGRADED, STEP, 0, true);
+        }
+        // Everything has been fixed
+        return entry(NORMAL, NONE, 0, true);
+      case RESCUE:
+        if (water) {
+          if (steam) {
+            return entry(EMERGENCY_STOP, NONE, reportWater | reportSteam, false);
+          }
+          if (unit || outside) {
+            return entry(EMERGENCY_STOP, NONE, reportWater, true);
+          }
+          return entry(RESCUE, PREDICT_AND_STEP, reportWater, true);
+        }
+        if (outside) {
+          return entry(EMERGENCY_STOP, NONE, 0, false);
+        }
+        // Once the water level device is fixed, go back to degraded if anything else is not
+        if (steam) {
+          return entry(DEGRADED, NONE, reportSteam, false);
+        }
+        if (unit) {
+          return entry(DEGRADED, NONE, 0, true);
+        }
+        return entry(NORMAL, NONE, 0, true);
+      case EMERGENCY_STOP:
+        return entry(EMERGENCY_STOP, STOP, 0, false);
+      default:
+        throw new IllegalArgumentException("bad state " + state); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Pack an entry.
+   * @param next = the next state.
+   * @param action = the action.
+   * @param reports = the failures to report.
+   * @param checkUnits = if the next state depends on checking the units.
+   * @return = the entry.
+   */
+  private static int entry(int next, int action, int reports, boolean checkUnits) {
+    return next | action << 3 | reports << 7 | (checkUnits ? 1 << 9 : 0);
+  }
+
+  /**
+   * Look up the entry for a state and conditions.
+   * @param state = the current state.
+   * @param conditions = the conditions which hold.
+   * @return = the entry.
+   */
+  public static int lookup(int state, int conditions) {
+    return TABLE[(state << CONDITIONS) | conditions];
+  }
+
+  /**
+   * Get the next state from an entry.
+   * @param entry = the entry.
+   * @return = the next state.
+   */
+  public static int next(int entry) {
+    return entry & 7;
+  }
+
+  /**
+   * Get what to do with the pumps and valve from an entry.
+   * @param entry = the entry.
+   * @return = the action.
+   */
+  public static int action(int entry) {
+    return (entry >> 3) & 15;
+  }
+
+  /**
+   * Get the failures of the level and steam devices to report from an entry.
+   * @param entry = the entry.
+   * @return = the failures, as {@link #REPORT_WATER} and {@link #REPORT_STEAM}.
+   */
+  public static int reports(int entry) {
+    return (entry >> 7) & 3;
+  }
+
+  /**
+   * Check whether the pumps and pump controllers need checking before the entry can be used.
+   * If they do, the entry with {@link #UNIT_FAILURE} set if any have failed is the one to use.
+   * @param entry = the entry.
+   * @return = if they need checking.
+   */
+  public static boolean checksUnits(int entry) {
+    return (entry & 1 << 9) != 0;
+  }
+
+  /**
+   * Get the message a state waits for.
+   * @param state = the state.
+   * @return = the kind of message, or null if the state does not wait for one.
+   */
+  public static @Nullable MessageKind signal(int state) {
+    return SIGNALS[state];
+  }
+
+  /**
+   * Get the units checked in a state.
+   * @param state = the state.
+   * @return = the units, as {@link #PUMPS} and {@link #CONTROLLERS}, with
+   *     {@link #CONTROLLERS_FIRST} if the controllers are checked first.
+   */
+  public static int units(int state) {
+    return UNITS[state];
+  }
+
+  /**
+   * Check whether acknowledgements and repairs are processed in a state.
+   * @param state = the state.
+   * @return = if they are.
+   */
+  public static boolean repairs(int state) {
+    return REPAIRS[state];
+  }
+
+  /**
+   * Get the mode sent in a state.
+   * @param state = the state.
+   * @return = the mode.
+   */
+  public static Mailbox.Mode mode(int state) {
+    return MODES[state];
+  }
+}
@@ -0,0 +1,147 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.SteamBoilerController;
+import steam.boiler.util.Mailbox;
+
+/**
+ * Measures the number of bytes allocated by the current thread around a call to the controller.
+ * This is used to check that the steady-state clock path does not allocate once the controller
+ * has been initialised.
+ *
+ * @author Caitlin
+ *
+ */
+public class AllocationChecker {
+
+  /**
+   * The thread bean, which can report the bytes allocated by each thread.
+   */
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  /**
+   * The number of bytes reported when nothing is allocated between two readings. Some JVMs
+   * allocate when taking the reading itself, so this is subtracted from every measurement.
+   */
+  private static final long OVERHEAD = calibrate();
+
+  /**
+   * Get the total number of bytes allocated by the current thread so far.
+   *
+   * @return The number of bytes.
+   */
+  public static long allocatedBytes() {
+    return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Clock the controller once and fail if it, or the status message which follows it,
+   * allocates anything. The incoming and outgoing mailboxes must be set up beforehand, and the
+   * outgoing mailbox must not allocate when a message is sent to it.
+   *
+   * @param controller
+   *          The controller under test.
+   * @param incoming
+   *          The messages from the physical units.
+   * @param outgoing
+   *          The mailbox for the messages from the controller.
+   */
+  public static void clockWithoutAllocating(SteamBoilerController controller, Mailbox incoming,
+      Mailbox outgoing) {
+    String mode = controller.getStatusMessage();
+    long allocated = clockAllocating(controller, incoming, outgoing);
+    if (allocated > 0) {
+      fail("clock allocated " + allocated + " bytes in " + mode + " mode");
+    }
+  }
+
+  /**
+   * Clock the controller with the physical units for windows of a given number of cycles, until
+   * there is a window in which no cycle allocates. This fails if every window has a cycle which
+   * allocates, so something which allocates every cycle, or every so often, is still caught.
+   *
+   * @param windows
+   *          The number of windows to try.
+   * @param cycles
+   *          The number of cycles in each window.
+   * @param controller
+   *          The controller under test.
+   * @param model
+   *          The physical units being controlled.
+   */
+  public static void clockWithoutAllocating(int windows, int cycles,
+      SteamBoilerController controller, PhysicalUnits model) {
+    ArrayMailbox input = new ArrayMailbox(100);
+    ArrayMailbox output = new ArrayMailbox(100);
+    String failure = null;
+    for (int w = 0; w != windows; ++w) {
+      failure = null;
+      for (int c = 0; c != cycles; ++c) {
+        input.clear();
+        model.transmit(input);
+        output.clear();
+        String mode = controller.getStatusMessage();
+        long allocated = clockAllocating(controller, input, output);
+        if (allocated > 0 && failure == null) {
+          failure = "clock allocated " + allocated + " bytes in " + mode + " mode";
+        }
+        model.receive(output);
+        for (int t = 0; t != 5000; t += 100) {
+          model.clock(100);
+        }
+      }
+      if (failure == null) {
+        return;
+      }
+    }
+    fail(failure);
+  }
+
+  /**
+   * Clock the controller once and measure how much it, and the status message which follows
+   * it, allocates. The JIT compiler occasionally allocates whilst it is compiling, so a check
+   * over many cycles may need a second go before failing.
+   *
+   * @param controller
+   *          The controller under test.
+   * @param incoming
+   *          The messages from the physical units.
+   * @param outgoing
+   *          The mailbox for the messages from the controller.
+   * @return The number of bytes allocated, or zero if nothing was.
+   */
+  public static long clockAllocating(SteamBoilerController controller, Mailbox incoming,
+      Mailbox outgoing) {
+    long before = allocatedBytes();
+    controller.clock(incoming, outgoing);
+    controller.getStatusMessage();
+    long after = allocatedBytes();
+    return Math.max(after - before - OVERHEAD, 0);
+  }
+
+  /**
+   * Determine the overhead of taking a reading, which is the smallest difference seen between
+   * two back to back readings.
+   *
+   * @return The overhead in bytes.
+   */
+  private static long calibrate() {
+    if (!THREADS.isThreadAllocatedMemorySupported()) {
+      throw new IllegalStateException("thread allocation measurement is not supported");
+    }
+    THREADS.setThreadAllocatedMemoryEnabled(true);
+    long overhead = Long.MAX_VALUE;
+    for (int i = 0; i != 1000; ++i) {
+      long before = allocatedBytes();
+      long after = allocatedBytes();
+      overhead = Math.min(overhead, after - before);
+    }
+    return overhead;
+  }
+}
@@ -0,0 +1,169 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static steam.boiler.tests.TestUtils.MODE_degraded;
+import static steam.boiler.tests.TestUtils.MODE_emergencystop;
+import static steam.boiler.tests.TestUtils.atleast;
+import static steam.boiler.tests.TestUtils.clockForWithout;
+import static steam.boiler.tests.TestUtils.clockOnceExpecting;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.LevelSensorModels;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check that the controller does not allocate once it has been initialised, whilst
+ * it is running in normal, degraded or rescue mode.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class AllocationTests {
+
+  /**
+   * Check normal mode does not allocate.
+   */
+  @Test
+  public void test_allocation_normal() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    assertEquals("NORMAL", controller.getStatusMessage());
+    assertEquals(100, clockWithoutAllocating(100, controller, model, "NORMAL"));
+  }
+
+  /**
+   * Check degraded mode does not allocate, including the cycles which detect the failure and
+   * wait for it to be acknowledged.
+   */
+  @Test
+  public void test_allocation_degraded() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    model.setSteamSensor(new SteamSensorModels.StuckNegativeOne(model));
+    clockWithoutAllocating(1, controller, model, "NORMAL");
+    assertEquals("DEGRADED", controller.getStatusMessage());
+    assertEquals(100, clockWithoutAllocating(100, controller, model, "DEGRADED"));
+  }
+
+  /**
+   * Check recording metrics does not allocate, in normal mode and after a failure in degraded
+   * mode. Metrics change which code is hot, so the JIT compiler is still busy for a while and
+   * each mode gets a few windows to go without allocating.
+   */
+  @Test
+  public void test_allocation_with_metrics() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    controller.enableMetrics();
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    AllocationChecker.clockWithoutAllocating(10, 100, controller, model);
+    assertEquals("NORMAL", controller.getStatusMessage());
+    model.setSteamSensor(new SteamSensorModels.StuckNegativeOne(model));
+    clockOnceExpecting(controller, model, atleast(MODE_degraded));
+    AllocationChecker.clockWithoutAllocating(10, 100, controller, model);
+    assertEquals("DEGRADED", controller.getStatusMessage());
+  }
+
+  /**
+   * Check rescue mode does not allocate. A cycle with the water level device failed in rescue
+   * mode always stops the boiler, as the reading is outside the limits, so the controller is
+   * kept going back into rescue mode instead, with a water level device which fails every
+   * fourth cycle. Each time, the cycle after the failure is clocked in rescue mode, and the
+   * rest in normal mode bring the water back towards the middle. The JIT compiler is still
+   * busy with the new paths for a while, so this gets a few windows to go without allocating.
+   */
+  @Test
+  public void test_allocation_rescue() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    assertEquals("NORMAL", controller.getStatusMessage());
+    ArrayMailbox input = new ArrayMailbox(100);
+    ArrayMailbox output = new ArrayMailbox(100);
+    String failure = null;
+    for (int w = 0; w != 5; ++w) {
+      failure = null;
+      int rescues = 0;
+      for (int c = 0; c != 200; ++c) {
+        if (c % 4 == 0) {
+          model.setLevelSensor(new LevelSensorModels.StuckNegativeOne(model));
+        } else {
+          model.setLevelSensor(new LevelSensorModels.Ideal(model));
+        }
+        String mode = controller.getStatusMessage();
+        if ("RESCUE".equals(mode)) {
+          rescues++;
+        }
+        input.clear();
+        model.transmit(input);
+        output.clear();
+        long allocated = AllocationChecker.clockAllocating(controller, input, output);
+        if (allocated > 0 && failure == null) {
+          failure = "clock allocated " + allocated + " bytes in " + mode + " mode";
+        }
+        model.receive(output);
+        for (int t = 0; t != 5000; t += 100) {
+          model.clock(100);
+        }
+      }
+      assertEquals(50, rescues);
+      if (failure == null) {
+        return;
+      }
+    }
+    fail(failure);
+  }
+
+  /**
+   * Clock the system for up to a given number of cycles, checking that each controller cycle
+   * does not allocate. This stops early once the controller leaves the given mode.
+   *
+   * @param cycles
+   *          The maximum number of cycles.
+   * @param controller
+   *          The controller under test.
+   * @param model
+   *          The physical units being controlled.
+   * @param mode
+   *          The mode the controller must be in for a cycle to be checked.
+   * @return The number of cycles checked.
+   */
+  private static int clockWithoutAllocating(int cycles, MySteamBoilerController controller,
+      PhysicalUnits model, String mode) {
+    ArrayMailbox input = new ArrayMailbox(100);
+    ArrayMailbox output = new ArrayMailbox(100);
+    for (int c = 0; c != cycles; ++c) {
+      if (!mode.equals(controller.getStatusMessage())) {
+        return c;
+      }
+      input.clear();
+      model.transmit(input);
+      output.clear();
+      AllocationChecker.clockWithoutAllocating(controller, input, output);
+      model.receive(output);
+      for (int t = 0; t != 5000; t += 100) {
+        model.clock(100);
+      }
+    }
+    return cycles;
+  }
+}
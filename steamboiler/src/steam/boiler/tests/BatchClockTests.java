@@ -0,0 +1,125 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.ControllerMetrics;
+import steam.boiler.core.CycleJournal;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.SimulationClock;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check clocking a controller for many cycles in one call gives the same messages
+ * as clocking it one cycle at a time.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class BatchClockTests {
+
+  /**
+   * Check a run with a pump failure, clocked in uneven batches, sends the same messages every
+   * cycle as when it was recorded.
+   */
+  @Test
+  public void test_batch_01() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    List<Mailbox> incoming = new ArrayList<>();
+    List<String> expected = new ArrayList<>();
+    record(config, incoming, expected);
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    int[] batches = { 1, 7, 64, 0, 100 };
+    int c = 0;
+    for (int b = 0; c < incoming.size(); b = (b + 1) % batches.length) {
+      int count = Math.min(batches[b], incoming.size() - c);
+      Mailbox[] in = new Mailbox[count];
+      Mailbox[] out = new Mailbox[count];
+      for (int i = 0; i != count; ++i) {
+        in[i] = incoming.get(c + i);
+        out[i] = new ArrayMailbox(10);
+      }
+      controller.clock(in, out, count);
+      for (int i = 0; i != count; ++i) {
+        assertEquals("cycle " + (c + i), expected.get(c + i), ArrayMailbox.describe(out[i]));
+      }
+      c += count;
+    }
+  }
+
+  /**
+   * Check a batch of cycles is counted in the metrics, cycle by cycle.
+   */
+  @Test
+  public void test_batch_02() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    List<Mailbox> incoming = new ArrayList<>();
+    List<String> expected = new ArrayList<>();
+    record(config, incoming, expected);
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    ControllerMetrics metrics = controller.enableMetrics();
+    Mailbox[] in = incoming.toArray(new Mailbox[0]);
+    Mailbox[] out = new Mailbox[in.length];
+    for (int i = 0; i != out.length; ++i) {
+      out[i] = new ArrayMailbox(10);
+    }
+    controller.clock(in, out, in.length);
+    ControllerMetrics.Report report = metrics.export();
+    assertEquals(in.length, report.getCycles());
+    assertTrue(report.getFailures(ControllerMetrics.Unit.PUMP) > 0);
+    assertEquals(expected.get(in.length - 1), ArrayMailbox.describe(out[in.length - 1]));
+  }
+
+  /**
+   * Record 900s of a boiler with a pump failing after 300s.
+   *
+   * @param config
+   *          The configuration of the boiler.
+   * @param incoming
+   *          The list to add the messages to the controller in each cycle to.
+   * @param expected
+   *          The list to add the messages from the controller in each cycle to.
+   */
+  private static void record(SteamBoilerCharacteristics config, List<Mailbox> incoming,
+      List<String> expected) throws IOException {
+    Path directory = Files.createTempDirectory("batch");
+    try {
+      MySteamBoilerController controller = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      try (CycleJournal journal = new CycleJournal(controller, directory)) {
+        SimulationClock clock = new SimulationClock(journal, model);
+        clock.inject(300000, units -> units.setPump(1, new PumpModels.StuckClosed(1, 0.0, units)));
+        clock.run(900000);
+      }
+      try (CycleJournal.Reader reader = new CycleJournal.Reader(directory)) {
+        while (reader.next()) {
+          Mailbox in = reader.getIncoming();
+          ArrayMailbox copy = new ArrayMailbox(in.size());
+          for (int i = 0; i != in.size(); ++i) {
+            copy.send(in.read(i));
+          }
+          incoming.add(copy);
+          expected.add(ArrayMailbox.describe(reader.getOutgoing()));
+        }
+      }
+    } finally {
+      CycleJournalTests.delete(directory);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ControllerMetrics;
+import steam.boiler.core.ControllerMetrics.Unit;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.SimulationClock;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpModels;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check the controller metrics count what happens, and that they can be exported
+ * whilst the controller is running.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ControllerMetricsTests {
+
+  /**
+   * Check a pump failure and repair are counted, along with the cycles spent in degraded mode
+   * and the transitions in and out of it.
+   */
+  @Test
+  public void test_metrics_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    assertNull(controller.getMetrics());
+    ControllerMetrics metrics = controller.enableMetrics();
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    SimulationClock clock = new SimulationClock(controller, model);
+    clock.inject(300000, units -> units.setPump(1, new PumpModels.StuckClosed(1, 0.0, units)));
+    clock.repair(600000, units -> {
+      units.setPump(1, new PumpModels.Ideal(1, config.getPumpCapacity(1), units));
+      units.setPumpStatus(1, PhysicalUnits.ComponentStatus.REPAIRED);
+    });
+    clock.run(1200000);
+    ControllerMetrics.Report report = metrics.export();
+    assertEquals(clock.getCycles(), report.getCycles());
+    long cycles = 0;
+    for (String mode : new String[] { "WAITING", "READY", "NORMAL", "DEGRADED", "RESCUE",
+        "EMERGENCY_STOP" }) {
+      cycles += report.getCyclesIn(mode);
+    }
+    assertEquals(report.getCycles(), cycles);
+    assertTrue(report.getCyclesIn("DEGRADED") > 0);
+    assertEquals(0, report.getCyclesIn("EMERGENCY_STOP"));
+    assertEquals(1, report.getTransitions("NORMAL", "DEGRADED"));
+    assertEquals(1, report.getTransitions("DEGRADED", "NORMAL"));
+    assertEquals(1, report.getFailures(Unit.PUMP));
+    assertEquals(1, report.getAcknowledgements(Unit.PUMP));
+    assertEquals(1, report.getRepairs(Unit.PUMP));
+    assertEquals(0, report.getFailures(Unit.LEVEL));
+    assertTrue(report.getPercentileNanos(50) <= report.getPercentileNanos(99));
+    assertTrue(report.getPercentileNanos(99) <= report.getMaxNanos());
+  }
+
+  /**
+   * Check exports taken whilst the controller is running always see whole cycles.
+   */
+  @Test
+  public void test_metrics_02() throws InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    ControllerMetrics metrics = controller.enableMetrics();
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicBoolean consistent = new AtomicBoolean(true);
+    Thread exporter = new Thread(() -> {
+      while (!done.get()) {
+        ControllerMetrics.Report report = metrics.export();
+        long cycles = report.getCyclesIn("WAITING") + report.getCyclesIn("READY")
+            + report.getCyclesIn("NORMAL");
+        if (cycles != report.getCycles()) {
+          consistent.set(false);
+        }
+      }
+    });
+    exporter.start();
+    new SimulationClock(controller, model).setStep(SimulationClock.CYCLE).run(3600000);
+    done.set(true);
+    exporter.join();
+    assertTrue(consistent.get());
+    assertEquals(720, metrics.export().getCycles());
+  }
+}
@@ -0,0 +1,217 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.ControllerClient;
+import steam.boiler.core.ControllerServer;
+import steam.boiler.core.MessageCodec;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check controllers hosted by a server send the same messages as controllers
+ * clocked directly, for many boilers on one connection with many cycles in flight.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ControllerServerTests {
+
+  /**
+   * The number of cycles of each boiler sent before reading the replies.
+   */
+  private static final int WINDOW = 10;
+
+  /**
+   * Check two boilers with pumps failing at different times, sent on one connection several
+   * cycles ahead of the replies, each get the messages sent when they were recorded.
+   */
+  @Test
+  public void test_server_01() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    List<List<String>> expected = new ArrayList<>();
+    List<List<Mailbox>> incoming = new ArrayList<>();
+    for (int failAt : new int[] { 12, 40 }) {
+      List<String> sent = new ArrayList<>();
+      incoming.add(mailboxes(TelemetryStreamTests.record(config, 120, failAt, sent)));
+      expected.add(sent);
+    }
+    try (ControllerServer server = new ControllerServer(config, loopback());
+        ControllerClient client = new ControllerClient(start(server))) {
+      ArrayMailbox out = new ArrayMailbox(10);
+      for (int c = 0; c < 120; c += WINDOW) {
+        for (int w = c; w != c + WINDOW; ++w) {
+          client.send(0, incoming.get(0).get(w));
+          client.send(1, incoming.get(1).get(w));
+        }
+        for (int w = c; w != c + WINDOW; ++w) {
+          for (int boiler = 0; boiler != 2; ++boiler) {
+            out.clear();
+            assertEquals(boiler, client.receive(out));
+            assertEquals("boiler " + boiler + " cycle " + w, expected.get(boiler).get(w),
+                ArrayMailbox.describe(out));
+          }
+        }
+      }
+      assertEquals(240, server.getCycles());
+    }
+  }
+
+  /**
+   * Check boilers are numbered separately on each connection, and a bad frame closes only its
+   * own connection.
+   */
+  @Test
+  public void test_server_02() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    List<String> expected = new ArrayList<>();
+    List<Mailbox> incoming = mailboxes(TelemetryStreamTests.record(config, 30, 12, expected));
+    try (ControllerServer server = new ControllerServer(config, loopback())) {
+      InetSocketAddress address = start(server);
+      try (ControllerClient good = new ControllerClient(address);
+          ControllerClient bad = new ControllerClient(address)) {
+        ArrayMailbox out = new ArrayMailbox(10);
+        for (int c = 0; c != 30; ++c) {
+          good.send(0, incoming.get(c));
+          bad.send(0, incoming.get(c));
+          out.clear();
+          assertEquals(0, good.receive(out));
+          assertEquals("cycle " + c, expected.get(c), ArrayMailbox.describe(out));
+          out.clear();
+          assertEquals(0, bad.receive(out));
+          assertEquals("cycle " + c, expected.get(c), ArrayMailbox.describe(out));
+        }
+        bad.send(-1, incoming.get(0));
+        try {
+          bad.receive(out);
+          fail("expected the connection to be closed");
+        } catch (IOException e) {
+          // Expected
+        }
+        good.send(0, incoming.get(0));
+        out.clear();
+        assertEquals(0, good.receive(out));
+        assertTrue(out.size() > 0);
+      }
+    }
+  }
+
+  /**
+   * Check a controller which fails closes only its own connection, another connection goes on
+   * being served, and the failure is reported when the server is closed. The controllers fail
+   * as they once did on a pump failure acknowledgement for pump -1.
+   */
+  @Test
+  public void test_server_03() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    List<String> expected = new ArrayList<>();
+    List<Mailbox> incoming = mailboxes(TelemetryStreamTests.record(config, 30, 12, expected));
+    ArrayMailbox acknowledgement = new ArrayMailbox(10);
+    for (int i = 0; i != incoming.get(20).size(); ++i) {
+      acknowledgement.send(incoming.get(20).read(i));
+    }
+    acknowledgement.send(new Mailbox.Message(MessageKind.PUMP_FAILURE_ACKNOWLEDGEMENT_n, -1));
+    ControllerServer server = new ControllerServer(config, loopback(),
+        c -> new MySteamBoilerController(c) {
+          @Override
+          public void clock(Mailbox in, Mailbox out) {
+            for (int i = 0; i != in.size(); ++i) {
+              Mailbox.Message message = in.read(i);
+              if (message.getKind() == MessageKind.PUMP_FAILURE_ACKNOWLEDGEMENT_n
+                  && message.getIntegerParameter() < 0) {
+                throw new ArrayIndexOutOfBoundsException(message.getIntegerParameter());
+              }
+            }
+            super.clock(in, out);
+          }
+        });
+    InetSocketAddress address = start(server);
+    try (ControllerClient good = new ControllerClient(address);
+        ControllerClient bad = new ControllerClient(address)) {
+      ArrayMailbox out = new ArrayMailbox(10);
+      for (int c = 0; c != 30; ++c) {
+        good.send(0, incoming.get(c));
+        if (c < 20) {
+          bad.send(0, incoming.get(c));
+          out.clear();
+          assertEquals(0, bad.receive(out));
+          assertEquals("cycle " + c, expected.get(c), ArrayMailbox.describe(out));
+        } else if (c == 20) {
+          bad.send(0, acknowledgement);
+          try {
+            bad.receive(out);
+            fail("expected the connection to be closed");
+          } catch (IOException e) {
+            // Expected
+          }
+        }
+        out.clear();
+        assertEquals(0, good.receive(out));
+        assertEquals("cycle " + c, expected.get(c), ArrayMailbox.describe(out));
+      }
+    }
+    try {
+      server.close();
+      fail("expected the controller's failure to be reported");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof ArrayIndexOutOfBoundsException);
+    }
+  }
+
+  /**
+   * Get an address on the loopback interface with a free port.
+   *
+   * @return The address.
+   */
+  private static InetSocketAddress loopback() {
+    return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+  }
+
+  /**
+   * Start a server on a thread of its own.
+   *
+   * @param server
+   *          The server.
+   * @return The address it is listening on.
+   */
+  private static InetSocketAddress start(ControllerServer server) throws IOException {
+    server.start();
+    return server.getAddress();
+  }
+
+  /**
+   * Read the mailboxes from frames.
+   *
+   * @param frames
+   *          The frames, from the position to the limit.
+   * @return The mailboxes.
+   */
+  private static List<Mailbox> mailboxes(ByteBuffer frames) {
+    List<Mailbox> mailboxes = new ArrayList<>();
+    Mailbox.Message scratch = new Mailbox.Message(Mailbox.MessageKind.VALVE);
+    while (frames.hasRemaining()) {
+      frames.getInt();
+      ArrayMailbox mailbox = new ArrayMailbox(10);
+      MessageCodec.decode(frames, mailbox, scratch);
+      mailboxes.add(mailbox);
+    }
+    return mailboxes;
+  }
+}
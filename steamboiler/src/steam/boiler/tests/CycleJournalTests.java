@@ -0,0 +1,105 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.CycleJournal;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.SimulationClock;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpModels;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check the cycle journal records every cycle of a controller, across several
+ * segments, and that recording does not allocate.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class CycleJournalTests {
+
+  /**
+   * Check every cycle of a run with a pump failure can be read back as it was recorded, when the
+   * journal is split over many small segments.
+   */
+  @Test
+  public void test_journal_01() throws IOException {
+    Path directory = Files.createTempDirectory("journal");
+    try {
+      SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+      MySteamBoilerController controller = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      List<String> expected = new ArrayList<>();
+      try (CycleJournal journal = new CycleJournal(controller, directory, 4096)) {
+        SimulationClock clock = new SimulationClock(journal, model);
+        clock.inject(300000, units -> units.setPump(1, new PumpModels.StuckClosed(1, 0.0, units)));
+        clock.runUntil(900000, output -> {
+          expected.add(ArrayMailbox.describe(output));
+          return false;
+        });
+        assertEquals(180, journal.getCycles());
+      }
+      assertTrue(CycleJournal.segments(directory).size() > 1);
+      try (CycleJournal.Reader reader = new CycleJournal.Reader(directory)) {
+        for (int c = 0; c != expected.size(); ++c) {
+          assertTrue(reader.next());
+          assertEquals(c, reader.getCycle());
+          assertEquals(expected.get(c), ArrayMailbox.describe(reader.getOutgoing()));
+          assertTrue(reader.getIncoming().size() > 0);
+        }
+        assertFalse(reader.next());
+      }
+    } finally {
+      delete(directory);
+    }
+  }
+
+  /**
+   * Check recording a cycle does not allocate, once the journal has been started.
+   */
+  @Test
+  public void test_journal_02() throws IOException {
+    Path directory = Files.createTempDirectory("journal");
+    try {
+      SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+      MySteamBoilerController controller = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      try (CycleJournal journal = new CycleJournal(controller, directory)) {
+        new SimulationClock(journal, model).run(240000);
+        assertEquals("NORMAL", journal.getStatusMessage());
+        AllocationChecker.clockWithoutAllocating(10, 100, journal, model);
+      }
+    } finally {
+      delete(directory);
+    }
+  }
+
+  /**
+   * Delete a journal directory and the segments in it.
+   *
+   * @param directory
+   *          The directory.
+   */
+  static void delete(Path directory) throws IOException {
+    for (Path segment : CycleJournal.segments(directory)) {
+      Files.delete(segment);
+    }
+    Files.delete(directory);
+  }
+}
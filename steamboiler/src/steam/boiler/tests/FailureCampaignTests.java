@@ -0,0 +1,88 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.FailureCampaign;
+import steam.boiler.core.HeadlessSimulation;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check a failure campaign gives the same report however it is run, and that each
+ * trial can be run again on its own from its schedule.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class FailureCampaignTests {
+
+  /**
+   * Check a campaign gives the same report on one thread as on four, and that the counts add
+   * up.
+   */
+  @Test
+  public void test_campaign_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    FailureCampaign.Report one = new FailureCampaign(config, 42, new ForkJoinPool(1))
+        .setDuration(600).run(40);
+    FailureCampaign.Report four = new FailureCampaign(config, 42, new ForkJoinPool(4))
+        .setDuration(600).run(40);
+    assertEquals(one.toString(), four.toString());
+    assertEquals(40, one.getTrials());
+    // Every trial starts waiting
+    assertEquals(40, one.getTrialsReaching("WAITING"));
+    assertEquals(one.getTrialsReaching("EMERGENCY_STOP"), one.getEmergencyStops());
+    if (one.getEmergencyStops() > 0) {
+      assertTrue(one.getPercentileTimeToStop(50) <= one.getPercentileTimeToStop(99));
+      assertTrue(one.getPercentileTimeToStop(99) <= 600);
+    }
+  }
+
+  /**
+   * Check the schedule of a trial only depends on the seed and the number of the trial, and
+   * that running it through a headless simulation stops at the same time as in the campaign.
+   */
+  @Test
+  public void test_campaign_02() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    FailureCampaign campaign = new FailureCampaign(config, 7).setDuration(900).setMaxFailures(4);
+    for (int trial = 0; trial != 10; ++trial) {
+      List<HeadlessSimulation.Event> schedule = campaign.schedule(trial);
+      assertEquals(schedule.toString(),
+          new FailureCampaign(config, 7).setDuration(900).setMaxFailures(4)
+              .schedule(trial).toString());
+      assertTrue(!schedule.isEmpty());
+      FailureCampaign.Outcome outcome = campaign.trial(trial);
+      HeadlessSimulation.Result result = new HeadlessSimulation(config, schedule).run(900);
+      assertEquals(result.getEmergencyStop(), outcome.getEmergencyStop(), 0.0);
+      assertEquals(result.getModes(), outcome.getModes());
+    }
+  }
+
+  /**
+   * Check a step which does not divide the cycle is refused when it is set, like the other
+   * settings, rather than when the campaign is run.
+   */
+  @Test
+  public void test_campaign_03() {
+    FailureCampaign campaign = new FailureCampaign(SteamBoilerCharacteristics.DEFAULT, 7);
+    for (int step : new int[] { 0, -100, 300, 7000 }) {
+      try {
+        campaign.setStep(step);
+        fail("expected a step of " + step + " to be refused");
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+    assertTrue(campaign.setStep(1000) == campaign);
+  }
+}
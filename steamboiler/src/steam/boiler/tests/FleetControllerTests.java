@@ -0,0 +1,108 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.Fleet;
+import steam.boiler.core.FleetController;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpModels;
+import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check that a fleet controller sends every boiler exactly the same messages as a
+ * controller of its own would.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class FleetControllerTests {
+
+  /**
+   * The configurations the boilers are given, by boiler number.
+   */
+  private static final SteamBoilerCharacteristics[] CONFIGS = configs();
+
+  /**
+   * Check every boiler gets the same messages as from its own controller, for a mix of pump
+   * counts and capacities, with pumps and steam sensors failing in some of them, and that most
+   * cycles do not need escalating.
+   */
+  @Test
+  public void test_fleet_controller_01() {
+    final int boilers = 64;
+    final int cycles = 120;
+    FleetController fleet = new FleetController();
+    MySteamBoilerController[] controllers = new MySteamBoilerController[boilers];
+    PhysicalUnits[] models = new PhysicalUnits[boilers];
+    Mailbox[] inputs = new Mailbox[boilers];
+    Mailbox[] outputs = new Mailbox[boilers];
+    for (int i = 0; i != boilers; ++i) {
+      SteamBoilerCharacteristics config = CONFIGS[i % CONFIGS.length];
+      assertEquals(i, fleet.add(config));
+      controllers[i] = new MySteamBoilerController(config);
+      models[i] = new PhysicalUnits.Template(config).construct();
+      models[i].setMode(PhysicalUnits.Mode.WAITING);
+      inputs[i] = new ArrayMailbox(100);
+      outputs[i] = new ArrayMailbox(100);
+    }
+    assertEquals(boilers, fleet.size());
+    ArrayMailbox expected = new ArrayMailbox(100);
+    for (int c = 0; c != cycles; ++c) {
+      for (int i = 0; i != boilers; ++i) {
+        if (c == 40 && i % 5 == 0) {
+          models[i].setPump(0, new PumpModels.StuckClosed(0, 0.0, models[i]));
+        }
+        if (c == 80 && i % 7 == 0) {
+          models[i].setSteamSensor(new SteamSensorModels.StuckNegativeOne(models[i]));
+        }
+        ((ArrayMailbox) inputs[i]).clear();
+        ((ArrayMailbox) outputs[i]).clear();
+        models[i].clock(Fleet.GRANULARITY);
+        models[i].transmit(inputs[i]);
+      }
+      fleet.clock(inputs, outputs);
+      for (int i = 0; i != boilers; ++i) {
+        expected.clear();
+        controllers[i].clock(inputs[i], expected);
+        assertEquals("boiler " + i + " in cycle " + c, ArrayMailbox.describe(expected),
+            ArrayMailbox.describe(outputs[i]));
+        assertEquals(controllers[i].getStatusMessage(), fleet.getStatusMessage(i));
+        models[i].receive(outputs[i]);
+        for (int t = Fleet.GRANULARITY; t < Fleet.CYCLE; t += Fleet.GRANULARITY) {
+          models[i].clock(Fleet.GRANULARITY);
+        }
+      }
+    }
+    assertEquals(cycles, fleet.getCycles());
+    assertTrue(fleet.getEscalations() < boilers * cycles / 2);
+  }
+
+  /**
+   * Get the configurations: pump counts from three to six with the same capacity, and one with
+   * pumps of different capacities.
+   *
+   * @return The configurations.
+   */
+  private static SteamBoilerCharacteristics[] configs() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    double capacity = config.getPumpCapacity(0);
+    SteamBoilerCharacteristics mixed = config.setNumberOfPumps(4, capacity);
+    mixed = mixed.setPumpCapacity(0, capacity / 2);
+    mixed = mixed.setPumpCapacity(1, capacity * 2);
+    mixed = mixed.setPumpCapacity(2, capacity / 2);
+    mixed = mixed.setPumpCapacity(3, capacity * 1.5);
+    return new SteamBoilerCharacteristics[] { config.setNumberOfPumps(3, capacity),
+        config.setNumberOfPumps(4, capacity), config.setNumberOfPumps(5, capacity),
+        config.setNumberOfPumps(6, capacity), mixed };
+  }
+}
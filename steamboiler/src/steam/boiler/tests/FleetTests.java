@@ -0,0 +1,149 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.Fleet;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check that clocking boilers as part of a fleet gives exactly the same results as
+ * clocking each of them on its own.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class FleetTests {
+
+  /**
+   * Check every boiler in a fleet sends the same messages as the same boiler clocked on its own,
+   * for a mix of pump counts and a broken pump in some of them.
+   */
+  @Test
+  public void test_fleet_01() {
+    final int boilers = 64;
+    final int cycles = 60;
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      check(new Fleet(pool), boilers, cycles);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Check a boiler whose controller fails an assertion is stopped on its own, and the rest of
+   * the fleet goes on being clocked.
+   */
+  @Test
+  public void test_fleet_02() {
+    final int boilers = 8;
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      Fleet fleet = new Fleet(pool);
+      for (int i = 0; i != boilers; ++i) {
+        if (i == 3) {
+          fleet.add(new MySteamBoilerController(config(i)) {
+            @Override
+            public void clock(Mailbox incoming, Mailbox outgoing) {
+              throw new AssertionError("failed");
+            }
+          }, model(i));
+        } else {
+          fleet.add(controller(i), model(i));
+        }
+      }
+      fleet.clock(3);
+      assertEquals(3, fleet.getCycles());
+      for (int i = 0; i != boilers; ++i) {
+        if (i == 3) {
+          assertTrue(fleet.getFailure(i) instanceof AssertionError);
+          assertNull(fleet.getOutput(i));
+        } else {
+          assertNull(fleet.getFailure(i));
+          Mailbox output = fleet.getOutput(i);
+          assertTrue(output != null && output.size() > 0);
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Check every boiler in a fleet sends the same messages as the same boiler clocked on its own.
+   *
+   * @param fleet
+   *          The fleet, with no boilers.
+   * @param boilers
+   *          The number of boilers.
+   * @param cycles
+   *          The number of cycles.
+   */
+  private static void check(Fleet fleet, int boilers, int cycles) {
+    MySteamBoilerController[] controllers = new MySteamBoilerController[boilers];
+    PhysicalUnits[] models = new PhysicalUnits[boilers];
+    for (int i = 0; i != boilers; ++i) {
+      fleet.add(controller(i), model(i));
+      controllers[i] = controller(i);
+      models[i] = model(i);
+    }
+    int totalElapsed = 0;
+    for (int c = 0; c != cycles; ++c) {
+      fleet.clock();
+      for (int i = 0; i != boilers; ++i) {
+        Mailbox expected = null;
+        for (int t = 0; t != Fleet.CYCLE; t += Fleet.GRANULARITY) {
+          Mailbox received = TestUtils.clock(Fleet.GRANULARITY, totalElapsed + t, controllers[i],
+              models[i]);
+          if (received != null) {
+            expected = received;
+          }
+        }
+        Mailbox actual = fleet.getOutput(i);
+        if (expected == null || actual == null) {
+          fail("no messages from boiler " + i + " in cycle " + c);
+        } else {
+          assertEquals("boiler " + i + " in cycle " + c, ArrayMailbox.describe(expected),
+              ArrayMailbox.describe(actual));
+        }
+      }
+      totalElapsed += Fleet.CYCLE;
+    }
+    assertEquals(cycles, fleet.getCycles());
+    assertTrue(fleet.getCyclesPerSecond() > 0);
+  }
+
+  private static MySteamBoilerController controller(int boiler) {
+    return new MySteamBoilerController(config(boiler));
+  }
+
+  private static PhysicalUnits model(int boiler) {
+    SteamBoilerCharacteristics config = config(boiler);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    if (boiler % 5 == 0) {
+      model.setPump(0, new PumpModels.StuckClosed(0, 0.0, model));
+    }
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    return model;
+  }
+
+  private static SteamBoilerCharacteristics config(int boiler) {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    return config.setNumberOfPumps(3 + (boiler % 4), config.getPumpCapacity(0));
+  }
+}
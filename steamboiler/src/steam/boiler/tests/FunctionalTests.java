@@ -216,6 +216,26 @@ public class FunctionalTests {
     }
   }
 
+  /**
+   * Check that steam boiler operates correctly in normal mode over a range of times with four
+   * pumps of different capacities, which together can pump as much as four and a half of the
+   * default pumps.
+   */
+  @Test
+  public void test_normal_operation_05() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    double capacity = config.getPumpCapacity(0);
+    config = config.setNumberOfPumps(4, capacity);
+    config = config.setPumpCapacity(0, capacity / 2);
+    config = config.setPumpCapacity(1, capacity * 2);
+    config = config.setPumpCapacity(2, capacity / 2);
+    config = config.setPumpCapacity(3, capacity * 1.5);
+    // Explore various time frames for correct operation
+    for (int t = 20; t != 560; ++t) {
+      test_normal_operation(t, config);
+    }
+  }
+
   /**
    * Operate the steam boiler system for a given amount of time, and with a given number of pumps.
    * Since the system it otherwise ideal, we're expecting the water level to be held within the
@@ -225,12 +245,23 @@ public class FunctionalTests {
    *          The time (in s) to operate the boiler before checking the levels.
    * @param numberOfPumps
    *          The number of pumps to use in this configuration.
-   * @param config
-   *          The boiler characteristics to use for this run.
    */
   private void test_normal_operation(int time, int numberOfPumps) {
     SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
     config = config.setNumberOfPumps(numberOfPumps, config.getPumpCapacity(0));
+    test_normal_operation(time, config);
+  }
+
+  /**
+   * Operate the steam boiler system for a given amount of time, with given characteristics.
+   *
+   * @param time
+   *          The time (in s) to operate the boiler before checking the levels.
+   * @param config
+   *          The boiler characteristics to use for this run.
+   */
+  private void test_normal_operation(int time, SteamBoilerCharacteristics config) {
+    int numberOfPumps = config.getNumberOfPumps();
     MySteamBoilerController controller = new MySteamBoilerController(config);
     PhysicalUnits model = new PhysicalUnits.Template(config).construct();
     model.setMode(PhysicalUnits.Mode.WAITING);
@@ -419,6 +450,59 @@ public class FunctionalTests {
     clockOnceExpecting(controller, model, atleast(MODE_normal));
   }
 
+  /**
+   * Check controller is still able to operate correctly when the largest of four pumps of
+   * different capacities fails. The rest can then pump as much as two and a half of the default
+   * pumps, which is just enough when steam is at full exhaust.
+   */
+  @Test
+  public void test_degraded_operation_08() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    double capacity = config.getPumpCapacity(0);
+    config = config.setNumberOfPumps(4, capacity);
+    config = config.setPumpCapacity(0, capacity / 2);
+    config = config.setPumpCapacity(1, capacity * 2);
+    config = config.setPumpCapacity(2, capacity / 2);
+    config = config.setPumpCapacity(3, capacity * 1.5);
+    // Explore various time frames for correct operation
+    for (int time = 20; time != 560; ++time) {
+      MySteamBoilerController controller = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      test_degraded_operation(controller, config, model, time, 1);
+    }
+  }
+
+  /**
+   * Check controller goes back to normal mode, and keeps the water within the limits, once the
+   * largest of four pumps of different capacities is repaired.
+   */
+  @Test
+  public void test_degraded_operation_09() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    double capacity = config.getPumpCapacity(0);
+    config = config.setNumberOfPumps(4, capacity);
+    config = config.setPumpCapacity(0, capacity / 2);
+    config = config.setPumpCapacity(1, capacity * 2);
+    config = config.setPumpCapacity(2, capacity / 2);
+    config = config.setPumpCapacity(3, capacity * 1.5);
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    // 60 seconds with the largest pump failing should push us into degraded mode
+    test_degraded_operation(controller, config, model, 60, 1);
+    // Fix the broken pump, and signal to physical units it's been repaired
+    model.setPump(1, new PumpModels.Ideal(1, config.getPumpCapacity(1), model));
+    model.setPumpStatus(1, PhysicalUnits.ComponentStatus.REPAIRED);
+    clockOnceExpecting(controller, model, atleast(MODE_normal));
+    // Now every pump can be counted on again
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    if (model.getBoiler().getWaterLevel() > config.getMaximalLimitLevel()) {
+      fail("Water level above limit maximum after repair");
+    }
+    if (model.getBoiler().getWaterLevel() < config.getMinimalLimitLevel()) {
+      fail("Water level below limit minimum after repair");
+    }
+  }
+
   private void test_degraded_operation(MySteamBoilerController controller,
       SteamBoilerCharacteristics config, PhysicalUnits model, int time, int... failingPumps) {
     model.setMode(PhysicalUnits.Mode.WAITING);
@@ -0,0 +1,72 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.HeadlessSimulation;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check the headless simulation follows its failure script, and rejects scripts
+ * which do not make sense.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HeadlessSimulationTests {
+
+  /**
+   * Check an ideal boiler runs for a day without an emergency stop, and spends almost all of
+   * it in normal mode.
+   */
+  @Test
+  public void test_headless_01() {
+    HeadlessSimulation simulation = new HeadlessSimulation(SteamBoilerCharacteristics.DEFAULT,
+        Collections.<HeadlessSimulation.Event>emptyList());
+    HeadlessSimulation.Result result = simulation.run(24 * 60 * 60);
+    assertEquals(24 * 60 * 60, result.getSimulatedSeconds(), 0.0);
+    assertEquals(-1, result.getEmergencyStop(), 0.0);
+    assertEquals("NORMAL", result.getMode());
+    assertTrue(result.getModes().get("NORMAL").longValue() > 17000);
+  }
+
+  /**
+   * Check a scripted pump failure puts the controller into degraded mode, and that it goes back
+   * to normal once the pump is repaired.
+   */
+  @Test
+  public void test_headless_02() {
+    HeadlessSimulation simulation = new HeadlessSimulation(SteamBoilerCharacteristics.DEFAULT,
+        HeadlessSimulation.parse(Arrays.asList("# a pump fails for a while", "",
+            "300 pump 1 stuck-closed", "600 pump 1 repair  # fixed")));
+    HeadlessSimulation.Result result = simulation.run(1200);
+    assertEquals(-1, result.getEmergencyStop(), 0.0);
+    assertTrue(result.getModes().containsKey("DEGRADED"));
+    assertEquals("NORMAL", result.getMode());
+  }
+
+  /**
+   * Check a script with a failure which does not apply to its unit is rejected.
+   */
+  @Test
+  public void test_headless_03() {
+    for (String line : new String[] { "10 pump 1 stuck 5.0", "10 level stuck-off",
+        "10 valve stuck", "-5 steam repair", "10 pump-controller" }) {
+      try {
+        HeadlessSimulation.parse(Arrays.asList(line));
+        fail("accepted " + line);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+}
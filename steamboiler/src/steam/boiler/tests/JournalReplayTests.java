@@ -0,0 +1,93 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.CycleJournal;
+import steam.boiler.core.JournalReplay;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.SimulationClock;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpModels;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check replaying a journal finds no differences when the controller is the same,
+ * and finds the first cycle which is different when it is not.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class JournalReplayTests {
+
+  /**
+   * Check replaying a run with a pump failure, over many small segments, gives the same messages
+   * every cycle.
+   */
+  @Test
+  public void test_replay_01() throws IOException {
+    Path directory = Files.createTempDirectory("replay");
+    try {
+      SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+      record(config, directory);
+      JournalReplay.Result result = new JournalReplay(config).replay(directory);
+      assertEquals(180, result.getCycles());
+      assertEquals(-1, result.getFirstDifference());
+      assertNull(result.getExpected());
+      assertNull(result.getActual());
+    } finally {
+      CycleJournalTests.delete(directory);
+    }
+  }
+
+  /**
+   * Check replaying a run against a controller for a boiler with different pumps stops at the
+   * first cycle which is different, and reports what was recorded and what was sent.
+   */
+  @Test
+  public void test_replay_02() throws IOException {
+    Path directory = Files.createTempDirectory("replay");
+    try {
+      SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+      record(config, directory);
+      SteamBoilerCharacteristics changed = config.setPumpCapacity(0, config.getPumpCapacity(0) * 2);
+      JournalReplay.Result result = new JournalReplay(changed).replay(directory);
+      assertTrue(result.getFirstDifference() >= 0);
+      assertEquals(result.getFirstDifference() + 1, result.getCycles());
+      assertFalse(String.valueOf(result.getExpected()).equals(result.getActual()));
+    } finally {
+      CycleJournalTests.delete(directory);
+    }
+  }
+
+  /**
+   * Record 900s of a default boiler with a pump failing after 300s.
+   *
+   * @param config
+   *          The configuration of the boiler.
+   * @param directory
+   *          The directory to record the journal in.
+   */
+  private static void record(SteamBoilerCharacteristics config, Path directory)
+      throws IOException {
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    try (CycleJournal journal = new CycleJournal(controller, directory, 4096)) {
+      SimulationClock clock = new SimulationClock(journal, model);
+      clock.inject(300000, units -> units.setPump(1, new PumpModels.StuckClosed(1, 0.0, units)));
+      clock.run(900000);
+    }
+  }
+}
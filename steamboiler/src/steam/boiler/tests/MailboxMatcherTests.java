@@ -0,0 +1,112 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.tests.TestUtils.CompiledMailboxMatcher;
+import steam.boiler.tests.TestUtils.MailboxMatcher;
+import steam.boiler.tests.TestUtils.MatchState;
+import steam.boiler.tests.TestUtils.MessageMatcher;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.Mailbox.Mode;
+
+/**
+ * These tests check the compiled mailbox matchers agree with matching each message matcher
+ * against the whole mailbox in turn, and that streaming stops as soon as the outcome is known.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class MailboxMatcherTests {
+
+  /**
+   * Check compiled matchers agree with the uncompiled ones on lots of random mailboxes, including
+   * ones with repeated messages and repeated matchers.
+   */
+  @Test
+  public void test_matcher_01() {
+    Random random = new Random(1);
+    for (int i = 0; i != 20000; ++i) {
+      MessageMatcher[] matchers = new MessageMatcher[random.nextInt(4)];
+      MessageMatcher[] uncompiled = new MessageMatcher[matchers.length];
+      for (int j = 0; j != matchers.length; ++j) {
+        MessageMatcher matcher = randomMatcher(random);
+        matchers[j] = matcher;
+        // Hiding the matcher behind a lambda stops it being compiled
+        uncompiled[j] = matcher::match;
+      }
+      Mailbox mailbox = new ArrayMailbox(4);
+      int size = random.nextInt(4);
+      for (int k = 0; k != size; ++k) {
+        mailbox.send(randomMessage(random));
+      }
+      String what = ArrayMailbox.describe(mailbox) + " " + TestUtils.exactly(matchers);
+      assertTrue(TestUtils.exactly(matchers) instanceof CompiledMailboxMatcher);
+      assertEquals(what, TestUtils.exactly(uncompiled).matches(mailbox),
+          TestUtils.exactly(matchers).matches(mailbox));
+      assertEquals(what, TestUtils.atleast(uncompiled).matches(mailbox),
+          TestUtils.atleast(matchers).matches(mailbox));
+    }
+  }
+
+  /**
+   * Check a streaming match knows the outcome as soon as the last matcher is satisfied, or as
+   * soon as a message which cannot be matched exactly is given.
+   */
+  @Test
+  public void test_matcher_02() {
+    MailboxMatcher atleast = TestUtils.atleast(TestUtils.OpenPump(1), TestUtils.MODE_normal);
+    MatchState state = ((CompiledMailboxMatcher) atleast).newState();
+    assertTrue(state.offer(new Message(MessageKind.MODE_m, Mode.NORMAL)));
+    assertFalse(state.isMatched());
+    assertFalse(state.offer(new Message(MessageKind.OPEN_PUMP_n, 1)));
+    assertTrue(state.isDecided());
+    assertTrue(state.isMatched());
+    MailboxMatcher exactly = TestUtils.exactly(TestUtils.OpenPump(1), TestUtils.MODE_normal);
+    state = ((CompiledMailboxMatcher) exactly).newState();
+    assertTrue(state.offer(new Message(MessageKind.OPEN_PUMP_n, 1)));
+    assertFalse(state.offer(new Message(MessageKind.OPEN_PUMP_n, 1)));
+    assertTrue(state.isDecided());
+    assertFalse(state.isMatched());
+    state.reset();
+    assertTrue(state.offer(new Message(MessageKind.OPEN_PUMP_n, 1)));
+    assertTrue(state.offer(new Message(MessageKind.MODE_m, Mode.NORMAL)));
+    assertFalse(state.isDecided());
+    assertTrue(state.isMatched());
+  }
+
+  private static MessageMatcher randomMatcher(Random random) {
+    switch (random.nextInt(4)) {
+      case 0:
+        return TestUtils.OpenPump(random.nextInt(2));
+      case 1:
+        return TestUtils.OpenPump(TestUtils.ANY);
+      case 2:
+        return random.nextBoolean() ? TestUtils.MODE_normal : TestUtils.MODE_degraded;
+      default:
+        return TestUtils.VALVE;
+    }
+  }
+
+  private static Message randomMessage(Random random) {
+    switch (random.nextInt(3)) {
+      case 0:
+        return new Message(MessageKind.OPEN_PUMP_n, random.nextInt(2));
+      case 1:
+        return new Message(MessageKind.MODE_m, random.nextBoolean() ? Mode.NORMAL : Mode.DEGRADED);
+      default:
+        return new Message(MessageKind.VALVE);
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.MessageCodec;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * These tests check messages of every kind read back the same as they were written, in heap
+ * and direct buffers of either byte order, and that bad input is refused.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class MessageCodecTests {
+
+  /**
+   * The most messages in a random batch.
+   */
+  private static final int MAX_BATCH = 40;
+
+  /**
+   * Readings which are easy to get wrong.
+   */
+  private static final double[] READINGS = { 0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY,
+      Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -Double.MAX_VALUE };
+
+  /**
+   * Check every kind is written in the size it says, which is the same for every message of
+   * that kind, and reads back the same.
+   */
+  @Test
+  public void test_codec_01() {
+    Random random = new Random(1);
+    ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.MAX_MESSAGE_SIZE);
+    Message into = new Message(MessageKind.VALVE);
+    for (MessageKind kind : MessageKind.values()) {
+      for (int i = 0; i != 20; ++i) {
+        Message message = random(random, kind);
+        buffer.clear();
+        MessageCodec.encode(message, buffer);
+        assertEquals(kind.toString(), MessageCodec.encodedSize(kind), buffer.position());
+        buffer.flip();
+        assertSame(message, MessageCodec.decode(buffer, into));
+        assertTrue(!buffer.hasRemaining());
+      }
+    }
+  }
+
+  /**
+   * Check random batches read back the same from arrays and mailboxes, through heap and direct
+   * buffers in either byte order, and an array and a mailbox are written the same.
+   */
+  @Test
+  public void test_codec_02() {
+    Random random = new Random(2);
+    int room = 4 + MAX_BATCH * MessageCodec.MAX_MESSAGE_SIZE;
+    ByteBuffer[] buffers = { ByteBuffer.allocate(room), ByteBuffer.allocateDirect(room),
+        ByteBuffer.allocate(room).order(ByteOrder.LITTLE_ENDIAN),
+        ByteBuffer.allocateDirect(room).order(ByteOrder.LITTLE_ENDIAN) };
+    ByteBuffer copy = ByteBuffer.allocate(room);
+    Message[] into = new Message[MAX_BATCH];
+    for (int i = 0; i != into.length; ++i) {
+      into[i] = new Message(MessageKind.VALVE);
+    }
+    ArrayMailbox mailbox = new ArrayMailbox(MAX_BATCH);
+    Message scratch = new Message(MessageKind.VALVE);
+    for (int trial = 0; trial != 500; ++trial) {
+      int count = random.nextInt(MAX_BATCH + 1);
+      Message[] messages = new Message[count];
+      for (int i = 0; i != count; ++i) {
+        MessageKind[] kinds = MessageKind.values();
+        messages[i] = random(random, kinds[random.nextInt(kinds.length)]);
+      }
+      ByteBuffer buffer = buffers[trial % buffers.length];
+      buffer.clear();
+      MessageCodec.encode(messages, count, buffer);
+      assertEquals(MessageCodec.encodedSize(messages, count), buffer.position());
+      buffer.flip();
+      assertEquals(count, MessageCodec.decode(buffer, into));
+      assertTrue(!buffer.hasRemaining());
+      for (int i = 0; i != count; ++i) {
+        assertSame(messages[i], into[i]);
+      }
+      buffer.rewind();
+      mailbox.clear();
+      MessageCodec.decode(buffer, mailbox, scratch);
+      assertEquals(count, mailbox.size());
+      for (int i = 0; i != count; ++i) {
+        assertSame(messages[i], mailbox.read(i));
+      }
+      copy.clear();
+      copy.order(buffer.order());
+      MessageCodec.encode(mailbox, copy);
+      assertEquals(MessageCodec.encodedSize(mailbox), copy.position());
+      copy.flip();
+      buffer.rewind();
+      assertEquals(buffer, copy);
+    }
+  }
+
+  /**
+   * Check an unknown kind or mode, a negative number of messages, and more messages than
+   * there is room for are refused.
+   */
+  @Test
+  public void test_codec_03() {
+    Message into = new Message(MessageKind.VALVE);
+    ByteBuffer buffer = ByteBuffer.allocate(16);
+    buffer.put((byte) MessageKind.values().length).flip();
+    try {
+      MessageCodec.decode(buffer, into);
+      fail("expected an unknown kind to be refused");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    buffer.clear();
+    buffer.put((byte) MessageKind.MODE_m.ordinal()).put((byte) -1).flip();
+    try {
+      MessageCodec.decode(buffer, into);
+      fail("expected an unknown mode to be refused");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    buffer.clear();
+    buffer.putInt(-1).flip();
+    try {
+      MessageCodec.decode(buffer, new ArrayMailbox(1), into);
+      fail("expected a negative number of messages to be refused");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    buffer.clear();
+    buffer.putInt(2).flip();
+    try {
+      MessageCodec.decode(buffer, new Message[] { into });
+      fail("expected too many messages to be refused");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Make a random message of a given kind, with only the parameters the kind has, which are
+   * told by the end of its name.
+   *
+   * @param random
+   *          The random numbers to use.
+   * @param kind
+   *          The kind of message.
+   * @return The message.
+   */
+  private static Message random(Random random, MessageKind kind) {
+    String name = kind.name();
+    int pump = random.nextBoolean() ? random.nextInt(6) : random.nextInt();
+    if (name.endsWith("_n_b")) {
+      return new Message(kind, pump, random.nextBoolean());
+    } else if (name.endsWith("_n")) {
+      return new Message(kind, pump);
+    } else if (name.endsWith("_v")) {
+      double reading = random.nextInt(4) == 0 ? READINGS[random.nextInt(READINGS.length)]
+          : random.nextDouble() * 2000 - 500;
+      return new Message(kind, reading);
+    } else if (name.endsWith("_m")) {
+      Mailbox.Mode[] modes = Mailbox.Mode.values();
+      return new Message(kind, modes[random.nextInt(modes.length)]);
+    }
+    return new Message(kind);
+  }
+
+  /**
+   * Check a message read back has the same kind and parameters as the one written.
+   *
+   * @param expected
+   *          The message written.
+   * @param actual
+   *          The message read back.
+   */
+  private static void assertSame(Message expected, Message actual) {
+    MessageKind kind = expected.getKind();
+    assertEquals(kind, actual.getKind());
+    String name = kind.name();
+    if (name.endsWith("_n_b")) {
+      assertEquals(expected.getIntegerParameter(), actual.getIntegerParameter());
+      assertEquals(expected.getBooleanParameter(), actual.getBooleanParameter());
+    } else if (name.endsWith("_n")) {
+      assertEquals(expected.getIntegerParameter(), actual.getIntegerParameter());
+    } else if (name.endsWith("_v")) {
+      assertEquals(Double.doubleToRawLongBits(expected.getDoubleParameter()),
+          Double.doubleToRawLongBits(actual.getDoubleParameter()));
+    } else if (name.endsWith("_m")) {
+      assertEquals(expected.getModeParameter(), actual.getModeParameter());
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.MailboxRing;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.PipelinedSimulation;
+import steam.boiler.core.SimulationClock;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpModels;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check mailboxes pass between threads in order and intact, and that running the
+ * controllers on a thread of their own sends and receives exactly the same messages as clocking
+ * each boiler with a {@link SimulationClock}.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PipelinedSimulationTests {
+
+  /**
+   * The number of cycles in each run.
+   */
+  private static final int CYCLES = 150;
+
+  /**
+   * Check every mailbox sent by one thread is received by another in order, with its messages
+   * intact, when the ring is often full and often empty.
+   */
+  @Test
+  public void test_ring_01() throws InterruptedException {
+    final int count = 200000;
+    MailboxRing ring = new MailboxRing(3, 4);
+    assertEquals(4, ring.capacity());
+    assertNull(ring.peek());
+    Thread producer = new Thread(() -> {
+      Message message = new Message(MessageKind.OPEN_PUMP_n, 0);
+      for (int i = 0; i < count; i++) {
+        ArrayMailbox slot;
+        while ((slot = ring.claim()) == null) {
+          Thread.yield();
+        }
+        for (int m = 0; m <= i % 7; m++) {
+          slot.send(message.set(MessageKind.OPEN_PUMP_n, i + m));
+        }
+        ring.publish();
+      }
+    });
+    producer.start();
+    for (int i = 0; i < count; i++) {
+      ArrayMailbox slot;
+      while ((slot = ring.peek()) == null) {
+        Thread.yield();
+      }
+      assertEquals(i % 7 + 1, slot.size());
+      for (int m = 0; m < slot.size(); m++) {
+        assertEquals(i + m, slot.read(m).getIntegerParameter());
+      }
+      ring.release();
+    }
+    producer.join();
+    assertNull(ring.peek());
+  }
+
+  /**
+   * Check three boilers with pumps failing at different times, pipelined over two runs, each
+   * get the same commands every cycle as with a clock of their own, and end up with the same
+   * water level.
+   */
+  @Test
+  public void test_pipeline_01() throws InterruptedException {
+    check(new int[] { 40, 60, 200 });
+  }
+
+  /**
+   * Check a single boiler, where there is nothing to overlap, gets the same commands every
+   * cycle as with a clock of its own.
+   */
+  @Test
+  public void test_pipeline_02() throws InterruptedException {
+    check(new int[] { 60 });
+  }
+
+  /**
+   * Run boilers with a pump sticking closed in a given cycle, with a clock each and then
+   * pipelined, for two runs, and check every boiler gets the same commands each cycle.
+   *
+   * @param failures
+   *          The cycle the pump of each boiler sticks closed in.
+   */
+  private static void check(int[] failures) throws InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    List<List<String>> expected = new ArrayList<>();
+    List<Double> levels = new ArrayList<>();
+    for (int b = 0; b != failures.length; ++b) {
+      PhysicalUnits model = model(config);
+      SimulationClock clock = new SimulationClock(new MySteamBoilerController(config), model);
+      int pump = b % config.getNumberOfPumps();
+      // At the time of an exchange, this happens straight after it
+      clock.inject((long) failures[b] * SimulationClock.CYCLE + SimulationClock.DEFAULT_STEP,
+          units -> units.setPump(pump, new PumpModels.StuckClosed(pump, 0.0, units)));
+      List<String> sent = new ArrayList<>();
+      clock.runUntil((long) 2 * CYCLES * SimulationClock.CYCLE, output -> {
+        sent.add(ArrayMailbox.describe(output));
+        return false;
+      });
+      expected.add(sent);
+      levels.add(Double.valueOf(model.getBoiler().getWaterLevel()));
+    }
+
+    PipelinedSimulation pipelined = new PipelinedSimulation();
+    List<PhysicalUnits> models = new ArrayList<>();
+    List<List<String>> actual = new ArrayList<>();
+    for (int b = 0; b != failures.length; ++b) {
+      PhysicalUnits model = model(config);
+      assertEquals(b, pipelined.add(new MySteamBoilerController(config), model));
+      models.add(model);
+      actual.add(new ArrayList<>());
+    }
+    for (int run = 0; run != 2; ++run) {
+      pipelined.run(CYCLES, (received, boiler) -> {
+        List<String> sent = actual.get(boiler);
+        if (sent.size() == failures[boiler]) {
+          int pump = boiler % config.getNumberOfPumps();
+          PhysicalUnits units = models.get(boiler);
+          units.setPump(pump, new PumpModels.StuckClosed(pump, 0.0, units));
+        }
+        sent.add(ArrayMailbox.describe(received));
+      });
+    }
+    for (int b = 0; b != failures.length; ++b) {
+      assertTrue(expected.get(b).toString().contains("PUMP_FAILURE_DETECTION_n(" + b));
+      assertEquals("boiler " + b, expected.get(b), actual.get(b));
+      assertEquals(levels.get(b).doubleValue(), models.get(b).getBoiler().getWaterLevel(), 0.0);
+    }
+    assertEquals(2 * CYCLES, pipelined.getCycles());
+    assertTrue(pipelined.getCyclesPerSecond() > 0);
+  }
+
+  /**
+   * Make the physical units of a boiler, waiting to start.
+   *
+   * @param config
+   *          The boiler characteristics.
+   * @return The physical units.
+   */
+  private static PhysicalUnits model(SteamBoilerCharacteristics config) {
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    return model;
+  }
+}
@@ -0,0 +1,216 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.SimulationClock;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.tests.TestUtils.MailboxMatcher;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Checks how the controller responds to a failure injected at every second of a run. Rather than
+ * running the system from scratch up to each point in time, the controller is run once and, at
+ * each second, it is copied and the failure is injected into a branch from there. The branches
+ * are clocked in parallel whilst the run carries on.
+ *
+ * <p>The physical units cannot be copied, and transmitting changes their state as well as
+ * reporting it, so a branch never touches the units of the run. Instead each branch builds its
+ * own units by replaying the commands the controller sent in the run, exchanging at the same
+ * times, which brings them to exactly the same state. Only the controller's side of the prefix
+ * is shared, which is most of the cost. The modes the run goes through are checked against a
+ * run on its own, so a branch which disturbed the run would be caught.
+ *
+ * @author Caitlin
+ *
+ */
+public class SafetySweep {
+
+  /**
+   * A failure which can be injected into the physical units.
+   *
+   * @author Caitlin
+   *
+   */
+  public static interface Failure {
+    /**
+     * Inject the failure into a given unit.
+     *
+     * @param model
+     *          The physical units.
+     * @param unit
+     *          The unit which fails, such as a pump number. This is always zero for failures
+     *          which do not apply to a numbered unit.
+     */
+    public void inject(PhysicalUnits model, int unit);
+  }
+
+  /**
+   * The step the physical units are clocked in, in milliseconds.
+   */
+  private static final int GRANULARITY = 100;
+
+  /**
+   * Check the controller responds to a failure as expected, whenever it happens. The system is
+   * started in the waiting mode and run for a given amount of time, during which an emergency stop
+   * must not happen. At every second, the failure is injected into each unit in turn and the
+   * controller is clocked once, which must produce the expected response.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   * @param time
+   *          The amount of time (in seconds) over which to inject the failure.
+   * @param units
+   *          The number of units to inject the failure into, such as the number of pumps.
+   * @param failure
+   *          The failure to inject.
+   * @param expected
+   *          The response expected from the controller in the cycle after the failure.
+   * @return The mode of the controller at each second the failure was injected.
+   */
+  public static List<String> sweep(SteamBoilerCharacteristics config, int time, int units,
+      Failure failure, MailboxMatcher expected) {
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = model(config);
+    ArrayList<ForkJoinTask<String>> branches = new ArrayList<>();
+    ArrayList<Mailbox> commands = new ArrayList<>();
+    List<String> modes = new ArrayList<>();
+    int totalElapsed = 0; // ms
+    for (int t = 0; t != time; ++t) {
+      modes.add(controller.getStatusMessage());
+      // Branch off with the failure in each unit
+      List<Mailbox> prefix = new ArrayList<>(commands);
+      for (int i = 0; i != units; ++i) {
+        branches.add(ForkJoinPool.commonPool().submit(branch(config, prefix, totalElapsed,
+            new MySteamBoilerController(controller), failure, expected, t, i)));
+      }
+      // Carry on the run for another second, without the failure
+      for (int j = 0; j != 1000; j += GRANULARITY) {
+        Mailbox received = TestUtils.clock(GRANULARITY, totalElapsed, controller, model);
+        if (received != null) {
+          if (TestUtils.MODE_emergencystop.match(received) >= 0) {
+            fail("bad event happened after " + totalElapsed + "ms (" + received + ")");
+          }
+          commands.add(copy(received));
+        }
+        totalElapsed += GRANULARITY;
+      }
+    }
+    assertEquals("modes of the run", modes(config, time), modes);
+    // Report the earliest branch which went wrong
+    for (int i = 0; i != branches.size(); ++i) {
+      String error = branches.get(i).join();
+      if (error != null) {
+        fail(error);
+      }
+    }
+    return modes;
+  }
+
+  /**
+   * Run the system on its own, as each branch used to be run up to its failure, and get the mode
+   * of the controller at every second.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   * @param time
+   *          The amount of time (in seconds) to run for.
+   * @return The mode at each second.
+   */
+  private static List<String> modes(SteamBoilerCharacteristics config, int time) {
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    SimulationClock clock = new SimulationClock(controller, model(config));
+    List<String> modes = new ArrayList<>();
+    for (int t = 0; t != time; ++t) {
+      clock.run(t * 1000L);
+      modes.add(controller.getStatusMessage());
+    }
+    return modes;
+  }
+
+  /**
+   * Create the task which brings a branch's physical units up to the time of the failure,
+   * injects it, clocks the controller once and checks its response.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   * @param commands
+   *          The messages from the controller at each exchange of the run so far.
+   * @param elapsed
+   *          The time (in milliseconds) of the failure.
+   * @param controller
+   *          The copy of the controller for the branch.
+   * @param failure
+   *          The failure to inject.
+   * @param expected
+   *          The response expected from the controller.
+   * @param time
+   *          The time (in seconds) the failure was injected, for reporting.
+   * @param unit
+   *          The unit which failed.
+   * @return The task, which gives an error message or null if the response was as expected.
+   */
+  private static Callable<String> branch(SteamBoilerCharacteristics config,
+      List<Mailbox> commands, int elapsed, MySteamBoilerController controller, Failure failure,
+      MailboxMatcher expected, int time, int unit) {
+    return () -> {
+      PhysicalUnits model = model(config);
+      int exchange = 0;
+      for (int t = 0; t != elapsed; t += GRANULARITY) {
+        model.clock(GRANULARITY);
+        if (t % 5000 == 0) {
+          // Transmitting changes the state of the units, so it happens here as in the run
+          model.transmit(new UnboundedMailbox(100));
+          model.receive(commands.get(exchange++));
+        }
+      }
+      failure.inject(model, unit);
+      Mailbox input = new UnboundedMailbox(100);
+      model.transmit(input);
+      Mailbox output = new UnboundedMailbox(100);
+      controller.clock(input, output);
+      if (!expected.matches(output)) {
+        return "did not expect to receive " + output + ", expected " + expected + " (failure at "
+            + time + "s in unit " + unit + ")";
+      }
+      return null;
+    };
+  }
+
+  /**
+   * Copy the messages in a mailbox.
+   *
+   * @param messages
+   *          The messages.
+   * @return A mailbox with copies of them.
+   */
+  private static Mailbox copy(Mailbox messages) {
+    Mailbox copy = new UnboundedMailbox(messages.size());
+    for (int i = 0; i != messages.size(); ++i) {
+      copy.send(messages.read(i));
+    }
+    return copy;
+  }
+
+  /**
+   * Make the physical units of a boiler, waiting to start.
+   *
+   * @param config
+   *          The boiler characteristics.
+   * @return The physical units.
+   */
+  private static PhysicalUnits model(SteamBoilerCharacteristics config) {
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    return model;
+  }
+}
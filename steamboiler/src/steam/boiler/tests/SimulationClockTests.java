@@ -0,0 +1,113 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.SimulationClock;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check the event-driven clock behaves like the fixed step clock in the test
+ * harness, and that scheduled failures and repairs happen when they should.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SimulationClockTests {
+
+  /**
+   * Check the default clock sends and receives exactly the same messages as clocking in fixed
+   * steps with the test harness, over several runs back to back.
+   */
+  @Test
+  public void test_clock_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    MySteamBoilerController expectedController = new MySteamBoilerController(config);
+    PhysicalUnits expectedModel = new PhysicalUnits.Template(config).construct();
+    expectedModel.setMode(PhysicalUnits.Mode.WAITING);
+    for (int run = 1; run != 20; ++run) {
+      StringBuilder expected = new StringBuilder();
+      for (int t = 0; t < run * 7000; t += 100) {
+        Mailbox output = TestUtils.clock(100, t, expectedController, expectedModel);
+        if (output != null) {
+          expected.append(output).append('\n');
+        }
+      }
+      StringBuilder actual = new StringBuilder();
+      new SimulationClock(controller, model).runUntil(run * 7000, output -> {
+        actual.append(output).append('\n');
+        return false;
+      });
+      assertEquals(expected.toString(), actual.toString());
+      assertEquals(expectedModel.getBoiler().getWaterLevel(), model.getBoiler().getWaterLevel(),
+          0.0);
+    }
+  }
+
+  /**
+   * Check a scheduled pump failure is detected in the first exchange after it, that the boiler
+   * is back to normal soon after the scheduled repair, and that nothing can be scheduled in the
+   * past.
+   */
+  @Test
+  public void test_clock_02() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    SimulationClock clock = new SimulationClock(controller, model);
+    clock.inject(240000, units -> units.setPump(0, new PumpModels.StuckClosed(0, 0.0, units)));
+    clock.repair(300000, units -> {
+      units.setPump(0, new PumpModels.Ideal(0, config.getPumpCapacity(0), units));
+      units.setPumpStatus(0, PhysicalUnits.ComponentStatus.REPAIRED);
+    });
+    assertNull(clock.runUntil(240000, TestUtils.atleast(TestUtils.MODE_emergencystop)::matches));
+    assertEquals("NORMAL", controller.getStatusMessage());
+    Mailbox detected = clock.runUntil(300000,
+        TestUtils.atleast(TestUtils.PUMP_FAILURE_DETECTION(0))::matches);
+    assertEquals(240100, clock.getTime());
+    assertNotNull(detected);
+    clock.run(310000);
+    assertEquals("NORMAL", controller.getStatusMessage());
+    try {
+      clock.inject(300000, units -> {
+        // never happens
+      });
+      fail("scheduled a failure in the past");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Check an adaptive step keeps the boiler running normally, in far fewer steps.
+   */
+  @Test
+  public void test_clock_03() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    SimulationClock clock = new SimulationClock(controller, model)
+        .setAdaptiveStep(100, SimulationClock.CYCLE, 0.01);
+    assertNull(clock.runUntil(3600000, TestUtils.atleast(TestUtils.MODE_emergencystop)::matches));
+    assertEquals("NORMAL", controller.getStatusMessage());
+    assertEquals(720, clock.getCycles());
+    assertTrue(clock.getSteps() < 36000 / 10);
+  }
+}
@@ -0,0 +1,203 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpControllerModels;
+import steam.boiler.model.PumpModels;
+import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * These tests check that snapshots and forks of the controller behave exactly like the
+ * controller they were taken from.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SnapshotTests {
+
+  /**
+   * Check a controller restored from a snapshot responds to the rest of a run exactly as the
+   * original did, wherever in the run the snapshot was taken.
+   */
+  @Test
+  public void test_snapshot_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    ArrayList<Mailbox> inputs = record(config, 120);
+    for (int start = 0; start < inputs.size(); start += 7) {
+      MySteamBoilerController original = new MySteamBoilerController(config);
+      replay(original, inputs, 0, start);
+      MySteamBoilerController.Snapshot snapshot = original.snapshot();
+      MySteamBoilerController restored = new MySteamBoilerController(config);
+      restored.restore(snapshot);
+      assertEquals(original.getStatusMessage(), restored.getStatusMessage());
+      assertEquals(replay(original, inputs, start, inputs.size()),
+          replay(restored, inputs, start, inputs.size()));
+    }
+  }
+
+  /**
+   * Check a snapshot can be restored more than once, including into the controller it was
+   * taken from.
+   */
+  @Test
+  public void test_snapshot_02() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    ArrayList<Mailbox> inputs = record(config, 120);
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    replay(controller, inputs, 0, 60);
+    MySteamBoilerController.Snapshot snapshot = controller.snapshot();
+    String first = replay(controller, inputs, 60, inputs.size());
+    controller.restore(snapshot);
+    String second = replay(controller, inputs, 60, inputs.size());
+    assertEquals(first, second);
+  }
+
+  /**
+   * Check a snapshot cannot be restored into a controller with a different number of pumps.
+   */
+  @Test
+  public void test_snapshot_03() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    MySteamBoilerController.Snapshot snapshot = controller.snapshot();
+    config = config.setNumberOfPumps(2, config.getPumpCapacity(0));
+    try {
+      new MySteamBoilerController(config).restore(snapshot);
+      fail("restored a snapshot for a different number of pumps");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Check a fork and the controller it was forked from do not see each other's changes, in
+   * either order of clocking them.
+   */
+  @Test
+  public void test_fork_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    ArrayList<Mailbox> inputs = record(config, 120);
+    for (int start = 0; start < inputs.size(); start += 11) {
+      MySteamBoilerController original = new MySteamBoilerController(config);
+      replay(original, inputs, 0, start);
+      MySteamBoilerController reference = new MySteamBoilerController(original);
+      MySteamBoilerController fork = original.fork();
+      // Send the fork somewhere else entirely, by giving it the inputs from the beginning.
+      replay(fork, inputs, 0, inputs.size());
+      assertEquals(replay(reference, inputs, start, inputs.size()),
+          replay(original, inputs, start, inputs.size()));
+      // And the other way round, clocking the original first.
+      fork = original.fork();
+      reference = new MySteamBoilerController(original);
+      replay(original, inputs, 0, inputs.size());
+      assertEquals(replay(reference, inputs, 0, inputs.size()),
+          replay(fork, inputs, 0, inputs.size()));
+    }
+  }
+
+  /**
+   * Check acknowledgements and repairs for pump numbers which are not pumps are ignored, rather
+   * than marking a pump which does not exist or failing, whilst pumps are failing and being
+   * repaired.
+   */
+  @Test
+  public void test_pump_numbers_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    ArrayList<Mailbox> inputs = record(config, 120);
+    ArrayList<Mailbox> extra = new ArrayList<>();
+    Mailbox.Message message = new Mailbox.Message(MessageKind.VALVE);
+    for (int c = 0; c != inputs.size(); ++c) {
+      Mailbox input = new UnboundedMailbox(100);
+      for (int i = 0; i != inputs.get(c).size(); ++i) {
+        input.send(inputs.get(c).read(i));
+      }
+      if (c >= 50) {
+        for (int pump : new int[] { -1, config.getNumberOfPumps(), 63, Integer.MIN_VALUE }) {
+          input.send(message.set(MessageKind.PUMP_FAILURE_ACKNOWLEDGEMENT_n, pump));
+          input.send(message.set(MessageKind.PUMP_CONTROL_FAILURE_ACKNOWLEDGEMENT_n, pump));
+          input.send(message.set(MessageKind.PUMP_REPAIRED_n, pump));
+          input.send(message.set(MessageKind.PUMP_CONTROL_REPAIRED_n, pump));
+        }
+      }
+      extra.add(input);
+    }
+    assertEquals(replay(new MySteamBoilerController(config), inputs, 0, inputs.size()),
+        replay(new MySteamBoilerController(config), extra, 0, extra.size()));
+  }
+
+  /**
+   * Record the messages sent to the controller in each cycle of a run. The run goes through
+   * degraded mode, with failures being acknowledged and repaired.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   * @param cycles
+   *          The number of cycles to record.
+   * @return The messages received in each cycle.
+   */
+  private static ArrayList<Mailbox> record(SteamBoilerCharacteristics config, int cycles) {
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    ArrayList<Mailbox> inputs = new ArrayList<>();
+    for (int c = 0; c != cycles; ++c) {
+      if (c == 50) {
+        model.setPump(1, new PumpModels.StuckClosed(1, 0.0, model));
+        model.setPumpController(2, new PumpControllerModels.StuckOff(2, model));
+      } else if (c == 70) {
+        model.setPump(1, new PumpModels.Ideal(1, config.getPumpCapacity(1), model));
+        model.setPumpStatus(1, PhysicalUnits.ComponentStatus.REPAIRED);
+      } else if (c == 90) {
+        model.setSteamSensor(new SteamSensorModels.StuckNegativeOne(model));
+      }
+      Mailbox input = new UnboundedMailbox(100);
+      model.transmit(input);
+      Mailbox output = new UnboundedMailbox(100);
+      controller.clock(input, output);
+      model.receive(output);
+      inputs.add(input);
+      for (int t = 0; t != 5000; t += 100) {
+        model.clock(100);
+      }
+    }
+    return inputs;
+  }
+
+  /**
+   * Clock a controller with a range of recorded inputs.
+   *
+   * @param controller
+   *          The controller to clock.
+   * @param inputs
+   *          The recorded inputs.
+   * @param from
+   *          The first cycle to replay.
+   * @param to
+   *          One past the last cycle to replay.
+   * @return The messages sent by the controller and its mode after each cycle.
+   */
+  private static String replay(MySteamBoilerController controller, ArrayList<Mailbox> inputs,
+      int from, int to) {
+    StringBuilder result = new StringBuilder();
+    for (int c = from; c < to; ++c) {
+      Mailbox output = new UnboundedMailbox(100);
+      controller.clock(inputs.get(c), output);
+      result.append(output).append(controller.getStatusMessage()).append('\n');
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,83 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.StateExplorer;
+import steam.boiler.core.TransitionTable;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check the state explorer finds the invariants of the controller hold for the
+ * first few cycles, and finds the shortest run which breaks an invariant which does not.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class StateExplorerTests {
+
+  /**
+   * Check the standard invariants hold for every state within four cycles of the start.
+   */
+  @Test
+  public void test_explorer_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT.setNumberOfPumps(1,
+        4);
+    StateExplorer explorer = new StateExplorer(config).setMaxDepth(4);
+    StateExplorer.Report report = explorer.explore();
+    assertEquals(4, report.getDepth());
+    assertFalse(report.isComplete());
+    assertTrue(report.getStates() > 100);
+    assertTrue(report.getTransitions() > 100L * explorer.getInputs());
+    assertTrue(report.holds(StateExplorer.TRANSMISSION_FAILURE_STOPS));
+    assertTrue(report.holds(StateExplorer.MODE_MESSAGES));
+    assertTrue(report.holds(StateExplorer.STOP_IS_FINAL));
+    assertNull(report.getCounterexample(StateExplorer.MODE_MESSAGES));
+  }
+
+  /**
+   * Check an invariant which is broken by getting into normal mode is broken by the shortest
+   * way into it, which is the boiler waiting and then the physical units being ready.
+   */
+  @Test
+  public void test_explorer_02() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT.setNumberOfPumps(2,
+        4);
+    StateExplorer explorer = new StateExplorer(config).setMaxDepth(3)
+        .addInvariant("never-normal", t -> t.getTo() != TransitionTable.NORMAL);
+    StateExplorer.Report report = explorer.explore();
+    assertFalse(report.holds("never-normal"));
+    List<String> run = report.getCounterexample("never-normal");
+    assertNotNull(run);
+    assertEquals(2, run.size());
+    assertTrue(run.get(0), run.get(0).contains("STEAM_BOILER_WAITING"));
+    assertTrue(run.get(1), run.get(1).contains("PHYSICAL_UNITS_READY"));
+    assertTrue(report.holds(StateExplorer.TRANSMISSION_FAILURE_STOPS));
+  }
+
+  /**
+   * Check a boiler with too many pumps to pack into a state is refused.
+   */
+  @Test
+  public void test_explorer_03() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT.setNumberOfPumps(
+        StateExplorer.MAX_PUMPS + 1, 4);
+    try {
+      new StateExplorer(config);
+      fail("expected the boiler to be refused");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+}
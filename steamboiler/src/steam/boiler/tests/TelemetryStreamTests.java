@@ -0,0 +1,234 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.ArrayMailbox;
+import steam.boiler.core.MessageCodec;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.TelemetryStream;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * These tests check a controller clocked from a stream of frames sends the same messages as
+ * one clocked directly, and does not allocate once it is running.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TelemetryStreamTests {
+
+  /**
+   * Check a run with a pump failure, read from a channel a few bytes at a time, gives a reply
+   * for every frame with the messages sent when it was recorded.
+   */
+  @Test
+  public void test_stream_01() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    List<String> expected = new ArrayList<>();
+    ByteBuffer frames = record(config, 180, 12, expected);
+    byte[] bytes = new byte[frames.remaining()];
+    frames.get(bytes);
+    ReadableByteChannel from = new Trickle(bytes, 7);
+    ByteArrayOutputStream replies = new ByteArrayOutputStream();
+    TelemetryStream stream = new TelemetryStream(new MySteamBoilerController(config),
+        config.getNumberOfPumps());
+    assertEquals(expected.size(), stream.run(from, Channels.newChannel(replies)));
+    ByteBuffer reply = ByteBuffer.wrap(replies.toByteArray());
+    ArrayMailbox out = new ArrayMailbox(10);
+    Mailbox.Message scratch = new Mailbox.Message(Mailbox.MessageKind.VALVE);
+    for (int c = 0; c != expected.size(); ++c) {
+      int end = reply.getInt() + reply.position();
+      out.clear();
+      MessageCodec.decode(reply, out, scratch);
+      assertEquals(end, reply.position());
+      assertEquals("cycle " + c, expected.get(c), ArrayMailbox.describe(out));
+    }
+    assertTrue(!reply.hasRemaining());
+  }
+
+  /**
+   * Check part of a frame is left for later, and a frame with a bad length, or which ends
+   * part way through a message, is refused.
+   */
+  @Test
+  public void test_stream_02() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    ByteBuffer frames = record(config, 2, 12, new ArrayList<>());
+    TelemetryStream stream = new TelemetryStream(new MySteamBoilerController(config),
+        config.getNumberOfPumps());
+    int length = frames.getInt(0);
+    frames.limit(length + 3);
+    assertNull(stream.cycle(frames));
+    assertEquals(0, frames.position());
+    frames.limit(length + 4);
+    assertNotNull(stream.cycle(frames));
+    assertEquals(length + 4, frames.position());
+    assertEquals(1, stream.getCycles());
+    ByteBuffer bad = ByteBuffer.allocate(16);
+    bad.putInt(-1).flip();
+    try {
+      stream.cycle(bad);
+      fail("expected a negative length to be refused");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    bad.clear();
+    bad.putInt(8).putInt(3).put((byte) 0).putShort((short) 0).put((byte) 0).flip();
+    try {
+      stream.cycle(bad);
+      fail("expected a frame which ends part way through a message to be refused");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    try {
+      stream.run(new Trickle(new byte[] { 0, 0, 0, 8, 0 }, 2),
+          Channels.newChannel(new ByteArrayOutputStream()));
+      fail("expected a stream which ends part way through a frame to be refused");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Check taking a frame, clocking the controller and writing the reply does not allocate once
+   * the controller is running.
+   */
+  @Test
+  public void test_stream_03() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    ByteBuffer heap = record(config, 400, 12, new ArrayList<>());
+    ByteBuffer frames = ByteBuffer.allocateDirect(heap.remaining());
+    frames.put(heap).flip();
+    TelemetryStream stream = new TelemetryStream(new MySteamBoilerController(config),
+        config.getNumberOfPumps());
+    for (int c = 0; c != 100; ++c) {
+      assertNotNull(stream.cycle(frames));
+    }
+    // Try a few windows, as the JIT compiler occasionally allocates whilst it is compiling
+    long allocated = 0;
+    for (int w = 0; w != 3; ++w) {
+      long before = AllocationChecker.allocatedBytes();
+      for (int c = 0; c != 100; ++c) {
+        stream.cycle(frames);
+      }
+      allocated = AllocationChecker.allocatedBytes() - before;
+      if (allocated < 64) {
+        break;
+      }
+    }
+    assertTrue("allocated " + allocated + " bytes in 100 cycles", allocated < 64);
+  }
+
+  /**
+   * Simulate a boiler with a pump which sticks closed part way through, and write the messages
+   * to the controller in each cycle as frames.
+   *
+   * @param config
+   *          The configuration of the boiler.
+   * @param cycles
+   *          The number of cycles.
+   * @param failAt
+   *          The cycle the pump sticks closed in.
+   * @param expected
+   *          The list to add the messages from the controller in each cycle to.
+   * @return The frames, from the position to the limit.
+   */
+  static ByteBuffer record(SteamBoilerCharacteristics config, int cycles, int failAt,
+      List<String> expected) {
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    ArrayMailbox in = new ArrayMailbox(16);
+    ArrayMailbox out = new ArrayMailbox(16);
+    ByteBuffer frames = ByteBuffer.allocate(cycles * 256);
+    for (int c = 0; c != cycles; ++c) {
+      if (c == failAt) {
+        model.setPump(1, new PumpModels.StuckClosed(1, 0.0, model));
+      }
+      in.clear();
+      out.clear();
+      model.transmit(in);
+      TelemetryStream.frame(in, frames);
+      controller.clock(in, out);
+      expected.add(ArrayMailbox.describe(out));
+      model.receive(out);
+      for (int t = 0; t != 5000; t += 100) {
+        model.clock(100);
+      }
+    }
+    frames.flip();
+    return frames;
+  }
+
+  /**
+   * A channel which reads a few bytes at a time, as a socket might.
+   */
+  private static final class Trickle implements ReadableByteChannel {
+
+    /**
+     * The bytes to read.
+     */
+    private final ByteBuffer bytes;
+
+    /**
+     * The most bytes read at a time.
+     */
+    private final int chunk;
+
+    /**
+     * Construct a channel.
+     *
+     * @param bytes
+     *          The bytes to read.
+     * @param chunk
+     *          The most bytes read at a time.
+     */
+    Trickle(byte[] bytes, int chunk) {
+      this.bytes = ByteBuffer.wrap(bytes);
+      this.chunk = chunk;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+      if (!this.bytes.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(Math.min(this.chunk, this.bytes.remaining()), dst.remaining());
+      ByteBuffer slice = this.bytes.duplicate();
+      slice.limit(slice.position() + count);
+      dst.put(slice);
+      this.bytes.position(this.bytes.position() + count);
+      return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+      // Nothing to close
+    }
+  }
+}
@@ -3,18 +3,58 @@ package steam.boiler.tests;
 import static org.junit.Assert.fail;
 
 import java.util.Arrays;
+import java.util.function.Predicate;
 
+import steam.boiler.core.ArrayMailbox;
 import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.SimulationClock;
 import steam.boiler.model.PhysicalUnits;
 import steam.boiler.tests.TestUtils.MailboxMatcher;
 import steam.boiler.util.Mailbox;
-import steam.boiler.util.UnboundedMailbox;
 import steam.boiler.util.Mailbox.Message;
 import steam.boiler.util.Mailbox.MessageKind;
 import steam.boiler.util.Mailbox.Mode;
 
 public class TestUtils {
 
+  // ========================================================================
+  // Mailboxes
+  // ========================================================================
+
+  /**
+   * The mailboxes each thread exchanges messages through. These are cleared and reused every
+   * cycle rather than allocated, so a mailbox returned by one of the clock methods is only valid
+   * until the next one is called on the same thread.
+   */
+  private static final ThreadLocal<MailboxPair> MAILBOXES = ThreadLocal
+      .withInitial(MailboxPair::new);
+
+  /**
+   * A pair of mailboxes for exchanging messages between the controller and physical units.
+   */
+  private static class MailboxPair {
+    /**
+     * The messages to the controller.
+     */
+    final ArrayMailbox input = new ArrayMailbox(100);
+
+    /**
+     * The messages from the controller.
+     */
+    final ArrayMailbox output = new ArrayMailbox(100);
+
+    /**
+     * Clear both mailboxes, ready for another cycle.
+     *
+     * @return This pair.
+     */
+    MailboxPair clear() {
+      this.input.clear();
+      this.output.clear();
+      return this;
+    }
+  }
+
   // ========================================================================
   // Response Matchers
   // ========================================================================
@@ -157,8 +197,9 @@ public class TestUtils {
    */
   public static void clockOnceExpecting(MySteamBoilerController controller, PhysicalUnits model,
       MailboxMatcher matcher) {
-    Mailbox input = new UnboundedMailbox(100);
-    Mailbox output = new UnboundedMailbox(100);
+    MailboxPair mailboxes = MAILBOXES.get().clear();
+    Mailbox input = mailboxes.input;
+    Mailbox output = mailboxes.output;
     // Generation messages for controller from model
     model.transmit(input);
     // Clock controller to process incoming messages and return responses.
@@ -187,23 +228,13 @@ public class TestUtils {
    */
   public static void clockUntil(int timeout, MySteamBoilerController controller,
       PhysicalUnits physicalUnits, MailboxMatcher matcher) {
-    final int granularity = 100; // ms
-    int totalElapsed = 0; // ms
-    // Convert timeout into microseconds
-    timeout = timeout * 1000;
-    //
-    while (totalElapsed < timeout) {
-      Mailbox received = clock(granularity, totalElapsed, controller, physicalUnits);
-      if (received != null) {
-        // We received something back from controller, there see whether we have matched our event.
-        if (matcher.matches(received)) {
-          return;
-        }
-      }
-      totalElapsed += granularity;
+    SimulationClock clock = simulationClock(controller, physicalUnits);
+    // Convert timeout into microseconds, and check each time we receive something back from
+    // the controller whether we have matched our event.
+    if (clock.runUntil(timeout * 1000L, streaming(matcher)) == null) {
+      // If we get here, then the event wasn't matched within the required timeframe.
+      fail("timeout occurred");
     }
-    // If we get here, then the event wasn't matched within the required timeframe.
-    fail("timeout occurred");
   }
 
   /**
@@ -221,25 +252,35 @@ public class TestUtils {
    */
   public static void clockForWithout(int time, MySteamBoilerController controller,
       PhysicalUnits physicalUnits, MailboxMatcher matcher) {
-    final int granularity = 100; // ms
-    int totalElapsed = 0; // ms
-    // Convert timeout into microseconds
-    time = time * 1000;
-    //
-    while (totalElapsed < time) {
-      Mailbox received = clock(granularity, totalElapsed, controller, physicalUnits);
-      if (received != null) {
-        // We received something back from controller, there see whether we have matched our event.
-        if (matcher.matches(received)) {
-          // If we've matched this event, then that's bad news.
-          fail("bad event happened after " + totalElapsed + "ms (" + received + ")");
-        }
-      }
-      totalElapsed += granularity;
+    SimulationClock clock = simulationClock(controller, physicalUnits);
+    // Convert time into microseconds, and check each time we receive something back from
+    // the controller whether we have matched our event.
+    Mailbox received = clock.runUntil(time * 1000L, streaming(matcher));
+    if (received != null) {
+      // If we've matched this event, then that's bad news. The exchange happens at the end of
+      // the first step of each cycle.
+      long totalElapsed = (clock.getCycles() - 1) * SimulationClock.CYCLE;
+      fail("bad event happened after " + totalElapsed + "ms (" + received + ")");
     }
     // If we get here, then the given event obviously didn't happen so we're done.
   }
 
+  /**
+   * Create a clock for the combined system which exchanges messages through this thread's
+   * mailboxes.
+   *
+   * @param controller
+   *          The controller under test.
+   * @param physicalUnits
+   *          The model of the physical units being manipulated.
+   * @return The clock.
+   */
+  private static SimulationClock simulationClock(MySteamBoilerController controller,
+      PhysicalUnits physicalUnits) {
+    MailboxPair mailboxes = MAILBOXES.get();
+    return new SimulationClock(controller, physicalUnits, mailboxes.input, mailboxes.output);
+  }
+
   /**
    * Clock the combined system for a given amount of time. This sends and receives messages between
    * the two components when the total time elapsed is a multiple of five seconds. Messages received
@@ -256,6 +297,7 @@ public class TestUtils {
    * @param physicalUnits
    *          The model of the physical units being manipulated.
    * @return Any messages received from the controller, or null if this wasn't a transmission cycle.
+   *         These are only valid until the next cycle on the same thread.
    */
   public static Mailbox clock(int elapsed, int totalElapsed, MySteamBoilerController controller,
       PhysicalUnits physicalUnits) {
@@ -263,8 +305,9 @@ public class TestUtils {
     // After every five seconds has elapsed we allow the controller and physical units to
     // synchronise (i.e. transmit messages between them).
     if ((totalElapsed % 5000) == 0) {
-      Mailbox input = new UnboundedMailbox(100);
-      Mailbox output = new UnboundedMailbox(100);
+      MailboxPair mailboxes = MAILBOXES.get().clear();
+      Mailbox input = mailboxes.input;
+      Mailbox output = mailboxes.output;
       // Generation messages for controller from model
       physicalUnits.transmit(input);
       // Clock controller to process incoming messages and return responses.
@@ -326,6 +369,9 @@ public class TestUtils {
    * @return
    */
   public static MailboxMatcher exactly(final MessageMatcher... matchers) {
+    if (CompiledMailboxMatcher.canCompile(matchers)) {
+      return new CompiledMailboxMatcher(true, matchers);
+    }
     return new MailboxMatcher() {
 
       @Override
@@ -366,6 +412,9 @@ public class TestUtils {
    * @return
    */
   public static MailboxMatcher atleast(final MessageMatcher... matchers) {
+    if (CompiledMailboxMatcher.canCompile(matchers)) {
+      return new CompiledMailboxMatcher(false, matchers);
+    }
     return new MailboxMatcher() {
 
       @Override
@@ -386,6 +435,262 @@ public class TestUtils {
     };
   }
 
+  /**
+   * Get something which checks mailboxes against a given matcher, one cycle after another. For
+   * the matchers made by {@link #exactly} and {@link #atleast} this reuses the same match state
+   * every cycle and stops reading the mailbox as soon as the outcome is known.
+   *
+   * @param matcher
+   *          The matcher.
+   * @return The check.
+   */
+  private static Predicate<Mailbox> streaming(MailboxMatcher matcher) {
+    if (matcher instanceof CompiledMailboxMatcher) {
+      return ((CompiledMailboxMatcher) matcher).newState()::matches;
+    }
+    return matcher::matches;
+  }
+
+  /**
+   * A mailbox matcher for {@link #exactly} or {@link #atleast} which has been compiled into a
+   * table of message matchers indexed by message kind. This means each message is only checked
+   * against the matchers for its kind, so a whole mailbox is matched in one pass. The messages
+   * of each kind are also counted, so for an exact match the mailbox can be rejected as soon as
+   * there are too many of any kind.
+   *
+   * <p>Matching is done by a {@link MatchState}, to which messages are given one at a time. This
+   * can tell as soon as the outcome is known, without reading the rest of the mailbox.
+   *
+   * @author Caitlin
+   *
+   */
+  public static final class CompiledMailboxMatcher implements MailboxMatcher {
+    /**
+     * The number of message kinds.
+     */
+    private static final int KINDS = MessageKind.values().length;
+
+    /**
+     * Whether every message must be matched by exactly one matcher, rather than every matcher
+     * matching something.
+     */
+    private final boolean exact;
+
+    /**
+     * The matchers this was compiled from, for printing.
+     */
+    private final MessageMatcher[] source;
+
+    /**
+     * The matchers, grouped by message kind.
+     */
+    private final ConcreteMessageMatcher[] table;
+
+    /**
+     * Where the matchers for each kind start in the table, indexed by kind ordinal. Those for
+     * kind k run up to where the matchers for kind k + 1 start.
+     */
+    private final int[] offsets = new int[KINDS + 1];
+
+    /**
+     * Compile a set of matchers.
+     *
+     * @param exact
+     *          Whether every message must be matched by exactly one matcher.
+     * @param matchers
+     *          The matchers, which must all be concrete.
+     */
+    CompiledMailboxMatcher(boolean exact, MessageMatcher... matchers) {
+      this.exact = exact;
+      this.source = matchers.clone();
+      this.table = new ConcreteMessageMatcher[matchers.length];
+      // Count the matchers of each kind, then place them.
+      for (MessageMatcher matcher : matchers) {
+        this.offsets[((ConcreteMessageMatcher) matcher).kind.ordinal() + 1]++;
+      }
+      for (int k = 0; k != KINDS; ++k) {
+        this.offsets[k + 1] += this.offsets[k];
+      }
+      int[] next = Arrays.copyOf(this.offsets, KINDS);
+      for (MessageMatcher matcher : matchers) {
+        ConcreteMessageMatcher concrete = (ConcreteMessageMatcher) matcher;
+        this.table[next[concrete.kind.ordinal()]++] = concrete;
+      }
+    }
+
+    /**
+     * Check whether a set of matchers can be compiled, which is when they are all concrete.
+     *
+     * @param matchers
+     *          The matchers.
+     * @return True if they can be compiled.
+     */
+    static boolean canCompile(MessageMatcher... matchers) {
+      for (MessageMatcher matcher : matchers) {
+        if (!(matcher instanceof ConcreteMessageMatcher)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Create a new state for matching mailboxes, which can be reused for one mailbox after
+     * another.
+     *
+     * @return The state.
+     */
+    public MatchState newState() {
+      return new MatchState(this);
+    }
+
+    @Override
+    public boolean matches(Mailbox mailbox) {
+      // Matchers are shared between threads, so each check has its own state
+      return newState().matches(mailbox);
+    }
+
+    @Override
+    public String toString() {
+      return (exact ? "exactly" : "atleast") + Arrays.toString(source);
+    }
+  }
+
+  /**
+   * The state of matching the messages of a mailbox against a compiled matcher, as the messages
+   * are given to it one at a time.
+   *
+   * @author Caitlin
+   *
+   */
+  public static final class MatchState {
+    /**
+     * The compiled matcher.
+     */
+    private final CompiledMailboxMatcher matcher;
+
+    /**
+     * Whether each matcher in the table has matched a message.
+     */
+    private final boolean[] matched;
+
+    /**
+     * The number of messages of each kind so far, indexed by kind ordinal.
+     */
+    private final int[] counts = new int[CompiledMailboxMatcher.KINDS];
+
+    /**
+     * The number of matchers which have not matched a message.
+     */
+    private int remaining;
+
+    /**
+     * Whether a message has been given which means the mailbox cannot match.
+     */
+    private boolean failed;
+
+    /**
+     * Construct the state for the start of a mailbox.
+     *
+     * @param matcher
+     *          The compiled matcher.
+     */
+    MatchState(CompiledMailboxMatcher matcher) {
+      this.matcher = matcher;
+      this.matched = new boolean[matcher.table.length];
+      reset();
+    }
+
+    /**
+     * Go back to the start of a mailbox.
+     */
+    public void reset() {
+      Arrays.fill(this.matched, false);
+      Arrays.fill(this.counts, 0);
+      this.remaining = this.matched.length;
+      this.failed = false;
+    }
+
+    /**
+     * Give the next message of the mailbox.
+     *
+     * @param message
+     *          The message.
+     * @return False if the outcome is now known whatever messages follow, so there is no need to
+     *         give any more.
+     */
+    public boolean offer(Message message) {
+      if (isDecided()) {
+        return false;
+      }
+      int kind = message.getKind().ordinal();
+      int from = this.matcher.offsets[kind];
+      int to = this.matcher.offsets[kind + 1];
+      int count = ++this.counts[kind];
+      if (this.matcher.exact && count > to - from) {
+        // There are more messages of this kind than matchers for it
+        this.failed = true;
+        return false;
+      }
+      boolean claimed = false;
+      for (int j = from; j != to; ++j) {
+        if (!this.matched[j] && this.matcher.table[j].matches(message)) {
+          if (this.matcher.exact && claimed) {
+            // Two matchers would have the same message
+            this.failed = true;
+            return false;
+          }
+          this.matched[j] = true;
+          this.remaining--;
+          claimed = true;
+        }
+      }
+      if (this.matcher.exact && !claimed) {
+        this.failed = true;
+      }
+      return !isDecided();
+    }
+
+    /**
+     * Check whether the outcome is known whatever messages follow.
+     *
+     * @return True if it is.
+     */
+    public boolean isDecided() {
+      return this.failed || (!this.matcher.exact && this.remaining == 0);
+    }
+
+    /**
+     * Check whether the messages given so far match, assuming there are no more.
+     *
+     * @return True if they match.
+     */
+    public boolean isMatched() {
+      return !this.failed && this.remaining == 0;
+    }
+
+    /**
+     * Match a whole mailbox, starting again from the beginning. This stops reading the mailbox as
+     * soon as the outcome is known.
+     *
+     * @param mailbox
+     *          The mailbox.
+     * @return True if it matches.
+     */
+    public boolean matches(Mailbox mailbox) {
+      reset();
+      if (this.matcher.exact && mailbox.size() != this.matched.length) {
+        return false;
+      }
+      for (int i = 0; i != mailbox.size(); ++i) {
+        if (!offer(mailbox.read(i))) {
+          break;
+        }
+      }
+      return isMatched();
+    }
+  }
+
   /**
    * A concrete message matcher messages of a given kind. For example, it could be used to match any
    * kind of <code>LEVEL_v</code> message.
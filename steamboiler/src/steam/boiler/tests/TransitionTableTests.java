@@ -0,0 +1,135 @@
+package steam.boiler.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import steam.boiler.core.TransitionTable;
+import steam.boiler.util.Mailbox;
+
+/**
+ * These tests check the controller's transition table entry by entry, without a boiler.
+ *
+ * @author Caitlin
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TransitionTableTests {
+
+  /**
+   * The states the boiler is running in.
+   */
+  private static final int[] RUNNING = { TransitionTable.NORMAL, TransitionTable.DEGRADED,
+      TransitionTable.RESCUE };
+
+  /**
+   * Check every entry has a state and action, and nothing leaves emergency stop.
+   */
+  @Test
+  public void test_table_01() {
+    for (int state = 0; state < TransitionTable.STATES; state++) {
+      for (int conditions = 0; conditions < 1 << TransitionTable.CONDITIONS; conditions++) {
+        int entry = TransitionTable.lookup(state, conditions);
+        assertTrue(TransitionTable.next(entry) < TransitionTable.STATES);
+        assertTrue(TransitionTable.action(entry) <= TransitionTable.FINISH_WAITING);
+      }
+    }
+    for (int conditions = 0; conditions < 1 << TransitionTable.CONDITIONS; conditions++) {
+      int entry = TransitionTable.lookup(TransitionTable.EMERGENCY_STOP, conditions);
+      assertEquals(TransitionTable.EMERGENCY_STOP, TransitionTable.next(entry));
+      assertEquals(TransitionTable.STOP, TransitionTable.action(entry));
+    }
+  }
+
+  /**
+   * Check the units only make a difference where the table says they need checking, and then
+   * the failures reported do not depend on them.
+   */
+  @Test
+  public void test_table_02() {
+    for (int state = 0; state < TransitionTable.STATES; state++) {
+      for (int conditions = 0; conditions < TransitionTable.UNIT_FAILURE; conditions++) {
+        int entry = TransitionTable.lookup(state, conditions);
+        int failed = TransitionTable.lookup(state, conditions | TransitionTable.UNIT_FAILURE);
+        if (TransitionTable.checksUnits(entry)) {
+          assertTrue(TransitionTable.checksUnits(failed));
+          assertEquals(TransitionTable.reports(entry), TransitionTable.reports(failed));
+        } else {
+          assertEquals(entry, failed);
+        }
+      }
+    }
+  }
+
+  /**
+   * Check a running boiler stops if both level devices fail, or the water goes outside the
+   * limits whilst the water level device is working, and reports a failed water level device.
+   */
+  @Test
+  public void test_table_03() {
+    for (int state : RUNNING) {
+      for (int conditions = 0; conditions < 1 << TransitionTable.CONDITIONS; conditions++) {
+        int entry = TransitionTable.lookup(state, conditions);
+        boolean water = (conditions & TransitionTable.WATER_FAILURE) != 0;
+        boolean steam = (conditions & TransitionTable.STEAM_FAILURE) != 0;
+        boolean outside = (conditions & TransitionTable.OUTSIDE_LIMITS) != 0;
+        if ((water && steam) || (!water && outside)) {
+          assertEquals(TransitionTable.EMERGENCY_STOP, TransitionTable.next(entry));
+        }
+        if (water) {
+          assertTrue((TransitionTable.reports(entry) & TransitionTable.REPORT_WATER) != 0);
+          assertFalse(TransitionTable.next(entry) == TransitionTable.NORMAL);
+        }
+      }
+    }
+  }
+
+  /**
+   * Check a boiler with nothing wrong stays in normal mode, and one with a failed pump goes
+   * into degraded mode.
+   */
+  @Test
+  public void test_table_04() {
+    int entry = TransitionTable.lookup(TransitionTable.NORMAL, 0);
+    assertTrue(TransitionTable.checksUnits(entry));
+    assertEquals(TransitionTable.NORMAL, TransitionTable.next(entry));
+    assertEquals(TransitionTable.PREDICT, TransitionTable.action(entry));
+    entry = TransitionTable.lookup(TransitionTable.NORMAL, TransitionTable.UNIT_FAILURE);
+    assertEquals(TransitionTable.DEGRADED, TransitionTable.next(entry));
+    entry = TransitionTable.lookup(TransitionTable.DEGRADED, 0);
+    assertEquals(TransitionTable.NORMAL, TransitionTable.next(entry));
+    entry = TransitionTable.lookup(TransitionTable.RESCUE, TransitionTable.WATER_FAILURE);
+    assertEquals(TransitionTable.RESCUE, TransitionTable.next(entry));
+    assertEquals(TransitionTable.PREDICT_AND_STEP, TransitionTable.action(entry));
+  }
+
+  /**
+   * Check the boiler only gets ready from waiting, only starts once the physical units are
+   * ready, and sends the right mode in each state.
+   */
+  @Test
+  public void test_table_05() {
+    for (int state = 0; state < TransitionTable.STATES; state++) {
+      for (int conditions = 0; conditions < 1 << TransitionTable.CONDITIONS; conditions++) {
+        int next = TransitionTable.next(TransitionTable.lookup(state, conditions));
+        if (next == TransitionTable.READY) {
+          assertTrue(state == TransitionTable.WAITING || state == TransitionTable.READY);
+        }
+        if (state == TransitionTable.READY && next == TransitionTable.NORMAL) {
+          assertTrue((conditions & TransitionTable.SIGNAL) != 0);
+        }
+      }
+    }
+    assertEquals(Mailbox.Mode.INITIALISATION, TransitionTable.mode(TransitionTable.WAITING));
+    assertEquals(Mailbox.Mode.INITIALISATION, TransitionTable.mode(TransitionTable.READY));
+    assertEquals(Mailbox.Mode.NORMAL, TransitionTable.mode(TransitionTable.NORMAL));
+    assertEquals(Mailbox.Mode.DEGRADED, TransitionTable.mode(TransitionTable.DEGRADED));
+    assertEquals(Mailbox.Mode.RESCUE, TransitionTable.mode(TransitionTable.RESCUE));
+    assertEquals(Mailbox.Mode.EMERGENCY_STOP,
+        TransitionTable.mode(TransitionTable.EMERGENCY_STOP));
+  }
+}